@@ -68,6 +68,7 @@ import ini.trakem2.display.YesNoDialog;
 import ini.trakem2.display.ZDisplayable;
 import ini.trakem2.persistence.DBLoader;
 import ini.trakem2.persistence.DBObject;
+import ini.trakem2.persistence.EvictionPolicy;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.persistence.XMLOptions;
@@ -82,6 +83,7 @@ import ini.trakem2.tree.TemplateTree;
 import ini.trakem2.tree.Thing;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.MemoryReport;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Search;
 import ini.trakem2.utils.Utils;
@@ -320,7 +322,8 @@ public class Project extends DBObject {
 						Bureaucrat.createAndStart(new Worker.Task("auto-saving") {
 							@Override
 							public void exec() {
-								Project.this.save();
+								// Only the changes, when possible; else the whole XML file
+								if (!loader.saveIncrementally(Project.this)) Project.this.save();
 							}
 						}, Project.this).join();
 					}
@@ -332,6 +335,27 @@ public class Project extends DBObject {
 		}, interval_in_minutes * 60, interval_in_minutes * 60, TimeUnit.SECONDS);
 	}
 
+	private ScheduledFuture<?> memory_reporting = null;
+
+	/** Log a {@link MemoryReport} every "memory_report_interval" minutes, if not zero. */
+	private void restartMemoryReport() {
+		if (null != memory_reporting) try {
+			memory_reporting.cancel(false);
+		} catch (Throwable t) { IJError.print(t); }
+		memory_reporting = null;
+		final int interval_in_minutes = getProperty("memory_report_interval", 0);
+		if (interval_in_minutes <= 0) return;
+		this.memory_reporting = FSLoader.autosaver.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					if (null != loader) MemoryReport.log(Project.this);
+				} catch (Throwable e) {
+					IJError.print(e);
+				}
+			}
+		}, interval_in_minutes * 60, interval_in_minutes * 60, TimeUnit.SECONDS);
+	}
+
 	static public Project getProject(final String title) {
 		for (final Project pr : al_open_projects) {
 			if (pr.title.equals(title)) return pr;
@@ -552,6 +576,7 @@ public class Project extends DBObject {
 			}
 
 			project.restartAutosaving();
+			project.restartMemoryReport();
 
 			return project;
 		} catch (Exception e) {
@@ -668,6 +693,7 @@ public class Project extends DBObject {
 		}
 		
 		project.restartAutosaving();
+		project.restartMemoryReport();
 
 		return project;
 	}
@@ -800,6 +826,7 @@ public class Project extends DBObject {
 		}
 		try {
 			if (null != autosaving) autosaving.cancel(true);
+			if (null != memory_reporting) memory_reporting.cancel(false);
 		} catch (Throwable t) {}
 		al_open_projects.remove(this);
 		// flush all memory
@@ -1426,6 +1453,7 @@ public class Project extends DBObject {
 			pr.loader.regenerateMipMaps(pr.layer_set.getDisplayables(Patch.class));
 
 			pr.restartAutosaving();
+			pr.restartMemoryReport();
 
 			return pr;
 
@@ -1454,6 +1482,10 @@ public class Project extends DBObject {
 		for (Map.Entry<String,String> prop : ht_attributes.entrySet()) {
 			Utils.log2("parsed: " + prop.getKey() + "=" + prop.getValue());
 		}
+		final String eviction_policy = ht_props.get("cache_eviction_policy");
+		if (null != eviction_policy) this.project.getLoader().setCacheEvictionPolicy(eviction_policy);
+		final int offheap_cache_mb = getProperty("offheap_cache_mb", 0);
+		if (offheap_cache_mb > 0) this.project.getLoader().setOffHeapCacheBytes(offheap_cache_mb * 1048576L);
 	}
 	public HashMap<String,String> getPropertiesCopy() {
 		return new HashMap<String,String>(ht_props);
@@ -1551,6 +1583,10 @@ public class Project extends DBObject {
 		gd.addCheckbox("Keep_mipmaps_when_deleting_images", keep_mipmaps); // coping with the fact that thee is no Action context ... there should be one in the Worker thread.
 		int bucket_side = (int)getProperty("bucket_side", Bucket.MIN_BUCKET_SIZE);
 		gd.addNumericField("Bucket side length: ", bucket_side, 0, 6, "pixels");
+		boolean rtree_index = "true".equals(ht_props.get("rtree_index"));
+		gd.addCheckbox("Index_images_with_an_R-tree instead of buckets", rtree_index);
+		boolean parallel_painting = "true".equals(ht_props.get("parallel_painting"));
+		gd.addCheckbox("Paint_images_in_parallel bands", parallel_painting);
 		boolean no_shutdown_hook = "true".equals(ht_props.get("no_shutdown_hook"));
 		gd.addCheckbox("No_shutdown_hook to save the project", no_shutdown_hook);
 		int n_undo_steps = getProperty("n_undo_steps", 32);
@@ -1565,6 +1601,14 @@ public class Project extends DBObject {
 		gd.addSlider("Number of threads for mipmaps", 1, n_mipmap_threads, n_mipmap_threads);
 		int meshResolution = getProperty("mesh_resolution", 32);
 		gd.addSlider("Default mesh resolution for images", 1, 512, meshResolution);
+		final String eviction_policy = loader.getCacheEvictionPolicy();
+		gd.addChoice("Image_cache_eviction_policy:", EvictionPolicy.NAMES, eviction_policy);
+		int offheap_cache_mb = getProperty("offheap_cache_mb", 0);
+		gd.addNumericField("Off-heap_image_cache:", offheap_cache_mb, 0, 6, "MB (0 to disable)");
+		int mipmaps_strip_rows = getProperty("mipmaps_strip_rows", 0);
+		gd.addNumericField("Mipmaps_in_parallel_strips_of:", mipmaps_strip_rows, 0, 6, "rows (0 to disable)");
+		int memory_report_interval = getProperty("memory_report_interval", 0);
+		gd.addNumericField("Log_memory_report_every:", memory_report_interval, 0, 6, "minutes (0 to disable)");
 		//
 		gd.showDialog();
 		//
@@ -1614,6 +1658,10 @@ public class Project extends DBObject {
 			setProperty("bucket_side", Integer.toString(bucket_side));
 			layer_set.recreateBuckets(true);
 		}
+		if (adjustProp("rtree_index", rtree_index, gd.getNextBoolean())) {
+			layer_set.recreateBuckets(true);
+		}
+		adjustProp("parallel_painting", parallel_painting, gd.getNextBoolean());
 		adjustProp("no_shutdown_hook", no_shutdown_hook, gd.getNextBoolean());
 		n_undo_steps = (int)gd.getNextNumber();
 		if (n_undo_steps < 0) n_undo_steps = 0;
@@ -1653,6 +1701,31 @@ public class Project extends DBObject {
 				Utils.log("WARNING: ignoring invalid mesh resolution value " + meshResolution2);
 			}
 		}
+		final String eviction_policy2 = gd.getNextChoice();
+		if (!eviction_policy2.equals(eviction_policy)) {
+			setProperty("cache_eviction_policy", eviction_policy2);
+			loader.setCacheEvictionPolicy(eviction_policy2);
+		}
+		final double offheap_cache_mb2 = gd.getNextNumber();
+		if (Double.isNaN(offheap_cache_mb2) || offheap_cache_mb2 < 0) {
+			Utils.log("Ignoring invalid off-heap image cache size: " + offheap_cache_mb2);
+		} else if ((int)offheap_cache_mb2 != offheap_cache_mb) {
+			setProperty("offheap_cache_mb", Integer.toString((int)offheap_cache_mb2));
+			loader.setOffHeapCacheBytes((long)offheap_cache_mb2 * 1048576L);
+		}
+		final double mipmaps_strip_rows2 = gd.getNextNumber();
+		if (Double.isNaN(mipmaps_strip_rows2) || mipmaps_strip_rows2 < 0) {
+			Utils.log("Ignoring invalid number of rows for mipmap strips: " + mipmaps_strip_rows2);
+		} else if ((int)mipmaps_strip_rows2 != mipmaps_strip_rows) {
+			setProperty("mipmaps_strip_rows", Integer.toString((int)mipmaps_strip_rows2));
+		}
+		final double memory_report_interval2 = gd.getNextNumber();
+		if (Double.isNaN(memory_report_interval2) || memory_report_interval2 < 0) {
+			Utils.log("Ignoring invalid interval for memory reports: " + memory_report_interval2);
+		} else if ((int)memory_report_interval2 != memory_report_interval) {
+			setProperty("memory_report_interval", Integer.toString((int)memory_report_interval2));
+			restartMemoryReport();
+		}
 	}
 
 	/** Return the Universal Near-Unique Id of this project, which may be null for non-FSLoader projects. */
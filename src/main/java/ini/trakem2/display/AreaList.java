@@ -60,12 +60,15 @@ import java.awt.geom.PathIterator;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -102,6 +105,7 @@ import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.CircularSequence;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
+import ini.trakem2.utils.MemoryReport;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
 
@@ -481,6 +485,23 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 
 	@Override
 	public void exportXML(final StringBuilder sb_body, final String indent, final XMLOptions options) {
+		try {
+			exportXML(sb_body, null, indent, options);
+		} catch (final IOException ioe) {
+			IJError.print(ioe); // can't happen without a Writer
+		}
+	}
+
+	/** Writes the areas in chunks, rather than all at once. */
+	@Override
+	public void exportXML(final Writer writer, final String indent, final XMLOptions options) throws Exception {
+		final StringBuilder sb = new StringBuilder(XML_CHUNK + 1024);
+		exportXML(sb, writer, indent, options);
+		writer.write(sb.toString());
+	}
+
+	/** @param writer may be null, and then all goes into @param sb_body. */
+	private final void exportXML(final StringBuilder sb_body, final Writer writer, final String indent, final XMLOptions options) throws IOException {
 		sb_body.append(indent).append("<t2_area_list\n");
 		final String in = indent + "\t";
 		super.exportXML(sb_body, in, options);
@@ -494,6 +515,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			sb_body.append(in).append("<t2_area layer_id=\"").append(entry.getKey()).append("\">\n");
 			exportArea(sb_body, in + "\t", area);
 			sb_body.append(in).append("</t2_area>\n");
+			flushXML(sb_body, writer);
 		}
 		super.restXML(sb_body, in, options);
 		sb_body.append(indent).append("</t2_area_list>\n");
@@ -829,6 +851,11 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	/** How many layers does this object paint to. */
 	public int getNAreas() { return ht_areas.size(); }
 
+	/** Estimated bytes retained by the areas of all layers; see {@link MemoryReport}. */
+	synchronized public long estimateAreaBytes(final IdentityHashMap<Object,Boolean> seen) {
+		return MemoryReport.estimate(ht_areas, seen);
+	}
+
 	public Area getArea(final Layer la) {
 		if (null == la) return null;
 		return getArea(la.getId());
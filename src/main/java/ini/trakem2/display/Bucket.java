@@ -67,7 +67,7 @@ import java.util.TreeMap;
  * A Bucket is a subarea of the Layer area, which contains either other Buckets or a map of stack_index vs. Displayable instances. VERY IMPORTANT: either children is null, or map is null, but both cannot be null at the same time neither not null at the same time.
  *
  */
-public class Bucket {
+public class Bucket extends SpatialIndex {
 
 	static public final int MIN_BUCKET_SIZE = 4096;
 
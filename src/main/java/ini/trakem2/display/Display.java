@@ -180,6 +180,7 @@ import ini.trakem2.utils.Dispatcher;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.Operation;
 import ini.trakem2.utils.OptionPanel;
 import ini.trakem2.utils.ProjectToolbar;
@@ -445,6 +446,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			if (null != layer) {
 
 				if (layer.getParent().preload_ahead > 0) {
+					imagePreloader.reportSavings(layer);
 					preloadImagesAhead(Display.this.layer, layer, layer.getParent().preload_ahead);
 				}
 
@@ -491,10 +493,17 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 
 	private final ImagePreloader imagePreloader = new ImagePreloader();
 
+	/** Loads into the cache the mipmaps for the visible area of the layers around the current one,
+	 *  nearest layers first and, at equal distance, in the direction of motion first.
+	 *  Stops when the images would exceed the {@link LayerSet#preload_budget_mb} (by default
+	 *  a quarter of the image cache), when the layer changes, or when the visible area or magnification change. */
 	private final class ImagePreloader extends Thread {
 		private Layer oldLayer, newLayer;
 		private int nLayers;
-		private boolean restart = false;
+		private volatile boolean restart = false;
+		/** Time in nanoseconds that it took to load each prefetched image, and the index of its layer, by Patch id. */
+		private final HashMap<Long,long[]> prefetched = new HashMap<Long,long[]>();
+		private long saved_total = 0;
 
 		ImagePreloader() {
 			setPriority(Thread.NORM_PRIORITY);
@@ -512,6 +521,30 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			}
 		}
 
+		/** Log the time that would have been spent loading the images of @param layer that were prefetched and are still cached. */
+		final void reportSavings(final Layer layer) {
+			final Loader loader = project.getLoader();
+			final double mag = canvas.getMagnification();
+			long saved = 0;
+			int n = 0;
+			synchronized (prefetched) {
+				if (prefetched.isEmpty()) return;
+				for (final Displayable d : layer.getDisplayables(Patch.class, new Area(canvas.getSrcRect()), true)) {
+					final long[] t = prefetched.remove(d.getId());
+					if (null != t && loader.isCached((Patch)d, mag)) {
+						saved += t[0];
+						++n;
+					}
+				}
+				saved_total += saved;
+			}
+			if (n > 0) Utils.log2("Prefetching saved " + (saved / 1000000) + " ms loading " + n + " images for layer " + layer + " (total: " + (saved_total / 1000000) + " ms)");
+		}
+
+		private final boolean moved(final Rectangle srcRect, final double mag) {
+			return mag != canvas.getMagnification() || !srcRect.equals(canvas.getSrcRect());
+		}
+
 		@Override
 		public void run() {
 			while (!isInterrupted()) {
@@ -531,27 +564,47 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 					restart = false;
 				}
 
-				final LayerSet ls = oldLayer.getParent();
-				final int old_layer_index = ls.indexOf(oldLayer);
+				final LayerSet ls = newLayer.getParent();
 				final int new_layer_index = ls.indexOf(newLayer);
-				final int sign = new_layer_index - old_layer_index;
+				final int sign = null == oldLayer || oldLayer.getParent() != ls ? 1 : (new_layer_index >= ls.indexOf(oldLayer) ? 1 : -1);
 
-				final Area aroi = new Area(canvas.getSrcRect());
+				final Rectangle srcRect = new Rectangle(canvas.getSrcRect());
+				final Area aroi = new Area(srcRect);
 				final double mag = canvas.getMagnification();
+				final Loader loader = project.getLoader();
+				final long budget = ls.preload_budget_mb > 0 ? ls.preload_budget_mb * 1048576L : loader.getCacheMaxBytes() / 4;
+				long bytes = 0;
+
+				// Forget images prefetched for layers now out of range
+				synchronized (prefetched) {
+					for (final Iterator<long[]> it = prefetched.values().iterator(); it.hasNext(); ) {
+						if (Math.abs(it.next()[1] - new_layer_index) > nLayers) it.remove();
+					}
+				}
 
-				// Preload from most distant ahead to least.
-				// The assumption being that least distant are already cached.
-				//Utils.log2("-- started");
-				for (final Layer la : ls.getLayers(Math.max(0, Math.min(new_layer_index + sign * nLayers, ls.size() -1)), new_layer_index)) {
-					if (restart) break;
-					for (final Displayable d : la.getDisplayables(Patch.class, aroi, true)) {
-						if (restart) break;
-						if (isInterrupted()) return;
-						project.getLoader().fetchImage((Patch)d, mag);
-						//Utils.log2("preloaded #" + d.getId() + " from layer " + la.getParent().indexOf(la));
+				// Nearest layers first; at equal distance, ahead in the direction of motion first
+				preloading:
+				for (int k=1; k<=nLayers; ++k) {
+					for (final int index : new int[]{new_layer_index + sign * k, new_layer_index - sign * k}) {
+						if (index < 0 || index >= ls.size()) continue;
+						for (final Displayable d : ls.getLayer(index).getDisplayables(Patch.class, aroi, true)) {
+							if (isInterrupted()) return;
+							if (restart || moved(srcRect, mag)) break preloading;
+							final Patch p = (Patch)d;
+							if (loader.isCached(p, mag)) continue;
+							final double scale = Math.pow(2, Loader.getMipMapLevel(mag, Loader.maxDim(p)));
+							bytes += (long)(p.getWidth() / scale) * (long)(p.getHeight() / scale) * 4;
+							if (bytes > budget) break preloading;
+							final long t0 = System.nanoTime();
+							final MipMapImage mipMap = loader.fetchImage(p, mag);
+							if (null != mipMap && !Loader.isSignalImage(mipMap.image)) {
+								synchronized (prefetched) {
+									prefetched.put(p.getId(), new long[]{System.nanoTime() - t0, index});
+								}
+							}
+						}
 					}
 				}
-				//Utils.log2("-- completed: restart is " + restart);
 			}
 		}
 	}
@@ -3327,6 +3380,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		item = new JMenuItem("Create sibling project with retiled layers"); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Release memory..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Flush image cache"); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("Export performance metrics..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Regenerate all mipmaps"); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Regenerate mipmaps (selected images)"); item.addActionListener(this); menu.add(item);
 		menu.addSeparator();
@@ -6189,6 +6243,9 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 
 		} else if (command.equals("Flush image cache")) {
 			Loader.releaseAllCaches();
+		} else if (command.equals("Export performance metrics...")) {
+			final File f = Utils.chooseFile("metrics", ".csv");
+			if (null != f && Metrics.write(f)) Utils.log("Saved performance metrics to " + f.getAbsolutePath());
 		} else if (command.equals("Regenerate all mipmaps")) {
 			project.getLoader().regenerateMipMaps(getLayerSet().getDisplayables(Patch.class));
 		} else if (command.equals("Regenerate mipmaps (selected images)")) {
@@ -6404,6 +6461,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		gd.addCheckbox("Use red/blue for color cues", layer.getParent().use_color_cue_colors);
 		gd.addCheckbox("Prepaint images", layer.getParent().prepaint);
 		gd.addSlider("Preload ahead from sections: ", 0, layer.getParent().size(), layer.getParent().preload_ahead);
+		gd.addNumericField("Preload memory budget: ", layer.getParent().preload_budget_mb, 0, 6, "MB (0 for a quarter of the image cache)");
 		// --------
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
@@ -6440,6 +6498,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		layer.getParent().use_color_cue_colors = gd.getNextBoolean();
 		layer.getParent().prepaint = gd.getNextBoolean();
 		layer.getParent().preload_ahead = (int) Math.min(gd.getNextNumber(), layer.getParent().size());
+		layer.getParent().preload_budget_mb = (int) Math.max(0, gd.getNextNumber());
 		Display.repaint(layer.getParent());
 	}
 
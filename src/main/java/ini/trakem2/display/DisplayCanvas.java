@@ -72,6 +72,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 import java.awt.image.PixelGrabber;
 import java.awt.image.VolatileImage;
 import java.util.ArrayList;
@@ -86,7 +87,11 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -113,6 +118,7 @@ import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Lock;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Search;
 import ini.trakem2.utils.Utils;
@@ -140,6 +146,34 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 	private final Object offscreen_lock = new Object();
 
+	/** Images being fetched for painting, by Patch, and the magnification they are fetched for. Guarded by itself. */
+	private final HashMap<Patch,Future<MipMapImage>> fetching = new HashMap<Patch,Future<MipMapImage>>();
+	private double fetching_magnification = 0;
+	/** Images fetched for painting and pinned in the cache until painted. Guarded by {@link #fetching}. */
+	private final HashMap<Patch,MipMapImage> pinned = new HashMap<Patch,MipMapImage>();
+
+	/** Pins each image fetched for painting and repaints its Patch. */
+	private final Loader.FetchListener on_fetched = new Loader.FetchListener() {
+		@Override
+		public void fetched(final Patch p, final Future<MipMapImage> fu) {
+			MipMapImage m = null;
+			try {
+				m = fu.get(); // done already
+			} catch (final Throwable t) {
+				IJError.print(t);
+			}
+			synchronized (fetching) {
+				if (fetching.get(p) != fu) return; // no longer wanted
+				fetching.remove(p);
+				// If evicted already, don't repaint: it would only fetch it again
+				if (null == m || Loader.isSignalImage(m.image) || !p.getProject().getLoader().pin(p, m.image)) return;
+				final MipMapImage old = pinned.put(p, m);
+				if (null != old) p.getProject().getLoader().unpin(p);
+			}
+			if (p.getLayer() == display.getLayer()) repaint(p, 0, true);
+		}
+	};
+
 	private Cursor noCursor;
 
 	private boolean snapping = false;
@@ -1761,6 +1795,11 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			for (final BufferedImage bi : to_flush) bi.flush();
 			to_flush.clear();
 		}
+		synchronized (fetching) {
+			fetching.clear();
+			for (final Patch p : pinned.keySet()) p.getProject().getLoader().unpin(p);
+			pinned.clear();
+		}
 		mouse_moved.quit();
 		try {
 			synchronized (this) { if (null != animator) animator.shutdownNow(); }
@@ -2472,6 +2511,10 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 				graphics_source = rp.graphics_source;
 			}
 
+			// Mipmaps regenerate first for what the front display shows
+			if (display == Display.getFront()) loader.setMipMapRegenerationView(active_layer, srcRect);
+
+			final long t_start = Metrics.start();
 			BufferedImage target = null;
 
 			final ArrayList<Displayable> al_top = new ArrayList<Displayable>();
@@ -2491,6 +2534,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 							Utils.log2("rejecting: different active object");
 							target = null;
 						} else {
+							Metrics.counter("display.offscreen.screenshot_hit").increment();
 							al_top.addAll(sc.al_top);
 							display.applyFilters(target);
 						}
@@ -2503,7 +2547,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			//Utils.log2("Found target " + target + "\n  with al_top.size() = " + al_top.size());
 
 			if (null == target) {
+				final long tp = Metrics.start();
 				target = paintOffscreen(active_layer, layers, g_width, g_height, srcRect, magnification, active, c_alphas, clipRect, loader, hm, blending_list, mode, graphics_source, active_layer.getParent().prepaint, al_top, true);
+				Metrics.timer("display.offscreen.paint").stop(tp);
 				// Store it:
 				/* CAN'T, may have prePaint in it
 				if (null != sc && display.getProject().getProperty("look_ahead_cache", 0) > 0) {
@@ -2525,12 +2571,15 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 			// Send repaint event, without offscreen graphics
 			RT.paint(clipRect, false);
+
+			Metrics.timer("display.offscreen.repaint").stop(t_start);
+			if (null != target) loader.firstPainted();
 		}
 	}
 
 	/** Looks into the layer and its LayerSet and finds out what needs to be painted, putting it into the three lists.
 	 *  @return the index of the first non-image object. */
-	private final int gatherDisplayables(final Layer layer, final List<Layer> layers, final Rectangle srcRect, final Displayable active, final ArrayList<Displayable> al_paint, final ArrayList<Displayable> al_top, final boolean preload_patches) {
+	private final int gatherDisplayables(final Layer layer, final List<Layer> layers, final Rectangle srcRect, final Displayable active, final ArrayList<Displayable> al_paint, final ArrayList<Displayable> al_top) {
 		layer.getParent().checkBuckets();
 		layer.checkBuckets();
 		final Iterator<Displayable> ital = layer.find(srcRect, true).iterator();
@@ -2540,10 +2589,20 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 		if (layer_set.color_cues) {
 			final Collection<Displayable> atlayer = layer_set.roughlyFindZDisplayables(layer, srcRect, true);
 			final Set<Displayable> others = new HashSet<Displayable>();
+			// The color cue layers are a range around the layer: query the layers below it and those above it at once
+			Layer below_first = null, below_last = null, above_first = null, above_last = null;
 			for (final Layer la : layers) {
 				if (la == layer) continue;
-				others.addAll(layer_set.roughlyFindZDisplayables(la, srcRect, true));
+				if (la.getZ() < layer.getZ()) {
+					if (null == below_first || la.getZ() < below_first.getZ()) below_first = la;
+					if (null == below_last || la.getZ() > below_last.getZ()) below_last = la;
+				} else {
+					if (null == above_first || la.getZ() < above_first.getZ()) above_first = la;
+					if (null == above_last || la.getZ() > above_last.getZ()) above_last = la;
+				}
 			}
+			if (null != below_first) others.addAll(layer_set.roughlyFindZDisplayables(below_first, below_last, srcRect, true));
+			if (null != above_first) others.addAll(layer_set.roughlyFindZDisplayables(above_first, above_last, srcRect, true));
 			others.removeAll(atlayer);
 			zdal = new ArrayList<Displayable>(others); // in whatever order, to paint under
 			zdal.addAll(atlayer); // in proper stack-index order
@@ -2560,8 +2619,6 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 		Displayable tmp = null;
 		boolean top = false;
-		final ArrayList<Patch> al_patches = preload_patches ? new ArrayList<Patch>() : null;
-
 		int first_non_patch = 0;
 
 		while (ital.hasNext()) {
@@ -2573,7 +2630,6 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			}
 			if (Patch.class == c) {
 				al_paint.add(d);
-				if (preload_patches) al_patches.add((Patch)d);
 			} else {
 				if (!top && d == active) top = true; // no Patch on al_top ever
 				if (top) al_top.add(d); // so active is added to al_top, if it's not a Patch
@@ -2582,9 +2638,6 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			first_non_patch += 1;
 		}
 
-		// preload concurrently as many as possible
-		if (preload_patches) Loader.preload(al_patches, magnification, false); // must be false; a 'true' would incur in an infinite loop.
-
 		// paint the ZDisplayables here, before the labels and LayerSets, if any
 		while (itzd.hasNext()) {
 			final Displayable zd = itzd.next();
@@ -2628,12 +2681,91 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			final boolean prepaint, final ArrayList<Displayable> al_top, final boolean preload) {
 
 		final ArrayList<Displayable> al_paint = new ArrayList<Displayable>();
-		final int first_non_patch = gatherDisplayables(active_layer, layers, srcRect, active, al_paint, al_top, preload);
+		final int first_non_patch = gatherDisplayables(active_layer, layers, srcRect, active, al_paint, al_top);
+
+		if (!preload) return paintOffscreen(active_layer, layers, al_paint, active, g_width, g_height, c_alphas, loader, hm, blending_list, mode, graphics_source, prepaint, first_non_patch);
 
-		return paintOffscreen(active_layer, layers, al_paint, active, g_width, g_height, c_alphas, loader, hm, blending_list, mode, graphics_source, prepaint, first_non_patch);
+		// read concurrently the images to paint, without waiting for them
+		final ArrayList<Patch> to_unpin = new ArrayList<Patch>();
+		try {
+			final HashMap<Patch,MipMapImage> images = fetchToPaint(al_paint, magnification, loader, to_unpin);
+			return paintOffscreen(active_layer, layers, al_paint, active, g_width, g_height, c_alphas, loader, hm, blending_list, mode, graphics_source, prepaint, first_non_patch, images);
+		} finally {
+			for (final Patch p : to_unpin) loader.unpin(p);
+		}
+	}
+
+	/** Returns the image to paint each {@link Patch} of @param al_paint with, fetched for painting at @param magnification:
+	 *  those fetched already, pinned in the cache and added to @param to_unpin, to unpin once painted;
+	 *  or null for those being fetched, to paint meanwhile whatever is cached. Starts fetching, without waiting,
+	 *  the images not in the cache, each of which will repaint its Patch once fetched.
+	 *  Patches not in the returned map are to be painted as usual, as when images can't be fetched in the background. */
+	private final HashMap<Patch,MipMapImage> fetchToPaint(final ArrayList<Displayable> al_paint, final double magnification, final Loader loader, final ArrayList<Patch> to_unpin) {
+		final HashMap<Patch,MipMapImage> images = new HashMap<Patch,MipMapImage>();
+		final ArrayList<Patch> to_fetch = new ArrayList<Patch>();
+		synchronized (fetching) {
+			if (magnification != fetching_magnification) {
+				// Fetched for another magnification: not the images to paint
+				fetching.clear();
+				for (final Patch p : pinned.keySet()) loader.unpin(p);
+				pinned.clear();
+				fetching_magnification = magnification;
+			}
+			final HashSet<Patch> in_view = new HashSet<Patch>();
+			for (final Displayable d : al_paint) {
+				if (Patch.class != d.getClass()) continue;
+				final Patch p = (Patch)d;
+				in_view.add(p);
+				final MipMapImage m = pinned.remove(p);
+				if (null != m) {
+					images.put(p, m);
+					to_unpin.add(p);
+					continue;
+				}
+				final Future<MipMapImage> fu = fetching.get(p);
+				if (null != fu) {
+					images.put(p, null);
+					continue;
+				}
+				to_fetch.add(p);
+			}
+			// Those no longer in view won't be painted
+			fetching.keySet().retainAll(in_view);
+			for (final Patch p : pinned.keySet()) loader.unpin(p);
+			pinned.clear();
+
+			// Under the lock, so that none is fetched before being listed as fetching
+			final List<Future<MipMapImage>> fus = to_fetch.isEmpty() ? null : loader.fetchImagesLater(to_fetch, magnification, false, on_fetched);
+			if (null == fus) return images;
+			for (int i=0; i<fus.size(); i++) {
+				final Patch p = to_fetch.get(i);
+				final Future<MipMapImage> fu = fus.get(i);
+				if (!fu.isDone()) {
+					fetching.put(p, fu);
+					images.put(p, null);
+					continue;
+				}
+				MipMapImage m = null;
+				try {
+					m = fu.get();
+				} catch (final Throwable t) {
+					IJError.print(t);
+				}
+				if (null != m && loader.pin(p, m.image)) {
+					images.put(p, m);
+					to_unpin.add(p);
+				}
+			}
+		}
+		return images;
 	}
 
-	public BufferedImage paintOffscreen(final Layer active_layer, final List<Layer> layers, final ArrayList<Displayable> al_paint, final Displayable active, final int g_width, final int g_height, final int c_alphas, final Loader loader, final HashMap<Color,Layer> hm, final ArrayList<LayerPanel> blending_list, final int mode, final GraphicsSource graphics_source, final boolean prepaint, int first_non_patch) {
+	public BufferedImage paintOffscreen(final Layer active_layer, final List<Layer> layers, final ArrayList<Displayable> al_paint, final Displayable active, final int g_width, final int g_height, final int c_alphas, final Loader loader, final HashMap<Color,Layer> hm, final ArrayList<LayerPanel> blending_list, final int mode, final GraphicsSource graphics_source, final boolean prepaint, final int first_non_patch) {
+		return paintOffscreen(active_layer, layers, al_paint, active, g_width, g_height, c_alphas, loader, hm, blending_list, mode, graphics_source, prepaint, first_non_patch, null);
+	}
+
+	/** Paints each Patch in @param images, if not null, with its image there, as in {@link #fetchToPaint(ArrayList, double, Loader, ArrayList)}. */
+	public BufferedImage paintOffscreen(final Layer active_layer, final List<Layer> layers, final ArrayList<Displayable> al_paint, final Displayable active, final int g_width, final int g_height, final int c_alphas, final Loader loader, final HashMap<Color,Layer> hm, final ArrayList<LayerPanel> blending_list, final int mode, final GraphicsSource graphics_source, final boolean prepaint, int first_non_patch, final HashMap<Patch,MipMapImage> images) {
 		try {
 			if (0 == g_width || 0 == g_height) return null;
 			// ALMOST, but not always perfect //if (null != clipRect) g.setClip(clipRect);
@@ -2688,8 +2820,13 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 					paintWithFiltering(g, al_paint, paintables, first_non_patch, g_width, g_height, active, c_alphas, active_layer, layers, true);
 				} else {
 					// Direct painting mode, with prePaint abilities
+					final int n_in_bands = paintImagesInBands(target, atc, paintables, g_width, g_height, c_alphas, active_layer, images, prepaint);
 					int i = 0;
 					for (final Paintable d : paintables) {
+						if (i < n_in_bands) {
+							i++;
+							continue;
+						}
 						if (i == first_non_patch) {
 							//Object antialias = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
 							g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,  RenderingHints.VALUE_ANTIALIAS_ON); // to smooth edges of the images
@@ -2698,8 +2835,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 							//Object render_quality = g.getRenderingHint(RenderingHints.KEY_RENDERING);
 							g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
 						}
-						if (prepaint) d.prePaint(g, srcRect, magnification, d == active, c_alphas, active_layer, layers);
-						else d.paint(g, srcRect, magnification, d == active, c_alphas, active_layer, layers);
+						paintOne(d, images, g, srcRect, magnification, d == active, c_alphas, active_layer, layers, prepaint);
 						i++;
 					}
 				}
@@ -2710,18 +2846,10 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 					paintWithFiltering(g, al_paint, paintables, first_non_patch, g_width, g_height, active, c_alphas, active_layer, layers, false);
 				} else {
 					int i = 0;
-					if (prepaint) {
-						for (final Paintable d : paintables) {
-							if (first_non_patch == i) break;
-							d.prePaint(g, srcRect, magnification, d == active, c_alphas, active_layer, layers);
-							i++;
-						}
-					} else {
-						for (final Paintable d : paintables) {
-							if (first_non_patch == i) break;
-							d.paint(g, srcRect, magnification, d == active, c_alphas, active_layer, layers);
-							i++;
-						}
+					for (final Paintable d : paintables) {
+						if (first_non_patch == i) break;
+						paintOne(d, images, g, srcRect, magnification, d == active, c_alphas, active_layer, layers, prepaint);
+						i++;
 					}
 				}
 
@@ -2856,6 +2984,152 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 		return null;
 	}
 
+	/** Paint @param d with its image in @param images if there, as in {@link #fetchToPaint(ArrayList, double, Loader, ArrayList)}. */
+	static private final void paintOne(final Paintable d, final HashMap<Patch,MipMapImage> images, final Graphics2D g, final Rectangle srcRect, final double magnification,
+			final boolean active, final int c_alphas, final Layer active_layer, final List<Layer> layers, final boolean prepaint) {
+		if (null != images && d instanceof Patch && images.containsKey(d)) {
+			final Patch p = (Patch)d;
+			p.paintFetched(g, srcRect, magnification, c_alphas, images.get(p));
+		}
+		else if (prepaint) d.prePaint(g, srcRect, magnification, active, c_alphas, active_layer, layers);
+		else d.paint(g, srcRect, magnification, active, c_alphas, active_layer, layers);
+	}
+
+	/** Paints the images of {@link #paintImagesInBands}; created on first use. */
+	static private ExecutorService band_painter = null;
+
+	static private ExecutorService getBandPainter() {
+		synchronized (DisplayCanvas.class) {
+			if (null == band_painter) band_painter = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "DisplayCanvas-bands");
+			return band_painter;
+		}
+	}
+
+	/** Paint the leading {@link Patch} instances of @param paintables into @param target in horizontal bands, in parallel,
+	 *  each band into its own image, painting only the images whose bounding box intersects it; the bands are then
+	 *  copied into the target in the calling thread. The image of each Patch is looked up, or fetched, once for all bands:
+	 *  that in @param images if any, as in {@link #fetchToPaint(ArrayList, double, Loader, ArrayList)}.
+	 *  When @param prepaint, images are not fetched here, which would wait: if any is not in @param images, none are painted,
+	 *  and all are left to {@link Paintable#prePaint}, which paints what is cached and repaints when the image arrives.
+	 *  Returns how many leading paintables were painted, which is zero unless the project property "parallel_painting" is true
+	 *  and there are enough images for it to pay off.
+	 *
+	 *  Bands span the whole width of the target, start from its pixels, and use the same transform as the single-threaded
+	 *  painting but for a translation by whole pixels, and images are painted with the default nearest-neighbor interpolation:
+	 *  then every pixel gets the same value either way. Tiles narrower than the target would not: Java2D interpolates
+	 *  incrementally along each span from where it starts, which for a tile is its left edge. */
+	private final int paintImagesInBands(final BufferedImage target, final AffineTransform atc, final Collection<? extends Paintable> paintables,
+			final int g_width, final int g_height, final int c_alphas, final Layer active_layer, final HashMap<Patch,MipMapImage> images, final boolean prepaint) {
+		final int n_threads = Runtime.getRuntime().availableProcessors();
+		if (n_threads < 2 || !active_layer.getProject().getBooleanProperty("parallel_painting")) return 0;
+		final ArrayList<Patch> patches = new ArrayList<Patch>();
+		for (final Paintable d : paintables) {
+			if (!(d instanceof Patch)) break;
+			patches.add((Patch)d);
+		}
+		if (patches.size() < 2 * n_threads) return 0;
+		if (prepaint) {
+			for (final Patch p : patches) {
+				if (null == images || !images.containsKey(p)) return 0;
+			}
+		}
+
+		final Loader loader = active_layer.getProject().getLoader();
+		final Rectangle src = srcRect;
+		final double mag = magnification;
+
+		// The image of each Patch, once for all the bands it crosses
+		final MipMapImage[] mipmaps = new MipMapImage[patches.size()];
+		final ArrayList<Patch> to_unpin = new ArrayList<Patch>();
+		try {
+			final ArrayList<Patch> to_fetch = new ArrayList<Patch>();
+			for (final Patch p : patches) {
+				if (null == images || !images.containsKey(p)) to_fetch.add(p);
+			}
+			final List<MipMapImage> fetched = to_fetch.isEmpty() ? null : loader.fetchImages(to_fetch, mag, false);
+			for (int i=0, k=0; i<mipmaps.length; i++) {
+				final Patch p = patches.get(i);
+				final MipMapImage m = null != images && images.containsKey(p) ? images.get(p) : fetched.get(k++);
+				mipmaps[i] = p.getImageToPaint(mag, c_alphas, m);
+				// Those in images are pinned already
+				if (null != mipmaps[i] && (null == images || null == images.get(p)) && loader.pin(p, mipmaps[i].image)) to_unpin.add(p);
+			}
+
+			// Bounding boxes in screen coordinates, enlarged by a pixel for rounding
+			final int[] y0 = new int[patches.size()],
+			            y1 = new int[patches.size()];
+			for (int i=0; i<y0.length; i++) {
+				final Rectangle b = atc.createTransformedShape(patches.get(i).getBoundingBox()).getBounds();
+				y0[i] = b.y - 1;
+				y1[i] = b.y + b.height + 1;
+			}
+
+			final Stroke band_stroke = stroke;
+			final ColorModel cm = target.getColorModel();
+			final int band_height = Math.max(32, (g_height + 2 * n_threads - 1) / (2 * n_threads));
+			final ExecutorService exec = getBandPainter();
+			final ArrayList<Rectangle> bands = new ArrayList<Rectangle>();
+			final ArrayList<Future<BufferedImage>> fus = new ArrayList<Future<BufferedImage>>();
+			for (int y=0; y<g_height; y+=band_height) {
+				final Rectangle band = new Rectangle(0, y, g_width, Math.min(band_height, g_height - y));
+				bands.add(band);
+				fus.add(exec.submit(new Callable<BufferedImage>() {
+					@Override
+					public BufferedImage call() {
+						final BufferedImage bi = new BufferedImage(cm, cm.createCompatibleWritableRaster(band.width, band.height), cm.isAlphaPremultiplied(), null);
+						final Graphics2D g = bi.createGraphics();
+						try {
+							// Start from the pixels of the target, as if painting onto it
+							final Composite original = g.getComposite();
+							g.setComposite(AlphaComposite.Src);
+							g.drawImage(target.getSubimage(band.x, band.y, band.width, band.height), 0, 0, null);
+							g.setComposite(original);
+							g.translate(0, -band.y);
+							g.transform(atc);
+							g.setStroke(band_stroke);
+							for (int i=0; i<y0.length; i++) {
+								if (null == mipmaps[i] || y1[i] < band.y || y0[i] >= band.y + band.height) continue;
+								patches.get(i).paintImage(g, src, mipmaps[i]);
+							}
+						} finally {
+							g.dispose();
+						}
+						return bi;
+					}
+				}));
+			}
+			// Wait for all bands even if interrupted, so that the images stay pinned until painted
+			boolean interrupted = false;
+			final Graphics2D g = target.createGraphics();
+			try {
+				g.setComposite(AlphaComposite.Src);
+				for (int k=0; k<fus.size(); k++) {
+					BufferedImage bi = null;
+					while (true) {
+						try {
+							bi = fus.get(k).get();
+							break;
+						} catch (final InterruptedException ie) {
+							interrupted = true;
+						} catch (final ExecutionException ee) {
+							IJError.print(ee.getCause());
+							break;
+						}
+					}
+					if (null == bi) continue;
+					g.drawImage(bi, 0, bands.get(k).y, null);
+					bi.flush();
+				}
+			} finally {
+				g.dispose();
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		} finally {
+			for (final Patch p : to_unpin) loader.unpin(p);
+		}
+		return patches.size();
+	}
+
 	private final void paintWithFiltering(final Graphics2D g, final ArrayList<Displayable> al_paint,
 										  final Collection<? extends Paintable> paintables,
 										  final int first_non_patch,
@@ -77,6 +77,8 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -1362,6 +1364,26 @@ public abstract class Displayable extends DBObject implements Paintable  {
 							  // never returns empty
 	}
 
+	/** Chars of XML to accumulate before writing them, when streaming with {@link #exportXML(Writer, String, XMLOptions)}. */
+	static protected final int XML_CHUNK = 65536;
+
+	/** Writes the whole XML element to @param writer. Subclasses whose elements can be huge,
+	 *  such as {@link Tree} and {@link AreaList}, write it in chunks of about {@link #XML_CHUNK} chars,
+	 *  so that saving doesn't need to hold any one element in memory. The output is the same
+	 *  as that of {@link #exportXML(StringBuilder, String, XMLOptions)}. */
+	public void exportXML(final Writer writer, final String indent, final XMLOptions options) throws Exception {
+		final StringBuilder sb = new StringBuilder(1024);
+		exportXML(sb, indent, options);
+		writer.write(sb.toString());
+	}
+
+	/** If there is a @param writer and @param sb holds at least {@link #XML_CHUNK} chars, write them and empty @param sb. */
+	static protected final void flushXML(final StringBuilder sb, final Writer writer) throws IOException {
+		if (null == writer || sb.length() < XML_CHUNK) return;
+		writer.write(sb.toString());
+		sb.setLength(0);
+	}
+
 	/** The oid is this objects' id, whereas the 'id' tag will be the id of the wrapper Thing object. */ // width and height are used for the data itself, so that for example the image does not need to be loaded
 	public void exportXML(final StringBuilder sb_body, final String in, final XMLOptions options) {
 		final double[] a = new double[6];
@@ -53,6 +53,7 @@ import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.tree.LayerThing;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
+import ini.trakem2.utils.MemoryReport;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Color;
@@ -61,11 +62,13 @@ import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -75,8 +78,9 @@ import mpicbg.models.NoninvertibleModelException;
 public final class Layer extends DBObject implements Bucketable, Comparable<Layer> {
 
 	private final ArrayList<Displayable> al_displayables = new ArrayList<Displayable>();
-	/** For fast search. */
-	Bucket root = null;
+	/** For fast search: a {@link Bucket} or, if the project property "rtree_index" is true, a {@link PackedRTree}.
+	 *  Only ever replaced by a fully populated index, so that queries by rectangle can read it without locking the Layer. */
+	volatile SpatialIndex root = null;
 	private HashMap<Displayable,HashSet<Bucket>> db_map = null;
 
 	private double z = 0;
@@ -312,6 +316,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 				root.updateRange(this, displ, stack_index, d.length); // first to last indices affected
 			}
 		}
+		if (null != parent) parent.indexId(displ);
 
 		if (update_displays) {
 			Display.add(this, displ);
@@ -329,6 +334,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		try {
 			((Displayable)displ).setLayer(this, false);
 			al_displayables.add((Displayable)displ);
+			if (null != parent) parent.indexId(displ);
 		} catch (final Exception e) {
 			Utils.log("Layer.addSilently: Not a Displayable/LayerSet, not adding DBObject id=" + displ.getId());
 			return;
@@ -349,6 +355,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		}
 		al_displayables.remove(old_stack_index);
 		if (null != root) recreateBuckets();
+		parent.unindexId(displ);
 		parent.removeFromOffscreens(this);
 		Display.remove(this, displ);
 		return true;
@@ -362,6 +369,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 			final Displayable d = it.next();
 			if (ds.contains(d)) {
 				it.remove();
+				parent.unindexId(d);
 				parent.removeFromOffscreens(this);
 				Display.remove(this, d);
 			}
@@ -574,6 +582,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	/** Check class identity by instanceof instead of equality. */
 	synchronized public Collection<Displayable> getDisplayables(final Class<?> c, final Area aroi, final boolean visible_only, final boolean instance_of) {
+		ensureBuckets();
 		if (null != root) return root.find(c, aroi, this, visible_only, instance_of);
 		// Else, the slow way
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
@@ -645,6 +654,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	/** Find the Displayable objects that contain the point. */
 	synchronized public Collection<Displayable> find(final double x, final double y, final boolean visible_only) {
+		ensureBuckets();
 		if (null != root) return root.find(x, y, this, visible_only);
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		for (int i = al_displayables.size() -1; i>-1; i--) {
@@ -667,6 +677,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 	/** Find the Displayable objects of Class c that contain the point, with instanceof if instance_of is true. */
 	synchronized public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only, final boolean instance_of) {		
+		ensureBuckets();
 		if (null != root) return root.find(c, x, y, this, visible_only, instance_of);
 		if (Displayable.class == c) return find(x, y, visible_only); // search among all
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
@@ -687,40 +698,49 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Find the Displayable objects whose bounding box intersects with the given rectangle.
 	 *  Cheap: will only compare against the Rectangle bounding box of each Displayable.
 	 *         In addition, will use buckets when present. */
-	synchronized public Collection<Displayable> find(final Rectangle r, final boolean visible_only) {
+	public Collection<Displayable> find(final Rectangle r, final boolean visible_only) {
+		ensureBuckets();
+		final SpatialIndex root = this.root;
 		if (null != root && root.isBetter(r, this)) return root.find(r, this, visible_only);
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
-			if (visible_only && !d.isVisible()) continue;
-			if (d.getBoundingBox().intersects(r)) {
-				al.add(d);
+		synchronized (this) {
+			final ArrayList<Displayable> al = new ArrayList<Displayable>();
+			for (final Displayable d : al_displayables) {
+				if (visible_only && !d.isVisible()) continue;
+				if (d.getBoundingBox().intersects(r)) {
+					al.add(d);
+				}
 			}
+			return al;
 		}
-		return al;
 	}
 	
-	synchronized public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only) {
+	public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only) {
 		return find(c, r, visible_only, false);
 	}
 
 	/** Find the Displayable objects whose bounding box intersects with the given rectangle. */
-	synchronized public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only, final boolean instance_of) {
+	public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only, final boolean instance_of) {
 		if (Displayable.class == c) return find(r, visible_only);
+		ensureBuckets();
+		final SpatialIndex root = this.root;
 		if (null != root && root.isBetter(r, this)) return root.find(c, r, this, visible_only, instance_of);
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
-			if (visible_only && !d.isVisible()) continue;
-			if (d.getClass() != c) continue;
-			if (d.getBoundingBox().intersects(r)) {
-				al.add(d);
+		synchronized (this) {
+			final ArrayList<Displayable> al = new ArrayList<Displayable>();
+			for (final Displayable d : al_displayables) {
+				if (visible_only && !d.isVisible()) continue;
+				if (d.getClass() != c) continue;
+				if (d.getBoundingBox().intersects(r)) {
+					al.add(d);
+				}
 			}
+			return al;
 		}
-		return al;
 	}
 
 	/** Find the Displayable objects of class 'target' whose perimeter (not just the bounding box)
 	 * intersect the given Displayable (which is itself included if present in this very Layer). */
 	synchronized public <T extends Displayable> Collection<T> getIntersecting(final Displayable d, final Class<T> target) {
+		ensureBuckets();
 		if (null != root) {
 			final Area area = new Area(d.getPerimeter());
 			if (root.isBetter(area.getBounds(), this)) {
@@ -910,6 +930,40 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	public void exportXML(final StringBuilder sb_body, final String indent, final XMLOptions options) {
 		final String in = indent + "\t";
 		// 1 - open tag
+		openXML(sb_body, indent);
+		// 2 - export children
+		if (null != al_displayables) {
+			for (final Displayable d : al_displayables) {
+				d.exportXML(sb_body, in, options);
+			}
+		}
+		// 3 - close tag
+		sb_body.append(indent).append("</t2_layer>\n");
+	}
+
+	/** Writes each Displayable to @param writer as soon as it is exported, rather than the whole layer at once. */
+	public void exportXML(final Writer writer, final String indent, final XMLOptions options) throws Exception {
+		final String in = indent + "\t";
+		final StringBuilder sb = new StringBuilder(256);
+		openXML(sb, indent);
+		writer.write(sb.toString());
+		if (null != al_displayables) {
+			for (final Displayable d : al_displayables) {
+				if (d instanceof LayerSet) {
+					// As in exportXML(StringBuilder, ...): a nested LayerSet writes only its own attributes
+					final StringBuilder sb_d = new StringBuilder(1024);
+					d.exportXML(sb_d, in, options);
+					writer.write(sb_d.toString());
+				} else {
+					d.exportXML(writer, in, options);
+				}
+			}
+		}
+		writer.write(indent + "</t2_layer>\n");
+	}
+
+	private final void openXML(final StringBuilder sb_body, final String indent) {
+		final String in = indent + "\t";
 		sb_body.append(indent).append("<t2_layer oid=\"").append(id).append("\"\n")
 		       .append(in).append(" thickness=\"").append(thickness).append("\"\n")
 		       .append(in).append(" z=\"").append(z).append("\"\n")
@@ -922,14 +976,6 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		if (null == title) title = "";
 		sb_body.append(in).append(" title=\"").append(title).append("\"\n"); // TODO 'title' should be a property of the Layer, not the LayerThing. Also, the LayerThing should not exist: LayerSet and Layer should be directly presentable in a tree. They are not Things as in "objects of the sample", but rather, structural necessities such as Patch.
 		sb_body.append(indent).append(">\n");
-		// 2 - export children
-		if (null != al_displayables) {
-			for (final Displayable d : al_displayables) {
-				d.exportXML(sb_body, in, options);
-			}
-		}
-		// 3 - close tag
-		sb_body.append(indent).append("</t2_layer>\n");
 	}
 
 	/** Includes all Displayable objects in the list of possible children. */
@@ -1050,6 +1096,12 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	public DBObject findById(final long id) {
 		if (this.id == id) return this;
+		if (null != parent) {
+			// Use the index of the LayerSet
+			final DBObject ob = parent.findById(id);
+			if (ob instanceof Displayable && !(ob instanceof ZDisplayable) && this == ((Displayable)ob).getLayer()) return ob;
+			return null;
+		}
 		for (final Displayable d : al_displayables) {
 			if (d.getId() == id) return d;
 		}
@@ -1083,10 +1135,14 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	synchronized public void recreateBuckets() {
-		this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
-		this.db_map = new HashMap<Displayable,HashSet<Bucket>>();
-		this.root.populate(this, this, db_map);
-		//root.debug();
+		this.buckets_deferred = false;
+		final SpatialIndex root = project.getBooleanProperty("rtree_index") ?
+			  new PackedRTree()
+			: new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
+		final HashMap<Displayable,HashSet<Bucket>> db_map = new HashMap<Displayable,HashSet<Bucket>>();
+		root.populate(this, this, db_map);
+		this.db_map = db_map;
+		this.root = root;
 	}
 
 	/** Update buckets of a position change for the given Displayable. */
@@ -1099,11 +1155,36 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		if (use_buckets && (null == root || null == db_map)) recreateBuckets();
 	}
 
+	/** Estimated bytes retained by the buckets; see {@link MemoryReport}. */
+	synchronized public long estimateBucketBytes(final IdentityHashMap<Object,Boolean> seen) {
+		return MemoryReport.estimate(root, seen) + MemoryReport.estimate(db_map, seen);
+	}
+
 	private boolean use_buckets = true;
 
 	public void setBucketsEnabled(final boolean b) {
 		this.use_buckets = b;
-		if (!use_buckets) this.root = null;
+		if (!use_buckets) {
+			this.root = null;
+			this.buckets_deferred = false;
+		}
+	}
+
+	/** Whether the buckets are to be created by the first query that needs them. */
+	private volatile boolean buckets_deferred = false;
+
+	/** Postpone creating the buckets until the first query that would use them, as when opening a project. */
+	public void deferBuckets() {
+		this.buckets_deferred = use_buckets && null == root;
+	}
+
+	/** Create the buckets now if they were deferred and are not there yet. */
+	public void ensureBuckets() {
+		if (!buckets_deferred) return;
+		synchronized (this) {
+			if (buckets_deferred && null == root) recreateBuckets();
+			buckets_deferred = false;
+		}
 	}
 
 	static class DoEditLayer implements DoStep {
@@ -1128,6 +1209,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		public boolean apply(final int action) {
 			la.z = this.z;
 			la.thickness = this.thickness;
+			if (null != la.parent) la.parent.invalidateLayerZ();
 			la.getProject().getLayerTree().updateUILater();
 			Display.update(la.getParent());
 			return true;
@@ -1232,6 +1314,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 			la.al_displayables.clear();
 			la.al_displayables.addAll(this.al);
 			la.recreateBuckets();
+			if (null != la.parent) la.parent.invalidateIds();
 			Display.updateVisibleTabs();
 			Display.clearSelection();
 			Display.update(la);
@@ -59,9 +59,12 @@ import ini.trakem2.tree.LayerThing;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.tree.TemplateThing;
 import ini.trakem2.tree.Thing;
+import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.MemoryReport;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
+import ini.trakem2.utils.Worker;
 
 import java.awt.AlphaComposite;
 import java.awt.Color;
@@ -75,16 +78,22 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -143,7 +152,18 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	private HashMap<Long,Layer> idlayers = new HashMap<Long,Layer>();
 	private final Object IDLAYERS_WRITE_LOCK = new Object();
 
+	/** This LayerSet, its layers and all their Displayable and ZDisplayable objects by id, for {@link #findById(long)};
+	 *  null when it has to be built anew. */
+	private HashMap<Long,DBObject> idobs = null;
+	private final Object IDOBS_LOCK = new Object();
+
 	private final HashMap<Layer,Integer> layerindices = new HashMap<Layer,Integer>();
+
+	/** The layers sorted by Z, for {@link #getLayer(double)} and related methods; null when it has to be built anew. */
+	private LayerZIndex zlayers = null;
+	/** Incremented when zlayers is invalidated, to discard an index built meanwhile. */
+	private int zlayers_generation = 0;
+	private final Object ZLAYERS_LOCK = new Object();
 	/** The layer in which this LayerSet lives. If null, this is the root LayerSet. */
 	private Layer parent = null;
 	/** A LayerSet can contain Displayables that are show in every single Layer, such as Pipe objects. */
@@ -165,6 +185,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	protected int n_layers_color_cue = 0; // -1 means all
 	protected boolean prepaint = false;
 	protected int preload_ahead = 0;
+	/** Maximum memory for preloading images ahead, in megabytes; zero means a quarter of the image cache. */
+	protected int preload_budget_mb = 0;
 
 	private Calibration calibration = new Calibration(); // default values
 
@@ -237,6 +259,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		if (null != (data = ht_attributes.get("paint_edge_confidence_boxes"))) paint_edge_confidence_boxes = Boolean.valueOf(data.trim().toLowerCase());
 		if (null != (data = ht_attributes.get("prepaint"))) prepaint = Boolean.valueOf(data.trim().toLowerCase());
 		if (null != (data = ht_attributes.get("preload_ahead"))) preload_ahead = Integer.parseInt(data);
+		if (null != (data = ht_attributes.get("preload_budget_mb"))) preload_budget_mb = Integer.parseInt(data);
 	}
 
 	/** For reconstruction purposes: set the active layer to the ZDisplayable objects. Recurses through LayerSets in the children layers. */
@@ -286,11 +309,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				idlayers = m;
 			}
 			synchronized (layerindices) { layerindices.clear(); }
+			zindex.invalidate();
+			invalidateIds();
 			double z = layer.getZ();
 			int i = 0;
 			for (final Layer la : al_layers) {
 				if (! (la.getZ() < z) ) {
 					al_layers.add(i, layer);
+					invalidateLayerZ();
 					layer.setParentSilently(this);
 					return;
 				}
@@ -298,6 +324,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			}
 			// else, add at the end
 			al_layers.add(layer);
+			invalidateLayerZ();
 			layer.setParentSilently(this);
 		} catch (Exception e) {
 			Utils.log("LayerSet.addSilently: Not a Layer, not adding DBObject id=" + layer.getId());
@@ -333,6 +360,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			idlayers = m;
 		}
 		synchronized (layerindices) { layerindices.clear(); }
+		zindex.invalidate();
+		invalidateIds();
+		invalidateLayerZ();
 		Display.updateLayerScroller(this);
 		//debug();
 	}
@@ -736,6 +766,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			idlayers = m;
 		}
 		synchronized (layerindices) { layerindices.clear(); }
+		zindex.invalidate();
+		invalidateIds();
+		invalidateLayerZ();
 		for (final ZDisplayable zd : new ArrayList<ZDisplayable>(al_zdispl)) zd.layerRemoved(layer); // may call back and add/remove ZDisplayable objects
 		Display.updateLayerScroller(this);
 		Display.updateTitle(this);
@@ -805,25 +838,114 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return idlayers.get(id);
 	}
 
+	/** The layers sorted by Z, with their Z and their position in the list of layers. The list is sorted by Z as well,
+	 *  except after undoing an edit of the Z of a layer, so lookups choose among equal matches by position in the list,
+	 *  as did the linear search through the list. */
+	static private final class LayerZIndex {
+		final double[] z;
+		final Layer[] layers;
+		final int[] position;
+
+		LayerZIndex(final Layer[] list) {
+			final int n = list.length;
+			final Integer[] order = new Integer[n];
+			final double[] zs = new double[n];
+			for (int i=0; i<n; i++) {
+				order[i] = i;
+				zs[i] = list[i].getZ();
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer a, final Integer b) {
+					final int c = Double.compare(zs[a], zs[b]);
+					return 0 != c ? c : a.compareTo(b);
+				}
+			});
+			this.z = new double[n];
+			this.layers = new Layer[n];
+			this.position = new int[n];
+			for (int i=0; i<n; i++) {
+				final int k = order[i];
+				this.z[i] = zs[k];
+				this.layers[i] = list[k];
+				this.position[i] = k;
+			}
+		}
+
+		/** The index of the first layer with a Z not smaller than @param v. */
+		final int lowerBound(final double v) {
+			int lo = 0,
+			    hi = z.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (z[mid] < v) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	private final LayerZIndex getLayerZIndex() {
+		final int generation;
+		synchronized (ZLAYERS_LOCK) {
+			if (null != zlayers) return zlayers;
+			generation = zlayers_generation;
+		}
+		final LayerZIndex zi = new LayerZIndex(al_layers.toArray(new Layer[0]));
+		synchronized (ZLAYERS_LOCK) {
+			if (generation == zlayers_generation) zlayers = zi;
+		}
+		return zi;
+	}
+
+	/** Build the Z index of the layers anew on its next use; for when layers are added, removed or change their Z. */
+	final void invalidateLayerZ() {
+		synchronized (ZLAYERS_LOCK) {
+			zlayers = null;
+			++zlayers_generation;
+		}
+	}
+
 	/** Returns the first layer found with the given Z coordinate, rounded to seventh decimal precision, or null if none found. */
 	public Layer getLayer(final double z) {
-		double error = 0.0000001; // TODO adjust to an optimal
-		for (Layer layer : al_layers) {
-			if (error > Math.abs(layer.getZ() - z)) { // floating-point arithmetic is still not a solved problem!
-				return layer;
+		if (Double.isNaN(z)) return null;
+		final double error = 0.0000001; // TODO adjust to an optimal
+		final LayerZIndex zi = getLayerZIndex();
+		Layer found = null;
+		int found_position = Integer.MAX_VALUE;
+		// The layers within twice the error, checked with the exact criterion
+		for (int i=zi.lowerBound(z - 2 * error); i<zi.z.length && zi.z[i] <= z + 2 * error; i++) {
+			if (error > Math.abs(zi.z[i] - z) && zi.position[i] < found_position) { // floating-point arithmetic is still not a solved problem!
+				found = zi.layers[i];
+				found_position = zi.position[i];
 			}
 		}
-		return null;
+		return found;
 	}
 
 	public Layer getNearestLayer(final double z) {
+		if (Double.isNaN(z)) return null;
+		final LayerZIndex zi = getLayerZIndex();
+		final int n = zi.z.length;
+		// The nearest layers are next to where z would be inserted; the distance grows away from it on either side
+		final int k = zi.lowerBound(z);
 		double min_dist = Double.MAX_VALUE;
+		if (k > 0) min_dist = Math.min(min_dist, Math.abs(zi.z[k-1] - z));
+		if (k < n) min_dist = Math.min(min_dist, Math.abs(zi.z[k] - z));
+		if (!(min_dist < Double.MAX_VALUE)) return null;
+		// Of those at the same distance, the first in the list of layers
 		Layer closest = null;
-		for (Layer layer : al_layers) {
-			double dist = Math.abs(layer.getZ() - z);
-			if (dist < min_dist) {
-				min_dist = dist;
-				closest = layer;
+		int closest_position = Integer.MAX_VALUE;
+		for (int i=k-1; i>=0 && Math.abs(zi.z[i] - z) == min_dist; i--) {
+			if (zi.position[i] < closest_position) {
+				closest = zi.layers[i];
+				closest_position = zi.position[i];
+			}
+		}
+		for (int i=k; i<n && Math.abs(zi.z[i] - z) == min_dist; i++) {
+			if (zi.position[i] < closest_position) {
+				closest = zi.layers[i];
+				closest_position = zi.position[i];
 			}
 		}
 		return closest;
@@ -831,14 +953,18 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** Returns null if none has the given z and thickness. If 'create' is true and no layer is found, a new one with the given Z is created and added to the LayerTree. */
 	public Layer getLayer(double z, double thickness, boolean create) {
-		Iterator<Layer> it = al_layers.iterator();
 		Layer layer = null;
-		double error = 0.0000001; // TODO adjust to an optimal
-		while (it.hasNext()) {
-			Layer l = it.next();
-			if (error > Math.abs(l.getZ() - z) && error > Math.abs(l.getThickness() - thickness)) { // floating point is still not a solved problem.
-				//Utils.log("LayerSet.getLayer: found layer with z=" + l.getZ());
-				layer = l;
+		final double error = 0.0000001; // TODO adjust to an optimal
+		if (!Double.isNaN(z)) {
+			final LayerZIndex zi = getLayerZIndex();
+			// The last in the list of layers, of those within the error of both z and thickness
+			int position = -1;
+			for (int i=zi.lowerBound(z - 2 * error); i<zi.z.length && zi.z[i] <= z + 2 * error; i++) {
+				final Layer l = zi.layers[i];
+				if (error > Math.abs(zi.z[i] - z) && error > Math.abs(l.getThickness() - thickness) && zi.position[i] > position) { // floating point is still not a solved problem.
+					layer = l;
+					position = zi.position[i];
+				}
 			}
 		}
 		if (create && null == layer && !Double.isNaN(z) && !Double.isNaN(thickness)) {
@@ -882,6 +1008,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		}
 		*/
 		addToBuckets(zdispl, al_zdispl.size()-1);
+		indexId(zdispl);
 
 		Display.add(this, zdispl);
 	}
@@ -893,6 +1020,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			zd.setLayerSet(this);
 			zd.setLayer(al_layers.get(0));
 			zd.updateInDatabase("layer_set_id");
+			indexId(zd);
 		}
 		recreateBuckets(false); // only ZDisplayable
 		Display.addAll(this, coll);
@@ -906,6 +1034,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			zdispl.setLayerSet(this, false);
 			//Utils.log2("setLayerSet to ZDipl id=" + zdispl.getId());
 			al_zdispl.add(zdispl);
+			zindex.invalidate();
+			indexId(zdispl);
 		} catch (Exception e) {
 			Utils.log("LayerSet.addSilently: not adding ZDisplayable with id=" + zdispl.getId());
 			IJError.print(e);
@@ -924,6 +1054,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		al_zdispl.remove(old_stack_index);
 		// remove from Bucket AFTER modifying stack index, so it gets reindexed properly
 		removeFromBuckets(zdispl, old_stack_index);
+		unindexId(zdispl);
 		removeFromOffscreens(zdispl);
 		Display.remove(zdispl);
 		return true;
@@ -939,6 +1070,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			final ZDisplayable zd = it.next();
 			if (zds.contains(zd)) {
 				it.remove();
+				unindexId(zd);
 				removeFromOffscreens(zd);
 				Display.remove(zd);
 				count++;
@@ -1198,6 +1330,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		       .append(in).append("paint_edge_confidence_boxes=\"").append(paint_edge_confidence_boxes).append("\"\n")
 		       .append(in).append("prepaint=\"").append(prepaint).append("\"\n")
 		       .append(in).append("preload_ahead=\"").append(preload_ahead).append("\"\n")
+		       .append(in).append("preload_budget_mb=\"").append(preload_budget_mb).append("\"\n")
 		       // TODO: alpha! But it's not necessary.
 		;
 		sb_body.append(indent).append(">\n");
@@ -1231,13 +1364,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		// export ZDisplayable objects
 		if (null != al_zdispl) {
 			for (final ZDisplayable zd : al_zdispl) {
-				sb_body.setLength(0);
-				zd.exportXML(sb_body, in, options);
-				if (null == sbvalue) {
-					writer.write(sb_body.toString()); // each separately, for they can be huge
-				} else {
-					writer.write((char[])sbvalue.get(sb_body), 0, sb_body.length()); // avoid making a copy of the array
-				}
+				zd.exportXML(writer, in, options); // each streamed separately, for they can be huge
 			}
 			done += al_zdispl.size();
 			Utils.showProgress(done / (double)total);
@@ -1246,13 +1373,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		if (null != al_layers) {
 			//Utils.log("LayerSet " + id + " is saving " + al_layers.size() + " layers.");
 			for (final Layer la : al_layers) {
-				sb_body.setLength(0);
-				la.exportXML(sb_body, in, options);
-				if (null == sbvalue) {
-					writer.write(sb_body.toString());
-				} else {
-					writer.write((char[])sbvalue.get(sb_body), 0, sb_body.length()); // avoid making a copy of the array
-				}
+				la.exportXML(writer, in, options);
 				done += la.getDisplayableList().size();
 				Utils.showProgress(done / (double)total);
 			}
@@ -1289,6 +1410,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				 .append(indent).append(TAG_ATTR1).append(type).append(" paint_tags").append(TAG_ATTR2)
 				 .append(indent).append(TAG_ATTR1).append(type).append(" paint_edge_confidence_boxes").append(TAG_ATTR2)
 				 .append(indent).append(TAG_ATTR1).append(type).append(" preload_ahead").append(TAG_ATTR2)
+				 .append(indent).append(TAG_ATTR1).append(type).append(" preload_budget_mb").append(TAG_ATTR2)
 			;
 			sb_header.append(indent).append("<!ELEMENT t2_calibration EMPTY>\n")
 				 .append(indent).append(TAG_ATTR1).append("t2_calibration pixelWidth").append(TAG_ATTR2)
@@ -1329,6 +1451,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		this.al_zdispl.clear();
 		synchronized (IDLAYERS_WRITE_LOCK) { this.idlayers = new HashMap<Long,Layer>(); } // like .clear()
 		synchronized (layerindices) { this.layerindices.clear(); }
+		zindex.invalidate();
+		invalidateIds();
+		invalidateLayerZ();
 		this.offscreens.clear();
 	}
 
@@ -1681,25 +1806,48 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** Searches in all layers. Ignores the ZDisplaybles. */
 	public Displayable findDisplayable(final long id) {
-		for (Layer la : al_layers) {
-			for (Displayable d : la.getDisplayables()) {
-				if (d.getId() == id) return d;
-			}
-		}
+		final DBObject ob = findById(id);
+		if (ob instanceof Displayable && !(ob instanceof ZDisplayable) && ob != this) return (Displayable)ob;
 		return null;
 	}
 
-	/** Searches in all ZDisplayables and in all layers, recursively into nested LayerSets. */
+	/** Searches in all ZDisplayables and in all layers and their Displayable objects, but not into nested LayerSets.
+	 *  Uses an index by id, built on first use and kept up to date as objects are added and removed. */
 	public DBObject findById(final long id) {
 		if (this.id == id) return this;
-		for (ZDisplayable zd : al_zdispl) {
-			if (zd.getId() == id) return zd;
+		synchronized (IDOBS_LOCK) {
+			if (null == idobs) {
+				final HashMap<Long,DBObject> m = new HashMap<Long,DBObject>();
+				for (final Layer la : al_layers) {
+					for (final Displayable d : la.getDisplayableList()) m.put(d.getId(), d);
+					m.put(la.getId(), la);
+				}
+				for (final ZDisplayable zd : al_zdispl) m.put(zd.getId(), zd);
+				idobs = m;
+			}
+			return idobs.get(id);
 		}
-		for (Layer la : al_layers) {
-			DBObject dbo = la.findById(id);
-			if (null != dbo) return dbo;
+	}
+
+	/** Add @param ob to the index of {@link #findById(long)}, if it has been built. */
+	final void indexId(final DBObject ob) {
+		synchronized (IDOBS_LOCK) {
+			if (null != idobs) idobs.put(ob.getId(), ob);
+		}
+	}
+
+	/** Remove @param ob from the index of {@link #findById(long)}, if it has been built. */
+	final void unindexId(final DBObject ob) {
+		synchronized (IDOBS_LOCK) {
+			if (null != idobs && ob == idobs.get(ob.getId())) idobs.remove(ob.getId());
+		}
+	}
+
+	/** Build the index of {@link #findById(long)} anew on its next use, as when undo replaces whole lists. */
+	final void invalidateIds() {
+		synchronized (IDOBS_LOCK) {
+			idobs = null;
 		}
-		return null;
 	}
 
 	// private to the package
@@ -1718,6 +1866,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Find the ZDisplayable objects that intersect with the 3D roi defined by the first and last layers, and the area -all in world coordinates. */
 	public ArrayList<ZDisplayable> find(final Layer first, final Layer last, final Area area) {
 		final ArrayList<ZDisplayable> al = new ArrayList<ZDisplayable>();
+		final Displayable[] ds = findInRange(first, last, area.getBounds());
+		if (null != ds) {
+			for (final Displayable d : ds) {
+				final ZDisplayable zd = (ZDisplayable)d;
+				if (zd.intersects(area, first.getZ(), last.getZ())) al.add(zd);
+			}
+			return al;
+		}
 		for (ZDisplayable zd : al_zdispl) {
 			if (zd.intersects(area, first.getZ(), last.getZ())) {
 				al.add(zd);
@@ -1726,6 +1882,46 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return al;
 	}
 
+	/** Find ZDisplayable objects that have data in any layer with a Z from that of @param first to that of @param last,
+	 *  both included, and whose bounding box intersects @param r. Ordered by stack index.
+	 *  May return false positives but never false negatives. */
+	public Collection<Displayable> roughlyFindZDisplayables(final Layer first, final Layer last, final Rectangle r, final boolean visible_only) {
+		final Displayable[] ds = findInRange(first, last, r);
+		final ArrayList<Displayable> al = new ArrayList<Displayable>();
+		if (null != ds) {
+			for (final Displayable d : ds) {
+				if (visible_only && !d.isVisible()) continue;
+				al.add(d);
+			}
+			return al;
+		}
+		// Else, linear:
+		for (final ZDisplayable zd : al_zdispl) {
+			if (visible_only && !zd.isVisible()) continue;
+			if (!zd.getBoundingBox().intersects(r)) continue;
+			for (final Layer la : zd.getLayersWithData()) {
+				if (la.getZ() >= first.getZ() && la.getZ() <= last.getZ()) {
+					al.add(zd);
+					break;
+				}
+			}
+		}
+		return al;
+	}
+
+	/** Query the {@link ZDisplayableIndex} for the layers with a Z from that of @param first to that of @param last,
+	 *  both included. Returns null if the index can't answer. */
+	private final Displayable[] findInRange(final Layer first, final Layer last, final Rectangle r) {
+		int i = indexOf(first),
+		    j = indexOf(last);
+		if (i < 0 || j < 0) return null;
+		if (i > j) return new Displayable[0];
+		// Include layers of the same Z
+		while (i > 0 && al_layers.get(i - 1).getZ() >= first.getZ()) --i;
+		while (j < al_layers.size() - 1 && al_layers.get(j + 1).getZ() <= last.getZ()) ++j;
+		return zindex.find(i, j, r);
+	}
+
 	/** A Bucket for the ZDisplayable parts that show in every Layer. */
 	protected final class LayerBucket {
 		protected final Bucket root;
@@ -1740,8 +1936,94 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** For fast search. */
 	protected HashMap<Layer,LayerBucket> lbucks = new HashMap<Layer,LayerBucket>();
 
+	/** Incremented, under synchronization on lbucks, with every change to the ZDisplayable objects
+	 *  that the buckets would have to reflect; so that a bucket created outside the lock can be told stale. */
+	private long lbucks_mod = 0;
+
+	/** For fast search in a range of layers. */
+	private final ZDisplayableIndex zindex = new ZDisplayableIndex(this);
+
+	/** Whether the LayerBucket of each layer is to be created by the first query that needs it. */
+	private volatile boolean buckets_deferred = false;
+
+	/** Postpone creating the ZDisplayable buckets of each layer until the first query that would use them,
+	 *  as when opening a project. Also defers the buckets of each {@link Layer}. */
+	public void deferBuckets() {
+		this.buckets_deferred = true;
+		for (final Layer la : al_layers) la.deferBuckets();
+	}
+
+	/** Returns the LayerBucket of @param layer, creating it if buckets are deferred; or null if there isn't one. */
+	private LayerBucket getLayerBucket(final Layer layer) {
+		for (int attempt = 0; attempt < 3; ++attempt) {
+			final long mod;
+			synchronized (lbucks) {
+				final LayerBucket lb = lbucks.get(layer);
+				if (null != lb || !buckets_deferred) return lb;
+				mod = lbucks_mod;
+			}
+			// Outside the lock, as in recreateBuckets(Layer, boolean), so that layers can be indexed in parallel
+			final LayerBucket lb = new LayerBucket(layer);
+			synchronized (lbucks) {
+				final LayerBucket other = lbucks.get(layer);
+				if (null != other) return other;
+				// Stale if any ZDisplayable changed meanwhile: the change skipped this layer, which had no bucket
+				if (mod != lbucks_mod) continue;
+				lbucks.put(layer, lb);
+				return lb;
+			}
+		}
+		// Changing too often: create it under the lock
+		synchronized (lbucks) {
+			LayerBucket lb = lbucks.get(layer);
+			if (null == lb) {
+				lb = new LayerBucket(layer);
+				lbucks.put(layer, lb);
+			}
+			return lb;
+		}
+	}
+
+	/** Create, in the background, the buckets that were deferred with {@link #deferBuckets()},
+	 *  for the @param layers in the given order. Listed among the jobs of the project, from where it can be canceled;
+	 *  doesn't block user input. Layers that get queried before their turn create their buckets then. */
+	public Bureaucrat warmUpBuckets(final List<Layer> layers) {
+		return Bureaucrat.createAndStartInBackground(new Worker.Task("Indexing layers") {
+			@Override
+			public void exec() {
+				final long start = System.currentTimeMillis();
+				final ExecutorService exec = Utils.newFixedThreadPool(Math.max(1, Process.NUM_PROCESSORS -1), "LayerSet-warmUpBuckets");
+				final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+				final AtomicInteger count = new AtomicInteger(0);
+				for (final Layer la : layers) {
+					fus.add(exec.submit(new Runnable() {
+						@Override
+						public void run() {
+							if (hasQuitted()) return;
+							la.ensureBuckets();
+							getLayerBucket(la);
+							count.incrementAndGet();
+						}
+					}));
+				}
+				exec.shutdown();
+				for (final Future<?> fu : fus) {
+					if (hasQuitted()) {
+						exec.shutdownNow();
+						Utils.log2("Canceled indexing layers: " + count.get() + " of " + layers.size() + " layers done.");
+						return;
+					}
+					try { fu.get(); } catch (final Exception e) { IJError.print(e); }
+				}
+				Utils.log2("Indexed " + count.get() + " layers in " + (System.currentTimeMillis() - start) + " ms");
+			}
+		}, project);
+	}
+
 	final private void addToBuckets(final Displayable zd, final int i) {
+		zindex.add((ZDisplayable)zd, i);
 		synchronized (lbucks) {
+			++lbucks_mod;
 			if (lbucks.isEmpty()) return;
 			for (final Long lid : zd.getLayerIds()) {
 				final Layer la = getLayer(lid); // map lookup
@@ -1756,7 +2038,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 	/** Recreate the buckets of every layer in which the {@link Displayable} has data. */
 	final private void removeFromBuckets(final Displayable zd, final int old_stack_index) {
+		zindex.remove((ZDisplayable)zd, old_stack_index);
 		synchronized (lbucks) {
+			++lbucks_mod;
 			if (lbucks.isEmpty()) return;
 			for (final Long lid : zd.getLayerIds()) {
 				final Layer la = getLayer(lid);
@@ -1772,7 +2056,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** Recreate the buckets for all layers involved. */
 	final private void removeFromBuckets(final Collection<ZDisplayable> zds) {
+		zindex.invalidate();
 		synchronized (lbucks) {
+			++lbucks_mod;
 			if (lbucks.isEmpty()) return;
 			final Set<Layer> touched = new HashSet<Layer>();
 			for (final ZDisplayable zd : zds) {
@@ -1790,7 +2076,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 	/** Used ONLY by move up/down/top/bottom. */
 	final private void updateRangeInBuckets(final Displayable zd, final int i, final int j) {
+		zindex.updateRange(al_zdispl, i, j);
 		synchronized (lbucks) {
+			++lbucks_mod;
 			if (lbucks.isEmpty()) return;
 			for (final Long lid : zd.getLayerIds()) {
 				final Layer la = getLayer(lid);
@@ -1827,7 +2115,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 
 	public void updateBucket(final Displayable d, final Layer layer) {
+		if (d instanceof ZDisplayable) zindex.update((ZDisplayable)d);
 		synchronized (lbucks) {
+			++lbucks_mod;
 			final LayerBucket lb = lbucks.get(layer);
 			if (null != lb) lb.root.updatePosition(d, layer, lb.db_map);
 		}
@@ -1853,6 +2143,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Regenerate the quad-tree bucket system for the ZDisplayable instances that have data at each of the given layers,
 	 *  and optionally regenerate the buckets as well for the 2D Displayable instances of that layer as well. */
 	public void recreateBuckets(final Collection<Layer> layers, final boolean layer_buckets) {
+		zindex.invalidate();
 		final HashMap<Layer,LayerBucket> m = new HashMap<Layer,LayerBucket>();
 		try {
 			Process.progressive(layers, new TaskFactory<Layer,Object>() {
@@ -1875,8 +2166,21 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		}
 	}
 
+	/** Estimated bytes retained by the buckets of the ZDisplayable objects and of every layer; see {@link MemoryReport}. */
+	public long estimateBucketBytes(final IdentityHashMap<Object,Boolean> seen) {
+		long bytes = 0;
+		synchronized (lbucks) {
+			for (final LayerBucket lb : lbucks.values()) {
+				bytes += MemoryReport.estimate(lb.root, seen) + MemoryReport.estimate(lb.db_map, seen);
+			}
+		}
+		for (final Layer la : al_layers) bytes += la.estimateBucketBytes(seen);
+		return bytes;
+	}
+
 	/** Checks only buckets for ZDisplayable, not any related to any layer. */
 	public void checkBuckets() {
+		if (buckets_deferred) return; // created on demand
 		synchronized (lbucks) {
 			if (!lbucks.isEmpty()) return;
 		}
@@ -2095,6 +2399,16 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	public boolean canUndo() {
 		return edit_history.size() > 0;
 	}
+
+	/** Estimated bytes retained by the undo and redo steps, excluding the objects they refer to; see {@link MemoryReport}. */
+	public long estimateUndoBytes(final IdentityHashMap<Object,Boolean> seen) {
+		synchronized (edit_history) {
+			return MemoryReport.estimate(edit_history, seen)
+			     + MemoryReport.estimate(redo, seen)
+			     + MemoryReport.estimate(dedits, seen)
+			     + MemoryReport.estimate(current_edit_step, seen);
+		}
+	}
 	public boolean canRedo() {
 		return redo.size() > 0 || null != current_edit_step;
 	}
@@ -2330,6 +2644,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				ls.layerindices.clear();
 				ls.layerindices.putAll(this.layerindices);
 			}
+			ls.zindex.invalidate();
+			ls.invalidateIds();
+			ls.invalidateLayerZ();
 
 			// Replace all Displayable in each Layer
 			for (final Map.Entry<Layer,ArrayList<Displayable>> e : all_displ.entrySet()) {
@@ -2415,6 +2732,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			// Replace all ZDisplayable
 			ls.al_zdispl.clear();
 			ls.al_zdispl.addAll(this.al_zdispl);
+			ls.zindex.invalidate();
 			Display.update(ls, false);
 			return true;
 		}
@@ -2816,10 +3134,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** Find ZDisplayable objects that contain the point x,y in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Layer layer, final int x, final int y, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
+		final LayerBucket lb = getLayerBucket(layer);
 		if (null != lb) return lb.root.find(x, y, layer, visible_only);
 		else nbmsg(layer);
 
@@ -2836,10 +3151,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 	/** Find ZDisplayable objects of Class c that contain the point x,y in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final int x, final int y, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
+		final LayerBucket lb = getLayerBucket(layer);
 		if (null != lb) return lb.root.find(c, x, y, layer, visible_only, instance_of);
 		else nbmsg(layer);
 
@@ -2856,10 +3168,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	
 	/** Find ZDisplayable objects of the given class that intersect the given rectangle in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final Rectangle r, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
+		final LayerBucket lb = getLayerBucket(layer);
 		if (null != lb) return lb.root.find(c, r, layer, visible_only, instance_of);
 		else nbmsg(layer);
 
@@ -2874,10 +3183,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Find ZDisplayable objects of the given class that intersect the given area in the given layer.
 	 *  If @param instance_of is true, use c.isAssignableFrom instead of class equality. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final Area aroi, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
+		final LayerBucket lb = getLayerBucket(layer);
 		if (null != lb) return lb.root.find(c, aroi, layer, visible_only, instance_of);
 		else nbmsg(layer);
 
@@ -2893,10 +3199,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 	/** Find ZDisplayable objects that intersect the given rectangle in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Layer layer, final Rectangle r, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
+		final LayerBucket lb = getLayerBucket(layer);
 		if (null != lb) return lb.root.find(r, layer, visible_only);
 		else nbmsg(layer);
 
@@ -2911,10 +3214,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Find ZDisplayable objects that intersect the given rectangle in the given layer.
 	 *  May return false positives but never false negatives. */
 	public Collection<Displayable> roughlyFindZDisplayables(final Layer layer, final Rectangle r, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
+		final LayerBucket lb = getLayerBucket(layer);
 		if (null != lb) return lb.root.roughlyFind(r, layer, visible_only);
 		else nbmsg(layer);
 
@@ -2927,8 +3227,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return al;
 	}
 
-	private static final void nbmsg(final Layer la) {
-		Utils.log2("No buckets for layer " + la);
+	private final void nbmsg(final Layer la) {
+		if (!buckets_deferred) Utils.log2("No buckets for layer " + la);
 	}
 
 	/** Get all Displayable or ZDisplayable of the given class.
@@ -0,0 +1,493 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import ini.trakem2.utils.M;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A bulk-loaded R-tree over the {@link Displayable} objects of a {@link Bucketable}, as an alternative
+ * to the {@link Bucket} quadtree for layers with many overlapping images.
+ *
+ * The tree is packed with the Sort-Tile-Recursive algorithm into flat arrays of integer boxes:
+ * first the boxes of the objects, then those of each level of nodes of {@link #NODE_SIZE} children,
+ * up to the root. An object that moves within the box of its node is updated in place; objects that
+ * are added, or that move beyond the box of their node, go to an overflow list that queries scan
+ * linearly, until the list grows to a fraction of all objects and the tree is packed anew.
+ *
+ * Queries take no lock: they read optimistically and only retry under a read lock if an update happened
+ * meanwhile. Then, the found objects are tested exactly like {@link Bucket} does, outside of any lock.
+ */
+public final class PackedRTree extends SpatialIndex {
+
+	static public final int NODE_SIZE = 16;
+	/** Minimal length of the overflow list that triggers packing the tree anew. */
+	static private final int MIN_OVERFLOW = 64;
+
+	private final StampedLock lock = new StampedLock();
+
+	/** Per slot: the object, or null if removed. */
+	private Displayable[] items = new Displayable[16];
+	/** Per slot: the box of the object, as x0,y0,x1,y1. */
+	private int[] boxes = new int[64];
+	/** Per slot: the stack index of the object. */
+	private int[] stack = new int[16];
+	/** Per slot: the position of the object in the packed tree, or -1 if in the overflow list. */
+	private int[] position = new int[16];
+	private int n_slots = 0;
+	private final HashMap<Displayable,Integer> slots = new HashMap<Displayable,Integer>();
+
+	/** The boxes of the packed objects in STR order, followed by the boxes of each level of nodes, the root last. */
+	private int[] tree = new int[0];
+	/** Per packed position: the slot of the object, or -1 if it was removed or moved to the overflow list. */
+	private int[] order = new int[0];
+	/** The end of each level in the tree, in number of boxes. */
+	private int[] level_ends = new int[0];
+
+	/** Slots of the objects that are not in the packed tree. */
+	private int[] overflow = new int[16];
+	private int n_overflow = 0;
+
+	public PackedRTree() {}
+
+	@Override
+	public String toString() {
+		return "PackedRTree: " + slots.size() + " objects, " + n_overflow + " in overflow";
+	}
+
+	/** The objects found by a query with their stack indices, copied out of the tree. Also used by {@link ZDisplayableIndex}. */
+	static final class Found {
+		private Displayable[] ds = new Displayable[32];
+		private int[] st = new int[32];
+		private int n = 0;
+
+		final void add(final Displayable d, final int stack_index) {
+			if (n == ds.length) {
+				ds = Arrays.copyOf(ds, n * 2);
+				st = Arrays.copyOf(st, n * 2);
+			}
+			ds[n] = d;
+			st[n] = stack_index;
+			++n;
+		}
+
+		/** The objects, ordered by stack index. */
+		final Displayable[] sorted() {
+			final long[] keys = new long[n];
+			for (int i=0; i<n; i++) keys[i] = ((long)st[i] << 32) | i;
+			Arrays.sort(keys);
+			final Displayable[] s = new Displayable[n];
+			for (int i=0; i<n; i++) s[i] = ds[(int)keys[i]];
+			return s;
+		}
+	}
+
+	/** The objects whose box intersects the given one, borders included, ordered by stack index. */
+	private final Displayable[] candidates(final double x0, final double y0, final double x1, final double y1) {
+		long stamp = lock.tryOptimisticRead();
+		if (0 != stamp) {
+			try {
+				final Found found = search(x0, y0, x1, y1);
+				if (lock.validate(stamp)) return found.sorted();
+			} catch (final RuntimeException re) {
+				// The arrays changed while reading them: retry with the lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return search(x0, y0, x1, y1).sorted();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	static private final boolean intersects(final int[] b, final int i, final double x0, final double y0, final double x1, final double y1) {
+		final int k = 4 * i;
+		return b[k] <= x1 && x0 <= b[k+2] && b[k+1] <= y1 && y0 <= b[k+3];
+	}
+
+	/** Reads every field once, given that under an optimistic read they may be replaced at any time. */
+	private final Found search(final double x0, final double y0, final double x1, final double y1) {
+		final int[] tree = this.tree,
+		            order = this.order,
+		            level_ends = this.level_ends,
+		            boxes = this.boxes,
+		            stack = this.stack,
+		            overflow = this.overflow;
+		final Displayable[] items = this.items;
+		final int n_overflow = this.n_overflow;
+		final Found found = new Found();
+
+		final int top = level_ends.length - 1;
+		if (top >= 0 && intersects(tree, level_ends[top] - 1, x0, y0, x1, y1)) {
+			if (0 == top) {
+				// A single object
+				if (order[0] >= 0) found.add(items[order[0]], stack[order[0]]);
+			} else {
+				// Pairs of level and box of the nodes to visit
+				int[] todo = new int[64];
+				int n_todo = 0;
+				todo[n_todo++] = top;
+				todo[n_todo++] = level_ends[top] - 1;
+				while (n_todo > 0) {
+					final int node = todo[--n_todo];
+					final int level = todo[--n_todo];
+					final int child_level_start = 1 == level ? 0 : level_ends[level - 2];
+					final int first = child_level_start + (node - level_ends[level - 1]) * NODE_SIZE;
+					final int last = Math.min(first + NODE_SIZE, level_ends[level - 1]);
+					for (int i=first; i<last; i++) {
+						if (!intersects(tree, i, x0, y0, x1, y1)) continue;
+						if (1 == level) {
+							final int s = order[i];
+							if (s >= 0) found.add(items[s], stack[s]);
+						} else {
+							if (n_todo + 2 > todo.length) todo = Arrays.copyOf(todo, todo.length * 2);
+							todo[n_todo++] = level - 1;
+							todo[n_todo++] = i;
+						}
+					}
+				}
+			}
+		}
+		for (int i=0; i<n_overflow; i++) {
+			final int s = overflow[i];
+			if (intersects(boxes, s, x0, y0, x1, y1)) found.add(items[s], stack[s]);
+		}
+		return found;
+	}
+
+	private final int center(final int slot, final int axis) {
+		final int k = 4 * slot + axis;
+		return (int)(((long)boxes[k] + boxes[k+2]) >> 1);
+	}
+
+	/** Compact the slots and pack all objects into a new tree. Must hold the write lock. */
+	private final void pack() {
+		int n = 0;
+		for (int s=0; s<n_slots; s++) {
+			if (null == items[s]) continue;
+			if (n != s) {
+				items[n] = items[s];
+				System.arraycopy(boxes, 4 * s, boxes, 4 * n, 4);
+				stack[n] = stack[s];
+				slots.put(items[n], n);
+			}
+			++n;
+		}
+		for (int s=n; s<n_slots; s++) items[s] = null;
+		n_slots = n;
+		n_overflow = 0;
+
+		if (0 == n) {
+			this.tree = new int[0];
+			this.order = new int[0];
+			this.level_ends = new int[0];
+			return;
+		}
+
+		// Sort-Tile-Recursive: sort by x, cut into vertical slices of about sqrt(n_leaves) leaves, and sort each slice by y
+		final long[] keys = new long[n];
+		for (int s=0; s<n; s++) keys[s] = ((long)center(s, 0) << 32) | s;
+		Arrays.sort(keys);
+		final int n_leaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+		final int slice = (int)Math.ceil(Math.sqrt(n_leaves)) * NODE_SIZE;
+		for (int i=0; i<n; i+=slice) {
+			final int end = Math.min(n, i + slice);
+			for (int j=i; j<end; j++) {
+				final int s = (int)keys[j];
+				keys[j] = ((long)center(s, 1) << 32) | s;
+			}
+			Arrays.sort(keys, i, end);
+		}
+
+		int[] ends = new int[8];
+		int n_levels = 0;
+		ends[n_levels++] = n;
+		int total = n;
+		for (int count = n; count > 1; ) {
+			count = (count + NODE_SIZE - 1) / NODE_SIZE;
+			total += count;
+			if (n_levels == ends.length) ends = Arrays.copyOf(ends, n_levels * 2);
+			ends[n_levels++] = total;
+		}
+
+		final int[] tree = new int[4 * total];
+		final int[] order = new int[n];
+		for (int p=0; p<n; p++) {
+			final int s = (int)keys[p];
+			order[p] = s;
+			position[s] = p;
+			System.arraycopy(boxes, 4 * s, tree, 4 * p, 4);
+		}
+		// Each node's box is the union of the boxes of its children
+		for (int level=1, start=0; level<n_levels; level++) {
+			final int end = ends[level - 1];
+			for (int i=start, node=end; i<end; i+=NODE_SIZE, node++) {
+				final int k = 4 * node;
+				tree[k] = tree[k+1] = Integer.MAX_VALUE;
+				tree[k+2] = tree[k+3] = Integer.MIN_VALUE;
+				for (int c=i, last=Math.min(i + NODE_SIZE, end); c<last; c++) {
+					final int j = 4 * c;
+					if (tree[j] < tree[k]) tree[k] = tree[j];
+					if (tree[j+1] < tree[k+1]) tree[k+1] = tree[j+1];
+					if (tree[j+2] > tree[k+2]) tree[k+2] = tree[j+2];
+					if (tree[j+3] > tree[k+3]) tree[k+3] = tree[j+3];
+				}
+			}
+			start = end;
+		}
+
+		this.tree = tree;
+		this.order = order;
+		this.level_ends = Arrays.copyOf(ends, n_levels);
+	}
+
+	private final void ensureCapacity(final int n) {
+		if (n <= items.length) return;
+		final int len = Math.max(n, items.length * 2);
+		items = Arrays.copyOf(items, len);
+		boxes = Arrays.copyOf(boxes, 4 * len);
+		stack = Arrays.copyOf(stack, len);
+		position = Arrays.copyOf(position, len);
+	}
+
+	static private final void setBox(final int[] b, final int i, final Rectangle r) {
+		final int k = 4 * i;
+		b[k] = r.x;
+		b[k+1] = r.y;
+		b[k+2] = r.x + r.width;
+		b[k+3] = r.y + r.height;
+	}
+
+	private final void addToOverflow(final int slot) {
+		if (n_overflow == overflow.length) overflow = Arrays.copyOf(overflow, n_overflow * 2);
+		overflow[n_overflow++] = slot;
+		if (n_overflow > Math.max(MIN_OVERFLOW, slots.size() / 8)) pack();
+	}
+
+	private final void removeFromOverflow(final int slot) {
+		for (int i=0; i<n_overflow; i++) {
+			if (overflow[i] == slot) {
+				overflow[i] = overflow[--n_overflow];
+				return;
+			}
+		}
+	}
+
+	/** Must hold the write lock. */
+	private final void add(final Displayable d, final Rectangle r, final int stack_index) {
+		ensureCapacity(n_slots + 1);
+		final int s = n_slots++;
+		items[s] = d;
+		setBox(boxes, s, r);
+		stack[s] = stack_index;
+		position[s] = -1;
+		slots.put(d, s);
+		addToOverflow(s);
+	}
+
+	/** Must hold the write lock. */
+	private final void move(final int s, final Rectangle r) {
+		setBox(boxes, s, r);
+		final int p = position[s];
+		if (p < 0) return; // in the overflow list
+		if (level_ends.length > 1) {
+			// Still within the box of its node, and therefore of all its ancestors?
+			final int k = 4 * (level_ends[0] + p / NODE_SIZE);
+			if (r.x < tree[k] || r.y < tree[k+1] || r.x + r.width > tree[k+2] || r.y + r.height > tree[k+3]) {
+				order[p] = -1;
+				position[s] = -1;
+				addToOverflow(s);
+				return;
+			}
+		}
+		setBox(tree, p, r);
+	}
+
+	/** Must hold the write lock. The slot is compacted away when packing the tree anew. */
+	private final void remove(final int s) {
+		slots.remove(items[s]);
+		items[s] = null;
+		final int p = position[s];
+		if (p >= 0) order[p] = -1;
+		else removeFromOverflow(s);
+		position[s] = -1;
+	}
+
+	@Override
+	final void populate(final Bucketable container, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
+		final ArrayList<? extends Displayable> list = container.getDisplayableList();
+		final int len = Math.max(16, list.size());
+		final Displayable[] ds = new Displayable[len];
+		final int[] bs = new int[4 * len];
+		final int[] st = new int[len];
+		int n = 0;
+		// Outside the lock: may be slow
+		for (int i=0; i<list.size(); i++) {
+			final Displayable d = list.get(i);
+			final Area a = d.getAreaForBucket(layer);
+			if (null == a) continue;
+			ds[n] = d;
+			setBox(bs, n, a.getBounds());
+			st[n] = i;
+			++n;
+		}
+		final long stamp = lock.writeLock();
+		try {
+			this.items = ds;
+			this.boxes = bs;
+			this.stack = st;
+			this.position = new int[len];
+			this.n_slots = n;
+			this.slots.clear();
+			for (int i=0; i<n; i++) slots.put(ds[i], i);
+			pack();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	final void put(final int stack_index, final Displayable d, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
+		final Area a = d.getAreaForBucket(layer);
+		if (null == a) return;
+		final Rectangle r = a.getBounds();
+		final long stamp = lock.writeLock();
+		try {
+			final Integer s = slots.get(d);
+			if (null == s) add(d, r, stack_index);
+			else {
+				stack[s] = stack_index;
+				move(s, r);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	final void updatePosition(final Displayable d, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
+		final Area a = d.getAreaForBucket(layer);
+		final Rectangle r = null == a ? null : a.getBounds();
+		final long stamp = lock.writeLock();
+		try {
+			final Integer s = slots.get(d);
+			if (null == r) {
+				if (null != s) remove(s);
+			} else if (null == s) {
+				add(d, r, d.getBucketable().getDisplayableList().indexOf(d));
+			} else {
+				move(s, r);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	final void updateRange(final Bucketable container, final Displayable d, final int old_i, final int new_i) {
+		final ArrayList<? extends Displayable> list = container.getDisplayableList();
+		final long stamp = lock.writeLock();
+		try {
+			for (int i=old_i; i<=new_i; i++) {
+				final Integer s = slots.get(list.get(i));
+				if (null != s) stack[s] = i;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/** Unlike for a {@link Bucket}, any query smaller than the whole layer is better answered by the tree. */
+	@Override
+	public final boolean isBetter(final Rectangle r, final Bucketable container) {
+		return (double)r.width * r.height < (double)container.getLayerWidth() * container.getLayerHeight();
+	}
+
+	static private final boolean isOfClass(final Displayable d, final Class<?> c, final boolean instance_of) {
+		return instance_of ? c.isAssignableFrom(d.getClass()) : d.getClass() == c;
+	}
+
+	@Override
+	final Collection<Displayable> find(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
+		return find(null, srcRect, layer, visible_only, false);
+	}
+
+	/** With a null @param c, of any class. */
+	@Override
+	final Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
+		final ArrayList<Displayable> al = new ArrayList<Displayable>();
+		if (srcRect.width <= 0 || srcRect.height <= 0) return al;
+		final Area asrc = new Area(srcRect);
+		for (final Displayable d : candidates(srcRect.x, srcRect.y, srcRect.x + srcRect.width, srcRect.y + srcRect.height)) {
+			if (visible_only && !d.isVisible()) continue;
+			if (null != c && !isOfClass(d, c, instance_of)) continue;
+			final Area a = d.getAreaForBucket(layer);
+			if (null != a && M.intersects(asrc, a)) al.add(d);
+		}
+		return al;
+	}
+
+	@Override
+	final Collection<Displayable> find(final double px, final double py, final Layer layer, final boolean visible_only) {
+		return find(null, px, py, layer, visible_only, false);
+	}
+
+	/** With a null @param c, of any class. */
+	@Override
+	final Collection<Displayable> find(final Class<?> c, final double px, final double py, final Layer layer, final boolean visible_only, final boolean instance_of) {
+		final ArrayList<Displayable> al = new ArrayList<Displayable>();
+		for (final Displayable d : candidates(px, py, px, py)) {
+			if (visible_only && !d.isVisible()) continue;
+			if (null != c && !isOfClass(d, c, instance_of)) continue;
+			if (d.contains(layer, px, py)) al.add(d);
+		}
+		return al;
+	}
+
+	@Override
+	final Collection<Displayable> find(final Area area, final Layer layer, final boolean visible_only) {
+		return find(null, area, layer, visible_only, false);
+	}
+
+	/** With a null @param c, of any class. */
+	@Override
+	final Collection<Displayable> find(final Class<?> c, final Area area, final Layer layer, final boolean visible_only, final boolean instance_of) {
+		final ArrayList<Displayable> al = new ArrayList<Displayable>();
+		final Rectangle b = area.getBounds();
+		if (b.width <= 0 || b.height <= 0) return al;
+		for (final Displayable d : candidates(b.x, b.y, b.x + b.width, b.y + b.height)) {
+			if (visible_only && !d.isVisible()) continue;
+			if (null != c && !isOfClass(d, c, instance_of)) continue;
+			if (d.intersects(layer, area)) al.add(d);
+		}
+		return al;
+	}
+}
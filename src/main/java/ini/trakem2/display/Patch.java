@@ -72,10 +72,12 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -112,6 +114,7 @@ import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
+import ini.trakem2.utils.MemoryReport;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Search;
 import ini.trakem2.utils.Utils;
@@ -155,6 +158,11 @@ public final class Patch extends Displayable implements ImageData {
 	/** A unique ID for the {@link CoordinateTransform}; 0 means there isn't one. */
 	private long ct_id = 0;
 
+	/** The {@link CoordinateTransform} last read from its file, which the garbage collector may reclaim
+	 *  when it is not in use; callers get copies. Only valid while {@link #ct_cache_id} equals {@link #ct_id}. */
+	private SoftReference<CoordinateTransform> ct_cache = null;
+	private long ct_cache_id = 0;
+
 	/** A unique ID for the alpha mask; 0 means there isn't one.
 	 * The alpha mask is not the outside mask as potentially generated by a {@link CoordinateTransform}.
 	 * The alpha mask determines transparencies inside the width,height domain of the image. */
@@ -584,21 +592,38 @@ public final class Patch extends Displayable implements ImageData {
 		paint(g, fetchImage(magnification, channels, true), srcRect);
 	}
 
+	/** Like {@link #paintOffscreen(Graphics2D, Rectangle, double, boolean, int, Layer, List)}, but paint @param mipMap,
+	 *  if not null, fetched already as by {@link Loader#fetchImagesLater(java.util.Collection, double, boolean, Loader.FetchListener)}. */
+	public void paintOffscreen(final Graphics2D g, final Rectangle srcRect, final double magnification, final int channels, final MipMapImage mipMap) {
+		if (null == mipMap) {
+			paint(g, fetchImage(magnification, channels, true), srcRect);
+			return;
+		}
+		checkChannels(channels, magnification);
+		paint(g, mipMap, srcRect);
+	}
+
 	@Override
 	public void paint(final Graphics2D g, final Rectangle srcRect, final double magnification, final boolean active, final int channels, final Layer active_layer, final List<Layer> _ignored) {
 		paint(g, fetchImage(magnification, channels, false), srcRect);
 	}
 
-	private final MipMapImage fetchImage(final double magnification, final int channels, final boolean wait_for_image) {
-		checkChannels(channels, magnification);
-
+	/** The magnification at which the image is fetched for painting at @param magnification,
+	 *  given the scaling of the affine transform. */
+	public final double getImageMagnification(final double magnification) {
 		// Consider all possible scaling components: m00, m01
 		//                                           m10, m11
-		double sc = magnification * Math.max(Math.abs(at.getScaleX()),
+		final double sc = magnification * Math.max(Math.abs(at.getScaleX()),
 				                     Math.max(Math.abs(at.getScaleY()),
 							      Math.max(Math.abs(at.getShearX()),
 								       Math.abs(at.getShearY()))));
-		if (sc < 0) sc = magnification;
+		return sc < 0 ? magnification : sc;
+	}
+
+	private final MipMapImage fetchImage(final double magnification, final int channels, final boolean wait_for_image) {
+		checkChannels(channels, magnification);
+
+		final double sc = getImageMagnification(magnification);
 		return wait_for_image ?
 			  project.getLoader().fetchDataImage(this, sc)
 			: project.getLoader().fetchImage(this, sc);
@@ -644,6 +669,27 @@ public final class Patch extends Displayable implements ImageData {
 		paintMipMap(g, mipMap, atp, srcRect);
 	}
 
+	/** Paint @param mipMap, fetched already for painting at @param magnification; or, if null,
+	 *  whatever is cached, since the proper image is being fetched and its arrival will repaint. */
+	final void paintFetched(final Graphics2D g, final Rectangle srcRect, final double magnification, final int channels, final MipMapImage mipMap) {
+		final MipMapImage m = getImageToPaint(magnification, channels, mipMap);
+		if (null != m) paint(g, m, srcRect);
+	}
+
+	/** Returns @param fetched if not null, or else the cached image closest to that for painting at @param magnification, if any. */
+	final MipMapImage getImageToPaint(final double magnification, final int channels, final MipMapImage fetched) {
+		checkChannels(channels, magnification);
+		if (null != fetched) return fetched;
+		final double sc = getImageMagnification(magnification);
+		final MipMapImage m = project.getLoader().getCachedClosestAboveImage(this, sc); // above or equal
+		return null != m ? m : project.getLoader().getCachedClosestBelowImage(this, sc); // below, not equal
+	}
+
+	/** Paint @param mipMap, as returned by {@link #getImageToPaint(double, int, MipMapImage)}. */
+	final void paintImage(final Graphics2D g, final Rectangle srcRect, final MipMapImage mipMap) {
+		paint(g, mipMap, srcRect);
+	}
+
 	/** Paint first whatever is available, then request that the proper image be loaded and painted. */
 	@Override
 	public void prePaint(final Graphics2D g, final Rectangle srcRect, final double magnification, final boolean active, final int channels, final Layer active_layer, final List<Layer> _ignored) {
@@ -2306,6 +2352,12 @@ public final class Patch extends Displayable implements ImageData {
 		return 0 != ct_id;
 	}
 
+	/** Estimated bytes retained by the decoded {@link CoordinateTransform}, if not reclaimed; see {@link MemoryReport}. */
+	synchronized public long estimateCoordinateTransformBytes(final IdentityHashMap<Object,Boolean> seen) {
+		final CoordinateTransform ct = null == ct_cache ? null : ct_cache.get();
+		return null == ct ? 0 : MemoryReport.estimate(ct, seen);
+	}
+
 	/** A value of 0 indicates that there isn't one. */
 	public long getCoordinateTransformId() {
 		return ct_id;
@@ -2347,9 +2399,39 @@ public final class Patch extends Displayable implements ImageData {
 	 * @throws Exception if the file could not be found or parsed or read.
 	 */
 	synchronized public CoordinateTransform fetchCoordinateTransform() throws Exception {
-		return hasCoordinateTransform() ?
-			CoordinateTransformXML.parse(createCTFilePath(this.ct_id))
-			: null;
+		if (!hasCoordinateTransform()) return null;
+		CoordinateTransform ct = null;
+		if (null != ct_cache && ct_cache_id == ct_id) ct = ct_cache.get();
+		if (null == ct) {
+			// Decode it only when first needed, and again only if it was reclaimed
+			ct = CoordinateTransformXML.parse(createCTFilePath(this.ct_id));
+			if (null == ct) return null;
+			ct_cache = new SoftReference<CoordinateTransform>(ct);
+			ct_cache_id = ct_id;
+		}
+		return ct.copy();
+	}
+
+	/** Write @param xml, the XML description of a {@link CoordinateTransform} as read from a project XML file,
+	 *  as the file of the existing {@link #ct_id}, without decoding it; it will be decoded on first use.
+	 *  @return false if there isn't a {@link #ct_id} or the file could not be written. */
+	synchronized public boolean writeCoordinateTransformFile(final String xml) {
+		if (!hasCoordinateTransform()) return false;
+		RandomAccessFile ra = null;
+		try {
+			final File f = new File(createCTFilePath(ct_id));
+			Utils.ensure(f);
+			ra = new RandomAccessFile(f, "rw");
+			ra.setLength(0);
+			ra.write(xml.getBytes());
+			ct_cache = null;
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		} finally {
+			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e); }
+		}
 	}
 
 	/** Will throw an {@link Exception} if the file can't be read or is not there. */
@@ -2407,7 +2489,9 @@ public final class Patch extends Displayable implements ImageData {
 			final File f = new File(createCTFilePath(ctID));
 			Utils.ensure(f);
 			ra = new RandomAccessFile(f, "rw");
+			ra.setLength(0);
 			ra.write(ct.toXML("\t\t\t\t").getBytes());
+			if (ctID == ct_cache_id) ct_cache = null;
 			return true;
 		} finally {
 			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e); }
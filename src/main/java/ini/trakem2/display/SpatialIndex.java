@@ -0,0 +1,59 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/** The queries and updates that a {@link Layer} performs on the index of its {@link Displayable} objects.
+ *  Implemented by the {@link Bucket} quadtree and by the {@link PackedRTree}; which one a Layer uses
+ *  is chosen by the project property "rtree_index". All queries return the found objects ordered by stack index. */
+abstract class SpatialIndex {
+
+	/** Index all objects of the container, discarding any previous content. */
+	abstract void populate(Bucketable container, Layer layer, HashMap<Displayable,HashSet<Bucket>> db_map);
+
+	abstract Collection<Displayable> find(Rectangle srcRect, Layer layer, boolean visible_only);
+
+	abstract Collection<Displayable> find(Class<?> c, Rectangle srcRect, Layer layer, boolean visible_only, boolean instance_of);
+
+	abstract Collection<Displayable> find(double px, double py, Layer layer, boolean visible_only);
+
+	abstract Collection<Displayable> find(Class<?> c, double px, double py, Layer layer, boolean visible_only, boolean instance_of);
+
+	abstract Collection<Displayable> find(Area area, Layer layer, boolean visible_only);
+
+	abstract Collection<Displayable> find(Class<?> c, Area area, Layer layer, boolean visible_only, boolean instance_of);
+
+	/** Update the stack indices of the objects between old_i and new_i, both included. */
+	abstract void updateRange(Bucketable container, Displayable d, int old_i, int new_i);
+
+	abstract void updatePosition(Displayable d, Layer layer, HashMap<Displayable,HashSet<Bucket>> db_map);
+
+	abstract void put(int stack_index, Displayable d, Layer layer, HashMap<Displayable,HashSet<Bucket>> db_map);
+
+	/** Whether querying the index for @param r is expected to be faster than a linear search. */
+	abstract boolean isBetter(Rectangle r, Bucketable container);
+}
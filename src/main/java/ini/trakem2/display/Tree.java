@@ -74,12 +74,15 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.image.IndexColorModel;
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -127,6 +130,7 @@ import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
+import ini.trakem2.utils.MemoryReport;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
@@ -506,6 +510,23 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	@Override
 	public void exportXML(final StringBuilder sb_body, final String indent, final XMLOptions options) {
+		try {
+			exportXML(sb_body, null, indent, options);
+		} catch (final IOException ioe) {
+			IJError.print(ioe); // can't happen without a Writer
+		}
+	}
+
+	/** Writes the nodes in chunks, rather than the whole tree at once. */
+	@Override
+	public void exportXML(final Writer writer, final String indent, final XMLOptions options) throws Exception {
+		final StringBuilder sb = new StringBuilder(XML_CHUNK + 1024);
+		exportXML(sb, writer, indent, options);
+		writer.write(sb.toString());
+	}
+
+	/** @param writer may be null, and then all goes into @param sb_body. */
+	private final void exportXML(final StringBuilder sb_body, final Writer writer, final String indent, final XMLOptions options) throws IOException {
 		final String type = "t2_" + getClass().getSimpleName().toLowerCase();
 		sb_body.append(indent).append("<").append(type).append('\n');
 		final String in = indent + "\t";
@@ -514,12 +535,12 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		sb_body.append(in).append("style=\"fill:none;stroke-opacity:").append(alpha).append(";stroke:#").append(RGB[0]).append(RGB[1]).append(RGB[2]).append(";stroke-width:1.0px;stroke-opacity:1.0\"\n");
 		sb_body.append(indent).append(">\n");
 		super.restXML(sb_body, in, options);
-		if (null != root) exportXML(this, in, sb_body, root);
+		if (null != root) exportXML(this, in, sb_body, writer, root);
 		sb_body.append(indent).append("</").append(type).append(">\n");
 	}
 
 	/** One day, java will get tail-call optimization (i.e. no more stack overflow errors) and I will laugh at this function. */
-	private final void exportXML(final Tree<T> tree, final String indent_base, final StringBuilder sb, final Node<T> root) {
+	private final void exportXML(final Tree<T> tree, final String indent_base, final StringBuilder sb, final Writer writer, final Node<T> root) throws IOException {
 		// Simulating recursion
 		//
 		// write depth-first, closing as children get written
@@ -530,6 +551,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		final StringBuilder indent = new StringBuilder(indent_base);
 
 		while (!list.isEmpty()) {
+			flushXML(sb, writer); // between nodes, never within one
 			final Node<T> node = list.getLast();
 			if (null == node.children) {
 				// Processing end point
@@ -913,6 +935,13 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return root;
 	}
 
+	/** Estimated bytes retained by the nodes and their data, as indexed by layer; see {@link MemoryReport}. */
+	public long estimateNodeBytes(final IdentityHashMap<Object,Boolean> seen) {
+		synchronized (node_layer_map) {
+			return MemoryReport.estimate(node_layer_map, seen);
+		}
+	}
+
 	protected Coordinate<Node<T>> createCoordinate(final Node<T> nd) {
 		if (null == nd) return null;
 		float x = nd.x;
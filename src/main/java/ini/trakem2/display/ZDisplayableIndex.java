@@ -0,0 +1,470 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * An index of the {@link ZDisplayable} objects of a {@link LayerSet} by the range of layers in which they have data
+ * and by their bounding box, to find those that may intersect a box in a range of layers without visiting every object
+ * nor every layer, as when painting color cues.
+ *
+ * Each object is a 3D box of its world bounding box and of the indices, in the list of layers, of its first and last
+ * layer with data. The boxes are packed like those of the {@link PackedRTree}, sorting as well by layer, with an overflow
+ * list for objects that move beyond the box of their node.
+ *
+ * The index is built on the first query, and built anew on the first query after any change to the list of layers.
+ * Objects whose data changes are marked and their boxes recomputed on the next query. Boxes are computed outside
+ * the lock of the index, given that computing them may lock the objects.
+ */
+final class ZDisplayableIndex {
+
+	static private final int NODE_SIZE = PackedRTree.NODE_SIZE;
+	/** Minimal length of the overflow list that triggers packing the tree anew. */
+	static private final int MIN_OVERFLOW = 64;
+
+	private final LayerSet layer_set;
+
+	private boolean valid = false;
+	/** Incremented when invalidated, to discard boxes computed before. */
+	private int generation = 0;
+	/** Objects whose boxes have to be recomputed. */
+	private final HashSet<ZDisplayable> dirty = new HashSet<ZDisplayable>();
+
+	/** Per slot: the object, or null if removed. */
+	private ZDisplayable[] items = new ZDisplayable[16];
+	/** Per slot: the box of the object, as x0,y0,z0,x1,y1,z1 where z is the index of a layer. */
+	private int[] boxes = new int[96];
+	/** Per slot: the stack index of the object. */
+	private int[] stack = new int[16];
+	/** Per slot: the position of the object in the packed tree, or -1 if in the overflow list. */
+	private int[] position = new int[16];
+	private int n_slots = 0;
+	private final HashMap<ZDisplayable,Integer> slots = new HashMap<ZDisplayable,Integer>();
+
+	/** The boxes of the packed objects in STR order, followed by the boxes of each level of nodes, the root last. */
+	private int[] tree = new int[0];
+	/** Per packed position: the slot of the object, or -1 if it was removed or moved to the overflow list. */
+	private int[] order = new int[0];
+	/** The end of each level in the tree, in number of boxes. */
+	private int[] level_ends = new int[0];
+
+	/** Slots of the objects that are not in the packed tree. */
+	private int[] overflow = new int[16];
+	private int n_overflow = 0;
+
+	ZDisplayableIndex(final LayerSet layer_set) {
+		this.layer_set = layer_set;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ZDisplayableIndex: " + (valid ? slots.size() + " objects, " + n_overflow + " in overflow" : "to be built");
+	}
+
+	/** Build the index anew on the next query; for when the list of layers changes. */
+	synchronized final void invalidate() {
+		valid = false;
+		++generation;
+		dirty.clear();
+		items = new ZDisplayable[16];
+		boxes = new int[96];
+		stack = new int[16];
+		position = new int[16];
+		n_slots = 0;
+		slots.clear();
+		tree = new int[0];
+		order = new int[0];
+		level_ends = new int[0];
+		n_overflow = 0;
+	}
+
+	/** Recompute the box of @param zd on the next query. Also while not valid, given that a build may be under way. */
+	synchronized final void update(final ZDisplayable zd) {
+		dirty.add(zd);
+	}
+
+	/** Discard any build under way, which may have missed a change to the list of objects. Must hold the lock. */
+	private final void discardBuild() {
+		++generation;
+	}
+
+	/** @param zd was added to the list of the LayerSet at @param stack_index, without shifting any other. */
+	final void add(final ZDisplayable zd, final int stack_index) {
+		final int g;
+		synchronized (this) {
+			if (!valid) {
+				discardBuild();
+				return;
+			}
+			g = generation;
+		}
+		final int[] b = new int[6];
+		final boolean has_data = box(zd, b, 0, new Rectangle());
+		synchronized (this) {
+			if (g != generation || !has_data || slots.containsKey(zd)) return;
+			add(zd, b, stack_index);
+		}
+	}
+
+	/** @param zd was removed from the list of the LayerSet at @param old_stack_index, shifting down all above. */
+	synchronized final void remove(final ZDisplayable zd, final int old_stack_index) {
+		if (!valid) {
+			discardBuild();
+			return;
+		}
+		dirty.remove(zd);
+		final Integer s = slots.get(zd);
+		if (null != s) remove(s);
+		for (int i=0; i<n_slots; i++) {
+			if (stack[i] > old_stack_index) --stack[i];
+		}
+	}
+
+	/** The objects from @param i to @param j in @param list changed their stack indices. */
+	synchronized final void updateRange(final ArrayList<ZDisplayable> list, final int i, final int j) {
+		if (!valid) {
+			discardBuild();
+			return;
+		}
+		for (int k=i; k<=j; k++) {
+			final Integer s = slots.get(list.get(k));
+			if (null != s) stack[s] = k;
+		}
+	}
+
+	/** The objects with data in any layer from index @param first to index @param last, both included,
+	 *  and whose bounding box intersects @param r, ordered by stack index.
+	 *  Returns null when the index can't be brought up to date because of concurrent changes. */
+	final Displayable[] find(final int first, final int last, final Rectangle r) {
+		final int x0 = r.x,
+		          y0 = r.y,
+		          x1 = r.x + r.width,
+		          y1 = r.y + r.height;
+		for (int attempt=0; attempt<3; attempt++) {
+			final ZDisplayable[] ds;
+			final int g;
+			synchronized (this) {
+				if (valid && dirty.isEmpty()) return search(x0, y0, first, x1, y1, last).sorted();
+				ds = valid ? dirty.toArray(new ZDisplayable[dirty.size()]) : null;
+				dirty.clear();
+				g = generation;
+			}
+			if (null == ds) build(g);
+			else refresh(ds, g);
+		}
+		return null;
+	}
+
+	/** Sets into @param b at @param i the box of @param zd, enlarged by one pixel on each side to include
+	 *  the borders lost to integer rounding. Returns false if @param zd has no data in any layer of the LayerSet. */
+	private final boolean box(final ZDisplayable zd, final int[] b, final int i, final Rectangle tmp) {
+		int first = Integer.MAX_VALUE,
+		    last = -1;
+		for (final Long lid : zd.getLayerIds()) {
+			final Layer la = layer_set.getLayer(lid);
+			if (null == la) continue;
+			final int k = layer_set.indexOf(la);
+			if (k < 0) continue;
+			if (k < first) first = k;
+			if (k > last) last = k;
+		}
+		if (last < 0) return false;
+		zd.getBoundingBox(tmp);
+		final int k = 6 * i;
+		b[k] = tmp.x - 1;
+		b[k+1] = tmp.y - 1;
+		b[k+2] = first;
+		b[k+3] = tmp.x + tmp.width + 1;
+		b[k+4] = tmp.y + tmp.height + 1;
+		b[k+5] = last;
+		return true;
+	}
+
+	/** Compute the boxes of all objects outside the lock, then install them unless invalidated meanwhile. */
+	private final void build(final int g) {
+		final ArrayList<ZDisplayable> list = layer_set.getZDisplayables();
+		final int len = Math.max(16, list.size());
+		final ZDisplayable[] ds = new ZDisplayable[len];
+		final int[] bs = new int[6 * len];
+		final int[] st = new int[len];
+		final Rectangle tmp = new Rectangle();
+		int n = 0;
+		for (int i=0; i<list.size(); i++) {
+			final ZDisplayable zd = list.get(i);
+			if (!box(zd, bs, n, tmp)) continue;
+			ds[n] = zd;
+			st[n] = i;
+			++n;
+		}
+		synchronized (this) {
+			if (g != generation) return;
+			this.items = ds;
+			this.boxes = bs;
+			this.stack = st;
+			this.position = new int[len];
+			this.n_slots = n;
+			this.slots.clear();
+			for (int i=0; i<n; i++) slots.put(ds[i], i);
+			pack();
+			this.valid = true;
+		}
+	}
+
+	/** Recompute the boxes of the objects in @param ds outside the lock, then update them unless invalidated meanwhile. */
+	private final void refresh(final ZDisplayable[] ds, final int g) {
+		final int[] bs = new int[6 * ds.length];
+		final boolean[] has_data = new boolean[ds.length];
+		final Rectangle tmp = new Rectangle();
+		for (int i=0; i<ds.length; i++) has_data[i] = box(ds[i], bs, i, tmp);
+		synchronized (this) {
+			if (g != generation) return;
+			for (int i=0; i<ds.length; i++) {
+				final Integer s = slots.get(ds[i]);
+				if (!has_data[i]) {
+					if (null != s) remove(s);
+				} else if (null == s) {
+					final int stack_index = layer_set.getDisplayableList().indexOf(ds[i]);
+					if (stack_index >= 0) add(ds[i], Arrays.copyOfRange(bs, 6 * i, 6 * i + 6), stack_index);
+				} else {
+					move(s, bs, i);
+				}
+			}
+		}
+	}
+
+	static private final boolean intersects(final int[] b, final int i, final int x0, final int y0, final int z0, final int x1, final int y1, final int z1) {
+		final int k = 6 * i;
+		return b[k] <= x1 && x0 <= b[k+3]
+		    && b[k+1] <= y1 && y0 <= b[k+4]
+		    && b[k+2] <= z1 && z0 <= b[k+5];
+	}
+
+	/** Must hold the lock. */
+	private final PackedRTree.Found search(final int x0, final int y0, final int z0, final int x1, final int y1, final int z1) {
+		final PackedRTree.Found found = new PackedRTree.Found();
+		final int top = level_ends.length - 1;
+		if (top >= 0 && intersects(tree, level_ends[top] - 1, x0, y0, z0, x1, y1, z1)) {
+			if (0 == top) {
+				// A single object
+				if (order[0] >= 0) found.add(items[order[0]], stack[order[0]]);
+			} else {
+				// Pairs of level and box of the nodes to visit
+				int[] todo = new int[64];
+				int n_todo = 0;
+				todo[n_todo++] = top;
+				todo[n_todo++] = level_ends[top] - 1;
+				while (n_todo > 0) {
+					final int node = todo[--n_todo];
+					final int level = todo[--n_todo];
+					final int child_level_start = 1 == level ? 0 : level_ends[level - 2];
+					final int first = child_level_start + (node - level_ends[level - 1]) * NODE_SIZE;
+					final int last = Math.min(first + NODE_SIZE, level_ends[level - 1]);
+					for (int i=first; i<last; i++) {
+						if (!intersects(tree, i, x0, y0, z0, x1, y1, z1)) continue;
+						if (1 == level) {
+							final int s = order[i];
+							if (s >= 0) found.add(items[s], stack[s]);
+						} else {
+							if (n_todo + 2 > todo.length) todo = Arrays.copyOf(todo, todo.length * 2);
+							todo[n_todo++] = level - 1;
+							todo[n_todo++] = i;
+						}
+					}
+				}
+			}
+		}
+		for (int i=0; i<n_overflow; i++) {
+			final int s = overflow[i];
+			if (intersects(boxes, s, x0, y0, z0, x1, y1, z1)) found.add(items[s], stack[s]);
+		}
+		return found;
+	}
+
+	private final int center(final int slot, final int axis) {
+		final int k = 6 * slot + axis;
+		return (int)(((long)boxes[k] + boxes[k+3]) >> 1);
+	}
+
+	/** Sort the slots in keys[start:end] by their center along @param axis. */
+	private final void sort(final long[] keys, final int start, final int end, final int axis) {
+		for (int j=start; j<end; j++) {
+			final int s = (int)keys[j];
+			keys[j] = ((long)center(s, axis) << 32) | s;
+		}
+		Arrays.sort(keys, start, end);
+	}
+
+	/** Compact the slots and pack all objects into a new tree. Must hold the lock. */
+	private final void pack() {
+		int n = 0;
+		for (int s=0; s<n_slots; s++) {
+			if (null == items[s]) continue;
+			if (n != s) {
+				items[n] = items[s];
+				System.arraycopy(boxes, 6 * s, boxes, 6 * n, 6);
+				stack[n] = stack[s];
+				slots.put(items[n], n);
+			}
+			++n;
+		}
+		for (int s=n; s<n_slots; s++) items[s] = null;
+		n_slots = n;
+		n_overflow = 0;
+
+		if (0 == n) {
+			this.tree = new int[0];
+			this.order = new int[0];
+			this.level_ends = new int[0];
+			return;
+		}
+
+		// Sort-Tile-Recursive in 3D: sort by x and cut into slabs of about s*s leaves,
+		// sort each slab by y and cut into runs of about s leaves, and sort each run by layer
+		final long[] keys = new long[n];
+		for (int s=0; s<n; s++) keys[s] = s;
+		final int n_leaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+		final int side = (int)Math.ceil(Math.cbrt(n_leaves));
+		final int slab = side * side * NODE_SIZE;
+		final int run = side * NODE_SIZE;
+		sort(keys, 0, n, 0);
+		for (int i=0; i<n; i+=slab) {
+			final int slab_end = Math.min(n, i + slab);
+			sort(keys, i, slab_end, 1);
+			for (int j=i; j<slab_end; j+=run) {
+				sort(keys, j, Math.min(slab_end, j + run), 2);
+			}
+		}
+
+		int[] ends = new int[8];
+		int n_levels = 0;
+		ends[n_levels++] = n;
+		int total = n;
+		for (int count = n; count > 1; ) {
+			count = (count + NODE_SIZE - 1) / NODE_SIZE;
+			total += count;
+			if (n_levels == ends.length) ends = Arrays.copyOf(ends, n_levels * 2);
+			ends[n_levels++] = total;
+		}
+
+		final int[] tree = new int[6 * total];
+		final int[] order = new int[n];
+		for (int p=0; p<n; p++) {
+			final int s = (int)keys[p];
+			order[p] = s;
+			position[s] = p;
+			System.arraycopy(boxes, 6 * s, tree, 6 * p, 6);
+		}
+		// Each node's box is the union of the boxes of its children
+		for (int level=1, start=0; level<n_levels; level++) {
+			final int end = ends[level - 1];
+			for (int i=start, node=end; i<end; i+=NODE_SIZE, node++) {
+				final int k = 6 * node;
+				tree[k] = tree[k+1] = tree[k+2] = Integer.MAX_VALUE;
+				tree[k+3] = tree[k+4] = tree[k+5] = Integer.MIN_VALUE;
+				for (int c=i, last=Math.min(i + NODE_SIZE, end); c<last; c++) {
+					final int j = 6 * c;
+					for (int a=0; a<3; a++) {
+						if (tree[j+a] < tree[k+a]) tree[k+a] = tree[j+a];
+						if (tree[j+a+3] > tree[k+a+3]) tree[k+a+3] = tree[j+a+3];
+					}
+				}
+			}
+			start = end;
+		}
+
+		this.tree = tree;
+		this.order = order;
+		this.level_ends = Arrays.copyOf(ends, n_levels);
+	}
+
+	private final void ensureCapacity(final int n) {
+		if (n <= items.length) return;
+		final int len = Math.max(n, items.length * 2);
+		items = Arrays.copyOf(items, len);
+		boxes = Arrays.copyOf(boxes, 6 * len);
+		stack = Arrays.copyOf(stack, len);
+		position = Arrays.copyOf(position, len);
+	}
+
+	private final void addToOverflow(final int slot) {
+		if (n_overflow == overflow.length) overflow = Arrays.copyOf(overflow, n_overflow * 2);
+		overflow[n_overflow++] = slot;
+		if (n_overflow > Math.max(MIN_OVERFLOW, slots.size() / 8)) pack();
+	}
+
+	private final void removeFromOverflow(final int slot) {
+		for (int i=0; i<n_overflow; i++) {
+			if (overflow[i] == slot) {
+				overflow[i] = overflow[--n_overflow];
+				return;
+			}
+		}
+	}
+
+	/** Must hold the lock. @param b holds the box at its start. */
+	private final void add(final ZDisplayable zd, final int[] b, final int stack_index) {
+		ensureCapacity(n_slots + 1);
+		final int s = n_slots++;
+		items[s] = zd;
+		System.arraycopy(b, 0, boxes, 6 * s, 6);
+		stack[s] = stack_index;
+		position[s] = -1;
+		slots.put(zd, s);
+		addToOverflow(s);
+	}
+
+	/** Must hold the lock. The new box is that of @param b at @param i. */
+	private final void move(final int s, final int[] b, final int i) {
+		final int k = 6 * i;
+		System.arraycopy(b, k, boxes, 6 * s, 6);
+		final int p = position[s];
+		if (p < 0) return; // in the overflow list
+		if (level_ends.length > 1) {
+			// Still within the box of its node, and therefore of all its ancestors?
+			final int kn = 6 * (level_ends[0] + p / NODE_SIZE);
+			for (int a=0; a<3; a++) {
+				if (b[k+a] < tree[kn+a] || b[k+a+3] > tree[kn+a+3]) {
+					order[p] = -1;
+					position[s] = -1;
+					addToOverflow(s);
+					return;
+				}
+			}
+		}
+		System.arraycopy(b, k, tree, 6 * p, 6);
+	}
+
+	/** Must hold the lock. The slot is compacted away when packing the tree anew. */
+	private final void remove(final int s) {
+		slots.remove(items[s]);
+		items[s] = null;
+		final int p = position[s];
+		if (p >= 0) order[p] = -1;
+		else removeFromOverflow(s);
+		position[s] = -1;
+	}
+}
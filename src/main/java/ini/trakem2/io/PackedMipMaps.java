@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.io;
+
+import ini.trakem2.persistence.ImageBytes;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/** All mipmap levels of one image in a single file, rather than one file per level.
+ *  Saves inodes and directory lookups: the presence of all levels is known from a single read.
+ *
+ *  Layout, all numbers big-endian:
+ *  <pre>
+ *  header:  4 bytes magic "T2MM", 1 byte version, 3 bytes reserved,
+ *           then for each of {@link #MAX_LEVELS} levels an 8-byte offset and a 4-byte length,
+ *           both zero when the level is absent.
+ *  blocks:  one per level, appended in the order in which levels are saved,
+ *           each as in {@link RawMipMaps}: 4-byte width, 4-byte height, 1 byte number of channels,
+ *           then each channel as width * height bytes.
+ *  </pre>
+ *  A level that is saved again is appended anew, and its offset updated; the old block
+ *  is left as garbage until the file is removed, as happens when mipmaps are regenerated.
+ */
+public final class PackedMipMaps {
+
+	static public final int MAX_LEVELS = 32;
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'M', 'M'};
+	static private final byte VERSION = 1;
+	/** Offset of the table of levels. */
+	static private final int TABLE = 8;
+	/** Each table entry: 8-byte offset and 4-byte length. */
+	static private final int ENTRY = 12;
+	static public final int HEADER_SIZE = TABLE + MAX_LEVELS * ENTRY;
+
+	/** Writes to the same file, and reads of its table, are serialized by a lock chosen from the hash of the path.
+	 *  The number of locks is fixed, so that none has to be created or removed per file. */
+	static private final Object[] locks = new Object[64];
+	static {
+		for (int i=0; i<locks.length; ++i) locks[i] = new Object();
+	}
+
+	static private final Object getLock(final String path) {
+		final int h = path.hashCode() * 0x9E3779B9;
+		return locks[(h >>> 16) & (locks.length - 1)];
+	}
+
+	/** Append the channels @param b as @param level to the container file at @param path, creating it if necessary. */
+	static public final boolean save(final String path, final int level, final byte[][] b, final int width, final int height) {
+		if (level < 0 || level >= MAX_LEVELS) {
+			Utils.log("Can't save mipmap level " + level + " in " + path);
+			return false;
+		}
+		if (!ImageSaver.checkPath(path)) return false;
+		synchronized (getLock(path)) {
+			RandomAccessFile ra = null;
+			try {
+				ra = new RandomAccessFile(new File(path), "rw");
+				if (ra.length() < HEADER_SIZE) {
+					final byte[] header = new byte[HEADER_SIZE];
+					System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+					header[4] = VERSION;
+					ra.seek(0);
+					ra.write(header);
+				} else {
+					checkMagic(ra, path);
+				}
+				// Append the block
+				final long offset = ra.length();
+				final byte[] h = new byte[RawMipMaps.HEADER_SIZE];
+				h[0] = (byte)((width  >> 24) & 0xff);
+				h[1] = (byte)((width  >> 16) & 0xff);
+				h[2] = (byte)((width  >>  8) & 0xff);
+				h[3] = (byte) (width         & 0xff);
+				h[4] = (byte)((height >> 24) & 0xff);
+				h[5] = (byte)((height >> 16) & 0xff);
+				h[6] = (byte)((height >>  8) & 0xff);
+				h[7] = (byte) (height        & 0xff);
+				h[8] = (byte)  b.length             ; // only possible values: 1,2,3,4; it's the type
+				ra.seek(offset);
+				ra.write(h);
+				int length = h.length;
+				for (int i=0; i<b.length; ++i) {
+					ra.write(b[i]);
+					length += b[i].length;
+				}
+				// Only then point the table to it, so that readers never see a partial block.
+				// The entry is written at once, and readers take the same lock to read it.
+				final byte[] e = new byte[ENTRY];
+				for (int i=0; i<8; ++i) e[i] = (byte)((offset >> (56 - 8 * i)) & 0xff);
+				for (int i=0; i<4; ++i) e[8 + i] = (byte)((length >> (24 - 8 * i)) & 0xff);
+				ra.seek(TABLE + level * ENTRY);
+				ra.write(e);
+				return true;
+			} catch (Exception e) {
+				IJError.print(e);
+			} finally {
+				if (null != ra) try { ra.close(); } catch (Exception e) { IJError.print(e); }
+			}
+		}
+		return false;
+	}
+
+	static private final void checkMagic(final RandomAccessFile ra, final String path) throws IOException {
+		final byte[] m = new byte[MAGIC.length];
+		ra.seek(0);
+		ra.readFully(m);
+		for (int i=0; i<m.length; ++i) {
+			if (m[i] != MAGIC[i]) throw new IOException("Not a packed mipmaps file: " + path);
+		}
+	}
+
+	/** Returns a bit mask of the levels present in the container file, or zero if there is no such file. */
+	static public final int levels(final String path) {
+		final File f = new File(path);
+		if (!f.exists()) return 0;
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(f, "r");
+			final byte[] table = new byte[MAX_LEVELS * ENTRY];
+			synchronized (getLock(path)) {
+				if (ra.length() < HEADER_SIZE) return 0;
+				checkMagic(ra, path);
+				ra.seek(TABLE);
+				ra.readFully(table);
+			}
+			int mask = 0;
+			for (int level=0; level<MAX_LEVELS; ++level) {
+				final int k = level * ENTRY + 8; // the length
+				if (0 != (table[k] | table[k+1] | table[k+2] | table[k+3])) mask |= 1 << level;
+			}
+			return mask;
+		} catch (FileNotFoundException fnfe) {
+			Utils.log2("File not found: " + path);
+		} catch (Exception e) {
+			IJError.print(e);
+		} finally {
+			if (null != ra) try { ra.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return 0;
+	}
+
+	/** Returns the channels of @param level, or null if the file or the level doesn't exist. */
+	static public final ImageBytes load(final String path, final int level) {
+		if (level < 0 || level >= MAX_LEVELS) return null;
+		RandomAccessFile ra = null;
+		try {
+			final File f = new File(path);
+			ra = new RandomAccessFile(f, "r");
+			final long offset;
+			final int length;
+			// Blocks are never rewritten in place, so only the table entry has to be read under the lock
+			synchronized (getLock(path)) {
+				if (ra.length() < HEADER_SIZE) return null;
+				checkMagic(ra, path);
+				ra.seek(TABLE + level * ENTRY);
+				offset = ra.readLong();
+				length = ra.readInt();
+			}
+			if (0 == length) return null;
+			ra.seek(offset);
+			final int width = ra.readInt();
+			final int height = ra.readInt();
+			final int nCh = ra.readByte();
+			final int chLength = (length - RawMipMaps.HEADER_SIZE) / nCh;
+			final byte[][] ch = CachingThread.getOrCreateByteArray(nCh, chLength);
+			for (int i=0; i<nCh; ++i) {
+				ra.readFully(ch[i]);
+			}
+			return new ImageBytes(ch, width, height);
+		} catch (FileNotFoundException fnfe) {
+			Utils.log2("File not found: " + path);
+		} catch (Exception e) {
+			IJError.print(e);
+		} finally {
+			if (null != ra) try { ra.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	static public final BufferedImage read(final String path, final int level) {
+		return RawMipMaps.toImage(load(path, level));
+	}
+
+	/** Remove the container file, if it exists. */
+	static public final boolean remove(final String path) {
+		synchronized (getLock(path)) {
+			try {
+				final File f = new File(path);
+				return !f.exists() || f.delete();
+			} catch (Exception e) {
+				IJError.print(e);
+				return false;
+			}
+		}
+	}
+}
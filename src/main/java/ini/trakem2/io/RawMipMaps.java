@@ -32,6 +32,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public final class RawMipMaps {
 
@@ -42,7 +44,7 @@ public final class RawMipMaps {
 	                         RGBA = 4;
 	/** Two 4-byte ints, for width and height, and one byte for the type. */
 	static public final int HEADER_SIZE = 9;
-	
+
 	static public final boolean save(final String path, final byte[][] b, final int width, final int height) {
 		if (!ImageSaver.checkPath(path)) return false;
 		RandomAccessFile ra = null;
@@ -116,7 +118,17 @@ public final class RawMipMaps {
 
 	static public final BufferedImage read(final String path) {
 		try {
-			final ImageBytes ib = load(path);
+			return toImage(load(path));
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
+	/** Create an image from the channels of @param ib, whose arrays are then stored for reuse
+	 *  unless they end up as the pixels of the image. Returns null if @param ib is null. */
+	static public final BufferedImage toImage(final ImageBytes ib) {
+		try {
 			if (null == ib) return null;
 			final byte[][] ch = ib.c;
 			// Channel length also specifies the type
@@ -146,6 +158,100 @@ public final class RawMipMaps {
 		return null;
 	}
 	
+	/** Like {@link #read(String)}, but reads all channels with one {@link FileChannel#read(ByteBuffer)}
+	 *  into a single heap array and decodes them straight into the pixel array of the returned image,
+	 *  without intermediate byte[] channels. The file is not memory-mapped, so that it can be deleted
+	 *  or overwritten as soon as this method returns. */
+	static public final BufferedImage readDirect(final String path) {
+		return readDirect(path, 0);
+	}
+
+	static private final BufferedImage readDirect(final String path, final int retry) {
+		RandomAccessFile ra = null;
+		try {
+			final File f = new File(path);
+			ra = new RandomAccessFile(f, "r");
+			final FileChannel fc = ra.getChannel();
+			final long length = fc.size();
+			// Header: big-endian, as written by save
+			final ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+			read(fc, h, 0);
+			final int width = h.getInt(0);
+			final int height = h.getInt(4);
+			final int nCh = h.get(8);
+			final int n = width * height;
+			if (nCh < GREY || nCh > RGBA || n <= 0 || HEADER_SIZE + (long)nCh * n > length || (long)nCh * n > Integer.MAX_VALUE) {
+				throw new IOException("Incomplete or invalid file: " + path);
+			}
+			if (GREY == nCh) {
+				final byte[] pix = CachingThread.getOrCreateByteArray(1, n)[0];
+				read(fc, ByteBuffer.wrap(pix, 0, n), HEADER_SIZE);
+				return ImageSaver.createGrayImage(pix, width, height);
+			}
+			final byte[] b = CachingThread.getOrCreateByteArray(1, nCh * n)[0];
+			try {
+				read(fc, ByteBuffer.wrap(b, 0, nCh * n), HEADER_SIZE);
+				switch (nCh) {
+					case GREY_ALPHA: {
+						// Same as P.blendPre(grey, alpha)
+						final int[] pix = CachingThread.getOrCreateIntArray(n);
+						for (int i=0, ai=n; i<n; ++i, ++ai) {
+							final int a = b[ai] & 0xff;
+							final double K = a / 255.0;
+							final int c = (int)((b[i] & 0xff) * K + 0.5);
+							pix[i] = (a << 24) | (c << 16) | (c << 8) | c;
+						}
+						return ImageSaver.createARGBImagePre(pix, width, height);
+					}
+					case RGB: {
+						// Same as P.blend(r, g, b)
+						final int[] pix = CachingThread.getOrCreateIntArray(n);
+						for (int i=0, gi=n, bi=2*n; i<n; ++i, ++gi, ++bi) {
+							pix[i] = ((b[i] & 0xff) << 16) | ((b[gi] & 0xff) << 8) | (b[bi] & 0xff);
+						}
+						return ImageSaver.createRGBImage(pix, width, height);
+					}
+					case RGBA: {
+						// Same as P.blendPre(r, g, b, a)
+						final int[] pix = CachingThread.getOrCreateIntArray(n);
+						for (int i=0, gi=n, bi=2*n, ai=3*n; i<n; ++i, ++gi, ++bi, ++ai) {
+							final int a = b[ai] & 0xff;
+							final double K = a / 255.0;
+							pix[i] = (a << 24)
+							         | (((int)((b[i] & 0xff) * K + 0.5)) << 16)
+							         | (((int)((b[gi] & 0xff) * K + 0.5)) <<  8)
+							         |  ((int)((b[bi] & 0xff) * K + 0.5));
+						}
+						return ImageSaver.createARGBImagePre(pix, width, height);
+					}
+				}
+			} finally {
+				CachingThread.storeForReuse(b);
+			}
+		} catch (FileNotFoundException fnfe) {
+			Utils.log2("File not found: " + path);
+		} catch (Exception e) {
+			// The file may exist but not yet be fully written: wait 100 ms and retry, as in load
+			if (retry < 2) {
+				try { Thread.sleep(100); } catch (InterruptedException ie) {}
+				return readDirect(path, retry + 1);
+			}
+			else IJError.print(e);
+		} finally {
+			if (null != ra) try { ra.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	/** Fill the remaining space of @param b with the bytes of @param fc starting at @param position. */
+	static private final void read(final FileChannel fc, final ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			final int r = fc.read(b, position);
+			if (-1 == r) throw new IOException("Unexpected end of file");
+			position += r;
+		}
+	}
+
 	static private final void read(final RandomAccessFile ra, final byte[] b) throws IOException {
 		int s = 0;
 		while (s < b.length) {
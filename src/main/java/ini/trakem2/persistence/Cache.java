@@ -30,20 +30,18 @@ import ini.trakem2.utils.Utils;
 
 import java.awt.Image;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
 /** Access is not synchronized, that is your duty.
+ *  See {@link StripedCache} for a thread-safe cache made of several of these.
  * 
- *  The current setup depends on calls to removeAndFlushSome to clean up empty slots;
- *  otherwise these slots are never cleaned up to avoid O(n) overhead (worst case)
- *  when removing a Pyramid for a given id, or O(1) cost of checking whether the first interval
- *  is empty and removing it. Granted, the latter could be done in all calls to {@link #append},
- *  but in the current setup this overhead is just not necessary.
+ *  The order in which Pyramid instances are thrown out to make room is decided
+ *  by an {@link EvictionPolicy}, least-recently-used by default.
  *  
  *  This Cache self-regulates the size to stay always at or below max_bytes.
  *  If the smallest image added is larger than max_bytes, then that image will be the only
@@ -58,15 +56,31 @@ import java.util.TreeMap;
  *  then that image is flushed.
  */
 public class Cache {
+
+	/** An image evicted while a spill is set. It is neither copied into the spill nor flushed here,
+	 *  so that {@link StripedCache} can do both once the lock of this Cache is released. */
+	static final class Evicted {
+		final long id;
+		final int level;
+		final Image image;
+		/** The value of {@link Cache#spill_epoch} at eviction. */
+		final long epoch;
+		Evicted(final long id, final int level, final Image image, final long epoch) {
+			this.id = id;
+			this.level = level;
+			this.image = image;
+			this.epoch = epoch;
+		}
+	}
 	
 	private final class Pyramid {
 		private final Image[] images;
-		private TypedHashMap<Long,Pyramid> interval = null;
 		private final long id;
 		//private ImagePlus imp;
 		private SoftReference<ImagePlus> srimp;
 		private long impSize;
 		private int n_images; // counts non-null instances in images array
+		private long bytes = 0; // sum of the size of all images and the ImagePlus
 
 		/** ASSUMES that @param image is not null. */
 		Pyramid(final long id, final Image image, final int level) {
@@ -74,6 +88,7 @@ public class Cache {
 			this.images = new Image[maxLevel(image, level)];
 			this.images[level] = image;
 			this.n_images = 1;
+			this.bytes = Cache.size(image);
 		}
 		
 		/** *@param maxdim is the max(width, height) of the Patch that wraps @param imp,
@@ -83,12 +98,38 @@ public class Cache {
 			setImagePlus(imp);
 			this.images = new Image[maxLevel(maxdim)];
 			this.n_images = 0;
+			this.bytes = this.impSize;
+		}
+
+		/** Set the @param level to null without flushing its image, for the caller to flush later.
+		 *  Returns the number of bytes freed, as a negative number. */
+		final long detach(final int level) {
+			if (null == images[level]) return 0;
+			n_images--;
+			final long b = -Cache.size(images[level]);
+			images[level] = null;
+			this.bytes += b;
+			return b;
+		}
+
+		/** Returns number of bytes used/free (positive/negative), and keeps track of them. */
+		final long replace(final Image img, final int level) {
+			final long b = replace2(img, level);
+			this.bytes += b;
+			return b;
+		}
+
+		/** Returns the number of bytes used/free (positive/negative), and keeps track of them. */
+		final long replace(final ImagePlus impNew) {
+			final long b = replace2(impNew);
+			this.bytes += b;
+			return b;
 		}
 
 		/** Accepts a null @param img.
 		 *  Returns number of bytes used/free (positive/negative)
 		 *  If it was null here and img is not null, returns zero: no bytes to free. */
-		final long replace(final Image img, final int level) {
+		final long replace2(final Image img, final int level) {
 			if (null == images[level]) {
 				if (null == img) return 0; // A: both null
 				// B: only old is null
@@ -115,7 +156,7 @@ public class Cache {
 		}
 
 		/** Returns the number of bytes used/free (positive/negative). */
-		final long replace(final ImagePlus impNew) {
+		final long replace2(final ImagePlus impNew) {
 			final ImagePlus pyrimp = getImagePlus();
 			if (null == impNew) {
 				if (null == pyrimp) return 0; // A: both null
@@ -235,15 +276,120 @@ public class Cache {
 	///////////////
 	
 	private final TypedHashMap<Long,Pyramid> pyramids = new TypedHashMap<Long,Pyramid>();
-	private final LinkedList<TypedHashMap<Long,Pyramid>> intervals = new LinkedList<TypedHashMap<Long,Pyramid>>();
+	private EvictionPolicy policy = new EvictionPolicy.LRUPolicy();
+	private OffHeapMipMapStore spill = null;
+	/** Images evicted for the spill, not yet spilled. */
+	private ArrayList<Evicted> evicted = null;
+	/** Incremented whenever images are removed from the spill explicitly, so that an evicted image
+	 *  spilled later can be told apart as stale. */
+	private long spill_epoch = 0;
+	/** Number of pins by pyramid id: pinned pyramids are not evicted. */
+	private final HashMap<Long,Integer> pins = new HashMap<Long,Integer>();
 	private int count = 0; // if the cache is empty, this count must be 0;
 						   // if not empty, then it counts the number of images stored (not of pyramids)
 	private long bytes = 0,
 				 max_bytes = 0; // negative values are ok
+	/** Counters, for comparing eviction policies. */
+	private long hits = 0,
+				 misses = 0,
+				 evictions = 0; // number of images thrown out to make room
 	
 	public Cache(final long max_bytes) {
 		this.max_bytes = max_bytes;
 	}
+
+	public Cache(final long max_bytes, final EvictionPolicy policy) {
+		this.max_bytes = max_bytes;
+		this.policy = policy;
+	}
+
+	/** Replace the current policy with @param policy, which is told of all current pyramids in no particular order. */
+	public void setEvictionPolicy(final EvictionPolicy policy) {
+		if (null == policy || policy == this.policy) return;
+		policy.clear();
+		for (final Pyramid p : pyramids.values()) {
+			policy.inserted(p.id, p.bytes);
+		}
+		this.policy.clear();
+		this.policy = policy;
+	}
+
+	public EvictionPolicy getEvictionPolicy() { return policy; }
+
+	/** Where evicted images are to be copied to, if anywhere. Images removed explicitly,
+	 *  rather than evicted, are also removed from @param spill.
+	 *  Evicted images are only collected: see {@link #takeEvicted()}. */
+	public void setSpill(final OffHeapMipMapStore spill) {
+		this.spill = spill;
+	}
+
+	/** Returns the images evicted for the spill since the last call, or null if none.
+	 *  The caller must copy them into the spill and then flush them. */
+	final ArrayList<Evicted> takeEvicted() {
+		final ArrayList<Evicted> e = evicted;
+		evicted = null;
+		return e;
+	}
+
+	/** Whether no images were removed from the spill explicitly since @param e was evicted. */
+	final boolean isCurrent(final Evicted e) {
+		return e.epoch == spill_epoch;
+	}
+
+	/** Keep the pyramid of @param id from being evicted until {@link #unpin(long)} is called as many times,
+	 *  but only if it holds @param image, as when the image was just read for someone to paint it.
+	 *  Explicit removals still remove it. Returns whether it was pinned. */
+	public final boolean pin(final long id, final Image image) {
+		final Pyramid p = pyramids.getValue(id);
+		if (null == p) return false;
+		for (final Image im : p.images) {
+			if (im == image) {
+				final Integer n = pins.get(id);
+				pins.put(id, null == n ? 1 : n + 1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public final void unpin(final long id) {
+		final Integer n = pins.get(id);
+		if (null == n) return;
+		if (1 == n) pins.remove(id);
+		else pins.put(id, n - 1);
+	}
+
+	/** Whether the victim @param id is pinned, in which case it is moved out of the way
+	 *  unless more than all pyramids were @param skipped already. */
+	private final boolean skip(final long id, final int skipped) {
+		if (!pins.containsKey(id) || skipped > pyramids.size()) {
+			policy.evicting(id);
+			return false;
+		}
+		policy.skipped(id);
+		return true;
+	}
+
+	/** Returns the freed bytes, as a negative number. */
+	private final long evict(final Pyramid p, final int level) {
+		if (null == spill) return p.replace(null, level);
+		if (null == evicted) evicted = new ArrayList<Evicted>();
+		evicted.add(new Evicted(p.id, level, p.images[level], spill_epoch));
+		return p.detach(level);
+	}
+
+	/** Number of requests for an image that was present. */
+	public long getHits() { return hits; }
+
+	/** Number of requests for an image that was absent. */
+	public long getMisses() { return misses; }
+
+	/** Number of images thrown out to make room. */
+	public long getEvictions() { return evictions; }
+
+	public void resetCounters() {
+		hits = misses = evictions = 0;
+	}
 	
 	private final void addBytes(final long b) {
 		this.bytes += b;
@@ -284,8 +430,11 @@ public class Cache {
 
 	public final Image get(final long id, final int level) {
 		final Pyramid p = pyramids.getValue(id);
-		if (null == p) return null;
-		if (null == p || null == p.images[level]) return null;
+		if (null == p || null == p.images[level]) {
+			misses++;
+			return null;
+		}
+		hits++;
 		
 		update(p);
 		
@@ -299,9 +448,12 @@ public class Cache {
 	
 	public final ImagePlus get(final long id) {
 		final Pyramid p = pyramids.getValue(id);
-		if (null == p) return null;
-		final ImagePlus pyrimp = p.getImagePlus();
-		if (null == pyrimp) return null;
+		final ImagePlus pyrimp = null == p ? null : p.getImagePlus();
+		if (null == pyrimp) {
+			misses++;
+			return null;
+		}
+		hits++;
 		
 		update(p);
 		
@@ -321,71 +473,63 @@ public class Cache {
 
 	public final MipMapImage getClosestAbove(final long id, final int level) {
 		final Pyramid p = pyramids.getValue(id);
-		if (null == p) return null;
+		if (null == p) {
+			misses++;
+			return null;
+		}
 		for (int i=Math.min(level, p.images.length-1); i>-1; i--) {
 			if (null == p.images[i]) continue;
+			hits++;
 			update(p);
 			final double scale = Math.pow( 2.0, i );
 			return new MipMapImage( p.images[ i ], scale, scale );
 		}
+		misses++;
 		return null;
 	}
 
 	// Below or equal
 	public final MipMapImage getClosestBelow(final long id, final int level) {
 		final Pyramid p = pyramids.getValue(id);
-		if (null == p) return null;
+		if (null == p) {
+			misses++;
+			return null;
+		}
 		for (int i=level; i<p.images.length; i++) {
 			if (null == p.images[i]) continue;
+			hits++;
 			update(p);
 			final double scale = Math.pow( 2.0, i );
 			return new MipMapImage( p.images[ i ], scale, scale );
 		}
+		misses++;
 		return null;
 	}
 
-	static private final int MAX_INTERVAL_SIZE = 20;
-	private TypedHashMap<Long,Pyramid> last_interval = new TypedHashMap<Long,Pyramid>(MAX_INTERVAL_SIZE);
-	{
-		intervals.add(last_interval);
-	}
-	
 	private final void reset() {
 		pyramids.clear();
-		intervals.clear();
+		policy.clear();
 		count = 0;
 		bytes = 0;
-		last_interval = new TypedHashMap<Long, Pyramid>(MAX_INTERVAL_SIZE);
-		intervals.add(last_interval);
 		imps.clear();
 	}
 	
 	private final void update(final Pyramid p) {
-		// Last-access -based priority queue:
-		// Remove from current interval and append to last interval
-		if (last_interval != p.interval) {
-			p.interval.removeEntry(p.id);
-			append(p);
-		}
+		policy.accessed(p.id);
 	}
 
-	/** Append the key to the last interval, creating a new interval if the last is full.
-	 *  Then set that interval as the key's interval. */
+	/** Tell the policy of a new Pyramid. */
 	private final void append(final Pyramid p) {
-		// May have been removed:
-		if (0 == intervals.size()) intervals.add(last_interval);
-		// Push an new interval if the last one is full:
-		if (last_interval.size() >= MAX_INTERVAL_SIZE) {
-			last_interval = new TypedHashMap<Long,Pyramid>(MAX_INTERVAL_SIZE);
-			intervals.add(last_interval);
-		}
+		policy.inserted(p.id, p.bytes);
+	}
 
-		last_interval.put(p.id, p);
-		// Reflection: tell the Pyramid instance where it is
-		p.interval = last_interval;
+	/** Forget the Pyramid, which must have been emptied already. */
+	private final void drop(final Pyramid p) {
+		pyramids.removeEntry(p.id);
+		policy.removed(p.id);
 	}
 
-	/** Makes up space to fit b, and also drops empty intervals from the head. */
+	/** Makes up space to fit b. */
 	private final void fit(final long b) {
 		addBytes(b);
 		if (bytes > max_bytes) {
@@ -393,7 +537,7 @@ public class Cache {
 		}
 	}
 	
-	// If already there, move to latest interval
+	// If already there, tell the policy it was accessed
 	// If the image is different, flush the old image
 	public final void put(final long id, final Image image, final int level) {
 		Pyramid p = pyramids.getValue(id);
@@ -406,7 +550,9 @@ public class Cache {
 		} else {
 			update(p);
 			if (null == p.images[level]) count++;
-			fit(p.replace(image, level));
+			final long b = p.replace(image, level);
+			policy.resized(p.id, p.bytes);
+			fit(b);
 		}
 	}
 	
@@ -467,25 +613,28 @@ public class Cache {
 					u2.addUser(id);
 				}
 			}
-			fit(p.replace(imp));
+			final long b = p.replace(imp);
+			policy.resized(p.id, p.bytes);
+			fit(b);
 		}
 	}
 
 
-	// WARNING: an empty interval may be left behind. Will be cleaned up by removeAndFlushSome.
 	/** Remove one mipmap level, if there. */
 	public final Image remove(final long id, final int level) {
 		final Pyramid p = pyramids.getValue(id);
 		if (null == p) return null;
 		final Image im = p.images[level];
+		if (null != spill) { spill.remove(id, level); spill_epoch++; }
 		if (null != im) {
 			addBytes(p.replace(null, level));
 			count--;
 		}
 		// If at least one level is still not null, keep the pyramid; otherwise drop it
 		if (0 == p.n_images && null == p.getImagePlus()) {
-			p.interval.removeEntry(id);
-			pyramids.removeEntry(id);
+			drop(p);
+		} else if (null != im) {
+			policy.resized(id, p.bytes);
 		}
 		return im;
 	}
@@ -514,14 +663,16 @@ public class Cache {
 			count--;
 			//
 			if (0 == p.n_images) {
-				p.interval.removeEntry(p.id);
-				pyramids.removeEntry(p.id);
+				drop(p);
+			} else {
+				policy.resized(p.id, p.bytes);
 			}
 		}
 		return imp;
 	}
 	
 	public final void remove(final long id) {
+		if (null != spill) { spill.remove(id); spill_epoch++; }
 		final Pyramid p = pyramids.removeEntry(id);
 		if (null == p) return;
 		if (null != p.getImagePlus()) {
@@ -532,11 +683,12 @@ public class Cache {
 			if (null == p.images[i]) continue;
 			addBytes(p.replace(null, i));
 		}
-		p.interval.removeEntry(id);
+		policy.removed(id);
 	}
 	
 	/** Flush all mipmaps, and forget all mipmaps and imps. */
 	public final void removeAndFlushAll() {
+		if (null != spill) { spill.clear(); spill_epoch++; }
 		for (final Pyramid p : pyramids.values()) {
 			p.replace(null); // the imp may need cleanup
 			for (int i=0; i<p.images.length; i++) {
@@ -547,9 +699,9 @@ public class Cache {
 		reset();
 	}
 
-	// WARNING: an empty interval may be left behind. Will be cleaned up by removeAndFlushSome.
 	/** Does not alter the ImagePlus. */
 	public final void removeAndFlushPyramid(final long id) {
+		if (null != spill) { spill.remove(id); spill_epoch++; }
 		final Pyramid p = pyramids.getValue(id);
 		if (null == p) return;
 		count -= p.n_images;
@@ -558,113 +710,107 @@ public class Cache {
 			addBytes(p.replace(null, i));
 		}
 		if (null == p.getImagePlus()) {
-			pyramids.removeEntry(id);
-			p.interval.removeEntry(id);
+			drop(p);
+		} else {
+			policy.resized(id, p.bytes);
 		}
 	}
 	
 	/** Returns the number of released bytes. */
 	public final long removeAndFlushSome(final long min_bytes) {
 		long size = 0;
-		while (intervals.size() > 0) {
-			final TypedHashMap<Long,Pyramid> interval = intervals.getFirst();
-			for (final Iterator<Pyramid> it = interval.values().iterator(); it.hasNext(); ) {
-				final Pyramid p = it.next();
-				final ImagePlus pyrimp = p.getImagePlus();
-				if (null != pyrimp) {
-					final String path = getPath(pyrimp);
-					final ImagePlusUsers u = imps.getValue(path);
-					if (null == path || null == u || 1 == u.users.size()) {
-						//
-						imps.removeEntry(path);
-						//
-						final long s = p.replace(null); // the imp may need cleanup
-						size -= s;
-						addBytes(s);
-						count--;
-						if (size >= min_bytes) {
-							if (0 == p.n_images) {
-								pyramids.removeEntry(p.id);
-								it.remove();
-								if (interval.isEmpty()) intervals.removeFirst();
-							}
-							return size;
-						}
-					}
-				}
-				for (int i=0; i<p.images.length && p.n_images > 0; i++) {
-					if (null == p.images[i]) continue;
-					final long s = p.replace(null, i);
+		int skipped = 0;
+		while (true) {
+			final long id = policy.victim();
+			if (Long.MIN_VALUE == id) break;
+			final Pyramid p = pyramids.getValue(id);
+			if (null == p) {
+				policy.removed(id);
+				continue;
+			}
+			if (skip(id, skipped++)) continue;
+			final ImagePlus pyrimp = p.getImagePlus();
+			if (null != pyrimp) {
+				final String path = getPath(pyrimp);
+				final ImagePlusUsers u = imps.getValue(path);
+				if (null == path || null == u || 1 == u.users.size()) {
+					//
+					imps.removeEntry(path);
+					//
+					final long s = p.replace(null); // the imp may need cleanup
 					size -= s;
 					addBytes(s);
 					count--;
+					evictions++;
 					if (size >= min_bytes) {
-						if (0 == p.n_images) {
-							pyramids.removeEntry(p.id);
-							it.remove();
-							if (interval.isEmpty()) intervals.removeFirst();
-						}
+						if (0 == p.n_images) drop(p);
 						return size;
 					}
 				}
-				pyramids.removeEntry(p.id);
-				it.remove(); // from the interval
 			}
-			intervals.removeFirst();
+			for (int i=0; i<p.images.length && p.n_images > 0; i++) {
+				if (null == p.images[i]) continue;
+				final long s = evict(p, i);
+				size -= s;
+				addBytes(s);
+				count--;
+				evictions++;
+				if (size >= min_bytes) {
+					if (0 == p.n_images) drop(p);
+					return size;
+				}
+			}
+			drop(p);
 		}
 		return size;
 	}
 
 	public final long removeAndFlushSome(int n) {
 		long size = 0;
-		while (intervals.size() > 0) {
-			final TypedHashMap<Long,Pyramid> interval = intervals.getFirst();
-			for (final Iterator<Pyramid> it = interval.values().iterator(); it.hasNext(); ) {
-				final Pyramid p = it.next();
-				final ImagePlus pyrimp = p.getImagePlus();
-				if (null != pyrimp) {
-					final String path = getPath(pyrimp);
-					final ImagePlusUsers u = imps.getValue(path);
-					if (null == path || null == u || 1 == u.users.size()) {
-						//
-						imps.removeEntry(path);
-						//
-						final long s = p.replace(null);
-						size -= s;
-						addBytes(s);
-						p.replace(null); // the imp may need cleanup
-						n--;
-						count--;
-						if (0 == n) {
-							if (0 == p.n_images) {
-								pyramids.removeEntry(p.id);
-								it.remove();
-								if (interval.isEmpty()) intervals.removeFirst();
-							}
-							return size;
-						}
-					}
-				}
-				for (int i=0; i<p.images.length; i++) {
-					if (null == p.images[i]) continue;
-					final long s = p.replace(null, i);
+		int skipped = 0;
+		while (true) {
+			final long id = policy.victim();
+			if (Long.MIN_VALUE == id) break;
+			final Pyramid p = pyramids.getValue(id);
+			if (null == p) {
+				policy.removed(id);
+				continue;
+			}
+			if (skip(id, skipped++)) continue;
+			final ImagePlus pyrimp = p.getImagePlus();
+			if (null != pyrimp) {
+				final String path = getPath(pyrimp);
+				final ImagePlusUsers u = imps.getValue(path);
+				if (null == path || null == u || 1 == u.users.size()) {
+					//
+					imps.removeEntry(path);
+					//
+					final long s = p.replace(null); // the imp may need cleanup
 					size -= s;
 					addBytes(s);
 					n--;
 					count--;
+					evictions++;
 					if (0 == n) {
-						if (0 == p.n_images) {
-							pyramids.removeEntry(p.id);
-							it.remove();
-							if (interval.isEmpty()) intervals.removeFirst();
-						}
+						if (0 == p.n_images) drop(p);
 						return size;
 					}
 				}
-				pyramids.removeEntry(p.id);
-				it.remove(); // from the interval
 			}
-			intervals.removeFirst();
+			for (int i=0; i<p.images.length; i++) {
+				if (null == p.images[i]) continue;
+				final long s = evict(p, i);
+				size -= s;
+				addBytes(s);
+				n--;
+				count--;
+				evictions++;
+				if (0 == n) {
+					if (0 == p.n_images) drop(p);
+					return size;
+				}
+			}
+			drop(p);
 		}
 		return size;
 	}
@@ -681,17 +827,7 @@ public class Cache {
 			Utils.log2("p id:" + e.getKey() + ";  images: " + p.n_images + " / " + p.images.length + ";  imp: " + e.getValue().getImagePlus());
 		}
 		Utils.log2("----");
-		int i = 0;
-		for (TypedHashMap<Long,Pyramid> m : intervals) {
-			Utils.log2("interval " + (++i));
-			for (Map.Entry<Long,Pyramid> e : new TreeMap<Long,Pyramid>(m).entrySet()) {
-				Pyramid p = e.getValue();
-				Utils.log2("p id:" + e.getKey() + ";  images: " + p.n_images + " / " + p.images.length + "; imp: " + e.getValue().getImagePlus());
-				int[] levels = new int[p.images.length];
-				for (int k=0; k<levels.length; k++) levels[k] = null == p.images[k] ? 0 : 1;
-				Utils.log2("      levels: " + Utils.toString(levels));
-			}
-		}
+		Utils.log2("eviction policy: " + policy.getName());
 		Utils.log2("----");
 		for (Map.Entry<String,ImagePlusUsers> e : imps.entrySet()) {
 			ImagePlusUsers u = e.getValue();
@@ -701,15 +837,8 @@ public class Cache {
 		Utils.log2("imps: " + imps.size());
 		Utils.log2("----");
 		// Analytics
-		Utils.log2("count is: " + count + ", size is: " + bytes + " / " + max_bytes + ", intervals.size = " + intervals.size() + ", pyr.size = " + pyramids.size());
-		TypedHashMap<Integer,Integer> s = new TypedHashMap<Integer,Integer>();
-		for (TypedHashMap<Long,Pyramid> m : intervals) {
-			int l = m.size();
-			Integer in = s.getValue(l);
-			if (null == in) s.put(l, 1);
-			else s.put(l, in.intValue() + 1);
-		}
-		Utils.log2("interval size distribution: ", s);
+		Utils.log2("count is: " + count + ", size is: " + bytes + " / " + max_bytes + ", pyr.size = " + pyramids.size());
+		Utils.log2("hits: " + hits + ", misses: " + misses + ", evictions: " + evictions);
 	}
 	
 	public final long seqFindId(final ImagePlus imp) {
@@ -0,0 +1,567 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Display;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.tree.ProjectThing;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** An append-only journal of the changes made to a project since its XML file was last saved,
+ *  so that autosaving doesn't have to rewrite the whole XML file. The journal is saved next to
+ *  the XML file, with the {@link #EXTENSION} appended to its name. Saving the project
+ *  compacts the journal into the XML file, and closing the project discards it;
+ *  a journal that remains when opening a project is therefore the work done before a crash,
+ *  and is replayed onto the XML.
+ *
+ *  Only changes to {@link Displayable} objects in a Layer or as {@link ZDisplayable} in a {@link LayerSet}
+ *  are journaled, each as its whole XML element, along with the {@link ProjectThing} added to the project tree
+ *  for each new object. The state of the open {@link Display} windows is not journaled, and waits for the next save.
+ *  Any other change, such as to the layers, to existing nodes of the project tree, or to the order of objects
+ *  within a layer, needs a full save, which is then done instead.
+ *
+ *  Each autosave appends one entry, which applies only to the XML file of the recorded length
+ *  and modification time:
+ *  <pre>
+ *  &lt;t2_journal_entry base_length="..." base_modified="..."&gt;
+ *   &lt;t2_change oid="..." parent="..."&gt; the element, as in the XML file &lt;/t2_change&gt;
+ *   &lt;t2_thing oid="..." parent="..."&gt; the project tree node, as in the XML file &lt;/t2_thing&gt;
+ *   &lt;t2_remove oid="..." /&gt;
+ *  &lt;/t2_journal_entry&gt;
+ *  </pre>
+ *  An entry that was cut short by a crash is ignored.
+ */
+public final class ChangeJournal {
+
+	static public final String EXTENSION = ".journal";
+
+	/** Keys of {@link DBObject#updateInDatabase(String)} that change where an object is, rather than what it is. */
+	static private final Set<String> STRUCTURAL_KEYS = new HashSet<String>();
+	static {
+		STRUCTURAL_KEYS.add("stack_index");
+		STRUCTURAL_KEYS.add("layer_id");
+		STRUCTURAL_KEYS.add("layer_set_id");
+		STRUCTURAL_KEYS.add("parent_id");
+	}
+
+	private final LinkedHashMap<Long,Displayable> changed = new LinkedHashMap<Long,Displayable>();
+	private final LinkedHashSet<Long> removed = new LinkedHashSet<Long>();
+	/** The project tree nodes of new objects, to be journaled. */
+	private final LinkedHashMap<Long,ProjectThing> things = new LinkedHashMap<Long,ProjectThing>();
+	/** Ids of the project tree nodes added since the last save, and therefore not in the XML file. */
+	private final HashSet<Long> new_things = new HashSet<Long>();
+	/** Whether there are changes that the journal can't express. */
+	private boolean structural = false;
+	/** Changes are recorded only once the project is open. */
+	private boolean active = false;
+
+	static public final String getPath(final String xml_path) {
+		return xml_path + EXTENSION;
+	}
+
+	static public final boolean exists(final String xml_path) {
+		return null != xml_path && new File(getPath(xml_path)).exists();
+	}
+
+	/** Remove the journal of the XML file at @param xml_path, if any. */
+	static public final void remove(final String xml_path) {
+		if (null == xml_path) return;
+		final File f = new File(getPath(xml_path));
+		if (f.exists() && !f.delete()) Utils.log("WARNING: could not delete the change journal at " + f);
+	}
+
+	/** Start recording changes. */
+	synchronized public void activate() {
+		active = true;
+	}
+
+	synchronized public boolean isActive() {
+		return active;
+	}
+
+	/** Forget the changes recorded so far, as when they are all in the XML file or in the journal file. */
+	synchronized public void clear() {
+		changed.clear();
+		removed.clear();
+		things.clear();
+		new_things.clear();
+		structural = false;
+	}
+
+	/** Record that @param ob was added or changed; @param key is the changed field, or null. */
+	synchronized public void changed(final DBObject ob, final String key) {
+		if (!active || ob instanceof Display) return;
+		if (ob instanceof ProjectThing) {
+			thingChanged((ProjectThing)ob, null == key);
+			return;
+		}
+		if (ob instanceof Displayable && !(ob instanceof LayerSet) && (null == key || !STRUCTURAL_KEYS.contains(key))) {
+			final Long id = ob.getId();
+			removed.remove(id);
+			changed.put(id, (Displayable)ob);
+		} else {
+			structural = true;
+		}
+	}
+
+	synchronized public void changed(final DBObject ob, final Set<String> keys) {
+		if (!active || ob instanceof Display) return;
+		if (ob instanceof ProjectThing) {
+			thingChanged((ProjectThing)ob, false);
+			return;
+		}
+		for (final String key : keys) {
+			if (STRUCTURAL_KEYS.contains(key)) {
+				structural = true;
+				return;
+			}
+		}
+		changed(ob, (String)null);
+	}
+
+	synchronized public void removed(final DBObject ob) {
+		if (!active || ob instanceof Display) return;
+		final Long id = ob.getId();
+		if ((ob instanceof Displayable && !(ob instanceof LayerSet))
+		 || (ob instanceof ProjectThing && new_things.remove(id))) {
+			changed.remove(id);
+			things.remove(id);
+			removed.add(id);
+		} else {
+			structural = true;
+		}
+	}
+
+	/** A node of the project tree that is new, or @param added, and holds a Displayable can be journaled
+	 *  whatever its changes, for it isn't in the XML file yet. */
+	private void thingChanged(final ProjectThing pt, final boolean added) {
+		final Long id = pt.getId();
+		final Object ob = pt.getObject();
+		if (new_things.contains(id) || (added && ob instanceof Displayable && !(ob instanceof LayerSet))) {
+			new_things.add(id);
+			removed.remove(id);
+			things.put(id, pt);
+		} else {
+			structural = true;
+		}
+	}
+
+	/** Append the recorded changes to the journal of the XML file at @param xml_path.
+	 *  Returns false, writing nothing, if the changes need a full save of the XML file instead. */
+	public boolean append(final String xml_path) {
+		final ArrayList<Displayable> ds;
+		final ArrayList<Long> rs;
+		final LinkedHashSet<ProjectThing> ts = new LinkedHashSet<ProjectThing>();
+		synchronized (this) {
+			if (!active || structural) return false;
+			if (changed.isEmpty() && removed.isEmpty() && things.isEmpty()) return true;
+			ds = new ArrayList<Displayable>(changed.values());
+			rs = new ArrayList<Long>(removed);
+			for (ProjectThing pt : things.values()) {
+				// A node within a new node is journaled along with it
+				while (pt.getParent() instanceof ProjectThing && new_things.contains(((ProjectThing)pt.getParent()).getId())) {
+					pt = (ProjectThing)pt.getParent();
+				}
+				ts.add(pt);
+			}
+			changed.clear();
+			removed.clear();
+			things.clear();
+		}
+		final File fxml = new File(xml_path);
+		if (!fxml.exists()) {
+			restore(ds, rs, ts);
+			return false;
+		}
+		final XMLOptions options = new XMLOptions();
+		options.export_images = false;
+		options.patches_dir = null;
+		options.include_coordinate_transform = true;
+		Writer writer = null;
+		try {
+			final FileOutputStream fos = new FileOutputStream(getPath(xml_path), true);
+			writer = new OutputStreamWriter(new BufferedOutputStream(fos), "8859_1");
+			writer.write("<t2_journal_entry base_length=\"" + fxml.length() + "\" base_modified=\"" + fxml.lastModified() + "\">\n");
+			for (final Displayable d : ds) {
+				final DBObject parent = d instanceof ZDisplayable ? d.getLayerSet() : d.getLayer();
+				if (null == parent) continue; // no longer in the project
+				writer.write(" <t2_change oid=\"" + d.getId() + "\" parent=\"" + parent.getId() + "\">\n");
+				d.exportXML(writer, "\t", options);
+				writer.write(" </t2_change>\n");
+			}
+			for (final ProjectThing pt : ts) {
+				final ProjectThing parent = (ProjectThing)pt.getParent();
+				if (null == parent) continue; // no longer in the project tree
+				final StringBuilder sb = new StringBuilder();
+				pt.exportXML(sb, "\t", options);
+				// The root node is read from the project element, by the id of the Project
+				final long parent_id = parent.getObject() instanceof Project ? ((Project)parent.getObject()).getId() : parent.getId();
+				writer.write(" <t2_thing oid=\"" + pt.getId() + "\" parent=\"" + parent_id + "\">\n");
+				writer.write(sb.toString());
+				writer.write(" </t2_thing>\n");
+			}
+			for (final Long id : rs) {
+				writer.write(" <t2_remove oid=\"" + id + "\" />\n");
+			}
+			writer.write("</t2_journal_entry>\n");
+			writer.flush();
+			fos.getFD().sync();
+			writer.close();
+			writer = null;
+			Utils.log2("Journaled " + ds.size() + " changed, " + ts.size() + " new project tree nodes and " + rs.size() + " removed objects to " + getPath(xml_path));
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			if (null != writer) try { writer.close(); } catch (final Exception ee) {}
+			restore(ds, rs, ts);
+			// The last entry may be incomplete, and will be ignored; but do a full save next
+			synchronized (this) { structural = true; }
+			return false;
+		}
+	}
+
+	synchronized private void restore(final ArrayList<Displayable> ds, final ArrayList<Long> rs, final Set<ProjectThing> ts) {
+		for (final Displayable d : ds) {
+			if (!changed.containsKey(d.getId()) && !removed.contains(d.getId())) changed.put(d.getId(), d);
+		}
+		for (final ProjectThing pt : ts) {
+			if (!things.containsKey(pt.getId()) && !removed.contains(pt.getId())) things.put(pt.getId(), pt);
+		}
+		for (final Long id : rs) {
+			if (!changed.containsKey(id)) removed.add(id);
+		}
+	}
+
+	/** The SAX events of one journaled element, to be replayed in place of the element in the XML file. */
+	static private final class Events extends DefaultHandler {
+		static private final Object CHARS = new Object();
+		/** The element name, or the character data. */
+		private final ArrayList<String> names = new ArrayList<String>();
+		/** A copy of the attributes of a start event; null for an end event, and {@link #CHARS} for character data. */
+		private final ArrayList<Object> attributes = new ArrayList<Object>();
+
+		@Override
+		public void startElement(final String namespace_URI, final String local_name, final String qualified_name, final Attributes atts) {
+			names.add(qualified_name);
+			attributes.add(new AttributesImpl(atts));
+		}
+
+		@Override
+		public void endElement(final String namespace_URI, final String local_name, final String qualified_name) {
+			names.add(qualified_name);
+			attributes.add(null);
+		}
+
+		@Override
+		public void characters(final char[] c, final int start, final int length) {
+			names.add(new String(c, start, length));
+			attributes.add(CHARS);
+		}
+
+		void replay(final DefaultHandler handler) throws SAXException {
+			for (int i=0; i<names.size(); i++) {
+				final String name = names.get(i);
+				final Object a = attributes.get(i);
+				if (null == a) handler.endElement("", "", name);
+				else if (CHARS == a) {
+					final char[] c = name.toCharArray();
+					handler.characters(c, 0, c.length);
+				}
+				else handler.startElement("", "", name, (Attributes)a);
+			}
+		}
+	}
+
+	/** One journaled element: its SAX events, and the id of its Layer or LayerSet, or of its parent project tree node. */
+	static private final class Change {
+		final long parent;
+		final Events events = new Events();
+		Change(final long parent) {
+			this.parent = parent;
+		}
+	}
+
+	/** Reads the complete entries of a journal that apply to the XML file. */
+	static private final class Reader extends DefaultHandler {
+		final File fxml;
+		final LinkedHashMap<Long,Change> changes = new LinkedHashMap<Long,Change>();
+		final LinkedHashMap<Long,Change> things = new LinkedHashMap<Long,Change>();
+		final LinkedHashSet<Long> removals = new LinkedHashSet<Long>();
+		// The entry being read
+		boolean valid = false;
+		final LinkedHashMap<Long,Change> entry_changes = new LinkedHashMap<Long,Change>();
+		final LinkedHashMap<Long,Change> entry_things = new LinkedHashMap<Long,Change>();
+		final ArrayList<Long> entry_removals = new ArrayList<Long>();
+		Change change = null;
+		long change_oid;
+		/** Whether the change being read is of a project tree node. */
+		boolean thing = false;
+		int depth = 0;
+
+		Reader(final File fxml) {
+			this.fxml = fxml;
+		}
+
+		@Override
+		public void startElement(final String namespace_URI, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+			if (depth > 0) {
+				++depth;
+				change.events.startElement(namespace_URI, local_name, qualified_name, attributes);
+				return;
+			}
+			if ("t2_journal_entry".equals(qualified_name)) {
+				valid = Long.toString(fxml.length()).equals(attributes.getValue("base_length"))
+				     && Long.toString(fxml.lastModified()).equals(attributes.getValue("base_modified"));
+				entry_changes.clear();
+				entry_things.clear();
+				entry_removals.clear();
+			} else if ("t2_change".equals(qualified_name) || "t2_thing".equals(qualified_name)) {
+				change_oid = Long.parseLong(attributes.getValue("oid"));
+				change = new Change(Long.parseLong(attributes.getValue("parent")));
+				thing = "t2_thing".equals(qualified_name);
+				depth = 1;
+			} else if ("t2_remove".equals(qualified_name)) {
+				entry_removals.add(Long.parseLong(attributes.getValue("oid")));
+			}
+		}
+
+		@Override
+		public void endElement(final String namespace_URI, final String local_name, final String qualified_name) throws SAXException {
+			if (depth > 0) {
+				if (0 == --depth) {
+					(thing ? entry_things : entry_changes).put(change_oid, change);
+					change = null;
+				} else {
+					change.events.endElement(namespace_URI, local_name, qualified_name);
+				}
+				return;
+			}
+			if ("t2_journal_entry".equals(qualified_name) && valid) {
+				// The entry is complete: commit it, later changes replacing earlier ones
+				for (final Map.Entry<Long,Change> e : entry_changes.entrySet()) {
+					changes.remove(e.getKey());
+					changes.put(e.getKey(), e.getValue());
+					removals.remove(e.getKey());
+				}
+				for (final Map.Entry<Long,Change> e : entry_things.entrySet()) {
+					things.remove(e.getKey());
+					things.put(e.getKey(), e.getValue());
+					removals.remove(e.getKey());
+				}
+				for (final Long id : entry_removals) {
+					changes.remove(id);
+					things.remove(id);
+					removals.add(id);
+				}
+			}
+		}
+
+		@Override
+		public void characters(final char[] c, final int start, final int length) throws SAXException {
+			if (depth > 0) change.events.characters(c, start, length);
+		}
+	}
+
+	/** Passes on the SAX events of the XML file to the delegate handler, replacing, removing
+	 *  and adding the elements as recorded in the journal. */
+	static public final class Replay extends DefaultHandler {
+		private final DefaultHandler delegate;
+		private final LinkedHashMap<Long,Change> changes;
+		private final LinkedHashMap<Long,Change> things;
+		private final Set<Long> removals;
+		/** Number of elements of the XML being skipped, when nonzero. */
+		private int skip = 0;
+		/** For each open element, the oid of the Layer or LayerSet, or null. */
+		private final ArrayList<Long> open = new ArrayList<Long>();
+		/** For each open element, the id of the project tree node, or null. */
+		private final ArrayList<Long> open_things = new ArrayList<Long>();
+		private int n_applied = 0;
+
+		private Replay(final DefaultHandler delegate, final Reader reader) {
+			this.delegate = delegate;
+			this.changes = reader.changes;
+			this.things = reader.things;
+			this.removals = reader.removals;
+		}
+
+		/** Number of elements replaced, added or removed so far. */
+		public int getNApplied() {
+			return n_applied;
+		}
+
+		/** The journaled elements of @param changes that belong at the end of the container @param oid
+		 *  and were not in the XML file. */
+		private final void addNew(final LinkedHashMap<Long,Change> changes, final Long oid) throws SAXException {
+			for (final Iterator<Map.Entry<Long,Change>> it = changes.entrySet().iterator(); it.hasNext(); ) {
+				final Map.Entry<Long,Change> e = it.next();
+				if (e.getValue().parent == oid.longValue()) {
+					e.getValue().events.replay(delegate);
+					it.remove();
+					++n_applied;
+				}
+			}
+		}
+
+		@Override
+		public void startElement(final String namespace_URI, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+			if (skip > 0) {
+				++skip;
+				return;
+			}
+			final boolean layer = "t2_layer".equals(qualified_name),
+			              layer_set = "t2_layer_set".equals(qualified_name);
+			if (layer && !open.isEmpty() && null != open.get(open.size() -1)) {
+				// ZDisplayables precede the layers of their LayerSet, the open element
+				addNew(changes, open.get(open.size() -1));
+			}
+			// The project tree nodes are the project and, within it, any element other than a t2_ one
+			final boolean thing = "project".equals(qualified_name)
+			                   || (!qualified_name.startsWith("t2_") && !open_things.isEmpty() && null != open_things.get(open_things.size() -1));
+			final String sid = thing ? attributes.getValue("id") : null;
+			if (null != sid) {
+				final Long id = Long.parseLong(sid);
+				if (removals.remove(id)) {
+					skip = 1;
+					++n_applied;
+					return;
+				}
+				final Change change = things.remove(id);
+				if (null != change) {
+					change.events.replay(delegate);
+					skip = 1;
+					++n_applied;
+					return;
+				}
+			}
+			final String soid = attributes.getValue("oid");
+			if (null != soid && !layer && !layer_set && qualified_name.startsWith("t2_")) {
+				final Long oid = Long.parseLong(soid);
+				if (removals.remove(oid)) {
+					skip = 1;
+					++n_applied;
+					return;
+				}
+				final Change change = changes.remove(oid);
+				if (null != change) {
+					change.events.replay(delegate);
+					skip = 1;
+					++n_applied;
+					return;
+				}
+			}
+			open.add(null != soid && (layer || layer_set) ? Long.valueOf(Long.parseLong(soid)) : null);
+			open_things.add(null != sid ? Long.valueOf(Long.parseLong(sid)) : null);
+			delegate.startElement(namespace_URI, local_name, qualified_name, attributes);
+		}
+
+		@Override
+		public void endElement(final String namespace_URI, final String local_name, final String qualified_name) throws SAXException {
+			if (skip > 0) {
+				--skip;
+				return;
+			}
+			final Long container = open.remove(open.size() -1);
+			if (null != container) addNew(changes, container);
+			final Long parent = open_things.remove(open_things.size() -1);
+			if (null != parent) addNew(things, parent);
+			delegate.endElement(namespace_URI, local_name, qualified_name);
+		}
+
+		@Override
+		public void characters(final char[] c, final int start, final int length) throws SAXException {
+			if (skip > 0) return;
+			delegate.characters(c, start, length);
+		}
+
+		/** Report journaled elements that could not be placed. */
+		public void finish() {
+			if (!changes.isEmpty()) {
+				Utils.log("WARNING: could not find the Layer or LayerSet of " + changes.size() + " journaled objects.");
+			}
+			if (!things.isEmpty()) {
+				Utils.log("WARNING: could not find the parent node in the project tree of " + things.size() + " journaled nodes.");
+			}
+		}
+	}
+
+	/** Returns a handler that applies the journal of the XML file at @param xml_path
+	 *  onto the SAX events of that XML file, passing them on to @param delegate;
+	 *  or null if there is no journal, or no entry in it applies to the XML file. */
+	static public final Replay load(final String xml_path, final DefaultHandler delegate) {
+		final File fxml = new File(xml_path),
+		           fjournal = new File(getPath(xml_path));
+		if (!fxml.exists() || !fjournal.exists()) return null;
+		final Reader reader = new Reader(fxml);
+		InputStream i_stream = null;
+		try {
+			final SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setValidating(false);
+			final SAXParser parser = factory.newSAXParser();
+			// The journal is a sequence of entries: wrap them in a root element
+			i_stream = new SequenceInputStream(new SequenceInputStream(
+					new ByteArrayInputStream("<t2_journal>\n".getBytes("8859_1")),
+					new BufferedInputStream(new FileInputStream(fjournal))),
+					new ByteArrayInputStream("</t2_journal>\n".getBytes("8859_1")));
+			final InputSource input_source = new InputSource(i_stream);
+			input_source.setEncoding("ISO-8859-1");
+			parser.parse(input_source, reader);
+		} catch (final Exception e) {
+			// An entry cut short by a crash: keep the complete ones
+			Utils.log2("Change journal at " + fjournal + " ends in an incomplete entry: " + e);
+		} finally {
+			if (null != i_stream) try { i_stream.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		if (reader.changes.isEmpty() && reader.things.isEmpty() && reader.removals.isEmpty()) return null;
+		return new Replay(delegate, reader);
+	}
+}
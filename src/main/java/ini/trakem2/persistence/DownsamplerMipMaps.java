@@ -33,6 +33,20 @@ import ini.trakem2.imaging.FastIntegralImage;
 import ini.trakem2.imaging.P;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.CoordinateTransformList;
+import mpicbg.models.CoordinateTransformMesh;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
 import mpicbg.trakem2.util.Downsampler;
 import mpicbg.trakem2.util.Downsampler.Pair;
 
@@ -326,4 +340,439 @@ public final class DownsamplerMipMaps
 
 		return p;
 	}
+
+	/////// Strips
+
+	/** Shared by all patches whose mipmaps are generated in strips; its threads are created on demand. */
+	static private final ForkJoinPool strip_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/** Downsamples the rows y0 (inclusive) to y1 (exclusive) of the source image. */
+	static private interface StripOp {
+		public void run(int y0, int y1);
+	}
+
+	/** Runs @param op in parallel over strips of @param strip_rows rows (made even, so that no pair
+	 *  of rows is split between strips), and waits until all are done. */
+	static private final void inStrips(final int height, final int strip_rows, final StripOp op) throws Exception {
+		inStrips(height, strip_rows, false, op);
+	}
+
+	/** @param all_rows Whether to include a trailing odd row as a strip of its own, rather than dropping it. */
+	static private final void inStrips(final int height, final int strip_rows, final boolean all_rows, final StripOp op) throws Exception {
+		final int rows = Math.max(2, strip_rows + (strip_rows % 2));
+		final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int y=0; y<height; y+=rows) {
+			final int y0 = y,
+			          y1 = Math.min(height, y + rows);
+			if (y1 - y0 < 2 && !all_rows) break; // a trailing odd row is dropped when downsampling
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					op.run(y0, y1);
+					return null;
+				}
+			});
+		}
+		for (final Future<Object> fu : strip_pool.invokeAll(tasks)) {
+			fu.get(); // rethrows any exception
+		}
+	}
+
+	/** Returns a new processor of the same kind with a copy of rows y0 (inclusive) to y1 (exclusive),
+	 *  and the same display range, which the {@link Downsampler} uses to convert to 8-bit. */
+	static private final ImageProcessor strip(final ImageProcessor ip, final int y0, final int y1) {
+		final int w = ip.getWidth(),
+		          h = y1 - y0;
+		final Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) {
+			final byte[] b = new byte[w * h];
+			System.arraycopy(pixels, y0 * w, b, 0, b.length);
+			final ByteProcessor bp = new ByteProcessor(w, h, b, ip.getColorModel());
+			bp.setMinAndMax(ip.getMin(), ip.getMax());
+			return bp;
+		}
+		if (pixels instanceof short[]) {
+			final short[] s = new short[w * h];
+			System.arraycopy(pixels, y0 * w, s, 0, s.length);
+			final ShortProcessor sp = new ShortProcessor(w, h, s, null);
+			sp.setMinAndMax(ip.getMin(), ip.getMax());
+			return sp;
+		}
+		if (pixels instanceof float[]) {
+			final float[] f = new float[w * h];
+			System.arraycopy(pixels, y0 * w, f, 0, f.length);
+			final FloatProcessor fp = new FloatProcessor(w, h, f, null);
+			fp.setMinAndMax(ip.getMin(), ip.getMax());
+			return fp;
+		}
+		// int[]: setMinAndMax would alter the pixels of a ColorProcessor
+		final int[] c = new int[w * h];
+		System.arraycopy(pixels, y0 * w, c, 0, c.length);
+		return new ColorProcessor(w, h, c);
+	}
+
+	/** Zero the @param alpha wherever the @param outside is not 255. */
+	static private final void combine(final ByteProcessor alpha, final ByteProcessor outside) {
+		final byte[] b1 = (byte[])alpha.getPixels(),
+		             b2 = (byte[])outside.getPixels();
+		for (int i=0; i<b1.length; ++i) {
+			b1[i] = b2[i] != -1 ? 0 : b1[i]; // 'outside' is a binary mask, qualitative. -1 means 255
+		}
+	}
+
+	/** Copies the pixel array @param src of a downsampled strip into @param dst, at the row
+	 *  corresponding to the first row y0 of the strip in the source image. */
+	static private final void paste(final Object src, final Object dst, final int y0, final int width) {
+		System.arraycopy(src, 0, dst, (y0 / 2) * width, Array.getLength(src));
+	}
+
+	static private final ByteProcessor downsampleByteProcessor(final ByteProcessor bp, final int strip_rows) throws Exception {
+		final int wb = bp.getWidth() / 2;
+		final byte[] out = new byte[wb * (bp.getHeight() / 2)];
+		final ByteProcessor[] first = new ByteProcessor[1];
+		inStrips(bp.getHeight(), strip_rows, new StripOp() {
+			@Override
+			public void run(final int y0, final int y1) {
+				final ByteProcessor r = Downsampler.downsampleByteProcessor((ByteProcessor)strip(bp, y0, y1));
+				paste(r.getPixels(), out, y0, wb);
+				if (0 == y0) first[0] = r;
+			}
+		});
+		final ByteProcessor b = new ByteProcessor(wb, bp.getHeight() / 2, out, first[0].getColorModel());
+		b.setMinAndMax(first[0].getMin(), first[0].getMax());
+		return b;
+	}
+
+	static private final ByteProcessor downsampleOutside(final ByteProcessor bp, final int strip_rows) throws Exception {
+		final int wb = bp.getWidth() / 2;
+		final byte[] out = new byte[wb * (bp.getHeight() / 2)];
+		inStrips(bp.getHeight(), strip_rows, new StripOp() {
+			@Override
+			public void run(final int y0, final int y1) {
+				paste(Downsampler.downsampleOutside((ByteProcessor)strip(bp, y0, y1)).getPixels(), out, y0, wb);
+			}
+		});
+		return new ByteProcessor(wb, bp.getHeight() / 2, out, null);
+	}
+
+	/** Returns the downsampled alpha, with the downsampled outside combined into it as {@link Downsampler#downsampleAlphaAndOutside(ByteProcessor, ByteProcessor)} does,
+	 *  and the downsampled outside. */
+	static private final ByteProcessor[] downsampleAlphaAndOutside(final ByteProcessor a, final ByteProcessor o, final int strip_rows) throws Exception {
+		final int wb = a.getWidth() / 2;
+		final byte[] out_a = new byte[wb * (a.getHeight() / 2)],
+		             out_o = new byte[out_a.length];
+		inStrips(a.getHeight(), strip_rows, new StripOp() {
+			@Override
+			public void run(final int y0, final int y1) {
+				final Pair<ByteProcessor,ByteProcessor> r = Downsampler.downsampleAlphaAndOutside((ByteProcessor)strip(a, y0, y1), (ByteProcessor)strip(o, y0, y1));
+				paste(r.a.getPixels(), out_a, y0, wb);
+				paste(r.b.getPixels(), out_o, y0, wb);
+			}
+		});
+		return new ByteProcessor[]{new ByteProcessor(wb, a.getHeight() / 2, out_a, null),
+		                           new ByteProcessor(wb, a.getHeight() / 2, out_o, null)};
+	}
+
+	/** Returns the downsampled image, and fills @param bytes[0] with its 8-bit version. */
+	static private final ShortProcessor downsampleShort(final ShortProcessor sp, final int strip_rows, final byte[][] bytes) throws Exception {
+		final int wb = sp.getWidth() / 2;
+		final short[] out = new short[wb * (sp.getHeight() / 2)];
+		final byte[] out8 = new byte[out.length];
+		final ShortProcessor[] first = new ShortProcessor[1];
+		inStrips(sp.getHeight(), strip_rows, new StripOp() {
+			@Override
+			public void run(final int y0, final int y1) {
+				final Pair<ShortProcessor, byte[]> r = Downsampler.downsampleShort((ShortProcessor)strip(sp, y0, y1));
+				paste(r.a.getPixels(), out, y0, wb);
+				paste(r.b, out8, y0, wb);
+				if (0 == y0) first[0] = r.a;
+			}
+		});
+		final ShortProcessor s = new ShortProcessor(wb, sp.getHeight() / 2, out, null);
+		s.setMinAndMax(first[0].getMin(), first[0].getMax());
+		bytes[0] = out8;
+		return s;
+	}
+
+	/** Returns the downsampled image, and fills @param bytes[0] with its 8-bit version. */
+	static private final FloatProcessor downsampleFloat(final FloatProcessor fp, final int strip_rows, final byte[][] bytes) throws Exception {
+		final int wb = fp.getWidth() / 2;
+		final float[] out = new float[wb * (fp.getHeight() / 2)];
+		final byte[] out8 = new byte[out.length];
+		final FloatProcessor[] first = new FloatProcessor[1];
+		inStrips(fp.getHeight(), strip_rows, new StripOp() {
+			@Override
+			public void run(final int y0, final int y1) {
+				final Pair<FloatProcessor, byte[]> r = Downsampler.downsampleFloat((FloatProcessor)strip(fp, y0, y1));
+				paste(r.a.getPixels(), out, y0, wb);
+				paste(r.b, out8, y0, wb);
+				if (0 == y0) first[0] = r.a;
+			}
+		});
+		final FloatProcessor f = new FloatProcessor(wb, fp.getHeight() / 2, out, null);
+		f.setMinAndMax(first[0].getMin(), first[0].getMax());
+		bytes[0] = out8;
+		return f;
+	}
+
+	/** Returns the downsampled image, and fills @param rgb with its red, green and blue channels. */
+	static private final ColorProcessor downsampleColor(final ColorProcessor cp, final int strip_rows, final byte[][] rgb) throws Exception {
+		final int wb = cp.getWidth() / 2;
+		final int[] out = new int[wb * (cp.getHeight() / 2)];
+		for (int k=0; k<3; ++k) rgb[k] = new byte[out.length];
+		inStrips(cp.getHeight(), strip_rows, new StripOp() {
+			@Override
+			public void run(final int y0, final int y1) {
+				final Pair<ColorProcessor, byte[][]> r = Downsampler.downsampleColor((ColorProcessor)strip(cp, y0, y1));
+				paste(r.a.getPixels(), out, y0, wb);
+				for (int k=0; k<3; ++k) paste(r.b[k], rgb[k], y0, wb);
+			}
+		});
+		return new ColorProcessor(wb, cp.getHeight() / 2, out);
+	}
+
+	/** Same as {@link #create(Patch, int, ImageProcessor, ByteProcessor, ByteProcessor)}, with identical results,
+	 *  but each level is downsampled in parallel over strips of @param strip_rows rows of the level above it.
+	 *  Intended for very large patches, where the single-threaded pyramid takes minutes. */
+	static public final ImageBytes[] createInStrips(
+			final Patch patch,
+			final int type,
+			final ImageProcessor ip,
+			final ByteProcessor alpha,
+			final ByteProcessor outside,
+			final int strip_rows) throws Exception {
+		return createInStrips(Loader.getHighestMipMapLevel(patch) + 1, type, ip, alpha, outside, false, strip_rows);
+	}
+
+	/** @param combined Whether @param outside is already combined into @param alpha, as it is for all levels but the first. */
+	static private final ImageBytes[] createInStrips(
+			final int n_levels,
+			final int type,
+			final ImageProcessor ip,
+			final ByteProcessor alpha,
+			final ByteProcessor outside,
+			final boolean combined,
+			final int strip_rows) throws Exception {
+		final ImageBytes[] p = new ImageBytes[n_levels];
+
+		// Alpha channel, if any
+		ByteProcessor[] masks = null;
+		if (null != alpha || null != outside) {
+			masks = new ByteProcessor[p.length];
+			if (null != alpha && null != outside) {
+				if (!combined) combine(alpha, outside);
+				masks[0] = alpha;
+				ByteProcessor o = outside;
+				for (int i=1; i<p.length; ++i) {
+					final ByteProcessor[] ao = downsampleAlphaAndOutside(masks[i-1], o, strip_rows);
+					masks[i] = ao[0]; // o is already combined into it
+					o = ao[1];
+				}
+			} else if (null == alpha) {
+				masks[0] = outside;
+				for (int i=1; i<p.length; ++i) {
+					masks[i] = downsampleOutside(masks[i-1], strip_rows);
+				}
+			} else {
+				masks[0] = alpha;
+				for (int i=1; i<p.length; ++i) {
+					masks[i] = downsampleByteProcessor(masks[i-1], strip_rows);
+				}
+			}
+		}
+
+		// Image channels
+		switch (type) {
+			case ImagePlus.GRAY8:
+				ByteProcessor bp = (ByteProcessor)ip;
+				p[0] = null == masks ? asBytes(bp) : asBytes(bp, masks[0]);
+				for (int i=1; i<p.length; ++i) {
+					bp = downsampleByteProcessor(bp, strip_rows);
+					p[i] = null == masks ? asBytes(bp) : asBytes(bp, masks[i]);
+				}
+				break;
+			case ImagePlus.GRAY16:
+				ShortProcessor sp = (ShortProcessor)ip;
+				p[0] = null == masks ? asBytes(sp) : asBytes(sp, masks[0]);
+				for (int i=1; i<p.length; ++i) {
+					final byte[][] b = new byte[1][];
+					sp = downsampleShort(sp, strip_rows, b);
+					p[i] = new ImageBytes(null == masks ? b : new byte[][]{b[0], (byte[])masks[i].getPixels()}, sp.getWidth(), sp.getHeight());
+				}
+				break;
+			case ImagePlus.GRAY32:
+				FloatProcessor fp = (FloatProcessor)ip;
+				p[0] = null == masks ? asBytes(fp) : asBytes(fp, masks[0]);
+				for (int i=1; i<p.length; ++i) {
+					final byte[][] b = new byte[1][];
+					fp = downsampleFloat(fp, strip_rows, b);
+					p[i] = new ImageBytes(null == masks ? b : new byte[][]{b[0], (byte[])masks[i].getPixels()}, fp.getWidth(), fp.getHeight());
+				}
+				break;
+			case ImagePlus.COLOR_RGB:
+				ColorProcessor cp = (ColorProcessor)ip;
+				p[0] = null == masks ? asBytes(cp) : asBytes(cp, masks[0]);
+				for (int i=1; i<p.length; ++i) {
+					final byte[][] rgb = new byte[3][];
+					cp = downsampleColor(cp, strip_rows, rgb);
+					p[i] = new ImageBytes(null == masks ? rgb : new byte[][]{rgb[0], rgb[1], rgb[2], (byte[])masks[i].getPixels()}, cp.getWidth(), cp.getHeight());
+				}
+				break;
+		}
+
+		return p;
+	}
+
+	/** Like {@link #createInStrips(Patch, int, ImageProcessor, ByteProcessor, ByteProcessor, int)}, but the level 0
+	 *  image is never created whole: each strip of its rows is mapped straight from the original image of @param patch
+	 *  through its {@link CoordinateTransform}, if any, given the display range, converted to mipmap bytes, and
+	 *  downsampled into the first level, from which on the pyramid proceeds as in createInStrips. Then, besides
+	 *  the original image and the mipmaps themselves, only the strips in flight take memory.
+	 *
+	 *  Expects the display range of @param patch to be set. Returns null if the patch is not taller than one strip. */
+	static public final ImageBytes[] createInStripsFromSource(final Patch patch, final int strip_rows) throws Exception {
+		final Rectangle box = patch.getCoordinateTransformBoundingBox();
+		if (box.height <= strip_rows) return null;
+		final ImageProcessor source = patch.getImageProcessor();
+		if (null == source) return null;
+		final ByteProcessor alpha = patch.getAlphaMask();
+		final CoordinateTransform ct = patch.hasCoordinateTransform() ? patch.getCoordinateTransform() : null;
+		final boolean to_rgb = source.isColorLut() || ImagePlus.COLOR_256 == patch.getType();
+		final int type = to_rgb ? ImagePlus.COLOR_RGB : patch.getType();
+		final double min = patch.getMin(),
+		             max = patch.getMax();
+		final int n_levels = Loader.getHighestMipMapLevel(patch) + 1;
+
+		final int w = box.width,
+		          h = box.height,
+		          wb = w / 2,
+		          hb = h / 2;
+		final boolean with_alpha = null != alpha,
+		              with_outside = null != ct,
+		              with_mask = with_alpha || with_outside;
+		final int n_channels = (ImagePlus.COLOR_RGB == type ? 3 : 1) + (with_mask ? 1 : 0);
+
+		// Level 0, as mipmap bytes
+		final byte[][] b0 = new byte[n_channels][w * h];
+		// Level 1, as images to downsample further
+		final Object pix1;
+		switch (type) {
+			case ImagePlus.GRAY8: pix1 = new byte[wb * hb]; break;
+			case ImagePlus.GRAY16: pix1 = new short[wb * hb]; break;
+			case ImagePlus.GRAY32: pix1 = new float[wb * hb]; break;
+			case ImagePlus.COLOR_RGB: pix1 = new int[wb * hb]; break;
+			default: throw new Exception("Unhandable ImagePlus type: " + type);
+		}
+		final byte[] alpha1 = with_alpha ? new byte[wb * hb] : null,
+		             outside1 = with_outside ? new byte[wb * hb] : null;
+		final ImageProcessor[] first = new ImageProcessor[1];
+
+		// Shared by all strips, which only read from it
+		final ImageProcessorWithMasks ipm;
+		if (with_outside) {
+			source.setInterpolationMethod(ImageProcessor.BILINEAR);
+			if (with_alpha) alpha.setInterpolationMethod(ImageProcessor.BILINEAR);
+			ipm = new ImageProcessorWithMasks(source, alpha, null);
+		} else {
+			ipm = null;
+		}
+
+		inStrips(h, strip_rows, true, new StripOp() {
+			@Override
+			public void run(final int y0, final int y1) {
+				// The strip of the level 0 image, and its masks
+				ImageProcessor sip;
+				ByteProcessor sa = null,
+				              so = null;
+				if (with_outside) {
+					// Same mapping as Patch.createCoordinateTransformedImage, shifted up to the first row of the strip
+					final TranslationModel2D t = new TranslationModel2D();
+					t.set(-box.x, -box.y - y0);
+					final CoordinateTransformList<CoordinateTransform> ctl = new CoordinateTransformList<CoordinateTransform>();
+					ctl.add(ct);
+					ctl.add(t);
+					final CoordinateTransformMesh mesh = new CoordinateTransformMesh(ctl, patch.getMeshResolution(), patch.getOWidth(), patch.getOHeight());
+					final TransformMeshMappingWithMasks<CoordinateTransformMesh> mapping = new TransformMeshMappingWithMasks<CoordinateTransformMesh>(mesh);
+					sip = source.createProcessor(w, y1 - y0);
+					sip.setColorModel(source.getColorModel());
+					if (with_alpha) sa = new ByteProcessor(w, y1 - y0);
+					so = new ByteProcessor(w, y1 - y0);
+					mapping.mapInterpolated(ipm, new ImageProcessorWithMasks(sip, sa, so), 1);
+				} else {
+					sip = strip(source, y0, y1);
+					if (with_alpha) sa = (ByteProcessor)strip(alpha, y0, y1);
+				}
+				// As FSLoader does for the whole image
+				sip.setMinAndMax(min, max);
+				if (ByteProcessor.class == sip.getClass() && 0 != min && 255 != max) {
+					final byte[] b = (byte[]) sip.getPixels();
+					final double scale = 255 / (max - min);
+					for (int i=0; i<b.length; ++i) {
+						final int val = b[i] & 0xff;
+						if (val < min) b[i] = 0;
+						else b[i] = (byte)Math.min(255, ((val - min) * scale));
+					}
+				}
+				if (to_rgb) sip = sip.convertToRGB();
+				if (with_alpha && with_outside) combine(sa, so);
+
+				// Level 0
+				final int offset = y0 * w;
+				final byte[][] c;
+				switch (type) {
+					case ImagePlus.GRAY8: c = new byte[][]{(byte[])sip.getPixels()}; break;
+					case ImagePlus.COLOR_RGB: c = P.asRGBBytes((int[])sip.getPixels()); break;
+					default: c = new byte[][]{(byte[])sip.convertToByte(true).getPixels()}; break;
+				}
+				for (int k=0; k<c.length; ++k) {
+					System.arraycopy(c[k], 0, b0[k], offset, c[k].length);
+				}
+				if (with_mask) {
+					final byte[] m = (byte[])(with_alpha ? sa : so).getPixels();
+					System.arraycopy(m, 0, b0[n_channels - 1], offset, m.length);
+				}
+
+				// Level 1: a trailing odd row has no pair
+				if (y1 - y0 < 2) return;
+				final ImageProcessor r;
+				switch (type) {
+					case ImagePlus.GRAY8: r = Downsampler.downsampleByteProcessor((ByteProcessor)sip); break;
+					case ImagePlus.GRAY16: r = Downsampler.downsampleShort((ShortProcessor)sip).a; break;
+					case ImagePlus.GRAY32: r = Downsampler.downsampleFloat((FloatProcessor)sip).a; break;
+					default: r = Downsampler.downsampleColor((ColorProcessor)sip).a; break;
+				}
+				paste(r.getPixels(), pix1, y0, wb);
+				if (0 == y0) first[0] = r;
+				if (with_alpha && with_outside) {
+					final Pair<ByteProcessor,ByteProcessor> ao = Downsampler.downsampleAlphaAndOutside(sa, so);
+					paste(ao.a.getPixels(), alpha1, y0, wb);
+					paste(ao.b.getPixels(), outside1, y0, wb);
+				} else if (with_alpha) {
+					paste(Downsampler.downsampleByteProcessor(sa).getPixels(), alpha1, y0, wb);
+				} else if (with_outside) {
+					paste(Downsampler.downsampleOutside(so).getPixels(), outside1, y0, wb);
+				}
+			}
+		});
+
+		final ImageBytes[] p = new ImageBytes[n_levels];
+		p[0] = new ImageBytes(b0, w, h);
+		if (1 == n_levels) return p;
+
+		final ImageProcessor ip1;
+		switch (type) {
+			case ImagePlus.GRAY8: ip1 = new ByteProcessor(wb, hb, (byte[])pix1, first[0].getColorModel()); break;
+			case ImagePlus.GRAY16: ip1 = new ShortProcessor(wb, hb, (short[])pix1, null); break;
+			case ImagePlus.GRAY32: ip1 = new FloatProcessor(wb, hb, (float[])pix1, null); break;
+			default: ip1 = new ColorProcessor(wb, hb, (int[])pix1); break;
+		}
+		if (ImagePlus.COLOR_RGB != type) ip1.setMinAndMax(first[0].getMin(), first[0].getMax());
+
+		final ImageBytes[] rest = createInStrips(n_levels - 1, type, ip1,
+				with_alpha ? new ByteProcessor(wb, hb, alpha1, null) : null,
+				with_outside ? new ByteProcessor(wb, hb, outside1, null) : null,
+				true, strip_rows);
+		System.arraycopy(rest, 0, p, 1, rest.length);
+		return p;
+	}
 }
@@ -0,0 +1,379 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/** Decides in which order the {@link Cache} sheds its pyramids when it has to make room.
+ *  A policy only sees pyramid ids (and their size in bytes); the {@link Cache} notifies it
+ *  of every insertion, access, change of size and removal, and asks it for a victim
+ *  when over budget, then tells it whether the victim was shed or skipped.
+ *  Within a victim pyramid, the largest images are shed first.
+ *
+ *  Like the {@link Cache}, policies are not synchronized.
+ *
+ *  Select a policy per project with the "cache_eviction_policy" project property,
+ *  whose value is one of {@link #NAMES}.
+ */
+public interface EvictionPolicy {
+
+	static public final String LRU = "lru",
+	                           TINY_LFU = "tinylfu",
+	                           SIZE_AWARE = "size";
+
+	static public final String[] NAMES = new String[]{LRU, TINY_LFU, SIZE_AWARE};
+
+	/** A new pyramid was added to the cache. */
+	public void inserted(long id, long bytes);
+
+	/** A pyramid was read from or written to. */
+	public void accessed(long id);
+
+	/** The images held by a pyramid now add up to @param bytes. */
+	public void resized(long id, long bytes);
+
+	/** A pyramid was dropped from the cache, evicted or not. */
+	public void removed(long id);
+
+	/** The id of the next pyramid to shed images from, or Long.MIN_VALUE when there are none.
+	 *  Changes nothing: the pyramid is not removed from the policy until {@link #removed(long)} is called. */
+	public long victim();
+
+	/** The {@link #victim()} @param id will have its images shed. */
+	public void evicting(long id);
+
+	/** The {@link #victim()} @param id can't be shed now, as when it is pinned: move it out of the way
+	 *  of the next {@link #victim()}, without counting it as an access. */
+	public void skipped(long id);
+
+	/** Forget all pyramids. */
+	public void clear();
+
+	/** The name, as in {@link #NAMES}. */
+	public String getName();
+
+	/** Returns a new policy for @param name, or a new {@link LRUPolicy} if the name is unknown or null. */
+	static public EvictionPolicy create(final String name) {
+		if (TINY_LFU.equals(name)) return new TinyLFUPolicy();
+		if (SIZE_AWARE.equals(name)) return new SizeAwarePolicy();
+		return new LRUPolicy();
+	}
+
+	/** Least-recently-used first. */
+	static public class LRUPolicy implements EvictionPolicy {
+		/** Access-ordered: the first key is the least recently used. */
+		private final LinkedHashMap<Long,Long> order = new LinkedHashMap<Long,Long>(1024, 0.75f, true);
+
+		@Override
+		public void inserted(final long id, final long bytes) {
+			order.put(id, bytes);
+		}
+		@Override
+		public void accessed(final long id) {
+			order.get(id);
+		}
+		@Override
+		public void resized(final long id, final long bytes) {
+			if (order.containsKey(id)) order.put(id, bytes);
+		}
+		@Override
+		public void removed(final long id) {
+			order.remove(id);
+		}
+		@Override
+		public long victim() {
+			final Iterator<Long> it = order.keySet().iterator();
+			return it.hasNext() ? it.next() : Long.MIN_VALUE;
+		}
+		@Override
+		public void evicting(final long id) {}
+		@Override
+		public void skipped(final long id) {
+			order.get(id); // to the end
+		}
+		@Override
+		public void clear() {
+			order.clear();
+		}
+		@Override
+		public String getName() { return LRU; }
+	}
+
+	/** A count-min sketch of 4 rows, with periodic halving of all counters so that
+	 *  the frequency of pyramids that used to be popular decays over time. */
+	static public final class FrequencySketch {
+		private final int[][] rows = new int[4][];
+		private final int mask;
+		private int additions = 0;
+		private final int sample_size;
+
+		/** @param width is rounded up to a power of two. */
+		public FrequencySketch(final int width) {
+			int w = 16;
+			while (w < width) w <<= 1;
+			for (int i=0; i<rows.length; i++) rows[i] = new int[w];
+			this.mask = w - 1;
+			this.sample_size = 10 * w;
+		}
+
+		private final int index(final long id, final int row) {
+			long h = (id + row) * 0x9E3779B97F4A7C15L;
+			h ^= (h >>> 29);
+			return (int)(h >>> (16 + row)) & mask;
+		}
+
+		public final void increment(final long id) {
+			for (int i=0; i<rows.length; i++) {
+				rows[i][index(id, i)]++;
+			}
+			if (++additions >= sample_size) {
+				for (final int[] row : rows) {
+					for (int k=0; k<row.length; k++) row[k] >>>= 1;
+				}
+				additions /= 2;
+			}
+		}
+
+		public final int frequency(final long id) {
+			int f = Integer.MAX_VALUE;
+			for (int i=0; i<rows.length; i++) {
+				f = Math.min(f, rows[i][index(id, i)]);
+			}
+			return f;
+		}
+
+		public final void clear() {
+			for (final int[] row : rows) Arrays.fill(row, 0);
+			additions = 0;
+		}
+	}
+
+	/** Window TinyLFU: newly inserted pyramids enter a small LRU window; when the window
+	 *  is full, its oldest pyramid only enters the main space if it has been requested
+	 *  more often than the main space's victim. The main space is a segmented LRU,
+	 *  where pyramids that were hit again while on probation are protected.
+	 *  Pyramids that are hit all the time, like the low-resolution levels that the
+	 *  navigator and the canvas request while panning, are therefore rarely evicted
+	 *  by a burst of pyramids that are seen only once. */
+	static public class TinyLFUPolicy implements EvictionPolicy {
+		private final LinkedHashSet<Long> window = new LinkedHashSet<Long>(),
+		                                  probation = new LinkedHashSet<Long>(),
+		                                  protect = new LinkedHashSet<Long>();
+		private final FrequencySketch sketch = new FrequencySketch(1 << 16);
+		/** Fraction of all pyramids kept in the window. */
+		private final double window_fraction = 0.01;
+		/** Fraction of the main space that is protected. */
+		private final double protected_fraction = 0.8;
+
+		private final int size() {
+			return window.size() + probation.size() + protect.size();
+		}
+
+		private static final void moveToEnd(final LinkedHashSet<Long> set, final long id) {
+			set.remove(id);
+			set.add(id);
+		}
+
+		private static final long first(final LinkedHashSet<Long> set) {
+			return set.iterator().next();
+		}
+
+		@Override
+		public void inserted(final long id, final long bytes) {
+			sketch.increment(id);
+			window.add(id);
+		}
+		@Override
+		public void accessed(final long id) {
+			sketch.increment(id);
+			if (window.contains(id)) {
+				moveToEnd(window, id);
+			} else if (probation.remove(id)) {
+				protect.add(id);
+				// Demote the oldest protected pyramids when the protected segment is too large
+				final int max_protected = (int)((probation.size() + protect.size()) * protected_fraction);
+				while (protect.size() > Math.max(1, max_protected)) {
+					final long demoted = first(protect);
+					protect.remove(demoted);
+					probation.add(demoted);
+				}
+			} else if (protect.contains(id)) {
+				moveToEnd(protect, id);
+			}
+		}
+		@Override
+		public void resized(final long id, final long bytes) {}
+		@Override
+		public void removed(final long id) {
+			if (!window.remove(id)) {
+				if (!probation.remove(id)) protect.remove(id);
+			}
+		}
+		/** The oldest pyramid of the window when the window is too large, or Long.MIN_VALUE. */
+		private final long windowCandidate() {
+			final int max_window = Math.max(1, (int)(size() * window_fraction));
+			return window.size() > max_window ? first(window) : Long.MIN_VALUE;
+		}
+
+		private final long mainVictim() {
+			if (!probation.isEmpty()) return first(probation);
+			if (!protect.isEmpty()) return first(protect);
+			return Long.MIN_VALUE;
+		}
+
+		/** Whether the window @param candidate is requested more often than the @param main_victim,
+		 *  and so would be admitted into the main space in its place. */
+		private final boolean admits(final long candidate, final long main_victim) {
+			return Long.MIN_VALUE != candidate && Long.MIN_VALUE != main_victim
+			    && sketch.frequency(candidate) > sketch.frequency(main_victim);
+		}
+
+		@Override
+		public long victim() {
+			final long candidate = windowCandidate(),
+			           main_victim = mainVictim();
+			if (Long.MIN_VALUE != candidate) return admits(candidate, main_victim) ? main_victim : candidate;
+			if (Long.MIN_VALUE != main_victim) return main_victim;
+			if (!window.isEmpty()) return first(window);
+			return Long.MIN_VALUE;
+		}
+		@Override
+		public void evicting(final long id) {
+			final long candidate = windowCandidate();
+			if (id != candidate && id == mainVictim() && admits(candidate, id)) {
+				// Admit the candidate into the main space, in place of the main victim
+				window.remove(candidate);
+				probation.add(candidate);
+			}
+		}
+		@Override
+		public void skipped(final long id) {
+			// To the end of its segment, with neither a count in the sketch nor a promotion
+			if (window.contains(id)) moveToEnd(window, id);
+			else if (probation.contains(id)) moveToEnd(probation, id);
+			else if (protect.contains(id)) moveToEnd(protect, id);
+		}
+		@Override
+		public void clear() {
+			window.clear();
+			probation.clear();
+			protect.clear();
+			sketch.clear();
+		}
+		@Override
+		public String getName() { return TINY_LFU; }
+	}
+
+	/** GreedyDual-Size-Frequency: sheds first the pyramids with the lowest
+	 *  frequency per byte, so that many small, often requested pyramids
+	 *  outlive a few large ones. The priority of the last victim is added
+	 *  to the priority of every pyramid accessed afterwards, so that
+	 *  pyramids that are no longer requested age out. */
+	static public class SizeAwarePolicy implements EvictionPolicy {
+		private final class Entry implements Comparable<Entry> {
+			final long id;
+			long bytes;
+			int frequency = 1;
+			double priority;
+			Entry(final long id, final long bytes) {
+				this.id = id;
+				this.bytes = bytes;
+				prioritize();
+			}
+			final void prioritize() {
+				this.priority = inflation + (frequency * 1024.0) / Math.max(1, bytes);
+			}
+			@Override
+			public int compareTo(final Entry e) {
+				if (priority < e.priority) return -1;
+				if (priority > e.priority) return 1;
+				return id < e.id ? -1 : (id == e.id ? 0 : 1);
+			}
+		}
+
+		private final HashMap<Long,Entry> entries = new HashMap<Long,Entry>();
+		private final TreeSet<Entry> queue = new TreeSet<Entry>();
+		private double inflation = 0;
+
+		private final void update(final Entry e, final long bytes, final int frequency_increment) {
+			queue.remove(e);
+			e.bytes = bytes;
+			e.frequency += frequency_increment;
+			e.prioritize();
+			queue.add(e);
+		}
+
+		@Override
+		public void inserted(final long id, final long bytes) {
+			final Entry e = new Entry(id, bytes);
+			final Entry old = entries.put(id, e);
+			if (null != old) queue.remove(old);
+			queue.add(e);
+		}
+		@Override
+		public void accessed(final long id) {
+			final Entry e = entries.get(id);
+			if (null != e) update(e, e.bytes, 1);
+		}
+		@Override
+		public void resized(final long id, final long bytes) {
+			final Entry e = entries.get(id);
+			if (null != e) update(e, bytes, 0);
+		}
+		@Override
+		public void removed(final long id) {
+			final Entry e = entries.remove(id);
+			if (null != e) queue.remove(e);
+		}
+		@Override
+		public long victim() {
+			return queue.isEmpty() ? Long.MIN_VALUE : queue.first().id;
+		}
+		@Override
+		public void evicting(final long id) {
+			final Entry e = entries.get(id);
+			if (null != e) inflation = Math.max(inflation, e.priority);
+		}
+		@Override
+		public void skipped(final long id) {
+			// Behind all others, with its frequency unchanged
+			final Entry e = entries.get(id);
+			if (null == e || e == queue.last()) return;
+			queue.remove(e);
+			e.priority = Math.nextUp(queue.last().priority);
+			queue.add(e);
+		}
+		@Override
+		public void clear() {
+			entries.clear();
+			queue.clear();
+			inflation = 0;
+		}
+		@Override
+		public String getName() { return SIZE_AWARE; }
+	}
+}
@@ -70,15 +70,18 @@ import ini.trakem2.display.Stack;
 import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.P;
 import ini.trakem2.io.ImageSaver;
+import ini.trakem2.io.PackedMipMaps;
 import ini.trakem2.io.RagMipMaps;
 import ini.trakem2.io.RawMipMaps;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -126,6 +129,8 @@ import net.imglib2.type.numeric.real.FloatType;
 
 import org.janelia.intensity.LinearIntensityMap;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 
 /** A class to rely on memory only; except images which are rolled from a folder or their original location and flushed when memory is needed for more. Ideally there would be a given folder for storing items temporarily of permanently as the "project folder", but I haven't implemented it. */
@@ -142,6 +147,11 @@ public final class FSLoader extends Loader {
 	private final Map<Long,String> ht_paths = Collections.synchronizedMap(new HashMap<Long,String>());
 	/** For saving and overwriting. */
 	private String project_file_path = null;
+
+	/** Changes since the XML file was last saved, for autosaving them without rewriting the XML file. */
+	private final ChangeJournal journal = new ChangeJournal();
+	/** Whether changes were recovered from the journal when opening, and are not yet in the XML file. */
+	private boolean journal_replayed = false;
 	/** Path to the directory hosting the file image pyramids. */
 	private String dir_mipmaps = null;
 	/** Path to the directory hosting the file image pyramids after mipmaps have been disabled. */
@@ -259,6 +269,7 @@ public final class FSLoader extends Loader {
 
 	/** Returns TMLHandler.getProjectData() . If the path is null it'll be asked for. */
 	public Object[] openFSProject(String path, final boolean open_displays) {
+		startOpening();
 		// clean path of double-slashes, safely (and painfully)
 		if (null != path) {
 			path = path.replace('\\','/');
@@ -305,20 +316,68 @@ public final class FSLoader extends Loader {
 				handler = null;
 			} else {
 				try {
-					SAXParserFactory factory = SAXParserFactory.newInstance();
-					factory.setValidating(false);
-					factory.setXIncludeAware(false);
-					SAXParser parser = factory.newSAXParser();
-					if (isURL(this.project_file_path)) {
-						i_stream = new java.net.URL(this.project_file_path).openStream();
+					final long start = System.currentTimeMillis();
+					final boolean is_url = isURL(this.project_file_path);
+					// Changes autosaved to the journal before a crash are applied onto the XML
+					ChangeJournal.Replay replay = is_url ? null : ChangeJournal.load(this.project_file_path, handler);
+					DefaultHandler target = null == replay ? handler : replay;
+					// Prefer the binary snapshot, when made from this same XML file
+					boolean from_snapshot = false;
+					if (!is_url && ProjectSnapshot.isUpToDate(this.project_file_path)) {
+						try {
+							from_snapshot = ProjectSnapshot.replay(this.project_file_path, target);
+						} catch (SAXException se) {
+							// The handler got part of the project: start over from the XML, into a new one
+							IJError.print(se, true);
+							Utils.log2("Could not read the project snapshot, parsing the XML instead.");
+							ProjectSnapshot.remove(this.project_file_path);
+							handler = new TMLHandler(this.project_file_path, this);
+							if (handler.isUnreadable()) throw new Exception("Can't read the project .xml file " + this.project_file_path);
+							replay = ChangeJournal.load(this.project_file_path, handler);
+							target = null == replay ? handler : replay;
+						}
+					}
+					if (from_snapshot) {
+						Utils.log2("Read the project from its snapshot in " + (System.currentTimeMillis() - start) + " ms");
 					} else {
-						i_stream = new BufferedInputStream(new FileInputStream(this.project_file_path));
+						SAXParserFactory factory = SAXParserFactory.newInstance();
+						factory.setValidating(false);
+						factory.setXIncludeAware(false);
+						SAXParser parser = factory.newSAXParser();
+						if (is_url) {
+							i_stream = new java.net.URL(this.project_file_path).openStream();
+						} else {
+							i_stream = new BufferedInputStream(new FileInputStream(this.project_file_path));
+						}
+						if (lcFilePath.endsWith(".gz")) {
+							i_stream  = new GZIPInputStream(i_stream);
+						}
+						InputSource input_source = new InputSource(i_stream);
+						if (is_url) {
+							parser.parse(input_source, handler);
+						} else {
+							// Write the snapshot for the next time, as the events arrive
+							final ProjectSnapshot.ColumnWriter columns = new ProjectSnapshot.ColumnWriter(this.project_file_path, target);
+							try {
+								parser.parse(input_source, columns);
+							} catch (Exception e) {
+								columns.discard();
+								throw e;
+							}
+							final String xml_path = this.project_file_path;
+							new Thread("ProjectSnapshot writer") { public void run() {
+								if (columns.finish()) Utils.log2("Saved project snapshot at " + ProjectSnapshot.getPath(xml_path));
+							}}.start();
+						}
+						Utils.log2("Parsed the project XML in " + (System.currentTimeMillis() - start) + " ms");
 					}
-					if (lcFilePath.endsWith(".gz")) {
-						i_stream  = new GZIPInputStream(i_stream);
+					if (null != replay) {
+						replay.finish();
+						if (replay.getNApplied() > 0) {
+							journal_replayed = true;
+							Utils.log("Recovered " + replay.getNApplied() + " changes from the journal at " + ChangeJournal.getPath(this.project_file_path) + "\nSave the project to keep them.");
+						}
 					}
-					InputSource input_source = new InputSource(i_stream);
-					parser.parse(input_source, handler);
 				} catch (java.io.FileNotFoundException fnfe) {
 					Utils.log("ERROR: File not found: " + path);
 					handler = null;
@@ -349,9 +408,32 @@ public final class FSLoader extends Loader {
 		}
 		// else, good
 		crashDetector();
+		journal.activate();
 		return data;
 	}
 
+	/** Whether there are changes not yet in the XML file, including those recovered from the journal. */
+	@Override
+	public boolean hasChanges() {
+		return super.hasChanges() || journal_replayed;
+	}
+
+	/** Appends the changes since the last autosave to the journal, unless they need a full save. */
+	@Override
+	public boolean saveIncrementally(final Project project) {
+		if (null == project_file_path || isURL(project_file_path)) return false;
+		return journal.append(project_file_path);
+	}
+
+	/** The XML file at @param xml_path, and now at project_file_path, has all changes: the journal is obsolete.
+	 *  Only saving clears the journal: resetting the changed flag, as is done after opening a project, must not. */
+	private final void compactJournal(final String xml_path) {
+		ChangeJournal.remove(xml_path);
+		ChangeJournal.remove(project_file_path);
+		journal.clear();
+		journal_replayed = false;
+	}
+
 	// Only one thread at a time may access this method.
 	synchronized static private final Project getOpenProject(final String project_file_path, final Loader caller) {
 		if (null == v_loaders) return null;
@@ -386,14 +468,14 @@ public final class FSLoader extends Loader {
 		if (null != regenerator && !regenerator.isShutdown()) {
 			regenerator.shutdown();
 		}
-		regenerator = Utils.newFixedThreadPool(Math.max(1, n_threads), "regenerator");
+		regenerator = new MipMapRegenerator(Math.max(1, n_threads), "regenerator");
 		Utils.logAll("Restarted mipmap Executor Service for all projects with " + n_threads + " threads.");
 	}
 
 	static private void startStaticServices() {
 		// Up to nStaticServiceThreads for regenerator and repainter
 		if (null == regenerator || regenerator.isShutdown()) {
-			regenerator = Utils.newFixedThreadPool(1, "regenerator");
+			regenerator = new MipMapRegenerator(1, "regenerator");
 		}
 		if (null == repainter || repainter.isShutdown()) {
 			repainter = Utils.newFixedThreadPool(nStaticServiceThreads, "repainter"); // for SnapshotPanel
@@ -445,6 +527,8 @@ public final class FSLoader extends Loader {
 				try { f.delete(); } catch (Exception e) { Utils.log("Could not remove empty trakem2.mipmaps directory."); }
 			}
 		}
+		// Closing without saving discards the changes, including those in the journal
+		if (journal.isActive()) ChangeJournal.remove(project_file_path);
 		// remove crash detector
 		try {
 			File fm = new File(dir_mipmaps + ".open.t2");
@@ -745,6 +829,7 @@ public final class FSLoader extends Loader {
 	 * Always returns true. Does not check if another object has the same id.
 	 */
 	public boolean addToDatabase(final DBObject ob) {
+		journal.changed(ob, (String)null);
 		synchronized (db_lock) {
 			setChanged(true);
 			final long id = ob.getId();
@@ -767,6 +852,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final String key) {
 		// Should only be GUI-driven
 		setChanged(true);
+		journal.changed(ob, key);
 		//
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
@@ -778,6 +864,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final Set<String> keys) {
 		// Should only be GUI-driven
 		setChanged(true);
+		journal.changed(ob, keys);
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
 			if (keys.contains("tiff_working")) return null != setImageFile(p, fetchImagePlus(p));
@@ -786,6 +873,7 @@ public final class FSLoader extends Loader {
 	}
 
 	public boolean removeFromDatabase(final DBObject ob) {
+		journal.removed(ob);
 		synchronized (db_lock) {
 			setChanged(true);
 			// remove from the hashtable
@@ -795,6 +883,7 @@ public final class FSLoader extends Loader {
 				try {
 					// STRATEGY change: images are not owned by the FSLoader.
 					Patch p = (Patch)ob;
+					cancelMipMapRegeneration(p);
 					if (!ob.getProject().getBooleanProperty("keep_mipmaps")) removeMipMaps(p);
 					ht_paths.remove(p.getId()); // after removeMipMaps !
 					mawts.remove(loid);
@@ -1052,6 +1141,7 @@ public final class FSLoader extends Loader {
 		if (null != result) {
 			Utils.logAll(Utils.now() + " Saved " + project);
 			touched_mipmaps.clear();
+			compactJournal(project_file_path);
 		}
 		return result;
 	}
@@ -1061,6 +1151,7 @@ public final class FSLoader extends Loader {
 	public String saveAs(Project project, XMLOptions options) {
 		String path = super.saveAs(project, null, options);
 		if (null != path) {
+			compactJournal(this.project_file_path);
 			// update the xml path to point to the new one
 			this.project_file_path = path;
 			Utils.log2("After saveAs, new xml path is: " + path);
@@ -1110,6 +1201,7 @@ public final class FSLoader extends Loader {
 		Project project = Project.findProject(this);
 		path2 = super.saveAs(project, path2, options);
 		if (null != path2) {
+			compactJournal(project_file_path);
 			project_file_path = path2;
 			Utils.logAll("After saveAs, new xml path is: " + path2);
 			ControlWindow.updateTitle(project);
@@ -1570,6 +1662,31 @@ public final class FSLoader extends Loader {
 	 * </p>
 	 */
 	protected boolean generateMipMaps(final Patch patch) {
+		final long t = Metrics.start();
+		final boolean b = createMipMaps(patch);
+		Metrics.timer("mipmap.regenerate").stop(t);
+		if (!b) Metrics.counter("mipmap.regenerate.failed").increment();
+		return b;
+	}
+
+	/** Save the pyramid @param b of @param patch, from @param first_mipmap_level_saved on. */
+	private final void saveMipMaps(final Patch patch, final ImageBytes[] b, final String filename, final int first_mipmap_level_saved) {
+		for (int i=0; i<b.length; ++i) {
+			if (i < first_mipmap_level_saved) {
+				// Ignore level i
+				if (null != b[i]) CachingThread.storeForReuse(b[i].c);
+			} else {
+				boolean written = mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f);
+				if (!written) {
+					Utils.log("Failed to save mipmap with area downsampling at level=" + i + " for patch " + patch);
+					cannot_regenerate.add(patch);
+					break;
+				}
+			}
+		}
+	}
+
+	private final boolean createMipMaps(final Patch patch) {
 		Utils.log2("mipmaps for " + patch);
 		final String path = getAbsolutePath(patch);
 		if (null == path) {
@@ -1613,6 +1730,21 @@ public final class FSLoader extends Loader {
 			// Aggressive cache freeing
 			releaseToFit(patch.getOWidth() * patch.getOHeight() * 4 + MIN_FREE_BYTES);
 
+			// Very large images: with a known display range, map and downsample the level 0 image
+			// strip by strip from the original, so that it is never created whole
+			final int strip_rows = Loader.AREA_DOWNSAMPLING == resizing_mode ? patch.getProject().getProperty("mipmaps_strip_rows", 0) : 0;
+			if (strip_rows > 0 && !(-1 == patch.getMin() && -1 == patch.getMax())) {
+				final long t0 = Metrics.start();
+				final ImageBytes[] b = DownsamplerMipMaps.createInStripsFromSource(patch, strip_rows);
+				if (null != b) {
+					final long t1 = Metrics.start();
+					saveMipMaps(patch, b, createMipMapRelPath(patch, mExt), patch.getProject().getFirstMipMapLevelSaved());
+					Metrics.timer("mipmap.regenerate.downsample").record(t1 - t0);
+					Metrics.timer("mipmap.regenerate.save").stop(t1);
+					return true;
+				}
+			}
+
 			// Obtain an image which may be coordinate-transformed, and an alpha mask.
 			Patch.PatchImage pai = patch.createTransformedImage();
 			if (null == pai || null == pai.target) {
@@ -1689,24 +1821,15 @@ public final class FSLoader extends Loader {
 			final int first_mipmap_level_saved = patch.getProject().getFirstMipMapLevelSaved();
 			
 			if (Loader.AREA_DOWNSAMPLING == resizing_mode) {
-				long t0 = System.currentTimeMillis();
-				final ImageBytes[] b = DownsamplerMipMaps.create(patch, type, ip, alpha_mask, outside_mask);
-				long t1 = System.currentTimeMillis();
-				for (int i=0; i<b.length; ++i) {
-					if (i < first_mipmap_level_saved) {
-						// Ignore level i
-						if (null != b[i]) CachingThread.storeForReuse(b[i].c);
-					} else {
-						boolean written = mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f);
-						if (!written) {
-							Utils.log("Failed to save mipmap with area downsampling at level=" + i + " for patch " + patch);
-							cannot_regenerate.add(patch);
-							break;
-						}
-					}
-				}
-				long t2 = System.currentTimeMillis();
-				System.out.println("MipMaps with area downsampling: creation took " + (t1 - t0) + "ms, saving took " + (t2 - t1) + "ms, total: " + (t2 - t0) + "ms\n");
+				final long t0 = Metrics.start();
+				// Very large images whose display range was not known: downsample each level in parallel strips of rows
+				final ImageBytes[] b = strip_rows > 0 && h > strip_rows ?
+					  DownsamplerMipMaps.createInStrips(patch, type, ip, alpha_mask, outside_mask, strip_rows)
+					: DownsamplerMipMaps.create(patch, type, ip, alpha_mask, outside_mask);
+				final long t1 = Metrics.start();
+				saveMipMaps(patch, b, filename, first_mipmap_level_saved);
+				Metrics.timer("mipmap.regenerate.downsample").record(t1 - t0);
+				Metrics.timer("mipmap.regenerate.save").stop(t1);
 			} else if (Loader.GAUSSIAN == resizing_mode) {
 				if (ImagePlus.COLOR_RGB == type) {
 					// TODO releaseToFit proper
@@ -1805,7 +1928,7 @@ public final class FSLoader extends Loader {
 						}
 					} while (w >= 32 && h >= 32); // not smaller than 32x32
 				} else {
-					long t0 = System.currentTimeMillis();
+					final long t0 = Metrics.start();
 					// Greyscale:
 					releaseToFit(w * h * 4 * 10);
 
@@ -1884,8 +2007,7 @@ public final class FSLoader extends Loader {
 						k++;
 					} while (fp.getWidth() >= 32 && fp.getHeight() >= 32); // not smaller than 32x32
 
-					long t1 = System.currentTimeMillis();
-					System.out.println("MipMaps took " + (t1 - t0));
+					Metrics.timer("mipmap.regenerate.gaussian").stop(t0);
 				}
 			} else {
 				Utils.log("ERROR: unknown image resizing mode for mipmaps: " + resizing_mode);
@@ -2086,7 +2208,8 @@ public final class FSLoader extends Loader {
 		// synch, so that multithreaded generateMipMaps won't collide trying to create dirs
 		synchronized (FSLOCK) {
 			final String path = new StringBuilder(dir_mipmaps).append(level).append('/').toString();
-			if (isURL(dir_mipmaps)) {
+			if (isURL(dir_mipmaps) || MIPMAP_PACKED == mipmaps_format) {
+				// packed: the level folders are not used, see RWImagePacked
 				return path;
 			}
 			final File file = new File(path);
@@ -2279,6 +2402,12 @@ public final class FSLoader extends Loader {
 	}
 
 	private void removeMipMaps(final String filename, final int width, final int height) {
+		if (filename.endsWith(MIPMAP_FORMATS[MIPMAP_PACKED])) {
+			if (!PackedMipMaps.remove(dir_mipmaps + PACKED_DIR + filename)) {
+				Utils.log2("Could not remove file " + dir_mipmaps + PACKED_DIR + filename);
+			}
+			return;
+		}
 		int w = width;
 		int h = height;
 		int k = 0; // the level
@@ -2320,6 +2449,11 @@ public final class FSLoader extends Loader {
 				// find max level that keeps dim over 32 pixels
 				if (level > max_level) return max_level;
 				return level;
+			} else if (MIPMAP_PACKED == mipmaps_format) {
+				final int levels = PackedMipMaps.levels(dir_mipmaps + PACKED_DIR + createIdPath(Long.toString(patch.getId()), new File(path).getName(), mExt));
+				for (; level >= 0; level--) {
+					if (0 != (levels & (1 << level))) return level;
+				}
 			} else {
 				do {
 					final File f = new File(new StringBuilder(dir_mipmaps).append(level).append('/').append(filename).toString());
@@ -2348,6 +2482,9 @@ public final class FSLoader extends Loader {
 		if (null == dir_mipmaps) return false;
 		final int level = getMipMapLevel(magnification, maxDim(p));
 		if (isURL(dir_mipmaps)) return true; // just assume that it does
+		if (MIPMAP_PACKED == mipmaps_format) {
+			return 0 != (PackedMipMaps.levels(dir_mipmaps + PACKED_DIR + createIdPath(Long.toString(p.getId()), new File(getAbsolutePath(p)).getName(), mExt)) & (1 << level));
+		}
 		if (new File(dir_mipmaps + level + "/" + new File(getAbsolutePath(p)).getName() + "." + p.getId() + mExt).exists()) return true;
 		return false;
 	}
@@ -2415,9 +2552,23 @@ public final class FSLoader extends Loader {
 		}
 		while (retries < MAX_RETRIES) {
 			try {
-				// TODO should wait if the file is currently being generated
+				// Don't read files that are being removed or written. Painting doesn't wait:
+				// callers that must wait use fetchDataImage, which waits on the regeneration's shared future
+				synchronized (gm_lock) {
+					if (regenerating_mipmaps.containsKey(patch)) {
+						return new MipMapImage( REGENERATING, patch.getWidth() / REGENERATING.getWidth(), patch.getHeight() / REGENERATING.getHeight() );
+					}
+				}
 
-				final MipMapImage mipMap = fetchMipMap(patch, level, n_bytes);
+				final long t = Metrics.start();
+				MipMapImage mipMap = null;
+				try {
+					mipMap = fetchMipMap(patch, level, n_bytes);
+				} finally {
+					// Failures too, which may be the slow ones, as when storage times out
+					Metrics.timer("mipmap.decode").stop(t);
+					if (null == mipMap) Metrics.counter("mipmap.decode.failed").increment();
+				}
 				if (null != mipMap) return mipMap;
 
 				// if we got so far ... try to regenerate the mipmaps
@@ -2440,6 +2591,7 @@ public final class FSLoader extends Loader {
 					regenerateMipMaps( patch );
 					return new MipMapImage( REGENERATING, patch.getWidth() / REGENERATING.getWidth(), patch.getHeight() / REGENERATING.getHeight() );
 				}
+				return null;
 			} catch (OutOfMemoryError oome) {
 				Utils.log2("fetchMipMapAWT: recovering from OutOfMemoryError");
 				recoverOOME();
@@ -2454,7 +2606,7 @@ public final class FSLoader extends Loader {
 	}
 
 	static private AtomicInteger n_regenerating = new AtomicInteger(0);
-	static private ExecutorService regenerator = null;
+	static private MipMapRegenerator regenerator = null;
 	static private ExecutorService remover = null;
 	static public ExecutorService repainter = null;
 	static private int nStaticServiceThreads = nStaticServiceThreads();
@@ -2512,7 +2664,7 @@ public final class FSLoader extends Loader {
 				//Utils.log2("calling removeMipMaps from regenerateMipMaps");
 				final Future<Boolean> removing = removeMipMaps(patch);
 
-				fu = regenerator.submit(new Callable<Boolean>() {
+				fu = regenerator.submit(patch, new Callable<Boolean>() {
 					public Boolean call() {
 						boolean b = false;
 						try {
@@ -2542,6 +2694,36 @@ public final class FSLoader extends Loader {
 		}
 	}
 
+	/** Remove the regeneration of mipmaps for @param patch from the queue, if it has not started yet.
+	 *  Returns true if it was removed. */
+	@Override
+	public boolean cancelMipMapRegeneration(final Patch patch) {
+		synchronized (gm_lock) {
+			final Future<Boolean> fu = regenerating_mipmaps.get(patch);
+			if (!(fu instanceof MipMapRegenerator.Task)) return false;
+			final MipMapRegenerator.Task task = (MipMapRegenerator.Task)fu;
+			if (!regenerator.remove(task)) return false; // already running or done
+			task.cancel(false);
+			regenerating_mipmaps.remove(patch);
+			n_regenerating.decrementAndGet();
+			Utils.log2("Cancelled mipmap regeneration for " + patch);
+			return true;
+		}
+	}
+
+	/** Number of patches waiting for their mipmaps to be regenerated, for all projects. */
+	@Override
+	public int getMipMapRegenerationQueueDepth() {
+		final MipMapRegenerator r = regenerator;
+		return null == r ? 0 : r.getQueueDepth();
+	}
+
+	@Override
+	public void setMipMapRegenerationView(final Layer layer, final Rectangle srcRect) {
+		final MipMapRegenerator r = regenerator;
+		if (null != r) r.setView(layer, srcRect);
+	}
+
 	/** Compute the number of bytes that the ImagePlus of a Patch will take. Assumes a large header of 1024 bytes. If the image is saved as a grayscale jpeg the returned bytes will be 5 times as expected, because jpeg images are opened as int[] and then copied to a byte[] if all channels have the same values for all pixels. */ // The header is unnecessary because it's read, but not stored except for some of its variables; it works here as a safety buffer space.
 	public long estimateImageFileSize(final Patch p, final int level) {
 		if (level > 0) {
@@ -2771,6 +2953,8 @@ public final class FSLoader extends Loader {
 					return mipMap;
 				}
 				
+			} catch (final InterruptedException ie) {
+				Thread.currentThread().interrupt();
 			} catch (Throwable e) {
 				IJError.print(e);
 			}
@@ -2865,14 +3049,19 @@ public final class FSLoader extends Loader {
 	////////////////////
 
 
-	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag"};
+	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag", ".t2m"};
 	static public final int MIPMAP_JPEG = 0;
 	static public final int MIPMAP_PNG = 1;
 	static public final int MIPMAP_TIFF = 2;
 	static public final int MIPMAP_RAW = 3;
 	static public final int MIPMAP_RAG = 4;
+	/** All levels of a patch in one file; see {@link PackedMipMaps}. */
+	static public final int MIPMAP_PACKED = 5;
 
-	static private final int MIPMAP_HIGHEST = MIPMAP_RAG; // WARNING: update this value if other formats are added
+	static private final int MIPMAP_HIGHEST = MIPMAP_PACKED; // WARNING: update this value if other formats are added
+
+	/** Subfolder of the mipmaps folder holding the files of the {@link #MIPMAP_PACKED} format. */
+	static private final String PACKED_DIR = "packed/";
 
 	// Default: RAG
 	private int mipmaps_format = MIPMAP_RAG;
@@ -2891,13 +3080,15 @@ public final class FSLoader extends Loader {
 				return new RWImageRaw();
 			case MIPMAP_RAG:
 				return new RWImageRag();
+			case MIPMAP_PACKED:
+				return new RWImagePacked();
 			// WARNING add here another one
 		}
 		return null;
 	}
 
 	/** Any of: {@link #MIPMAP_JPEG}, {@link #MIPMAP_PNG}, {@link #MIPMAP_TIFF}, {@link #MIPMAP_RAW},
-	 * {@link #MIPMAP_RAG}. */
+	 * {@link #MIPMAP_RAG}, {@link #MIPMAP_PACKED}. */
 	@Override
 	public final int getMipMapFormat() {
 		return mipmaps_format;
@@ -2911,6 +3102,7 @@ public final class FSLoader extends Loader {
 			case MIPMAP_TIFF:
 			case MIPMAP_RAW:
 			case MIPMAP_RAG:
+			case MIPMAP_PACKED:
 				this.mipmaps_format = format;
 				this.mExt = MIPMAP_FORMATS[mipmaps_format];
 				this.mmio = newMipMapRWImage();
@@ -2922,7 +3114,8 @@ public final class FSLoader extends Loader {
 	}
 
 	/** Removes all mipmap files and recreates them with the currently set mipmaps format.
-	 *  @param old_format Any of MIPMAP_JPEG, MIPMAP_PNG in which files were saved before. */
+	 *  @param old_format Any of MIPMAP_JPEG, MIPMAP_PNG in which files were saved before.
+	 *  Converts existing projects to and from {@link #MIPMAP_PACKED}. */
 	@Override
 	public Bureaucrat updateMipMapsFormat(final int old_format, final int new_format) {
 		if (old_format < 0 || old_format > MIPMAP_HIGHEST) {
@@ -3107,11 +3300,11 @@ public final class FSLoader extends Loader {
 	private final class RWImageRaw extends RWImage {
 		@Override
 		final BufferedImage open(final String path) {
-			return RawMipMaps.read(path);
+			return RawMipMaps.readDirect(path);
 		}
 		@Override
 		final BufferedImage openGrey(final String path) {
-			return ImageSaver.asGrey(RawMipMaps.read(path)); // TODO may not need the asGrey if all is correct
+			return ImageSaver.asGrey(RawMipMaps.readDirect(path)); // TODO may not need the asGrey if all is correct
 		}
 		@Override
 		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
@@ -3140,6 +3333,56 @@ public final class FSLoader extends Loader {
 			}
 		}
 	}
+	/** Receives the same per-level paths as the other formats, that is, dir_mipmaps + level + "/" + relative path,
+	 *  and maps them to the level within the single file at dir_mipmaps + "packed/" + relative path. */
+	private final class RWImagePacked extends RWImage {
+		/** Returns the level encoded in the path, or -1 if the path is not within the mipmaps folder. */
+		private final int level(final String path) {
+			final String dir = dir_mipmaps;
+			if (null == dir || !path.startsWith(dir)) return -1;
+			final int slash = path.indexOf('/', dir.length());
+			if (-1 == slash) return -1;
+			try {
+				return Integer.parseInt(path.substring(dir.length(), slash));
+			} catch (NumberFormatException nfe) {
+				return -1;
+			}
+		}
+		/** Assumes {@link #level(String)} was not -1. */
+		private final String container(final String path) {
+			final String dir = dir_mipmaps;
+			return new StringBuilder(dir).append(PACKED_DIR).append(path.substring(path.indexOf('/', dir.length()) + 1)).toString();
+		}
+		private final BufferedImage read(final String path) {
+			final int level = level(path);
+			if (-1 == level) {
+				Utils.log2("Not a packed mipmap path: " + path);
+				return null;
+			}
+			return PackedMipMaps.read(container(path), level);
+		}
+		@Override
+		final BufferedImage open(final String path) {
+			return read(path);
+		}
+		@Override
+		final BufferedImage openGrey(final String path) {
+			return ImageSaver.asGrey(read(path));
+		}
+		@Override
+		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
+			try {
+				final int level = level(path);
+				if (-1 == level) {
+					Utils.log2("Not a packed mipmap path: " + path);
+					return false;
+				}
+				return PackedMipMaps.save(container(path), level, b, width, height);
+			} finally {
+				CachingThread.storeForReuse(b);
+			}
+		}
+	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
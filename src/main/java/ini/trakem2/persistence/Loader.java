@@ -82,6 +82,9 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -151,6 +154,7 @@ import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.Dispatcher;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.Montage;
 import ini.trakem2.utils.Saver;
 import ini.trakem2.utils.Utils;
@@ -253,7 +257,11 @@ abstract public class Loader {
 		}
 	}
 
-	transient protected final Cache mawts = new Cache((long)(MAX_MEMORY * heap_fraction));
+	/** Thread-safe: simple lookups and insertions need not synchronize on db_lock. */
+	transient protected final StripedCache mawts = new StripedCache((long)(MAX_MEMORY * heap_fraction));
+
+	/** Second-tier cache, outside of the heap, for the images evicted from mawts. Null when disabled. */
+	transient private volatile OffHeapMipMapStore offheap = null;
 
 	static transient protected Vector<Loader> v_loaders = new Vector<Loader>(); // Vector: synchronized
 
@@ -261,16 +269,58 @@ abstract public class Loader {
 	private final Set<String> stale_files = Collections.synchronizedSet(new HashSet<String>());
 
 	private final void setMaxBytes(final long max_bytes) {
+		try {
+			mawts.setMaxBytes(max_bytes);
+			Utils.log2("Cache max bytes: " + mawts.getMaxBytes());
+		} catch (final Throwable t) {
+			handleCacheError(t);
+		}
+	}
+
+	/** Set the order in which cached images are thrown out when making room; @param name is one of {@link EvictionPolicy#NAMES}. */
+	public void setCacheEvictionPolicy(final String name) {
+		try {
+			mawts.setEvictionPolicy(name);
+			Utils.log2("Cache eviction policy: " + mawts.getEvictionPolicyName());
+		} catch (final Throwable t) {
+			handleCacheError(t);
+		}
+	}
+
+	public String getCacheEvictionPolicy() {
+		return mawts.getEvictionPolicyName();
+	}
+
+	/** Set the size of the second-tier, off-heap cache for mipmap images evicted from the heap cache.
+	 *  Zero or negative disables it and releases its memory. */
+	public void setOffHeapCacheBytes(final long max_bytes) {
 		synchronized (db_lock) {
 			try {
-				mawts.setMaxBytes(max_bytes);
-				Utils.log2("Cache max bytes: " + mawts.getMaxBytes());
+				if (max_bytes <= 0) {
+					if (null != offheap) {
+						mawts.setSpill(null);
+						offheap.clear();
+						offheap = null;
+					}
+				} else if (null == offheap) {
+					offheap = new OffHeapMipMapStore(max_bytes);
+					mawts.setSpill(offheap);
+				} else {
+					offheap.setMaxBytes(max_bytes);
+				}
+				Utils.log2("Off-heap cache max bytes: " + getOffHeapCacheBytes());
 			} catch (final Throwable t) {
 				handleCacheError(t);
 			}
 		}
 	}
 
+	/** Returns zero when there is no off-heap cache. */
+	public long getOffHeapCacheBytes() {
+		final OffHeapMipMapStore oh = offheap;
+		return null == oh ? 0 : oh.getMaxBytes();
+	}
+
 	static public void debug() {
 		Utils.log2("v_loaders: " + Utils.toString(v_loaders));
 	}
@@ -571,7 +621,10 @@ abstract public class Loader {
 	static public void printCacheStatus() {
 		int i = 1;
 		for (final Loader lo : new ArrayList<Loader>(v_loaders)) {
-			Utils.log2("Loader " + (i++) + " : mawts: " + lo.mawts.size());
+			Utils.log2("Loader " + (i++) + " : mawts: " + lo.mawts.size()
+					+ " hits: " + lo.mawts.getHits() + " misses: " + lo.mawts.getMisses() + " evictions: " + lo.mawts.getEvictions()
+					+ " (" + lo.mawts.getEvictionPolicyName() + ")"
+					+ " mipmaps queued for regeneration: " + lo.getMipMapRegenerationQueueDepth());
 		}
 	}
 
@@ -778,34 +831,28 @@ abstract public class Loader {
 
 	/** Removes from the cache all awt images bond to the given id. */
 	public void decacheAWT(final long id) {
-		synchronized (db_lock) {
-			try {
-				mawts.removeAndFlushPyramid(id); // where are my lisp macros! Wrapping any function in a synch/lock/unlock could be done crudely with reflection, but what a pain
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.removeAndFlushPyramid(id); // where are my lisp macros! Wrapping any function in a synch/lock/unlock could be done crudely with reflection, but what a pain
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 
 	public Image getCachedAWT(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				return mawts.get(id, level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.get(id, level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
 
 	public void cacheAWT( final long id, final Image awt) {
 		if (null == awt) return;
-		synchronized (db_lock) {
-			try {
-				mawts.put(id, awt, 0);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.put(id, awt, 0);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 
@@ -868,71 +915,75 @@ abstract public class Loader {
 	}
 
 	public boolean isImagePlusCached(final Patch p) {
-		synchronized (db_lock) {
-			try {
-				return null != mawts.get(p.getId());
-			} catch (final Throwable t) {
-				handleCacheError(t);
-				return false;
-			}
+		try {
+			return null != mawts.get(p.getId());
+		} catch (final Throwable t) {
+			handleCacheError(t);
+			return false;
 		}
 	}
 
+	/** Maximum desired size of the image cache, in bytes. */
+	public long getCacheMaxBytes() {
+		return mawts.getMaxBytes();
+	}
+
+	/** Estimated size of the images in the cache, in bytes. */
+	public long getCacheBytes() {
+		return mawts.getBytes();
+	}
+
+	/** Bytes in use by the off-heap cache, or zero when there is none. */
+	public long getOffHeapCacheUsedBytes() {
+		final OffHeapMipMapStore oh = offheap;
+		return null == oh ? 0 : oh.getBytes();
+	}
+
 	/** Returns true if there is a cached awt image for the given mag and Patch id. */
 	public boolean isCached(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.contains(p.getId(), level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-				return false;
-			}
+		try {
+			return mawts.contains(p.getId(), level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
+			return false;
 		}
 	}
 
 	public MipMapImage getCached(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestAbove(id, level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestAbove(id, level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
 	
 	/** Only the indicated level for the given Patch id. */
 	public void removeCached(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				mawts.remove(id, level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.remove(id, level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 	
 	/** All levels of the Patch. */
 	public void removeCached(final long id) {
-		synchronized (db_lock) {
-			try {
-				mawts.remove(id);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.remove(id);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 
 	/** Above or equal in size. */
 	public MipMapImage getCachedClosestAboveImage(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestAbove(p.getId(), level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestAbove(p.getId(), level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -940,12 +991,68 @@ abstract public class Loader {
 	/** Below, not equal. */
 	public MipMapImage getCachedClosestBelowImage(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestBelow(p.getId(), level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
+		try {
+			return mawts.getClosestBelow(p.getId(), level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
+		}
+		return null;
+	}
+
+	/** Mipmap files being read, by {@link #flightKey(long, int)}: concurrent requests for the same level of the same Patch share one read. */
+	private final ConcurrentHashMap<Long,CompletableFuture<MipMapImage>> mipmap_flights = new ConcurrentHashMap<Long,CompletableFuture<MipMapImage>>();
+
+	/** Mipmap levels are below 32. */
+	static private final long flightKey(final long id, final int level) {
+		return (id << 5) | level;
+	}
+
+	/** Returns the future image of the mipmap file at @param level of @param p, which is put into the cache when read.
+	 *  The first caller reads the file in its own thread, and every caller that arrives meanwhile
+	 *  gets the same future; the calling threads of the later ones wait for it in {@link #awaitMipMap(CompletableFuture)}.
+	 *  If the mipmaps of the Patch are being regenerated, the image is {@link #REGENERATING}, which is not cached:
+	 *  callers that must wait for the regeneration use {@link #fetchDataImage(Patch, double)}.
+	 *  @param size_level the level whose size is used to estimate the memory to free. */
+	protected final CompletableFuture<MipMapImage> loadMipMapOnce(final Patch p, final int level, final int size_level) {
+		final long id = p.getId();
+		final Long key = flightKey(id, level);
+		final CompletableFuture<MipMapImage> mine = new CompletableFuture<MipMapImage>();
+		final CompletableFuture<MipMapImage> flight = mipmap_flights.putIfAbsent(key, mine);
+		if (null != flight) return flight;
+		try {
+			// Check if a previous flight made it, now that this one is the only one
+			final Image mawt = mawts.get(id, level);
+			if (null != mawt) {
+				final double scale = Math.pow( 2.0, level );
+				mine.complete(new MipMapImage( mawt, scale, scale ));
+				return mine;
 			}
+			final long n_bytes = estimateImageFileSize( p, size_level );
+			// going to load:
+			releaseToFit( n_bytes * 8 );
+			final MipMapImage mipMap = fetchMipMapAWT( p, level, n_bytes );
+			if ( null != mipMap && REGENERATING != mipMap.image ) {
+				mawts.put( id, mipMap.image, level );
+				Display.repaintSnapshot(p);
+			}
+			mine.complete(mipMap);
+		} catch (final Throwable t) {
+			mine.completeExceptionally(t);
+		} finally {
+			mipmap_flights.remove(key, mine);
+		}
+		return mine;
+	}
+
+	/** Waits for the @param flight and returns its image, or null if it failed. */
+	static protected final MipMapImage awaitMipMap(final CompletableFuture<MipMapImage> flight) {
+		try {
+			return flight.get();
+		} catch (final ExecutionException ee) {
+			IJError.print(ee.getCause());
+		} catch (final InterruptedException ie) {
+			Utils.log2("Interrupted while waiting for a mipmap");
+			Thread.currentThread().interrupt();
 		}
 		return null;
 	}
@@ -988,113 +1095,92 @@ abstract public class Loader {
 	 * If the mag is bigger than 1.0, it will return as if was 1.0.
 	 * Will return Loader.NOT_FOUND if, err, not found (probably an Exception will print along).
 	 */
-	public MipMapImage fetchImage( final Patch p, double mag ) {
+	public MipMapImage fetchImage( final Patch p, final double mag ) {
+		return fetchAWTImage(p, getFetchLevel(p, mag), Loader.getHighestMipMapLevel(p));
+	}
 
+	/** The mipmap level that {@link #fetchImage(Patch, double)} reads for @param mag. */
+	protected final int getFetchLevel( final Patch p, double mag ) {
 		if (mag > 1.0) mag = 1.0; // Don't want to create gigantic images!
 		final int max_level = Loader.getHighestMipMapLevel(p);
-		
-		final int level = Math.max(Math.min(max_level,
-				                            Loader.getMipMapLevel(mag, maxDim(p))),
-				                   Math.max(0,
-				                		    p.getProject().getFirstMipMapLevelSaved()));
 
-		return fetchAWTImage(p, level, max_level);
+		return Math.max(Math.min(max_level,
+				                 Loader.getMipMapLevel(mag, maxDim(p))),
+				        Math.max(0,
+				                 p.getProject().getFirstMipMapLevelSaved()));
 	}
 
+	/** Time every call into the "mipmap.fetch" {@link Metrics} timer, whether from the cache, a file, or the original image. */
 	final public MipMapImage fetchAWTImage(final Patch p, final int level, final int max_level) {
+		final long t = Metrics.start();
+		try {
+			return doFetchAWTImage(p, level, max_level);
+		} finally {
+			Metrics.timer("mipmap.fetch").stop(t);
+		}
+	}
+
+	private final MipMapImage doFetchAWTImage(final Patch p, final int level, final int max_level) {
 		// Below, the complexity of the synchronized blocks is to provide sufficient granularity. Keep in mind that only one thread at at a time can access a synchronized block for the same object (in this case, the db_lock), and thus calling lock() and unlock() is not enough. One needs to break the statement in as many synch blocks as possible for maximizing the number of threads concurrently accessing different parts of this function.
 
 		// find an equal or larger existing pyramid awt
 		final long id = p.getId();
 		ImageLoadingLock plock = null;
 
-		synchronized (db_lock) {
+		if (null == mawts) {
+			return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
+		}
+
+		if (level >= 0 && isMipMapsRegenerationEnabled()) {
+			// 1 - check if the exact level is cached: the cache is thread-safe, no need for the db_lock
 			try {
-				if (null == mawts) {
-					return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
+				final Image mawt = mawts.get( id, level );
+				if (null != mawt) {
+					//Utils.log2("returning cached exact mawt for level " + level);
+					Metrics.counter("mipmap.cache.hit").increment();
+					final double scale = Math.pow( 2.0, level );
+					return new MipMapImage( mawt, scale, scale );
 				}
-				if (level >= 0 && isMipMapsRegenerationEnabled()) {
-					// 1 - check if the exact level is cached
-					final Image mawt = mawts.get( id, level );
-					if (null != mawt) {
-						//Utils.log2("returning cached exact mawt for level " + level);
+				// 1b - check if it was evicted into the off-heap cache
+				final OffHeapMipMapStore oh = offheap;
+				if (null != oh) {
+					final Image img = oh.take( id, level );
+					if (null != img) {
+						Metrics.counter("mipmap.cache.offheap_hit").increment();
+						mawts.put( id, img, level );
 						final double scale = Math.pow( 2.0, level );
-						return new MipMapImage( mawt, scale, scale );
+						return new MipMapImage( img, scale, scale );
 					}
-					plock = getOrMakeImageLoadingLock(p.getId(), level);
 				}
-			} catch (final Exception e) {
-				IJError.print(e);
+				Metrics.counter("mipmap.cache.miss").increment();
+			} catch (final Throwable t) {
+				handleCacheError(t);
 			}
 		}
 
 		MipMapImage mipMap = null;
 
-		// 2 - check if the exact file is present for the desired level
+		// 2 - check if the exact file is present for the desired level: only one thread reads it, the others wait for it
 		if (level >= 0 && isMipMapsRegenerationEnabled()) {
-			synchronized (plock) {
-				final Image mawt;
-				synchronized (db_lock) {
-					mawt = mawts.get( id, level );
-				}
-				if (null != mawt) {
-					final double scale = Math.pow( 2.0, level );
-					return new MipMapImage( mawt, scale, scale ); // was loaded by a different thread
-				}
-			}
-
-			final long n_bytes = estimateImageFileSize( p, level );
-
-			// going to load:
-			releaseToFit( n_bytes * 8 );
-
-			synchronized (plock) {
-				try {
-					mipMap = fetchMipMapAWT( p, level, n_bytes );
-				} catch (final Throwable t) {
-					IJError.print(t);
-					mipMap = null;
-				}
-
-				synchronized (db_lock) {
-					try {
-						if ( null != mipMap ) {
-							//Utils.log2("returning exact mawt from file for level " + level);
-							if ( REGENERATING != mipMap.image ) {
-								mawts.put( id, mipMap.image, level );
-								Display.repaintSnapshot(p);
-							}
-							return mipMap;
-						}
+			mipMap = awaitMipMap(loadMipMapOnce(p, level, level));
+			if (null != mipMap) return mipMap;
 
-						// Check if an appropriate level is cached
-						mipMap = mawts.getClosestAbove(id, level);
-
-						if ( mipMap == null ) {
-							// 3 - else, load closest level to it but still giving a larger image
-							final int lev = getClosestMipMapLevel(p, level, max_level); // finds the file for the returned level, otherwise returns zero
-							//Utils.log2("closest mipmap level is " + lev);
-							if (lev > -1) {
-								mipMap = fetchMipMapAWT( p, lev, n_bytes ); // overestimating n_bytes
-								if ( null != mipMap ) {
-									mawts.put( id, mipMap.image, lev );
-									//Utils.log2("from getClosestMipMapLevel: mawt is " + mawt);
-									Display.repaintSnapshot( p );
-									//Utils.log2("returning from getClosestMipMapAWT with level " + lev);
-									return mipMap;
-								}
-							} else if (ERROR_PATH_NOT_FOUND == lev) {
-								mipMap = new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
-							}
-						} else {
-							return mipMap;
-						}
-					} catch (final Throwable t) {
-						handleCacheError(t);
-					} finally {
-						removeImageLoadingLock(plock);
-					}
+			try {
+				// Check if an appropriate level is cached
+				mipMap = mawts.getClosestAbove(id, level);
+				if (null != mipMap) return mipMap;
+
+				// 3 - else, load closest level to it but still giving a larger image
+				final int lev = getClosestMipMapLevel(p, level, max_level); // finds the file for the returned level, otherwise returns zero
+				//Utils.log2("closest mipmap level is " + lev);
+				if (lev > -1) {
+					mipMap = awaitMipMap(loadMipMapOnce(p, lev, level)); // overestimating n_bytes
+					if (null != mipMap) return mipMap;
+				} else if (ERROR_PATH_NOT_FOUND == lev) {
+					mipMap = new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
 				}
+			} catch (final Throwable t) {
+				handleCacheError(t);
 			}
 		}
 
@@ -1197,12 +1283,10 @@ abstract public class Loader {
 
 	/** Simply reads from the cache, does no reloading at all. If the ImagePlus is not found in the cache, it returns null and the burden is on the calling method to do reconstruct it if necessary. This is intended for the LayerStack. */
 	public ImagePlus getCachedImagePlus(final long id) {
-		synchronized(db_lock) {
-			try {
-				return mawts.get(id);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.get(id);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -2815,6 +2899,7 @@ while (it.hasNext()) {
 			final Color background,
 			final Displayable active)
 	{
+		final long t = Metrics.start();
 		try {
 			// dimensions
 			int w = 0;
@@ -2944,6 +3029,14 @@ while (it.hasNext()) {
 			at_original.preConcatenate(atc);
 			g2d.setTransform(at_original);
 
+			// Read the images a few at a time ahead of the painting below, holding only those few at once.
+			// Those of patches whose channels will change are read when painted, once changed.
+			final ArrayList<Patch> patches = new ArrayList<Patch>();
+			for (final Displayable d : al_displ) {
+				if (d.getClass() == Patch.class && c_alphas == ((Patch)d).getChannelAlphas() && !d.isOutOfRepaintingClip(scaleP, srcRect, null)) patches.add((Patch)d);
+			}
+			final FetchAhead ahead = new FetchAhead(patches, scaleP);
+
 			boolean zd_done = false;
 			final List<Layer> layers = layer.getParent().getColorCueLayerRange(layer);
 			for (final Displayable d : al_displ) {
@@ -2957,7 +3050,8 @@ while (it.hasNext()) {
 					}
 				}
 				if (!d.isOutOfRepaintingClip(scaleP, srcRect, null)) {
-					d.paintOffscreen(g2d, srcRect, scaleP, active == d, c_alphas, layer, layers);
+					if (d.getClass() == Patch.class) ((Patch)d).paintOffscreen(g2d, srcRect, scaleP, c_alphas, ahead.take((Patch)d));
+					else d.paintOffscreen(g2d, srcRect, scaleP, active == d, c_alphas, layer, layers);
 				}
 			}
 
@@ -3009,6 +3103,8 @@ while (it.hasNext()) {
 
 		} catch (final Exception e) {
 			IJError.print(e);
+		} finally {
+			Metrics.timer("export.flat_image").stop(t);
 		}
 
 		return null;
@@ -3493,6 +3589,8 @@ while (it.hasNext()) {
 			// On successful renaming, then:
 			setChanged(false);
 			path = fxml.getAbsolutePath().replace('\\', '/');
+			// The binary snapshot that speeds up reopening is stale: the next opening remakes it while parsing
+			if (this instanceof FSLoader) ProjectSnapshot.remove(path);
 			project.setTitle(fxml.getName());
 
 			// Remove the patches_dir if empty (can happen when doing a "save" on a FSLoader project if no new Patch have been created that have no path.
@@ -3681,6 +3779,27 @@ while (it.hasNext()) {
 		return path;
 	}
 
+	/** When the opening of the project started, in milliseconds, until its first Display is painted; zero otherwise. */
+	private final AtomicLong opening_time = new AtomicLong(0);
+
+	/** Start timing the opening of the project, until {@link #firstPainted()}. */
+	protected void startOpening() {
+		opening_time.set(System.currentTimeMillis());
+	}
+
+	/** Called when a Display of the project has painted; reports the time to first paint since {@link #startOpening()}, once. */
+	public void firstPainted() {
+		if (0 == opening_time.get()) return;
+		final long start = opening_time.getAndSet(0);
+		if (0 != start) Utils.log2("Time to first paint: " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/** Save only the changes since the last save or autosave, as the autosaver does.
+	 *  Returns false if that is not possible, and then the project has to be saved in full. */
+	public boolean saveIncrementally(final Project project) {
+		return false;
+	}
+
 	/** Whether any changes need to be saved. */
 	public boolean hasChanges() {
 		return this.changes;
@@ -3877,9 +3996,20 @@ while (it.hasNext()) {
 		for (final Loader lo : (Vector<Loader>)v_loaders.clone()) {
 			final long b = lo.mawts.getBytes();
 			final long mb = lo.mawts.getMaxBytes();
+			if (i > 0) sb.append('\n');
 			sb.append(++i).append(": cache size: " ).append(b).append(" / ").append(mb)
 			.append(" (").append((100 * b) / (float)mb).append("%)")
-			.append(" (ids: ").append(lo.mawts.size()).append(')');
+			.append(" (ids: ").append(lo.mawts.size()).append(')')
+			.append(" hits: ").append(lo.mawts.getHits())
+			.append(" misses: ").append(lo.mawts.getMisses())
+			.append(" evictions: ").append(lo.mawts.getEvictions())
+			.append(" (").append(lo.mawts.getEvictionPolicyName()).append(")");
+			final OffHeapMipMapStore oh = lo.offheap;
+			if (null != oh) {
+				sb.append(" off-heap: ").append(oh.getBytes()).append(" / ").append(oh.getMaxBytes())
+				.append(" (ids: ").append(oh.size()).append(", hits: ").append(oh.getHits())
+				.append(", misses: ").append(oh.getMisses()).append(')');
+			}
 		}
 		Utils.log2(sb.toString());
 	}
@@ -4398,6 +4528,233 @@ while (it.hasNext()) {
 		return fu[0];
 	}
 
+	/** Reads images for {@link #fetchImages(Collection, double, boolean)}: mostly waiting on storage, so more threads than cores. */
+	static private ExecutorService batch_fetcher = null;
+
+	static private int num_batch_fetch_threads = Math.max(4, Math.min(16, 2 * Runtime.getRuntime().availableProcessors()));
+
+	/** Images being read for a batch, by {@link #batchKey(long, int, boolean)}, so that concurrent batches share reads. */
+	private final ConcurrentHashMap<Long,BatchFetch> batch_inflight = new ConcurrentHashMap<Long,BatchFetch>();
+
+	/** Set the number of images read concurrently by {@link #fetchImages(Collection, double, boolean)}, for all projects.
+	 *  Set to zero or one to read images one at a time, in the calling thread. */
+	static public void setupBatchFetchThreads(final int count) {
+		synchronized (Loader.class) {
+			num_batch_fetch_threads = Math.max(0, count);
+			if (null != batch_fetcher) {
+				batch_fetcher.shutdown();
+				batch_fetcher = null;
+			}
+		}
+	}
+
+	static private ExecutorService getBatchFetcher() {
+		synchronized (Loader.class) {
+			if (num_batch_fetch_threads < 2) return null;
+			if (null == batch_fetcher) {
+				batch_fetcher = Utils.newFixedThreadPool(num_batch_fetch_threads, "batch-fetcher");
+			}
+			return batch_fetcher;
+		}
+	}
+
+	/** Mipmap levels are below 32. */
+	static private final long batchKey(final long id, final int level, final boolean data) {
+		return (id << 6) | (level << 1) | (data ? 1 : 0);
+	}
+
+	/** Told of each image read by {@link Loader#fetchImagesLater(Collection, double, boolean, FetchListener)}. */
+	static public interface FetchListener {
+		/** Called in the thread that read the image of @param patch, which @param fu, now done, returns. */
+		public void fetched(Patch patch, Future<MipMapImage> fu);
+	}
+
+	/** The read of one image for a batch, which runs listeners when done. */
+	static private final class BatchFetch extends FutureTask<MipMapImage> {
+		private ArrayList<Runnable> listeners = null;
+
+		BatchFetch(final Callable<MipMapImage> c) {
+			super(c);
+		}
+
+		/** Run @param r when done, or now if done already. */
+		final void whenDone(final Runnable r) {
+			synchronized (this) {
+				if (!isDone()) {
+					if (null == listeners) listeners = new ArrayList<Runnable>();
+					listeners.add(r);
+					return;
+				}
+			}
+			r.run();
+		}
+
+		@Override
+		protected void done() {
+			final ArrayList<Runnable> ls;
+			synchronized (this) {
+				ls = listeners;
+				listeners = null;
+			}
+			if (null == ls) return;
+			for (final Runnable r : ls) {
+				try {
+					r.run();
+				} catch (final Throwable t) {
+					IJError.print(t);
+				}
+			}
+		}
+	}
+
+	/** Fetch the images of all @param patches as they would be painted at @param magnification,
+	 *  reading several at a time, which hides the latency of slow storage. Returns them in the same order.
+	 *  Concurrent requests for the same patch and level, from any batch, share a single read.
+	 *  @param data whether to wait for mipmaps under regeneration, as in {@link #fetchDataImage(Patch, double)},
+	 *  or not, as in {@link #fetchImage(Patch, double)}. */
+	public List<MipMapImage> fetchImages(final Collection<Patch> patches, final double magnification, final boolean data) {
+		final ArrayList<MipMapImage> images = new ArrayList<MipMapImage>(patches.size());
+		final List<Future<MipMapImage>> fus = fetchImagesLater(patches, magnification, data, null);
+		if (null == fus) {
+			for (final Patch p : patches) {
+				final double mag = p.getImageMagnification(magnification);
+				images.add(data ? fetchDataImage(p, mag) : fetchImage(p, mag));
+			}
+			return images;
+		}
+		for (final Future<MipMapImage> fu : fus) {
+			try {
+				images.add(fu.get());
+			} catch (final Throwable t) {
+				IJError.print(t);
+				images.add(null);
+			}
+		}
+		return images;
+	}
+
+	/** Like {@link #fetchImages(Collection, double, boolean)}, but returns at once a Future for each image,
+	 *  in the same order; those of cached images are done already. @param listener, if not null, is told
+	 *  of each image that had to be read, once read.
+	 *  Returns null when images can't be read in the background, as when memory is low or there
+	 *  is only one thread for reading images: see {@link #setupBatchFetchThreads(int)}. */
+	public List<Future<MipMapImage>> fetchImagesLater(final Collection<Patch> patches, final double magnification, final boolean data, final FetchListener listener) {
+		final ExecutorService exec = patches.size() > 1 ? getBatchFetcher() : null;
+		if (null == exec || low_memory_conditions) return null;
+		final ArrayList<Future<MipMapImage>> fus = new ArrayList<Future<MipMapImage>>(patches.size());
+		for (final Patch p : patches) {
+			final double mag = p.getImageMagnification(magnification);
+			final int level = getFetchLevel(p, mag);
+			// Cached: no need to go through the thread pool
+			final Image cached = mawts.get(p.getId(), level);
+			if (null != cached) {
+				final double scale = Math.pow(2.0, level);
+				fus.add(new DONE<MipMapImage>(new MipMapImage(cached, scale, scale)));
+				continue;
+			}
+			final Long key = batchKey(p.getId(), level, data);
+			final BatchFetch[] task = new BatchFetch[1];
+			task[0] = new BatchFetch(new Callable<MipMapImage>() {
+				@Override
+				public MipMapImage call() {
+					try {
+						return data ? fetchDataImage(p, mag) : fetchImage(p, mag);
+					} finally {
+						batch_inflight.remove(key, task[0]);
+					}
+				}
+			});
+			final BatchFetch inflight = batch_inflight.putIfAbsent(key, task[0]);
+			final BatchFetch fu = null == inflight ? task[0] : inflight;
+			if (null != listener) {
+				fu.whenDone(new Runnable() {
+					@Override
+					public void run() {
+						listener.fetched(p, fu);
+					}
+				});
+			}
+			fus.add(fu);
+			if (null != inflight) continue;
+			try {
+				exec.execute(task[0]);
+			} catch (final Throwable t) {
+				// Rejected, as when the pool is being restarted: read it here
+				task[0].run();
+			}
+		}
+		return fus;
+	}
+
+	/** Reads the images of @param patches, to be painted in that order at @param magnification as data images,
+	 *  a window of them ahead of the painting, so that painting rarely waits and only the window is held in memory. */
+	private final class FetchAhead {
+		private final ArrayList<Patch> patches;
+		private final double magnification;
+		private final int window = Math.max(2, 2 * num_batch_fetch_threads);
+		private final HashMap<Patch,Future<MipMapImage>> fetching = new HashMap<Patch,Future<MipMapImage>>();
+		/** Index in patches of the next one to fetch. */
+		private int next = 0;
+
+		FetchAhead(final ArrayList<Patch> patches, final double magnification) {
+			this.patches = patches;
+			this.magnification = magnification;
+			fill();
+		}
+
+		/** Start fetching the next patches once half of the window is painted. */
+		private void fill() {
+			if (fetching.size() > window / 2 || next >= patches.size()) return;
+			final List<Patch> batch = patches.subList(next, Math.min(patches.size(), next + window - fetching.size()));
+			next += batch.size();
+			final List<Future<MipMapImage>> fus = fetchImagesLater(batch, magnification, true, null);
+			if (null == fus) return; // each will be read when painted
+			for (int i=0; i<fus.size(); i++) fetching.put(batch.get(i), fus.get(i));
+		}
+
+		/** Returns the image of @param patch, waiting for it if necessary; or null if it wasn't fetched ahead. */
+		MipMapImage take(final Patch patch) {
+			final Future<MipMapImage> fu = fetching.remove(patch);
+			fill();
+			if (null == fu) return null;
+			try {
+				return fu.get();
+			} catch (final InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch (final Throwable t) {
+				IJError.print(t);
+			}
+			return null;
+		}
+	}
+
+	/** Keep the images of @param patch from being evicted until {@link #unpin(Patch)}, if @param image is one of them.
+	 *  Returns false if it isn't, as when it was evicted already. */
+	public boolean pin(final Patch patch, final Image image) {
+		return mawts.pin(patch.getId(), image);
+	}
+
+	/** Undo one {@link #pin(Patch, Image)}. */
+	public void unpin(final Patch patch) {
+		mawts.unpin(patch.getId());
+	}
+
+	/** A Future that is already done. */
+	static private final class DONE<T> implements Future<T> {
+		private final T t;
+		DONE(final T t) { this.t = t; }
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) { return false; }
+		@Override
+		public T get() { return t; }
+		@Override
+		public T get(final long timeout, final java.util.concurrent.TimeUnit unit) { return t; }
+		@Override
+		public boolean isCancelled() { return false; }
+		@Override
+		public boolean isDone() { return true; }
+	}
+
 	/** Returns the highest mipmap level for which a mipmap image may have been generated given the dimensions of the Patch. The minimum that this method may return is zero. */
 	public static final int getHighestMipMapLevel(final Patch p) {
 		/*
@@ -4561,6 +4918,16 @@ while (it.hasNext()) {
 	/** Does nothing and returns null unless overriden. */
 	public Future<Boolean> regenerateMipMaps(final Patch patch) { return null; }
 
+	/** Does nothing and returns false unless overriden. */
+	public boolean cancelMipMapRegeneration(final Patch patch) { return false; }
+
+	/** Returns zero unless overriden. */
+	public int getMipMapRegenerationQueueDepth() { return 0; }
+
+	/** Does nothing unless overriden. Called when the front Display is painted showing @param srcRect of @param layer,
+	 *  so that mipmaps are regenerated first for what is in view. */
+	public void setMipMapRegenerationView(final Layer layer, final Rectangle srcRect) {}
+
 
 	/** Does nothing and returns null unless overriden. */
 	public Bureaucrat regenerateMipMaps(final Collection<? extends Displayable> patches) { return null; }
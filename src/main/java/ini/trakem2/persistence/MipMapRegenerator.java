@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A fixed thread pool for regenerating mipmaps, whose pending tasks run in order of proximity
+ *  to what the front {@link ini.trakem2.display.Display} shows: first the patches that intersect the visible area
+ *  of the visible layer, then the rest of that layer by distance to the visible area,
+ *  then other layers, each layer away counting as much as one field of view away.
+ *  Patches that are not in any layer yet, as when importing, go first: someone is waiting for them.
+ *
+ *  Priorities of queued tasks are recomputed whenever the front Display is painted
+ *  showing a different layer or area than last time: see {@link #setView(Layer, Rectangle)}.
+ *
+ *  The thread pool is not exposed, so that only {@link Task} instances, which can be sorted, are ever queued.
+ *  Queued tasks can be cancelled with {@link #remove(Task)} and then {@link FutureTask#cancel(boolean)}.
+ */
+public final class MipMapRegenerator {
+
+	/** A regeneration task for one Patch. Ties are broken by submission order. */
+	public final class Task extends FutureTask<Boolean> implements Comparable<Task> {
+		final Patch patch;
+		final long seq = counter.incrementAndGet();
+		volatile double priority;
+
+		private Task(final Patch patch, final Callable<Boolean> callable) {
+			super(callable);
+			this.patch = patch;
+			this.priority = priority(patch, view);
+		}
+
+		public Patch getPatch() { return patch; }
+
+		@Override
+		public int compareTo(final Task t) {
+			if (priority < t.priority) return -1;
+			if (priority > t.priority) return 1;
+			return seq < t.seq ? -1 : (seq == t.seq ? 0 : 1);
+		}
+	}
+
+	/** What the front Display shows, with the rank of each of its layers by id,
+	 *  so that priorities are computed without searching the list of layers. */
+	static private final class View {
+		final Layer layer;
+		final Rectangle srcRect;
+		final HashMap<Long,Integer> ranks;
+
+		View(final Layer layer, final Rectangle srcRect) {
+			this.layer = layer;
+			this.srcRect = srcRect;
+			if (null == layer) {
+				this.ranks = null;
+			} else {
+				final List<Layer> layers = layer.getParent().getLayers();
+				this.ranks = new HashMap<Long,Integer>(layers.size() * 2);
+				int k = 0;
+				for (final Layer la : layers) ranks.put(la.getId(), k++);
+			}
+		}
+
+		boolean shows(final Layer layer, final Rectangle srcRect) {
+			return layer == this.layer && (null == srcRect ? null == this.srcRect : srcRect.equals(this.srcRect));
+		}
+	}
+
+	private final AtomicLong counter = new AtomicLong(0);
+	/** The view for which the priorities of queued tasks were computed. */
+	private volatile View view = new View(null, null);
+	private final Object view_lock = new Object();
+	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+	private final ThreadPoolExecutor exec;
+
+	public MipMapRegenerator(final int n_threads, final String namePrefix) {
+		this.exec = new ThreadPoolExecutor(n_threads, n_threads, 0L, TimeUnit.MILLISECONDS, queue, Utils.newThreadFactory(namePrefix, true));
+	}
+
+	/** Queue the regeneration of mipmaps for @param patch. */
+	public Task submit(final Patch patch, final Callable<Boolean> callable) {
+		final Task task = new Task(patch, callable);
+		exec.execute(task);
+		return task;
+	}
+
+	/** Remove @param task from the queue; returns false if it already started or is done. */
+	public boolean remove(final Task task) {
+		return exec.remove(task);
+	}
+
+	/** Number of tasks waiting to run. */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public void shutdown() {
+		exec.shutdown();
+	}
+
+	public List<Runnable> shutdownNow() {
+		return exec.shutdownNow();
+	}
+
+	public boolean isShutdown() {
+		return exec.isShutdown();
+	}
+
+	static private final double priority(final Patch patch, final View view) {
+		final Layer la = patch.getLayer();
+		if (null == la) return -1; // being imported
+		final Layer layer = view.layer;
+		final Rectangle srcRect = view.srcRect;
+		if (null == layer || null == srcRect) return 0; // no view: submission order
+		final Integer rank = view.ranks.get(la.getId());
+		if (null == rank || la.getParent() != layer.getParent()) return Double.MAX_VALUE;
+		final Rectangle b = patch.getBoundingBox(null);
+		final double dx = Math.max(0, Math.max(srcRect.x - (b.x + b.width), b.x - (srcRect.x + srcRect.width))),
+		             dy = Math.max(0, Math.max(srcRect.y - (b.y + b.height), b.y - (srcRect.y + srcRect.height)));
+		final int dz = la == layer ? 0 : Math.abs(rank - view.ranks.get(layer.getId()));
+		return Math.sqrt(dx * dx + dy * dy) + dz * (double)(srcRect.width + srcRect.height);
+	}
+
+	/** Called when the front Display is painted showing @param srcRect of @param layer:
+	 *  if that differs from the last view, the priorities of all queued tasks are recomputed,
+	 *  so that patches that went off screen no longer run ahead of those now on screen. */
+	public void setView(final Layer layer, final Rectangle srcRect) {
+		synchronized (view_lock) {
+			if (view.shows(layer, srcRect)) return;
+			final View v = new View(layer, null == srcRect ? null : new Rectangle(srcRect));
+			view = v;
+			if (queue.size() < 2) return;
+			final ArrayList<Runnable> tasks = new ArrayList<Runnable>(queue.size());
+			queue.drainTo(tasks);
+			for (final Runnable r : tasks) {
+				final Task t = (Task)r;
+				t.priority = priority(t.patch, v);
+			}
+			queue.addAll(tasks);
+		}
+	}
+}
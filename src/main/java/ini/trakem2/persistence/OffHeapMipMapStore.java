@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/** A second-tier cache for mipmap images, holding their pixels outside of the java heap
+ *  in direct {@link ByteBuffer}s. The {@link Cache} spills into it the images that it evicts,
+ *  and the {@link Loader} looks here before reading a mipmap file. The heap then needs
+ *  to hold only the images that are being painted.
+ *
+ *  Only {@link BufferedImage} instances backed by a single bank of bytes or ints are stored,
+ *  which covers all the mipmap images created by the {@link Loader}.
+ *
+ *  Buffers are allocated in power-of-two capacities and recycled, given that direct memory
+ *  is only returned to the system when the garbage collector finds the buffer unreachable.
+ *  The sum of all buffer capacities, in use or recycled, stays at or below max_bytes.
+ *  Entries are evicted in least-recently-used order.
+ *
+ *  Thread-safe. Pixels are copied in and out within the lock, which is acceptable
+ *  given that a copy is much cheaper than reading and decoding a mipmap file.
+ *  The amount of direct memory is limited by the JVM flag -XX:MaxDirectMemorySize.
+ */
+public class OffHeapMipMapStore {
+
+	private final class Entry {
+		final ByteBuffer buffer;
+		final int n; // number of elements: bytes or ints
+		final boolean ints;
+		final ColorModel cm;
+		final SampleModel sm;
+		final boolean premultiplied;
+
+		Entry(final ByteBuffer buffer, final int n, final boolean ints, final BufferedImage bi) {
+			this.buffer = buffer;
+			this.n = n;
+			this.ints = ints;
+			this.cm = bi.getColorModel();
+			this.sm = bi.getSampleModel();
+			this.premultiplied = bi.isAlphaPremultiplied();
+		}
+	}
+
+	/** Access-ordered, so that the first entry is the least recently used. */
+	private final LinkedHashMap<Long,Entry> entries = new LinkedHashMap<Long,Entry>(1024, 0.75f, true);
+	/** Recycled buffers, by capacity. */
+	private final HashMap<Integer,LinkedList<ByteBuffer>> pool = new HashMap<Integer,LinkedList<ByteBuffer>>();
+
+	private long max_bytes;
+	/** Capacity of all allocated buffers, whether in use or in the pool. */
+	private long allocated = 0;
+	/** Capacity of the buffers in the pool. */
+	private long pooled = 0;
+
+	private long hits = 0,
+	             misses = 0;
+
+	public OffHeapMipMapStore(final long max_bytes) {
+		this.max_bytes = max_bytes;
+	}
+
+	/** Mipmap levels are below 32. */
+	static private final long key(final long id, final int level) {
+		return (id << 5) | level;
+	}
+
+	static private final int capacity(final long n_bytes) {
+		int c = 1024;
+		while (c < n_bytes) c <<= 1;
+		return c;
+	}
+
+	synchronized public void setMaxBytes(final long max_bytes) {
+		this.max_bytes = max_bytes;
+		makeRoom(0);
+	}
+
+	synchronized public long getMaxBytes() { return max_bytes; }
+
+	/** Capacity of all direct buffers allocated, whether in use or recycled. */
+	synchronized public long getBytes() { return allocated; }
+
+	synchronized public int size() { return entries.size(); }
+
+	synchronized public long getHits() { return hits; }
+
+	synchronized public long getMisses() { return misses; }
+
+	synchronized public boolean contains(final long id, final int level) {
+		return entries.containsKey(key(id, level));
+	}
+
+	/** Copy the pixels of @param img into a direct buffer, replacing any previous copy.
+	 *  Returns false if the image is not of a supported kind or doesn't fit. */
+	synchronized public boolean put(final long id, final int level, final Image img) {
+		if (!(img instanceof BufferedImage) || Loader.isSignalImage(img)) return false;
+		final BufferedImage bi = (BufferedImage) img;
+		final WritableRaster raster = bi.getRaster();
+		if (null != raster.getParent() || 0 != raster.getSampleModelTranslateX() || 0 != raster.getSampleModelTranslateY()) return false;
+		final DataBuffer db = raster.getDataBuffer();
+		if (1 != db.getNumBanks() || 0 != db.getOffset()) return false;
+		final boolean ints;
+		if (db instanceof DataBufferInt) ints = true;
+		else if (db instanceof DataBufferByte) ints = false;
+		else return false;
+		final int n = db.getSize();
+		//
+		recycle(entries.remove(key(id, level)));
+		final ByteBuffer buffer = allocate(capacity(ints ? n * 4L : n));
+		if (null == buffer) return false;
+		buffer.clear();
+		if (ints) buffer.asIntBuffer().put(((DataBufferInt)db).getData(), 0, n);
+		else buffer.put(((DataBufferByte)db).getData(), 0, n);
+		entries.put(key(id, level), new Entry(buffer, n, ints, bi));
+		return true;
+	}
+
+	/** Returns a new heap image with the pixels stored for the given id and level,
+	 *  or null if none; the stored copy is released, since the image will live in the {@link Cache}. */
+	synchronized public BufferedImage take(final long id, final int level) {
+		final Entry e = entries.remove(key(id, level));
+		if (null == e) {
+			++misses;
+			return null;
+		}
+		++hits;
+		try {
+			final DataBuffer db;
+			final ByteBuffer b = e.buffer.duplicate().order(e.buffer.order());
+			b.clear();
+			if (e.ints) {
+				final int[] pix = CachingThread.getOrCreateIntArray(e.n);
+				b.asIntBuffer().get(pix, 0, e.n);
+				db = new DataBufferInt(pix, e.n);
+			} else {
+				final byte[] pix = CachingThread.getOrCreateByteArray(1, e.n)[0];
+				b.get(pix, 0, e.n);
+				db = new DataBufferByte(pix, e.n);
+			}
+			final WritableRaster raster = Raster.createWritableRaster(e.sm, db, null);
+			return new BufferedImage(e.cm, raster, e.premultiplied, null);
+		} finally {
+			recycle(e);
+		}
+	}
+
+	/** Forget the stored copy of the given level, if any. */
+	synchronized public void remove(final long id, final int level) {
+		recycle(entries.remove(key(id, level)));
+	}
+
+	/** Forget the stored copies of all levels. */
+	synchronized public void remove(final long id) {
+		for (int level=0; level<32; level++) {
+			recycle(entries.remove(key(id, level)));
+		}
+	}
+
+	/** Forget all stored copies and release all buffers. */
+	synchronized public void clear() {
+		entries.clear();
+		pool.clear();
+		allocated = 0;
+		pooled = 0;
+	}
+
+	private final void recycle(final Entry e) {
+		if (null == e) return;
+		final int c = e.buffer.capacity();
+		LinkedList<ByteBuffer> l = pool.get(c);
+		if (null == l) {
+			l = new LinkedList<ByteBuffer>();
+			pool.put(c, l);
+		}
+		l.add(e.buffer);
+		pooled += c;
+	}
+
+	/** Release pooled buffers, and then least-recently-used entries, until @param capacity more bytes fit. */
+	private final void makeRoom(final long capacity) {
+		while (allocated + capacity > max_bytes && pooled > 0) {
+			final Iterator<LinkedList<ByteBuffer>> it = pool.values().iterator();
+			final LinkedList<ByteBuffer> l = it.next();
+			final int c = l.removeFirst().capacity();
+			if (l.isEmpty()) it.remove();
+			pooled -= c;
+			allocated -= c;
+		}
+		while (allocated + capacity > max_bytes && !entries.isEmpty()) {
+			final Iterator<Entry> it = entries.values().iterator();
+			final int c = it.next().buffer.capacity();
+			it.remove();
+			allocated -= c; // dropped, not recycled
+		}
+	}
+
+	private final ByteBuffer allocate(final int capacity) {
+		if (capacity > max_bytes) return null;
+		final LinkedList<ByteBuffer> l = pool.get(capacity);
+		if (null != l) {
+			final ByteBuffer b = l.removeFirst();
+			if (l.isEmpty()) pool.remove(capacity);
+			pooled -= capacity;
+			return b;
+		}
+		makeRoom(capacity);
+		if (allocated + capacity > max_bytes) return null;
+		try {
+			final ByteBuffer b = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+			allocated += capacity;
+			return b;
+		} catch (final OutOfMemoryError oome) {
+			// Direct memory exhausted: shrink to what was possible
+			Utils.log2("OffHeapMipMapStore: could not allocate " + capacity + " bytes of direct memory; shrinking to " + allocated);
+			max_bytes = allocated;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,520 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** A binary snapshot of a project XML file, saved next to it with the {@link #EXTENSION}
+ *  appended to its name, so that opening the project can skip the tokenizing of the XML.
+ *  The XML remains the interchange format: the snapshot is only read when it was made
+ *  from an XML file of the same length and modification time, and is otherwise ignored.
+ *
+ *  The snapshot stores the stream of SAX events that parsing the XML produces,
+ *  including the attributes that the DTD defaults, which is then replayed into a
+ *  {@link TMLHandler} exactly as the SAX parser would. Patches, transforms, layers, trees
+ *  and all other objects are therefore restored with the same code that reads the XML.
+ *
+ *  The events are written by a {@link ColumnWriter} as the XML is parsed, each part into
+ *  its own typed column, so that none are kept in memory; and read back likewise, one event
+ *  at a time from all columns at once. The ids, transforms and dimensions of objects are
+ *  stored as numbers, unless their text wouldn't be restored exactly.
+ *  <pre>
+ *  header:  4 bytes magic "T2PS", 1 byte version, 8-byte length and 8-byte modification time of the XML file.
+ *  strings: int count, then each as int length and UTF-8 bytes: the element and attribute names;
+ *           then the CRC32 of all that, as a long.
+ *  columns: int count, then the length and the CRC32 of each as two longs, then each column, deflated:
+ *    kinds:       one byte per event: {@link #START}, {@link #END} or {@link #CHARS}.
+ *    names:       one int per {@link #START} and {@link #END} event: index into strings of the element name.
+ *    text:        the character data of each {@link #CHARS} event, as int length and UTF-8 bytes.
+ *    attr_counts: one int per {@link #START} event.
+ *    attr_names:  one int per attribute: index into strings, or its complement if the value is typed.
+ *    attr_values: each value that isn't typed, as int length and UTF-8 bytes.
+ *    ids:         a long per typed "oid".
+ *    transforms:  six doubles per typed "transform", as in {@link java.awt.geom.AffineTransform#getMatrix(double[])}.
+ *    bounds:      a double per typed "width" or "height".
+ *  </pre>
+ *  The lengths and checksums are verified before replaying any event, so that a damaged snapshot
+ *  is ignored rather than failing the opening of the project halfway.
+ */
+public final class ProjectSnapshot {
+
+	static public final String EXTENSION = ".t2bin";
+
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'P', 'S'};
+	static private final byte VERSION = 3;
+
+	static private final byte START = 0,
+	                          END = 1,
+	                          CHARS = 2;
+
+	static private final int KINDS = 0,
+	                         NAMES = 1,
+	                         TEXT = 2,
+	                         ATTR_COUNTS = 3,
+	                         ATTR_NAMES = 4,
+	                         ATTR_VALUES = 5,
+	                         IDS = 6,
+	                         TRANSFORMS = 7,
+	                         BOUNDS = 8,
+	                         N_COLUMNS = 9;
+
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ProjectSnapshot() {}
+
+	/** The path to the snapshot of the XML file at @param xml_path. */
+	static public final String getPath(final String xml_path) {
+		return xml_path + EXTENSION;
+	}
+
+	/** Whether a snapshot exists for the XML file at @param xml_path, made from that same file. */
+	static public final boolean isUpToDate(final String xml_path) {
+		final File fxml = new File(xml_path),
+		           fsnap = new File(getPath(xml_path));
+		if (!fxml.exists() || !fsnap.exists()) return false;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(fsnap), 32));
+			return readHeader(dis, fxml);
+		} catch (final Exception e) {
+			IJError.print(e, true);
+			return false;
+		} finally {
+			if (null != dis) try { dis.close(); } catch (final Exception e) { IJError.print(e, true); }
+		}
+	}
+
+	static private final boolean readHeader(final DataInput di, final File fxml) throws IOException {
+		final byte[] m = new byte[MAGIC.length];
+		di.readFully(m);
+		if (!Arrays.equals(m, MAGIC)) return false;
+		if (VERSION != di.readByte()) return false;
+		return fxml.length() == di.readLong()
+		    && fxml.lastModified() == di.readLong();
+	}
+
+	/** The attribute values stored as numbers in their own column, or -1. */
+	static private final int typedColumn(final String attribute_name) {
+		if ("oid".equals(attribute_name)) return IDS;
+		if ("transform".equals(attribute_name)) return TRANSFORMS;
+		if ("width".equals(attribute_name) || "height".equals(attribute_name)) return BOUNDS;
+		return -1;
+	}
+
+	static private final String matrix(final double[] m) {
+		final StringBuilder sb = new StringBuilder("matrix(");
+		for (int i=0; i<m.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(m[i]);
+		}
+		return sb.append(')').toString();
+	}
+
+	/** Writes the SAX events it receives into the columns of a snapshot, as they arrive, passing them on
+	 *  to the delegate handler if any. Failing to write doesn't stop the events from being passed on. */
+	static public final class ColumnWriter extends DefaultHandler {
+		private final DefaultHandler delegate;
+		private final File fxml, fsnap;
+		private final long length, last_modified;
+		private final HashMap<String,Integer> index = new HashMap<String,Integer>();
+		private final ArrayList<String> strings = new ArrayList<String>();
+		private final File[] files = new File[N_COLUMNS];
+		/** Of the deflated bytes of each column, as written. */
+		private final CRC32[] crcs = new CRC32[N_COLUMNS];
+		private DataOutputStream[] columns = new DataOutputStream[N_COLUMNS];
+		private final double[] m = new double[6];
+
+		/** Parse the XML file at @param xml_path, or else call {@link #discard()}.
+		 *  @param delegate may be null. */
+		public ColumnWriter(final String xml_path, final DefaultHandler delegate) {
+			this.delegate = delegate;
+			this.fxml = new File(xml_path);
+			this.fsnap = new File(getPath(xml_path));
+			// Before parsing, in case the XML changes meanwhile
+			this.length = fxml.length();
+			this.last_modified = fxml.lastModified();
+			try {
+				for (int k=0; k<N_COLUMNS; k++) {
+					files[k] = new File(fsnap.getAbsolutePath() + ".tmp" + k);
+					crcs[k] = new CRC32();
+					columns[k] = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new CheckedOutputStream(new FileOutputStream(files[k]), crcs[k]), new Deflater(Deflater.BEST_SPEED)), 65536));
+				}
+			} catch (final IOException ioe) {
+				fail(ioe);
+			}
+		}
+
+		private final void fail(final Throwable t) {
+			Utils.log2("ProjectSnapshot: could not write " + fsnap);
+			IJError.print(t, true);
+			discard();
+		}
+
+		/** Stop writing, and delete what was written. */
+		public void discard() {
+			if (null != columns) {
+				for (final DataOutputStream dos : columns) {
+					if (null != dos) try { dos.close(); } catch (final Exception e) {}
+				}
+				columns = null;
+			}
+			for (final File f : files) {
+				if (null != f) f.delete();
+			}
+		}
+
+		private final int intern(final String s) {
+			final Integer i = index.get(s);
+			if (null != i) return i;
+			final int k = strings.size();
+			strings.add(s);
+			index.put(s, k);
+			return k;
+		}
+
+		private final void writeAttribute(final String name, final String value) throws IOException {
+			final int n = intern(name);
+			switch (typedColumn(name)) {
+				case IDS:
+					try {
+						final long id = Long.parseLong(value);
+						if (Long.toString(id).equals(value)) {
+							columns[ATTR_NAMES].writeInt(~n);
+							columns[IDS].writeLong(id);
+							return;
+						}
+					} catch (final NumberFormatException nfe) {}
+					break;
+				case TRANSFORMS:
+					try {
+						if (value.startsWith("matrix(") && value.endsWith(")")) {
+							final String[] nums = value.substring(7, value.length() - 1).split(",");
+							if (6 == nums.length) {
+								for (int i=0; i<6; i++) m[i] = Double.parseDouble(nums[i]);
+								if (matrix(m).equals(value)) {
+									columns[ATTR_NAMES].writeInt(~n);
+									for (int i=0; i<6; i++) columns[TRANSFORMS].writeDouble(m[i]);
+									return;
+								}
+							}
+						}
+					} catch (final NumberFormatException nfe) {}
+					break;
+				case BOUNDS:
+					try {
+						final double d = Double.parseDouble(value);
+						if (Double.toString(d).equals(value)) {
+							columns[ATTR_NAMES].writeInt(~n);
+							columns[BOUNDS].writeDouble(d);
+							return;
+						}
+					} catch (final NumberFormatException nfe) {}
+					break;
+			}
+			columns[ATTR_NAMES].writeInt(n);
+			writeString(columns[ATTR_VALUES], value);
+		}
+
+		@Override
+		public void startElement(final String namespace_URI, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+			if (null != columns) {
+				try {
+					columns[KINDS].writeByte(START);
+					columns[NAMES].writeInt(intern(qualified_name));
+					final int n = attributes.getLength();
+					columns[ATTR_COUNTS].writeInt(n);
+					for (int i=0; i<n; i++) writeAttribute(attributes.getQName(i), attributes.getValue(i));
+				} catch (final IOException ioe) {
+					fail(ioe);
+				}
+			}
+			if (null != delegate) delegate.startElement(namespace_URI, local_name, qualified_name, attributes);
+		}
+
+		@Override
+		public void endElement(final String namespace_URI, final String local_name, final String qualified_name) throws SAXException {
+			if (null != columns) {
+				try {
+					columns[KINDS].writeByte(END);
+					columns[NAMES].writeInt(intern(qualified_name));
+				} catch (final IOException ioe) {
+					fail(ioe);
+				}
+			}
+			if (null != delegate) delegate.endElement(namespace_URI, local_name, qualified_name);
+		}
+
+		@Override
+		public void characters(final char[] c, final int start, final int length) throws SAXException {
+			if (null != columns) {
+				try {
+					columns[KINDS].writeByte(CHARS);
+					writeString(columns[TEXT], new String(c, start, length));
+				} catch (final IOException ioe) {
+					fail(ioe);
+				}
+			}
+			if (null != delegate) delegate.characters(c, start, length);
+		}
+
+		/** Put together the columns as the snapshot of the XML file that was parsed.
+		 *  Returns false on failure, leaving no snapshot behind. */
+		public boolean finish() {
+			if (null == columns) return false;
+			final File ftmp = new File(fsnap.getAbsolutePath() + ".tmp");
+			DataOutputStream dos = null;
+			try {
+				for (final DataOutputStream c : columns) c.close();
+				columns = null;
+				dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ftmp), 65536));
+				dos.write(MAGIC);
+				dos.writeByte(VERSION);
+				dos.writeLong(length);
+				dos.writeLong(last_modified);
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				final DataOutputStream sdos = new DataOutputStream(bos);
+				sdos.writeInt(strings.size());
+				for (final String s : strings) writeString(sdos, s);
+				sdos.flush();
+				final CRC32 crc = new CRC32();
+				crc.update(bos.toByteArray());
+				bos.writeTo(dos);
+				dos.writeLong(crc.getValue());
+				dos.writeInt(N_COLUMNS);
+				for (int k=0; k<N_COLUMNS; k++) {
+					dos.writeLong(files[k].length());
+					dos.writeLong(crcs[k].getValue());
+				}
+				final byte[] buf = new byte[65536];
+				for (final File f : files) {
+					final FileInputStream fis = new FileInputStream(f);
+					try {
+						for (int n = fis.read(buf); -1 != n; n = fis.read(buf)) dos.write(buf, 0, n);
+					} finally {
+						fis.close();
+					}
+				}
+				dos.close();
+				dos = null;
+				// The XML may have changed while parsing or writing
+				if (fxml.length() != length || fxml.lastModified() != last_modified) {
+					ftmp.delete();
+					return false;
+				}
+				if (fsnap.exists()) fsnap.delete();
+				if (!ftmp.renameTo(fsnap)) {
+					Utils.log2("ProjectSnapshot: could not rename " + ftmp + " to " + fsnap);
+					ftmp.delete();
+					return false;
+				}
+				return true;
+			} catch (final Exception e) {
+				IJError.print(e, true);
+				if (null != dos) try { dos.close(); } catch (final Exception ee) {}
+				ftmp.delete();
+				return false;
+			} finally {
+				discard();
+			}
+		}
+	}
+
+	static private final void writeString(final DataOutputStream dos, final String s) throws IOException {
+		final byte[] b = s.getBytes(UTF8);
+		dos.writeInt(b.length);
+		dos.write(b);
+	}
+
+	static private final String readString(final DataInput di) throws IOException {
+		final byte[] b = new byte[di.readInt()];
+		di.readFully(b);
+		return new String(b, UTF8);
+	}
+
+	/** Read the snapshot of the XML file at @param xml_path and replay its events into @param handler.
+	 *  Returns false, without having called the handler, if the snapshot is missing, stale, unreadable
+	 *  or damaged, as found by its lengths and checksums; the XML must then be parsed instead.
+	 *  If reading fails nonetheless midway, the snapshot is removed and a SAXException is thrown:
+	 *  the handler has then received part of the events, and the XML must be parsed into a new one.
+	 *  Exceptions thrown by the handler are not caught. */
+	static public final boolean replay(final String xml_path, final DefaultHandler handler) throws SAXException {
+		final File fxml = new File(xml_path),
+		           fsnap = new File(getPath(xml_path));
+		if (!fxml.exists() || !fsnap.exists()) return false;
+		final String[] strings;
+		final long[] offsets = new long[N_COLUMNS];
+		final long[] lengths = new long[N_COLUMNS];
+		final long[] crcs = new long[N_COLUMNS];
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(fsnap, "r");
+			if (!readHeader(ra, fxml)) return false;
+			// Read in one go the strings and the column lengths, which follow the header
+			final byte[] b = new byte[(int)Math.min(ra.length() - ra.getFilePointer(), 1 << 20)];
+			ra.readFully(b);
+			final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(b));
+			strings = new String[dis.readInt()];
+			for (int i=0; i<strings.length; i++) strings[i] = readString(dis);
+			final CRC32 crc = new CRC32();
+			crc.update(b, 0, b.length - dis.available());
+			if (crc.getValue() != dis.readLong()) return damaged(fsnap, "strings");
+			if (N_COLUMNS != dis.readInt()) return false;
+			long offset = MAGIC.length + 1 + 8 + 8 + (b.length - dis.available()) + 16 * N_COLUMNS;
+			for (int k=0; k<N_COLUMNS; k++) {
+				offsets[k] = offset;
+				lengths[k] = dis.readLong();
+				crcs[k] = dis.readLong();
+				if (lengths[k] < 0) return damaged(fsnap, "column " + k);
+				offset += lengths[k];
+			}
+			if (offset != ra.length()) return damaged(fsnap, "length");
+			// Check every column before the handler gets any event
+			ra.seek(offsets[0]);
+			final byte[] buf = new byte[65536];
+			for (int k=0; k<N_COLUMNS; k++) {
+				crc.reset();
+				for (long left = lengths[k]; left > 0; ) {
+					final int n = (int)Math.min(buf.length, left);
+					ra.readFully(buf, 0, n);
+					crc.update(buf, 0, n);
+					left -= n;
+				}
+				if (crc.getValue() != crcs[k]) return damaged(fsnap, "column " + k);
+			}
+		} catch (final Exception e) {
+			Utils.log2("ProjectSnapshot: could not read " + fsnap + ", will parse the XML instead.");
+			IJError.print(e, true);
+			return false;
+		} finally {
+			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e, true); }
+		}
+		final DataInputStream[] columns = new DataInputStream[N_COLUMNS];
+		try {
+			for (int k=0; k<N_COLUMNS; k++) {
+				final FileInputStream fis = new FileInputStream(fsnap);
+				fis.getChannel().position(offsets[k]);
+				columns[k] = new DataInputStream(new BufferedInputStream(new InflaterInputStream(fis), 65536));
+			}
+			replay(strings, columns, handler);
+		} catch (final IOException ioe) {
+			remove(xml_path);
+			throw new SAXException("ProjectSnapshot: could not read " + fsnap, ioe);
+		} finally {
+			for (final DataInputStream dis : columns) {
+				if (null != dis) try { dis.close(); } catch (final Exception e) { IJError.print(e, true); }
+			}
+		}
+		return true;
+	}
+
+	static private final boolean damaged(final File fsnap, final String part) {
+		Utils.log2("ProjectSnapshot: " + fsnap + " is damaged at its " + part + ", will parse the XML instead.");
+		return false;
+	}
+
+	static private final void replay(final String[] strings, final DataInputStream[] columns, final DefaultHandler handler) throws IOException, SAXException {
+		final AttributesImpl attributes = new AttributesImpl();
+		final double[] m = new double[6];
+		while (true) {
+			final int kind = columns[KINDS].read();
+			switch (kind) {
+				case -1:
+					return;
+				case START:
+					final String name = strings[columns[NAMES].readInt()];
+					attributes.clear();
+					final int n = columns[ATTR_COUNTS].readInt();
+					for (int k=0; k<n; k++) {
+						final int a = columns[ATTR_NAMES].readInt();
+						final String aname;
+						final String value;
+						if (a >= 0) {
+							aname = strings[a];
+							value = readString(columns[ATTR_VALUES]);
+						} else {
+							aname = strings[~a];
+							switch (typedColumn(aname)) {
+								case IDS:
+									value = Long.toString(columns[IDS].readLong());
+									break;
+								case TRANSFORMS:
+									for (int i=0; i<6; i++) m[i] = columns[TRANSFORMS].readDouble();
+									value = matrix(m);
+									break;
+								case BOUNDS:
+									value = Double.toString(columns[BOUNDS].readDouble());
+									break;
+								default:
+									throw new IOException("Not a typed attribute: " + aname);
+							}
+						}
+						attributes.addAttribute("", "", aname, "CDATA", value);
+					}
+					handler.startElement("", "", name, attributes);
+					break;
+				case END:
+					handler.endElement("", "", strings[columns[NAMES].readInt()]);
+					break;
+				case CHARS:
+					final char[] c = readString(columns[TEXT]).toCharArray();
+					handler.characters(c, 0, c.length);
+					break;
+				default:
+					throw new IOException("Unknown event kind " + kind);
+			}
+		}
+	}
+
+	/** Remove the snapshot of the XML file at @param xml_path, if any. */
+	static public final void remove(final String xml_path) {
+		final File f = new File(getPath(xml_path));
+		if (f.exists() && !f.delete()) Utils.log2("ProjectSnapshot: could not delete " + f);
+	}
+}
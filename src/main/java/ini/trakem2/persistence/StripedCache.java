@@ -0,0 +1,469 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ij.ImagePlus;
+import ini.trakem2.display.MipMapImage;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A thread-safe {@link Cache}: same Pyramid/ImagePlus contract, but safe to call from
+ *  any number of threads without an external lock.
+ *
+ *  Pyramids are distributed by id over a power-of-two number of stripes. Each stripe
+ *  is a plain {@link Cache} guarded by its own monitor, so that the repaint thread,
+ *  export threads and the mipmap regenerator only contend when asking for ids that
+ *  land in the same stripe.
+ *
+ *  The stripes have no limit of their own: the bytes of all stripes are counted together,
+ *  and when an insertion takes the total beyond max_bytes, images are evicted from all stripes
+ *  in turn, least-recently-used first within each stripe, and from the stripe that received
+ *  the image last. Then, a stripe may hold any fraction of max_bytes, including a single large image.
+ *
+ *  An ImagePlus shared by several Patch instances (same file path) is accounted for
+ *  once per stripe in which it is used, which overestimates the size of the cache
+ *  rather than underestimating it.
+ */
+public class StripedCache {
+
+	/** Default number of stripes: twice the number of cores, rounded up to a power of two, at most 64. */
+	static public final int DEFAULT_N_STRIPES = Math.min(64, ceilPow2(2 * Runtime.getRuntime().availableProcessors()));
+
+	static private final int ceilPow2(final int n) {
+		int p = 1;
+		while (p < n) p <<= 1;
+		return p;
+	}
+
+	private final Cache[] stripes;
+	private final int mask;
+	private volatile long max_bytes;
+	/** The bytes of all stripes. */
+	private final AtomicLong bytes = new AtomicLong(0);
+	/** Where evicted images are copied to, outside the lock of their stripe, if anywhere. */
+	private volatile OffHeapMipMapStore spill = null;
+	/** Stripe at which to start releasing memory next time, so that no stripe is always the first to shed. */
+	private final AtomicInteger next_release = new AtomicInteger(0);
+
+	public StripedCache(final long max_bytes) {
+		this(max_bytes, DEFAULT_N_STRIPES);
+	}
+
+	/** @param n_stripes is rounded up to the next power of two. */
+	public StripedCache(final long max_bytes, final int n_stripes) {
+		final int n = ceilPow2(Math.max(1, n_stripes));
+		this.stripes = new Cache[n];
+		this.mask = n - 1;
+		this.max_bytes = max_bytes;
+		for (int i=0; i<n; i++) {
+			this.stripes[i] = new Cache(Long.MAX_VALUE);
+		}
+	}
+
+	/** Patch ids are mostly consecutive; spread them with a multiplicative hash. */
+	private final Cache stripe(final long id) {
+		return stripes[(int)((id * 0x9E3779B97F4A7C15L) >>> 40) & mask];
+	}
+
+	public final int getNStripes() { return stripes.length; }
+
+	/** Give each stripe a new {@link EvictionPolicy} named @param name, as in {@link EvictionPolicy#NAMES}. */
+	public void setEvictionPolicy(final String name) {
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				c.setEvictionPolicy(EvictionPolicy.create(name));
+			}
+		}
+	}
+
+	public String getEvictionPolicyName() {
+		synchronized (stripes[0]) {
+			return stripes[0].getEvictionPolicy().getName();
+		}
+	}
+
+	/** All stripes share the same @param spill, which is thread-safe. See {@link Cache#setSpill(OffHeapMipMapStore)}. */
+	public void setSpill(final OffHeapMipMapStore spill) {
+		this.spill = spill;
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				c.setSpill(spill);
+			}
+		}
+	}
+
+	/** Number of requests for an image that was present, summed over all stripes. */
+	public long getHits() {
+		long n = 0;
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				n += c.getHits();
+			}
+		}
+		return n;
+	}
+
+	/** Number of requests for an image that was absent, summed over all stripes. */
+	public long getMisses() {
+		long n = 0;
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				n += c.getMisses();
+			}
+		}
+		return n;
+	}
+
+	/** Number of images thrown out to make room, summed over all stripes. */
+	public long getEvictions() {
+		long n = 0;
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				n += c.getEvictions();
+			}
+		}
+		return n;
+	}
+
+	public void resetCounters() {
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				c.resetCounters();
+			}
+		}
+	}
+
+	public void setMaxBytes(final long max_bytes) {
+		this.max_bytes = max_bytes;
+		fit(null);
+	}
+
+	/** Evict images until the total is within max_bytes, from @param last the last of all stripes. */
+	private final void fit(final Cache last) {
+		final long over = bytes.get() - max_bytes;
+		if (over <= 0) return;
+		final int first = next_release.getAndIncrement() & mask;
+		long released = 0;
+		// A share from each stripe, and then as much as needed, in turn
+		for (int pass=0; pass<2 && released < over; pass++) {
+			final long share = 0 == pass ? over / stripes.length + 1 : Long.MAX_VALUE;
+			for (int i=0; i<stripes.length && released < over; i++) {
+				final Cache c = stripes[(first + i) & mask];
+				if (c == last) continue;
+				released += release(c, Math.min(share, over - released));
+			}
+		}
+		if (released < over && null != last) release(last, over - released);
+	}
+
+	/** Release at least @param min_bytes from @param c, keeping the count of bytes. Returns the bytes released. */
+	private final long release(final Cache c, final long min_bytes) {
+		final long released;
+		final ArrayList<Cache.Evicted> evicted;
+		synchronized (c) {
+			final long before = c.getBytes();
+			c.removeAndFlushSome(min_bytes);
+			released = changed(c, before);
+			evicted = c.takeEvicted();
+		}
+		spill(c, evicted);
+		return released;
+	}
+
+	/** Copy the images @param evicted from @param c into the spill, and flush them.
+	 *  Must not hold the lock of c, so that other threads can use the stripe while pixels are copied. */
+	private final void spill(final Cache c, final ArrayList<Cache.Evicted> evicted) {
+		if (null == evicted) return;
+		final OffHeapMipMapStore spill = this.spill;
+		if (null != spill) {
+			for (final Cache.Evicted e : evicted) {
+				spill.put(e.id, e.level, e.image);
+			}
+		}
+		for (final Cache.Evicted e : evicted) {
+			e.image.flush(); CachingThread.storeArrayForReuse(e.image);
+		}
+		if (null == spill) return;
+		// Images removed from the stripe, and so from the spill, while they were being copied must not linger there
+		synchronized (c) {
+			for (final Cache.Evicted e : evicted) {
+				if (!c.isCurrent(e)) spill.remove(e.id, e.level);
+			}
+		}
+	}
+
+	/** Add to the count of bytes the change in @param c since it had @param before bytes. Must hold the lock of c.
+	 *  Returns the bytes released, if any. */
+	private final long changed(final Cache c, final long before) {
+		final long delta = c.getBytes() - before;
+		bytes.addAndGet(delta);
+		return -delta;
+	}
+
+	/** Maximum desired space for this cache. */
+	public long getMaxBytes() { return max_bytes; }
+
+	/** Current estimated space occupied by the images in this cache. */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/** Remove and flush the minimal amount of images to ensure there are at least min_free_bytes free. */
+	public final long ensureFree(final long min_free_bytes) {
+		final long bytes = getBytes();
+		if (bytes + min_free_bytes > max_bytes) {
+			return removeAndFlushSome(bytes + min_free_bytes - max_bytes);
+		}
+		return 0;
+	}
+
+	public final boolean contains(final long id) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.contains(id);
+		}
+	}
+
+	public final boolean contains(final long id, final int level) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.contains(id, level);
+		}
+	}
+
+	public final Image get(final long id, final int level) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.get(id, level);
+		}
+	}
+
+	/** Searches all stripes, since the path is not related to the id. */
+	public final ImagePlus get(final String path) {
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				final ImagePlus imp = c.get(path);
+				if (null != imp) return imp;
+			}
+		}
+		return null;
+	}
+
+	public final ImagePlus get(final long id) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.get(id);
+		}
+	}
+
+	public final Map<Integer,Image> getAll(final long id) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.getAll(id);
+		}
+	}
+
+	public final MipMapImage getClosestAbove(final long id, final int level) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.getClosestAbove(id, level);
+		}
+	}
+
+	public final MipMapImage getClosestBelow(final long id, final int level) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.getClosestBelow(id, level);
+		}
+	}
+
+	public final void put(final long id, final Image image, final int level) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			final long before = c.getBytes();
+			c.put(id, image, level);
+			changed(c, before);
+		}
+		fit(c);
+	}
+
+	public final void put(final long id, final ImagePlus imp, final int maxdim) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			final long before = c.getBytes();
+			c.put(id, imp, maxdim);
+			changed(c, before);
+		}
+		fit(c);
+	}
+
+	/** See {@link Cache#pin(long, Image)}. */
+	public final boolean pin(final long id, final Image image) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			return c.pin(id, image);
+		}
+	}
+
+	/** See {@link Cache#unpin(long)}. Evicts images if the cache had grown beyond its size while pinned. */
+	public final void unpin(final long id) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			c.unpin(id);
+		}
+		fit(null);
+	}
+
+	public final void updateImagePlusPath(final String oldPath, final String newPath) {
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				c.updateImagePlusPath(oldPath, newPath);
+			}
+		}
+	}
+
+	/** Remove one mipmap level, if there. */
+	public final Image remove(final long id, final int level) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			final long before = c.getBytes();
+			final Image im = c.remove(id, level);
+			changed(c, before);
+			return im;
+		}
+	}
+
+	/** Remove only the ImagePlus, if there. */
+	public final ImagePlus removeImagePlus(final long id) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			final long before = c.getBytes();
+			final ImagePlus imp = c.removeImagePlus(id);
+			changed(c, before);
+			return imp;
+		}
+	}
+
+	public final void remove(final long id) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			final long before = c.getBytes();
+			c.remove(id);
+			changed(c, before);
+		}
+	}
+
+	/** Flush all mipmaps, and forget all mipmaps and imps. */
+	public final void removeAndFlushAll() {
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				final long before = c.getBytes();
+				c.removeAndFlushAll();
+				changed(c, before);
+			}
+		}
+	}
+
+	/** Does not alter the ImagePlus. */
+	public final void removeAndFlushPyramid(final long id) {
+		final Cache c = stripe(id);
+		synchronized (c) {
+			final long before = c.getBytes();
+			c.removeAndFlushPyramid(id);
+			changed(c, before);
+		}
+	}
+
+	/** Returns the number of released bytes. First asks every stripe for an equal share,
+	 *  and then, if that was not enough (some stripes may be nearly empty), drains stripes in turn. */
+	public final long removeAndFlushSome(final long min_bytes) {
+		final int first = next_release.getAndIncrement() & mask;
+		final long share = min_bytes / stripes.length + 1;
+		long released = 0;
+		for (int i=0; i<stripes.length && released < min_bytes; i++) {
+			final Cache c = stripes[(first + i) & mask];
+			released += release(c, Math.min(share, min_bytes - released));
+		}
+		for (int i=0; i<stripes.length && released < min_bytes; i++) {
+			final Cache c = stripes[(first + i) & mask];
+			released += release(c, min_bytes - released);
+		}
+		return released;
+	}
+
+	/** Remove and flush @param n images, taken in turn from each stripe. Returns the number of released bytes. */
+	public final long removeAndFlushSome(int n) {
+		final int first = next_release.getAndIncrement() & mask;
+		long released = 0;
+		for (int i=0; i<stripes.length && n > 0; i++) {
+			final Cache c = stripes[(first + i) & mask];
+			final ArrayList<Cache.Evicted> evicted;
+			synchronized (c) {
+				final int k = Math.min(n, c.size());
+				if (0 == k) continue;
+				final long before = c.getBytes();
+				c.removeAndFlushSome(k);
+				released += changed(c, before);
+				evicted = c.takeEvicted();
+				n -= k;
+			}
+			spill(c, evicted);
+		}
+		return released;
+	}
+
+	/** The number of images stored, summed over all stripes. */
+	public final int size() {
+		int count = 0;
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				count += c.size();
+			}
+		}
+		return count;
+	}
+
+	public void debug() {
+		for (int i=0; i<stripes.length; i++) {
+			Utils.log2("######## stripe " + i + " of " + stripes.length);
+			synchronized (stripes[i]) {
+				stripes[i].debug();
+			}
+		}
+	}
+
+	public final long seqFindId(final ImagePlus imp) {
+		for (final Cache c : stripes) {
+			synchronized (c) {
+				final long id = c.seqFindId(imp);
+				if (Long.MIN_VALUE != id) return id;
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+}
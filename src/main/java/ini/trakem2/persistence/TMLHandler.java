@@ -84,10 +84,11 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
@@ -136,6 +137,8 @@ public class TMLHandler extends DefaultHandler {
 	private Stack last_stack = null;
 	private Patch last_patch = null;
 	private CoordinateTransform last_ct = null;
+	/** The XML of the transforms of the last Patch, when they don't need decoding: see {@link #appendTransformXML(String, HashMap)}. */
+	private StringBuilder last_ct_xml = null;
 	private InvertibleCoordinateTransform last_ict = null;
 	private final ArrayList<IFilter> last_patch_filters = new ArrayList<IFilter>(); 
 	private Treeline last_treeline = null;
@@ -156,6 +159,109 @@ public class TMLHandler extends DefaultHandler {
 	private boolean open_displays = true;
 	final private LinkedList<Runnable> legacy = new LinkedList<Runnable>();
 
+	/** Parses the data of the coordinate transforms of the patches of one layer, off the SAX thread.
+	 *  The transform instances, like all other objects, are created on the SAX thread in document order,
+	 *  so that object identity and ids don't depend on the scheduling of threads. */
+	static private final class TransformBatch implements Runnable {
+		final ArrayList<CoordinateTransform> leaves = new ArrayList<CoordinateTransform>();
+		final ArrayList<String> data = new ArrayList<String>();
+		final ArrayList<Patch> owners = new ArrayList<Patch>();
+		/** Each patch, in document order, and the transform to set to it. */
+		final ArrayList<Patch> patches = new ArrayList<Patch>();
+		final ArrayList<CoordinateTransform> roots = new ArrayList<CoordinateTransform>();
+		final HashSet<Patch> failed = new HashSet<Patch>();
+		/** Patches whose transform is written to its file as is, to be decoded on first use. */
+		final ArrayList<Patch> raw_patches = new ArrayList<Patch>();
+		final ArrayList<String> raw_xml = new ArrayList<String>();
+
+		final void add(final Patch owner, final CoordinateTransform ct, final String s) {
+			leaves.add(ct);
+			data.add(s);
+			owners.add(owner);
+		}
+
+		final void set(final Patch patch, final CoordinateTransform root) {
+			patches.add(patch);
+			roots.add(root);
+		}
+
+		final void write(final Patch patch, final String xml) {
+			raw_patches.add(patch);
+			raw_xml.add(xml);
+		}
+
+		final boolean isEmpty() {
+			return leaves.isEmpty() && patches.isEmpty() && raw_patches.isEmpty();
+		}
+
+		@Override
+		public void run() {
+			for (int i=0; i<raw_patches.size(); i++) {
+				if (!raw_patches.get(i).writeCoordinateTransformFile(raw_xml.get(i))) {
+					Utils.log("ERROR: could not write the coordinate transform file of Patch #" + raw_patches.get(i).getId());
+				}
+			}
+			for (int i=0; i<leaves.size(); i++) {
+				try {
+					leaves.get(i).init(data.get(i));
+				} catch (final Exception e) {
+					IJError.print(e);
+					failed.add(owners.get(i));
+				}
+			}
+			// Patches whose transform file has a known id write it independently of each other
+			for (int i=0; i<patches.size(); i++) {
+				final Patch patch = patches.get(i);
+				if (0 != patch.getCoordinateTransformId() && !failed.contains(patch)) {
+					patch.setCoordinateTransformSilently(roots.get(i));
+				}
+			}
+		}
+
+		/** On the SAX thread, after {@link #run()}: patches without an id for their transform file
+		 *  get a new one, in document order. */
+		final void finish() {
+			for (int i=0; i<patches.size(); i++) {
+				final Patch patch = patches.get(i);
+				if (failed.contains(patch)) {
+					Utils.log("ERROR: could not parse the coordinate transform of Patch #" + patch.getId());
+				} else if (0 == patch.getCoordinateTransformId()) {
+					patch.setCoordinateTransformSilently(roots.get(i));
+				}
+			}
+		}
+	}
+
+	private TransformBatch transform_batch = null;
+	private ExecutorService transform_exec = null;
+	final private LinkedHashMap<TransformBatch,Future<?>> transform_futures = new LinkedHashMap<TransformBatch,Future<?>>();
+
+	/** Hand the coordinate transforms of the patches parsed so far to a worker thread. */
+	private final void submitTransformBatch() {
+		if (null == transform_batch || transform_batch.isEmpty()) return;
+		if (null == transform_exec) transform_exec = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "TMLHandler-transforms");
+		transform_futures.put(transform_batch, transform_exec.submit(transform_batch));
+		transform_batch = null;
+	}
+
+	/** Wait until all coordinate transforms are parsed and set to their patches. */
+	private final void finishTransforms() {
+		submitTransformBatch();
+		for (final Map.Entry<TransformBatch,Future<?>> e : transform_futures.entrySet()) {
+			try {
+				e.getValue().get();
+				e.getKey().finish();
+			} catch (final Exception ex) {
+				IJError.print(ex);
+			}
+		}
+		transform_futures.clear();
+		if (null != transform_exec) {
+			transform_exec.shutdown();
+			transform_exec = null;
+		}
+	}
+
 
 	/** @param path The XML file that contains the project data in XML format.
 	 *  @param loader The FSLoader for the project.
@@ -233,6 +339,8 @@ public class TMLHandler extends DefaultHandler {
 	public Object[] getProjectData(final boolean open_displays) {
 		if (null == project) return null;
 		this.open_displays = open_displays;
+		// 0 - Wait for the coordinate transforms of patches, parsed in other threads
+		finishTransforms();
 		// 1 - Reconstruct links using ht_links
 		// Links exist between Displayable objects.
 		for (final Displayable d : ht_displayables.values()) {
@@ -332,33 +440,18 @@ public class TMLHandler extends DefaultHandler {
 				ht_lids.put(new Long(layer.getId()), layer);
 			}
 
-			// Spawn threads to recreate buckets, starting from the subset of displays to open
-			int n = Runtime.getRuntime().availableProcessors();
-			switch (n) {
-				case 1:
-					break;
-				case 2:
-				case 3:
-				case 4:
-					n--;
-					break;
-				default:
-					n -= 2;
-					break;
-			}
-			final ExecutorService exec = Utils.newFixedThreadPool(n, "TMLHandler-recreateBuckets");
-
-			final Set<Long> dlids = new HashSet<Long>();
+			// Buckets are created on first use: only the layers to show need them right away.
+			// The rest are created in the background, spreading out from the displayed layers.
 			final LayerSet layer_set = (LayerSet) root_lt.getObject();
+			layer_set.deferBuckets();
 
-			final List<Future<?>> fus = new ArrayList<Future<?>>();
-			final List<Future<?>> fus2 = new ArrayList<Future<?>>();
+			final LinkedHashSet<Layer> order = new LinkedHashSet<Layer>();
+			final List<Layer> starts = new ArrayList<Layer>();
 
 			for (final HashMap<String,String> ht_attributes : al_displays) {
 				String ob = ht_attributes.get("layer_id");
 				if (null == ob) continue;
 				final Long lid = new Long(ob);
-				dlids.add(lid);
 				final Layer la = ht_lids.get(lid);
 				if (null == la) {
 					ht_lids.remove(lid);
@@ -366,60 +459,35 @@ public class TMLHandler extends DefaultHandler {
 				}
 				// to open later:
 				new Display(project, Long.parseLong(ht_attributes.get("id")), la, ht_attributes);
-				fus.add(exec.submit(new Runnable() { public void run() {
-					la.recreateBuckets();
-				}}));
+				if (order.add(la)) starts.add(la);
 			}
 
-			fus.add(exec.submit(new Runnable() { public void run() {
-				layer_set.recreateBuckets(false); // only for ZDisplayable
-			}}));
-
 			// Ensure launching:
-			if (dlids.isEmpty() && layer_set.size() > 0) {
-				dlids.add(layer_set.getLayer(0).getId());
+			if (starts.isEmpty() && layer_set.size() > 0) {
+				starts.add(layer_set.getLayer(0));
+				order.add(layer_set.getLayer(0));
 			}
 
+			// Then the layers one away from any displayed layer, then two away, etc.
 			final List<Layer> layers = layer_set.getLayers();
-			for (final Long lid : new HashSet<Long>(dlids)) {
-				fus.add(exec.submit(new Runnable() { public void run() {
-					int start = layer_set.indexOf(layer_set.getLayer(lid.longValue()));
-					int next = start + 1;
-					int prev = start -1;
-					while (next < layer_set.size() || prev > -1) {
-						if (prev > -1) {
-							final Layer lprev = layers.get(prev);
-							synchronized (dlids) {
-								if (dlids.add(lprev.getId())) { // returns true if not there already
-									fus2.add(exec.submit(new Runnable() { public void run() {
-										lprev.recreateBuckets();
-									}}));
-								}
-							}
-							prev--;
-						}
-						if (next < layers.size()) {
-							final Layer lnext = layers.get(next);
-							synchronized (dlids) {
-								if (dlids.add(lnext.getId())) { // returns true if not there already
-									fus2.add(exec.submit(new Runnable() { public void run() {
-										lnext.recreateBuckets();
-									}}));
-								}
-							}
-							next++;
-						}
+			final int[] indices = new int[starts.size()];
+			for (int i=0; i<indices.length; i++) indices[i] = layer_set.indexOf(starts.get(i));
+			for (int d = 1; order.size() < layers.size(); d++) {
+				boolean within = false;
+				for (final int i : indices) {
+					if (i - d > -1) {
+						order.add(layers.get(i - d));
+						within = true;
 					}
-					Utils.log2("done recreateBuckets chunk");
-				}}));
+					if (i + d < layers.size()) {
+						order.add(layers.get(i + d));
+						within = true;
+					}
+				}
+				if (!within) break;
 			}
-			Utils.wait(fus);
-			exec.submit(new Runnable() { public void run() {
-				Utils.log2("waiting for TMLHandler fus...");
-				Utils.wait(fus2);
-				Utils.log2("done waiting TMLHandler fus.");
-				exec.shutdown();
-			}});
+
+			layer_set.warmUpBuckets(new ArrayList<Layer>(order));
 		} catch (Throwable t) {
 			IJError.print(t);
 		}
@@ -563,14 +631,21 @@ public class TMLHandler extends DefaultHandler {
 				}
 				reca = null;
 			}
+		} else if (null != last_ct_xml && (orig_qualified_name.equals("ict_transform_list") || orig_qualified_name.equals("iict_transform_list"))) {
+			last_ct_xml.append("</").append(orig_qualified_name).append(">\n");
 		} else if (orig_qualified_name.equals("ict_transform_list")) {
 			ct_list_stack.remove( ct_list_stack.size() - 1 );
 		} else if (orig_qualified_name.equals("t2_patch")) {
 			if (last_patch_filters.size() > 0) {
 				last_patch.setFilters(last_patch_filters.toArray(new IFilter[last_patch_filters.size()]));
 			}
-			if (null != last_ct) {
-				last_patch.setCoordinateTransformSilently(last_ct);
+			if (null != last_ct_xml) {
+				if (null == transform_batch) transform_batch = new TransformBatch();
+				transform_batch.write(last_patch, last_ct_xml.toString());
+				last_ct_xml = null;
+			} else if (null != last_ct) {
+				if (null == transform_batch) transform_batch = new TransformBatch();
+				transform_batch.set(last_patch, last_ct);
 				last_ct = null;
 			} else if (!last_patch.checkCoordinateTransformFile()) {
 				Utils.log("ERROR: could not find a file for the coordinate transform #" + last_patch.getCoordinateTransformId() + " of Patch #" + last_patch.getId());
@@ -581,6 +656,9 @@ public class TMLHandler extends DefaultHandler {
 			last_patch = null;
 			last_patch_filters.clear();
 			last_displayable = null;
+		} else if (orig_qualified_name.equals("t2_layer")) {
+			// The patches of a layer are complete: parse their transforms in parallel with the rest of the XML
+			submitTransformBatch();
 		} else if (orig_qualified_name.equals("t2_ball")) {
 			last_ball = null;
 			last_displayable = null;
@@ -1032,16 +1110,54 @@ public class TMLHandler extends DefaultHandler {
 		}
 	}
 
+	/** The data of transforms of a Patch is parsed later, by a {@link TransformBatch}; that of a Stack, now. */
+	final private void initTransform( final CoordinateTransform ct, final String data ) throws Exception
+	{
+		if ( null == last_patch )
+		{
+			ct.init( data );
+			return;
+		}
+		if ( null == transform_batch ) transform_batch = new TransformBatch();
+		transform_batch.add( last_patch, ct, data );
+	}
+
+	/** Append the XML of a transform element of a Patch that has a {@link Patch#getCoordinateTransformId()},
+	 *  to be written to its file as is and decoded only when the Patch first needs it. */
+	final private void appendTransformXML( final String type, final HashMap<String,String> ht_attributes )
+	{
+		if ( null == last_ct_xml ) last_ct_xml = new StringBuilder();
+		last_ct_xml.append( '<' ).append( type );
+		final String c = ht_attributes.get( "class" );
+		if ( null != c ) last_ct_xml.append( " class=\"" ).append( escapeXML( c ) ).append( '"' );
+		final String data = ht_attributes.get( "data" );
+		if ( null != data ) last_ct_xml.append( " data=\"" ).append( escapeXML( data ) ).append( '"' );
+		last_ct_xml.append( type.endsWith( "_list" ) ? ">\n" : " />\n" );
+	}
+
+	static private final String escapeXML( final String s )
+	{
+		if ( -1 == s.indexOf( '&' ) && -1 == s.indexOf( '<' ) && -1 == s.indexOf( '"' ) ) return s;
+		return s.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( "\"", "&quot;" );
+	}
+
 	final private void makeCoordinateTransform( String type, final HashMap<String,String> ht_attributes )
 	{
 		try
 		{
 			type = type.toLowerCase();
+
+			if ( null != last_patch && last_patch.hasCoordinateTransform() && ct_list_stack.isEmpty() )
+			{
+				// Keep the raw descriptor: there is a file for it, and decoding it can wait
+				appendTransformXML( type, ht_attributes );
+				return;
+			}
 			
 			if ( type.equals( "ict_transform" ) )
 			{
 				final CoordinateTransform ct = ( CoordinateTransform )Class.forName( ht_attributes.get( "class" ) ).newInstance();
-				ct.init( ht_attributes.get( "data" ) );
+				initTransform( ct, ht_attributes.get( "data" ) );
 				if ( ct_list_stack.isEmpty() )
 				{
 					if ( last_patch != null )
@@ -1055,7 +1171,7 @@ public class TMLHandler extends DefaultHandler {
 			else if ( type.equals( "iict_transform" ) )
 			{
 				final InvertibleCoordinateTransform ict = ( InvertibleCoordinateTransform )Class.forName( ht_attributes.get( "class" ) ).newInstance();
-				ict.init( ht_attributes.get( "data" ) );
+				initTransform( ict, ht_attributes.get( "data" ) );
 				if ( ct_list_stack.isEmpty() )
 				{
 					if ( last_patch != null )
@@ -55,15 +55,18 @@ public class Bureaucrat extends Thread {
 	final private long onset;
 	final private Project[] project;
 	private boolean started = false;
+	/** Whether user input is blocked while the worker runs. */
+	final private boolean block_input;
 	/** A list of tasks to run when the Worker finishes--but not when it quits. */
 	private ArrayList<Runnable> post_tasks = new ArrayList<Runnable>();
 
 	/** Registers itself in the project loader job queue. */
 	private Bureaucrat(ThreadGroup tg, Worker worker, Project project) {
-		this(tg, worker, new Project[]{project});
+		this(tg, worker, new Project[]{project}, true);
 	}
-	private Bureaucrat(ThreadGroup tg, Worker worker, Project[] project) {
+	private Bureaucrat(ThreadGroup tg, Worker worker, Project[] project, boolean block_input) {
 		super(tg, "T2-Bureaucrat");
+		this.block_input = block_input;
 		setPriority(Thread.NORM_PRIORITY);
 		this.worker = worker;
 		this.worker_thread = new CachingThread(tg, worker, worker.getThreadName());
@@ -72,7 +75,7 @@ public class Bureaucrat extends Thread {
 		this.project = project;
 		onset = System.currentTimeMillis();
 		for (int i=0; i<project.length; i++) {
-			project[i].setReceivesInput(false);
+			if (block_input) project[i].setReceivesInput(false);
 			project[i].getLoader().addJob(this);
 		}
 	}
@@ -85,7 +88,7 @@ public class Bureaucrat extends Thread {
 	/** Creates but does not start the Bureaucrat thread. */
 	static public Bureaucrat create(Worker worker, Project[] project) {
 		ThreadGroup tg = new ThreadGroup("T2-Bureaucrat for " + worker.getTaskName());
-		return new Bureaucrat(tg, worker, project);
+		return new Bureaucrat(tg, worker, project, true);
 	}
 
 	/** Creates and start the Bureaucrat thread. */
@@ -97,7 +100,17 @@ public class Bureaucrat extends Thread {
 	static public Bureaucrat createAndStart(Worker worker, Project[] project) {
 		ThreadGroup tg = new ThreadGroup("T2-Bureaucrat for " + worker.getTaskName());
 		tg.setMaxPriority(Thread.NORM_PRIORITY);
-		Bureaucrat burro = new Bureaucrat(tg, worker, project);
+		Bureaucrat burro = new Bureaucrat(tg, worker, project, true);
+		burro.goHaveBreakfast();
+		return burro;
+	}
+
+	/** Creates and starts the Bureaucrat thread for a task that runs in the background:
+	 *  the project keeps receiving input, and the task can be canceled from the list of jobs. */
+	static public Bureaucrat createAndStartInBackground(Worker worker, Project project) {
+		ThreadGroup tg = new ThreadGroup("T2-Bureaucrat for " + worker.getTaskName());
+		tg.setMaxPriority(Thread.NORM_PRIORITY);
+		Bureaucrat burro = new Bureaucrat(tg, worker, new Project[]{project}, false);
 		burro.goHaveBreakfast();
 		return burro;
 	}
@@ -119,7 +132,7 @@ public class Bureaucrat extends Thread {
 		Utils.showProgress(1); // cleanup all possible interruptions
 		for (int i=0; i<project.length; i++) {
 			project[i].getLoader().removeJob(this);
-			project[i].setReceivesInput(true);
+			if (block_input) project[i].setReceivesInput(true);
 		}
 	}
 	public void run() {
@@ -135,7 +148,7 @@ public class Bureaucrat extends Thread {
 				return;
 			}
 		}
-		ControlWindow.startWaitingCursor();
+		if (block_input) ControlWindow.startWaitingCursor();
 		int sandwitch = ControlWindow.isGUIEnabled() ? 100 : 5000; // 0.1 second or 5
 		Utils.showStatus("Started processing: " + worker.getTaskName(), false); // don't steal focus, ever
 		final StringBuilder sb = new StringBuilder("Processing... ").append(worker.getTaskName()).append(" - ");
@@ -154,7 +167,7 @@ public class Bureaucrat extends Thread {
 			// reset:
 			sb.setLength(base_len);
 		}
-		ControlWindow.endWaitingCursor();
+		if (block_input) ControlWindow.endWaitingCursor();
 		final long elapsed = System.currentTimeMillis() - onset;
 		final String done = "Done " + worker.getTaskName() + " (" + Utils.cutNumber(elapsed/1000.0, 2) + "s approx.)";
 		Utils.showStatus(done, false); // don't steal focus;
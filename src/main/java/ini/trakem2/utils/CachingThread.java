@@ -30,6 +30,7 @@ import java.lang.ref.SoftReference;
 import java.lang.reflect.Array;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class CachingThread extends Thread
 {
@@ -39,10 +40,26 @@ public class CachingThread extends Thread
 	{
 		private static final long serialVersionUID = 1L;
 		private final Class<A> clazz;
+		private final int bytes_per_element;
 		private int count = 0;
+		/** Bytes of the arrays stored, kept by the owner thread so that others can read it without touching the lists;
+		 *  those whose soft reference was cleared are counted until the next {@link #restructure()}. */
+		private final AtomicLong bytes = new AtomicLong(0);
 		
-		private ArrayCache(final Class<A> clazz) {
+		private ArrayCache(final Class<A> clazz, final int bytes_per_element) {
 			this.clazz = clazz;
+			this.bytes_per_element = bytes_per_element;
+		}
+
+		private final long sizeOf(final int length) {
+			return 16 + bytes_per_element * (long)length;
+		}
+
+		@Override
+		public void clear() {
+			super.clear();
+			count = 0;
+			bytes.set(0);
 		}
 
 		private final A getOrCreateArray(final int length) {
@@ -57,6 +74,7 @@ public class CachingThread extends Thread
 			do {
 				a = l.removeFirst().get();
 				--count;
+				bytes.addAndGet(-sizeOf(length));
 			} while (null == a && !l.isEmpty());
 			return null == a ? newArray(length) : a;
 		}
@@ -74,6 +92,7 @@ public class CachingThread extends Thread
 			}
 			l.add(new SoftReference<A>(a));
 			++count;
+			bytes.addAndGet(sizeOf(length));
 			// Clean up
 			if (count > SIZE) {
 				restructure();
@@ -83,26 +102,30 @@ public class CachingThread extends Thread
 		@SuppressWarnings("unchecked")
 		synchronized private final void restructure() {
 			count = 0;
+			long b = 0;
 			final LinkedList<SoftReference<A>>[] ls = this.values().toArray(new LinkedList[this.size()]);
 			for (final LinkedList<SoftReference<A>> l : ls) {
 				final SoftReference<A>[] s = l.toArray(new SoftReference[l.size()]);
 				// Remove stale references and crop to maximum SIZE
 				l.clear();
 				for (int i=0, c=count; i < s.length && c < SIZE; ++i) {
-					if (null == s[i].get()) continue; // stale reference
+					final A a = s[i].get();
+					if (null == a) continue; // stale reference
 					// Re-add good reference
 					l.add(s[i]);
 					++c;
+					b += sizeOf(Array.getLength(a));
 				}
 				// Update
 				count += l.size();
 			}
+			bytes.set(b);
 		}
 	}
 
 
-	private final ArrayCache<byte[]> cacheBytes = new ArrayCache<byte[]>(byte[].class);
-	private final ArrayCache<int[]> cacheInts = new ArrayCache<int[]>(int[].class);	
+	private final ArrayCache<byte[]> cacheBytes = new ArrayCache<byte[]>(byte[].class, 1);
+	private final ArrayCache<int[]> cacheInts = new ArrayCache<int[]>(int[].class, 4);	
 
 	public void clear() {
 		synchronized (cacheBytes) { cacheBytes.clear(); }
@@ -184,8 +207,36 @@ public class CachingThread extends Thread
 		}
 	}
 	
+	/** Bytes held by the arrays stored for reuse, at most: some may have been reclaimed already.
+	 *  Safe to call from any thread, for it only reads the counters that the owner thread keeps. */
+	private final long estimateBytes() {
+		return cacheBytes.bytes.get() + cacheInts.bytes.get();
+	}
+
+	/** Bytes held for reuse by all instances. */
+	public static final long estimateAllBytes() {
+		long bytes = 0;
+		for (final Thread t : allThreads()) {
+			if (null != t && CachingThread.class.isAssignableFrom(t.getClass())) {
+				bytes += ((CachingThread)t).estimateBytes();
+			}
+		}
+		return bytes;
+	}
+
 	/** Tell all instances to clear their caches. */
 	public static final void releaseAll() {
+		// For each Thread, if it's a CachingThread, clear its contents
+		for (Thread t : allThreads()) {
+			if (null == t) continue;
+			if (CachingThread.class.isAssignableFrom(t.getClass())) {
+				((CachingThread)t).clear();
+			}
+		}
+	}
+
+	/** All live Thread instances. */
+	private static final Thread[] allThreads() {
 		// Find the top-most parent Thread
 		ThreadGroup parent = Thread.currentThread().getThreadGroup();
 		while (true) {
@@ -198,12 +249,6 @@ public class CachingThread extends Thread
 		while (parent.enumerate(ts, true) == ts.length) {
 		    ts = new Thread[ ts.length * 2 ];
 		}
-		// For each Thread, if it's a CachingThread, clear its contents
-		for (Thread t : ts) {
-			if (null == t) continue;
-			if (CachingThread.class.isAssignableFrom(t.getClass())) {
-				((CachingThread)t).clear();
-			}
-		}
+		return ts;
 	}
 }
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.utils;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.AreaList;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Patch;
+import ini.trakem2.display.Tree;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.persistence.DBObject;
+import ini.trakem2.persistence.Loader;
+
+import java.awt.geom.Area;
+import java.awt.geom.PathIterator;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Estimates of the heap retained by each subsystem of an open project, to size -Xmx
+ *  and the image cache from data rather than guesswork.
+ *
+ *  The estimates assume a 64-bit JVM with compressed references: 12-byte object headers,
+ *  4-byte references and 8-byte alignment. Objects are walked by reflection, except that
+ *  the walk stops at any {@link DBObject} (they are accounted for by the subsystem that owns them),
+ *  JDK collections are walked through their public interfaces, and an {@link Area} is estimated
+ *  from its number of path segments. Objects shared between subsystems are counted once,
+ *  for the first subsystem that reaches them.
+ *
+ *  See {@link #measure(Project)} for the API and {@link #log(Project)} for the one-line report
+ *  that the project property "memory_report_interval" prints periodically. */
+public final class MemoryReport {
+
+	static private final int HEADER = 12;
+	static private final int REF = 4;
+	/** Per-entry overhead of a HashMap, TreeMap or LinkedList node. */
+	static private final int ENTRY = 32;
+	/** Bytes per segment of an Area, which holds Order1/2/3 curves of several doubles each. */
+	static private final int AREA_SEGMENT = 80;
+
+	static private final ConcurrentHashMap<Class<?>,Field[]> fields = new ConcurrentHashMap<Class<?>,Field[]>();
+
+	private MemoryReport() {}
+
+	static private final long align(final long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	static private final int sizeOf(final Class<?> c) {
+		if (!c.isPrimitive()) return REF;
+		if (long.class == c || double.class == c) return 8;
+		if (int.class == c || float.class == c) return 4;
+		if (short.class == c || char.class == c) return 2;
+		return 1;
+	}
+
+	/** Non-static fields of class c and its superclasses. */
+	static private final Field[] fieldsOf(final Class<?> c) {
+		Field[] fs = fields.get(c);
+		if (null != fs) return fs;
+		final ArrayList<Field> al = new ArrayList<Field>();
+		for (Class<?> k = c; null != k; k = k.getSuperclass()) {
+			for (final Field f : k.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers())) continue;
+				al.add(f);
+			}
+		}
+		fs = al.toArray(new Field[al.size()]);
+		fields.put(c, fs);
+		return fs;
+	}
+
+	static private final boolean isJDK(final Class<?> c) {
+		final String name = c.getName();
+		return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("jdk.");
+	}
+
+	/** Estimate of the bytes retained by the outline of @param area. */
+	static public final long estimate(final Area area) {
+		long n = 0;
+		for (final PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) n++;
+		return 64 + n * AREA_SEGMENT;
+	}
+
+	/** Estimate of the bytes retained by @param ob and everything reachable from it, except DBObject instances. */
+	static public final long estimate(final Object ob) {
+		return estimate(ob, new IdentityHashMap<Object,Boolean>());
+	}
+
+	/** Like {@link #estimate(Object)}, skipping objects in @param seen, to which the walked objects are added. */
+	static public final long estimate(final Object root, final IdentityHashMap<Object,Boolean> seen) {
+		if (null == root) return 0;
+		long bytes = 0;
+		final ArrayDeque<Object> stack = new ArrayDeque<Object>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Object ob = stack.pop();
+			if (seen.containsKey(ob)) continue;
+			seen.put(ob, Boolean.TRUE);
+			final Class<?> c = ob.getClass();
+			if (ob instanceof DBObject && ob != root) continue;
+			if (ob instanceof Class || ob instanceof Thread || ob instanceof ClassLoader) continue;
+			if (ob instanceof Area) {
+				bytes += estimate((Area)ob);
+				continue;
+			}
+			if (c.isArray()) {
+				final Class<?> t = c.getComponentType();
+				final int len = Array.getLength(ob);
+				bytes += align(16 + (long)len * sizeOf(t));
+				if (!t.isPrimitive()) {
+					for (int i=0; i<len; i++) {
+						final Object o = Array.get(ob, i);
+						if (null != o) stack.push(o);
+					}
+				}
+				continue;
+			}
+			if (ob instanceof String) {
+				bytes += 24 + align(16 + ((String)ob).length());
+				continue;
+			}
+			if (ob instanceof Map) {
+				final Map<?,?> m = (Map<?,?>)ob;
+				bytes += 48 + m.size() * (long)(ENTRY + REF);
+				try {
+					for (final Map.Entry<?,?> e : m.entrySet()) {
+						if (null != e.getKey()) stack.push(e.getKey());
+						if (null != e.getValue()) stack.push(e.getValue());
+					}
+				} catch (final ConcurrentModificationException cme) {
+					// edited meanwhile: an estimate anyway
+				}
+				continue;
+			}
+			if (ob instanceof Collection) {
+				final Collection<?> col = (Collection<?>)ob;
+				bytes += 40 + col.size() * (long)(isJDK(c) && !(ob instanceof ArrayList) ? ENTRY : REF);
+				try {
+					for (final Object o : col) {
+						if (null != o) stack.push(o);
+					}
+				} catch (final ConcurrentModificationException cme) {
+					// edited meanwhile: an estimate anyway
+				}
+				continue;
+			}
+			// Any other object: its own fields, and what they point to unless it's a JDK class
+			final Field[] fs = fieldsOf(c);
+			long shallow = HEADER;
+			for (final Field f : fs) shallow += sizeOf(f.getType());
+			bytes += align(shallow);
+			if (isJDK(c)) continue;
+			for (final Field f : fs) {
+				if (f.getType().isPrimitive()) continue;
+				try {
+					f.setAccessible(true);
+					final Object o = f.get(ob);
+					if (null != o) stack.push(o);
+				} catch (final Exception e) {
+					// inaccessible: count only the reference
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/** Estimated bytes per subsystem of @param project, in a fixed order. Also includes
+	 *  the heap in use and the maximum heap, for reference. Can take a while for large projects. */
+	static public final LinkedHashMap<String,Long> measure(final Project project) {
+		final LinkedHashMap<String,Long> m = new LinkedHashMap<String,Long>();
+		final Runtime rt = Runtime.getRuntime();
+		m.put("heap used", rt.totalMemory() - rt.freeMemory());
+		m.put("heap max", rt.maxMemory());
+
+		final Loader loader = project.getLoader();
+		m.put("mipmap cache", loader.getCacheBytes());
+		m.put("off-heap mipmap cache", loader.getOffHeapCacheUsedBytes());
+		m.put("array pools", CachingThread.estimateAllBytes());
+
+		final IdentityHashMap<Object,Boolean> seen = new IdentityHashMap<Object,Boolean>();
+		final LayerSet ls = project.getRootLayerSet();
+		long areas = 0, trees = 0;
+		for (final ZDisplayable zd : ls.getZDisplayables()) {
+			if (zd instanceof AreaList) areas += ((AreaList)zd).estimateAreaBytes(seen);
+			else if (zd instanceof Tree<?>) trees += ((Tree<?>)zd).estimateNodeBytes(seen);
+		}
+		m.put("AreaList areas", areas);
+		m.put("Tree nodes", trees);
+		m.put("undo history", ls.estimateUndoBytes(seen));
+		m.put("buckets", ls.estimateBucketBytes(seen));
+
+		long cts = 0;
+		for (final Layer la : ls.getLayers()) {
+			for (final Displayable d : la.getDisplayables(Patch.class)) {
+				cts += ((Patch)d).estimateCoordinateTransformBytes(seen);
+			}
+		}
+		m.put("coordinate transforms", cts);
+		return m;
+	}
+
+	/** One line with the estimates of {@link #measure(Project)}, in MB. */
+	static public final String report(final Project project) {
+		final StringBuilder sb = new StringBuilder("Memory of ").append(project.getTitle()).append(" (MB):");
+		String sep = " ";
+		for (final Map.Entry<String,Long> e : measure(project).entrySet()) {
+			sb.append(sep).append(e.getKey()).append(' ').append(Utils.cutNumber(e.getValue() / 1048576.0, 1));
+			sep = ", ";
+		}
+		return sb.toString();
+	}
+
+	static public final void log(final Project project) {
+		final long start = System.currentTimeMillis();
+		final String s = report(project);
+		Utils.log2(s + " [" + (System.currentTimeMillis() - start) + " ms]");
+	}
+}
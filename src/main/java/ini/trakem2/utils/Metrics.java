@@ -0,0 +1,395 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** A registry of named counters, histograms and timers for the hot paths of the loader,
+ *  the display and the alignment, to compare versions under real load.
+ *
+ *  Recording costs a System.nanoTime() call and a few atomic additions. Metrics are created on first use:
+ *  <pre>
+ *  final long t = Metrics.start();
+ *  ...
+ *  Metrics.timer("mipmap.decode").stop(t);
+ *  Metrics.counter("mipmap.cache.hit").increment();
+ *  </pre>
+ *
+ *  Export with {@link #write(File)}, as CSV or JSON depending on the file extension, or through JMX
+ *  with {@link #registerMBean()}. The system properties "trakem2.metrics.file" and "trakem2.metrics.jmx=true"
+ *  do either automatically, the file being written when the JVM exits. Recording is disabled
+ *  with "trakem2.metrics=false". */
+public final class Metrics {
+
+	static public final String FILE_PROPERTY = "trakem2.metrics.file";
+	static public final String JMX_PROPERTY = "trakem2.metrics.jmx";
+	static public final String ENABLED_PROPERTY = "trakem2.metrics";
+	static public final String MBEAN_NAME = "ini.trakem2:type=Metrics";
+
+	static private volatile boolean enabled = !"false".equals(System.getProperty(ENABLED_PROPERTY));
+
+	static private final ConcurrentHashMap<String,Counter> counters = new ConcurrentHashMap<String,Counter>();
+	static private final ConcurrentHashMap<String,Histogram> histograms = new ConcurrentHashMap<String,Histogram>();
+
+	static private final long start_time = System.currentTimeMillis();
+
+	static {
+		final String path = System.getProperty(FILE_PROPERTY);
+		if (null != path) {
+			Runtime.getRuntime().addShutdownHook(new Thread("TrakEM2 metrics writer") {
+				@Override
+				public void run() {
+					write(new File(path));
+				}
+			});
+		}
+		if ("true".equals(System.getProperty(JMX_PROPERTY))) registerMBean();
+	}
+
+	private Metrics() {}
+
+	/** A count of events. */
+	static public final class Counter {
+		private final LongAdder n = new LongAdder();
+		private Counter() {}
+		public final void increment() {
+			if (enabled) n.increment();
+		}
+		public final void add(final long k) {
+			if (enabled) n.add(k);
+		}
+		public final long get() {
+			return n.sum();
+		}
+		private final void reset() {
+			n.reset();
+		}
+	}
+
+	/** The distribution of recorded non-negative values, binned by powers of two,
+	 *  so that the percentiles are upper bounds within a factor of two. */
+	static public class Histogram {
+		/** Bin i holds the values in [2^(i-1), 2^i), and bin zero holds zero. */
+		private final AtomicLongArray bins = new AtomicLongArray(64);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+		private Histogram() {}
+
+		public final void record(long value) {
+			if (!enabled) return;
+			if (value < 0) value = 0;
+			bins.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.increment();
+			sum.add(value);
+			for (long m = min.get(); value < m && !min.compareAndSet(m, value); m = min.get());
+			for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get());
+		}
+
+		public final long getCount() { return count.sum(); }
+		public final long getSum() { return sum.sum(); }
+		public final long getMin() { final long m = min.get(); return Long.MAX_VALUE == m ? 0 : m; }
+		public final long getMax() { final long m = max.get(); return Long.MIN_VALUE == m ? 0 : m; }
+		public final double getMean() {
+			final long n = getCount();
+			return 0 == n ? 0 : getSum() / (double)n;
+		}
+
+		/** The upper bound of the bin containing the @param q quantile, between 0 and 1; never larger than the maximum. */
+		public final long getPercentile(final double q) {
+			long n = 0;
+			for (int i=0; i<bins.length(); i++) n += bins.get(i);
+			if (0 == n) return 0;
+			final long rank = Math.max(1, (long)Math.ceil(q * n));
+			long cumulative = 0;
+			for (int i=0; i<bins.length(); i++) {
+				cumulative += bins.get(i);
+				if (cumulative >= rank) {
+					return Math.min((1L << i) - 1, getMax());
+				}
+			}
+			return getMax();
+		}
+
+		/** The unit of the recorded values, for exporting. */
+		public String getUnit() { return ""; }
+
+		/** Multiplier to apply to the recorded values when exporting. */
+		double getScale() { return 1; }
+
+		private final void reset() {
+			for (int i=0; i<bins.length(); i++) bins.set(i, 0);
+			count.reset();
+			sum.reset();
+			min.set(Long.MAX_VALUE);
+			max.set(Long.MIN_VALUE);
+		}
+	}
+
+	/** A {@link Histogram} of durations recorded in nanoseconds and exported in milliseconds. */
+	static public final class Timer extends Histogram {
+		private Timer() {}
+		/** Record the time elapsed since @param start, as given by {@link Metrics#start()}, and return it in nanoseconds. */
+		public final long stop(final long start) {
+			final long elapsed = System.nanoTime() - start;
+			record(elapsed);
+			return elapsed;
+		}
+		@Override
+		public final String getUnit() { return "ms"; }
+		@Override
+		final double getScale() { return 1e-6; }
+	}
+
+	/** The current time in nanoseconds, to pass to {@link Timer#stop(long)}. */
+	static public final long start() {
+		return System.nanoTime();
+	}
+
+	static public final boolean isEnabled() {
+		return enabled;
+	}
+
+	static public final void setEnabled(final boolean b) {
+		enabled = b;
+	}
+
+	static public final Counter counter(final String name) {
+		Counter c = counters.get(name);
+		if (null == c) {
+			c = new Counter();
+			final Counter prev = counters.putIfAbsent(name, c);
+			if (null != prev) c = prev;
+		}
+		return c;
+	}
+
+	static public final Histogram histogram(final String name) {
+		return get(name, false);
+	}
+
+	static public final Timer timer(final String name) {
+		return (Timer) get(name, true);
+	}
+
+	static private final Histogram get(final String name, final boolean timer) {
+		Histogram h = histograms.get(name);
+		if (null == h) {
+			h = timer ? new Timer() : new Histogram();
+			final Histogram prev = histograms.putIfAbsent(name, h);
+			if (null != prev) h = prev;
+		}
+		if (timer != (h instanceof Timer)) throw new IllegalArgumentException("Metric " + name + " is a " + h.getClass().getSimpleName());
+		return h;
+	}
+
+	/** Set all metrics back to zero. */
+	static public final void reset() {
+		for (final Counter c : counters.values()) c.reset();
+		for (final Histogram h : histograms.values()) h.reset();
+	}
+
+	static private final String format(final double d) {
+		return String.format(Locale.US, "%.3f", d);
+	}
+
+	/** All values of all metrics by flattened name, such as "mipmap.decode.p90", sorted by name. */
+	static public final TreeMap<String,Number> snapshot() {
+		final TreeMap<String,Number> m = new TreeMap<String,Number>();
+		for (final Map.Entry<String,Counter> e : counters.entrySet()) {
+			m.put(e.getKey(), e.getValue().get());
+		}
+		for (final Map.Entry<String,Histogram> e : histograms.entrySet()) {
+			final String name = e.getKey();
+			final Histogram h = e.getValue();
+			final double s = h.getScale();
+			m.put(name + ".count", h.getCount());
+			m.put(name + ".sum", h.getSum() * s);
+			m.put(name + ".min", h.getMin() * s);
+			m.put(name + ".max", h.getMax() * s);
+			m.put(name + ".mean", h.getMean() * s);
+			m.put(name + ".p50", h.getPercentile(0.5) * s);
+			m.put(name + ".p90", h.getPercentile(0.9) * s);
+			m.put(name + ".p99", h.getPercentile(0.99) * s);
+		}
+		return m;
+	}
+
+	/** One row per metric: name, type, unit, count, sum, min, max, mean, p50, p90, p99. */
+	static public final String toCSV() {
+		final StringBuilder sb = new StringBuilder("name,type,unit,count,sum,min,max,mean,p50,p90,p99\n");
+		for (final String name : new TreeMap<String,Counter>(counters).keySet()) {
+			sb.append(name).append(",counter,,").append(counters.get(name).get()).append(",,,,,,,\n");
+		}
+		for (final Map.Entry<String,Histogram> e : new TreeMap<String,Histogram>(histograms).entrySet()) {
+			final Histogram h = e.getValue();
+			final double s = h.getScale();
+			sb.append(e.getKey()).append(',').append(h instanceof Timer ? "timer" : "histogram")
+			  .append(',').append(h.getUnit())
+			  .append(',').append(h.getCount())
+			  .append(',').append(format(h.getSum() * s))
+			  .append(',').append(format(h.getMin() * s))
+			  .append(',').append(format(h.getMax() * s))
+			  .append(',').append(format(h.getMean() * s))
+			  .append(',').append(format(h.getPercentile(0.5) * s))
+			  .append(',').append(format(h.getPercentile(0.9) * s))
+			  .append(',').append(format(h.getPercentile(0.99) * s))
+			  .append('\n');
+		}
+		return sb.toString();
+	}
+
+	static private final String quote(final String s) {
+		return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+
+	/** The metrics as a JSON object, with the TrakEM2 version and the time span of the recording. */
+	static public final String toJSON() {
+		final StringBuilder sb = new StringBuilder("{\n");
+		sb.append("  \"version\": ").append(quote(Utils.version)).append(",\n");
+		sb.append("  \"start\": ").append(start_time).append(",\n");
+		sb.append("  \"end\": ").append(System.currentTimeMillis()).append(",\n");
+		sb.append("  \"counters\": {");
+		String sep = "\n";
+		for (final String name : new TreeMap<String,Counter>(counters).keySet()) {
+			sb.append(sep).append("    ").append(quote(name)).append(": ").append(counters.get(name).get());
+			sep = ",\n";
+		}
+		sb.append("\n  },\n  \"histograms\": {");
+		sep = "\n";
+		for (final Map.Entry<String,Histogram> e : new TreeMap<String,Histogram>(histograms).entrySet()) {
+			final Histogram h = e.getValue();
+			final double s = h.getScale();
+			sb.append(sep).append("    ").append(quote(e.getKey())).append(": {")
+			  .append("\"type\": ").append(quote(h instanceof Timer ? "timer" : "histogram"))
+			  .append(", \"unit\": ").append(quote(h.getUnit()))
+			  .append(", \"count\": ").append(h.getCount())
+			  .append(", \"sum\": ").append(format(h.getSum() * s))
+			  .append(", \"min\": ").append(format(h.getMin() * s))
+			  .append(", \"max\": ").append(format(h.getMax() * s))
+			  .append(", \"mean\": ").append(format(h.getMean() * s))
+			  .append(", \"p50\": ").append(format(h.getPercentile(0.5) * s))
+			  .append(", \"p90\": ").append(format(h.getPercentile(0.9) * s))
+			  .append(", \"p99\": ").append(format(h.getPercentile(0.99) * s))
+			  .append('}');
+			sep = ",\n";
+		}
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	/** Write all metrics to @param f, as JSON if its name ends with ".json" and otherwise as CSV. */
+	static public final boolean write(final File f) {
+		Writer w = null;
+		try {
+			final String text = f.getName().toLowerCase().endsWith(".json") ? toJSON() : toCSV();
+			w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+			w.write(text);
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		} finally {
+			if (null != w) try { w.close(); } catch (final Exception ee) {}
+		}
+	}
+
+	/** Expose all metrics as read-only attributes of the MBean {@link #MBEAN_NAME}, with a "reset" operation. */
+	static public final synchronized boolean registerMBean() {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(MBEAN_NAME);
+			if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	/** Attributes are created anew at every query, given that metrics are created on first use. */
+	static private final class MetricsMBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+			final Number n = snapshot().get(attribute);
+			if (null == n) throw new AttributeNotFoundException(attribute);
+			return n;
+		}
+		@Override
+		public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+		@Override
+		public AttributeList getAttributes(final String[] attributes) {
+			final TreeMap<String,Number> m = snapshot();
+			final AttributeList al = new AttributeList();
+			for (final String a : attributes) {
+				final Number n = m.get(a);
+				if (null != n) al.add(new Attribute(a, n));
+			}
+			return al;
+		}
+		@Override
+		public AttributeList setAttributes(final AttributeList attributes) {
+			return new AttributeList();
+		}
+		@Override
+		public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+			if ("reset".equals(actionName)) reset();
+			return null;
+		}
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			final ArrayList<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+			for (final Map.Entry<String,Number> e : snapshot().entrySet()) {
+				attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+			}
+			final MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Set all metrics back to zero", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+			return new MBeanInfo(Metrics.class.getName(), "TrakEM2 metrics", attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null, new MBeanOperationInfo[]{reset}, null);
+		}
+	}
+}
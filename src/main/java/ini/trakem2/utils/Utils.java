@@ -1596,7 +1596,12 @@ public class Utils implements ij.plugin.PlugIn {
 	
 	static public final ThreadPoolExecutor newFixedThreadPool(final int n_proc, final String namePrefix, final boolean use_caching_thread) {
 		final ThreadPoolExecutor exec = (ThreadPoolExecutor) Executors.newFixedThreadPool(n_proc);
-		exec.setThreadFactory(new ThreadFactory() {
+		exec.setThreadFactory(newThreadFactory(namePrefix, use_caching_thread));
+		return exec;
+	}
+	/** Creates daemon threads in the same ThreadGroup as the Thread that calls the factory, named with @param namePrefix or else the group's name. */
+	static public final ThreadFactory newThreadFactory(final String namePrefix, final boolean use_caching_thread) {
+		return new ThreadFactory() {
 			final AtomicInteger ai = new AtomicInteger(0);
 			@Override
 			public Thread newThread(final Runnable r) {
@@ -1612,8 +1617,7 @@ public class Utils implements ij.plugin.PlugIn {
 				t.setPriority(Thread.NORM_PRIORITY);
 				return t;
 			}
-		});
-		return exec;
+		};
 	}
 	/** If both are null will throw an error. */
 	static public final boolean equalContent(final Collection<?> a, final Collection<?> b) {
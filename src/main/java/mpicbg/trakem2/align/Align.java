@@ -38,6 +38,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
+import ij.process.ImageProcessor;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
@@ -46,6 +47,7 @@ import ini.trakem2.display.Selection;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.Utils;
 import mpicbg.ij.FeatureTransform;
 import mpicbg.ij.SIFT;
@@ -526,8 +528,10 @@ public class Align
 						{
 							features = new ArrayList< Feature >();
 							final long s = System.currentTimeMillis();
-							ijSIFT.extractFeatures( tile.createMaskedByteImage(), features );
-							Utils.log( features.size() + " features extracted in tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+							if ( FeatureStore.extractFeatures( ijSIFT, p.sift, tile.createMaskedByteImage(), features, true ) )
+								Utils.log( features.size() + " features found in the shared store for tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+							else
+								Utils.log( features.size() + " features extracted in tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
 							if ( !serializeFeatures( p, tile, features ) )
 								Utils.log( "Saving features failed for tile \"" + tile.getPatch() + "\"" );
 							memoryFlushed = false;
@@ -610,7 +614,7 @@ public class Align
 
 					final long s = System.currentTimeMillis();
 
-					FeatureTransform.matchFeatures(
+					matchFeatures(
 						fetchFeatures( p, tilePair[ 0 ] ),
 						fetchFeatures( p, tilePair[ 1 ] ),
 						candidates,
@@ -779,13 +783,10 @@ public class Align
 
 	final static protected boolean serializeFeatures( final Param p, final AbstractAffineTile2D< ? > t, final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
 		final Patch patch = t.getPatch();
 		final Loader loader = patch.getProject().getLoader();
-		final Features fe = new Features( p.sift, list );
-		return loader.serialize( fe, new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
+		return FeatureCodec.writeFeatures( new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString(), p.sift, f );
 	}
 
 	/**
@@ -796,8 +797,13 @@ public class Align
 		final Patch patch = t.getPatch();
 		final Loader loader = patch.getProject().getLoader();
 
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
+		final String path = new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString();
+		if ( FeatureCodec.isCodecFile( path ) )
+			return FeatureCodec.readFeatures( path, p.sift );
+
+		/* files saved before the binary format */
+		final Object ob = loader.deserialize( path );
 		if ( null != ob )
 		{
 			try
@@ -817,6 +823,37 @@ public class Align
 	}
 
 
+	/**
+	 * Extract features with ijSIFT, timed into the "sift.extract"
+	 * {@link Metrics} timer, with their number into "sift.features".
+	 */
+	final static public void extractFeatures(
+			final SIFT ijSIFT,
+			final ImageProcessor ip,
+			final Collection< Feature > features )
+	{
+		final int n = features.size();
+		final long t = Metrics.start();
+		ijSIFT.extractFeatures( ip, features );
+		Metrics.timer( "sift.extract" ).stop( t );
+		Metrics.histogram( "sift.features" ).record( features.size() - n );
+	}
+
+	/**
+	 * {@link FeatureTransform#matchFeatures(Collection, Collection, List, float)},
+	 * timed into the "sift.match" {@link Metrics} timer.
+	 */
+	final static public void matchFeatures(
+			final Collection< Feature > fs1,
+			final Collection< Feature > fs2,
+			final List< PointMatch > matches,
+			final float rod )
+	{
+		final long t = Metrics.start();
+		FeatureTransform.matchFeatures( fs1, fs2, matches, rod );
+		Metrics.timer( "sift.match" ).stop( t );
+	}
+
 	final static protected Collection< Feature > fetchFeatures(
 			final Param p,
 			final AbstractAffineTile2D< ? > t )
@@ -828,8 +865,10 @@ public class Align
 			final SIFT ijSIFT = new SIFT( sift );
 			features = new ArrayList< Feature >();
 			final long s = System.currentTimeMillis();
-			ijSIFT.extractFeatures( t.createMaskedByteImage(), features );
-			Utils.log( features.size() + " features extracted in tile \"" + t.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+			if ( FeatureStore.extractFeatures( ijSIFT, p.sift, t.createMaskedByteImage(), features, true ) )
+				Utils.log( features.size() + " features found in the shared store for tile \"" + t.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+			else
+				Utils.log( features.size() + " features extracted in tile \"" + t.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
 			if ( !serializeFeatures( p, t, features ) )
 				Utils.log( "Saving features failed for tile: " + t.getPatch() );
 		}
@@ -854,20 +893,20 @@ public class Align
 			final AbstractAffineTile2D< ? > t2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
 		PointMatch.flip( m, tsil );
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
 		final Loader loader = p1.getProject().getLoader();
 		return
-			loader.serialize(
-				new PointMatches( p, list ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( p, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p2.getId() ) + "_" + Long.toString( p1.getId() ), "pointmatches", ".ser" ) ).toString() );
+			FeatureCodec.writePointMatches(
+				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString(),
+				p,
+				m ) &&
+			FeatureCodec.writePointMatches(
+				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p2.getId() ) + "_" + Long.toString( p1.getId() ), "pointmatches", ".ser" ) ).toString(),
+				p,
+				tsil );
 	}
 
 
@@ -880,8 +919,13 @@ public class Align
 		final Patch p2 = t2.getPatch();
 		final Loader loader = p1.getProject().getLoader();
 
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" )
-				.append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() );
+		final String path = new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" )
+				.append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString();
+		if ( FeatureCodec.isCodecFile( path ) )
+			return FeatureCodec.readPointMatches( path, p );
+
+		/* files saved before the binary format */
+		final Object ob = loader.deserialize( path );
 
 		if ( null != ob )
 		{
@@ -932,7 +976,7 @@ public class Align
 			final List< PointMatch > inliers = new ArrayList< PointMatch >();
 
 			final long s = System.currentTimeMillis();
-			FeatureTransform.matchFeatures(
+			matchFeatures(
 					fetchFeatures( p, t1 ),
 					fetchFeatures( p, t2 ),
 					candidates,
@@ -1401,7 +1445,8 @@ public class Align
 				}
 			}
 
-			ijSIFT.extractFeatures(
+			extractFeatures(
+					ijSIFT,
 					l.getProject().getLoader().getFlatImage( l, box2, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches, true ).getProcessor(),
 					features2 );
 			Utils.log( features2.size() + " features extracted in layer \"" + l.getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
@@ -1412,7 +1457,7 @@ public class Align
 
 				candidates.clear();
 
-				FeatureTransform.matchFeatures(
+				matchFeatures(
 					features2,
 					features1,
 					candidates,
@@ -1569,19 +1614,21 @@ public class Align
 		final List< PointMatch > inliers = new ArrayList< PointMatch >();
 
 		long s = System.currentTimeMillis();
-		ijSIFT.extractFeatures(
+		extractFeatures(
+				ijSIFT,
 				la.getProject().getLoader().getFlatImage( la, boxA, scale, 0xffffffff, ImagePlus.GRAY8, null, pa, true, Color.GRAY ).getProcessor(), featuresA );
 		Utils.log( featuresA.size() + " features extracted in graph A in layer \"" + la.getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
 
 		s = System.currentTimeMillis();
-		ijSIFT.extractFeatures(
+		extractFeatures(
+				ijSIFT,
 				lb.getProject().getLoader().getFlatImage( lb, boxB, scale, 0xffffffff, ImagePlus.GRAY8, null, pb, true, Color.GRAY ).getProcessor(), featuresB );
 		Utils.log( featuresB.size() + " features extracted in graph B in layer \"" + lb.getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
 
 		if ( featuresA.size() > 0 && featuresB.size() > 0 )
 		{
 			s = System.currentTimeMillis();
-			FeatureTransform.matchFeatures(
+			matchFeatures(
 					featuresA,
 					featuresB,
 					candidates,
@@ -66,7 +66,6 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
-import mpicbg.ij.FeatureTransform;
 import mpicbg.ij.SIFT;
 import mpicbg.ij.util.Util;
 import mpicbg.imagefeatures.Feature;
@@ -346,7 +345,8 @@ final public class AlignLayersTask
 
 			final ImageProcessor flatImage = layer.getProject().getLoader().getFlatImage( layer, box2, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches, true ).getProcessor();
 
-			ijSIFT.extractFeatures(
+			Align.extractFeatures(
+					ijSIFT,
 					flatImage,
 					features2 );
 			IJ.log( features2.size() + " features extracted in layer \"" + layer.getTitle() + "\" (took " + ( System.currentTimeMillis() - t0 ) + " ms)." );
@@ -357,7 +357,7 @@ final public class AlignLayersTask
 
 				candidates.clear();
 
-				FeatureTransform.matchFeatures(
+				Align.matchFeatures(
 					features2,
 					features1,
 					candidates,
@@ -579,7 +579,8 @@ final public class AlignLayersTask
 				@Override
 				public ImageProcessor call() {
 					final ImageProcessor ip1 = loader.getFlatImage( layer1, box1, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches1, true ).getProcessor();
-					ijSIFT1.extractFeatures(
+					Align.extractFeatures(
+							ijSIFT1,
 							ip1,
 							features1 );
 					Utils.log( features1.size() + " features extracted in layer \"" + layer1.getTitle() + "\" (took " + ( System.currentTimeMillis() - t0 ) + " ms)." );
@@ -589,7 +590,8 @@ final public class AlignLayersTask
 				@Override
 				public ImageProcessor call() {
 					final ImageProcessor ip2 = loader.getFlatImage( layer2, box2, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, patches2, true ).getProcessor();
-					ijSIFT2.extractFeatures(
+					Align.extractFeatures(
+							ijSIFT2,
 							ip2,
 							features2 );
 					Utils.log( features2.size() + " features extracted in layer \"" + layer2.getTitle() + "\" (took " + ( System.currentTimeMillis() - t0 ) + " ms)." );
@@ -611,7 +613,7 @@ final public class AlignLayersTask
 
 				candidates.clear();
 
-				FeatureTransform.matchFeatures(
+				Align.matchFeatures(
 					features2,
 					features1,
 					candidates,
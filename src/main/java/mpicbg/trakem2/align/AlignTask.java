@@ -59,7 +59,6 @@ import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
-import mpicbg.ij.FeatureTransform;
 import mpicbg.ij.SIFT;
 import mpicbg.imagefeatures.Feature;
 import mpicbg.imagefeatures.FloatArray2DSIFT;
@@ -1064,12 +1063,14 @@ A:		for ( final Layer layer : layers )
 
 		long s = System.currentTimeMillis();
 
-		ijSIFT.extractFeatures(
+		Align.extractFeatures(
+				ijSIFT,
 				layer1.getProject().getLoader().getFlatImage( layer1, graph1Box, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, selection1.getSelected( Patch.class ), false, Color.GRAY ).getProcessor(),
 				features1 );
 		Utils.log( features1.size() + " features extracted for graphs in layer \"" + layer1.getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
 
-		ijSIFT.extractFeatures(
+		Align.extractFeatures(
+				ijSIFT,
 				layer2.getProject().getLoader().getFlatImage( layer2, graph2Box, scale, 0xffffffff, ImagePlus.GRAY8, Patch.class, selection2.getSelected( Patch.class ), false, Color.GRAY ).getProcessor(),
 				features2 );
 		Utils.log( features2.size() + " features extracted for graphs in layer \"" + layer1.getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
@@ -1079,7 +1080,7 @@ A:		for ( final Layer layer : layers )
 		{
 			s = System.currentTimeMillis();
 
-			FeatureTransform.matchFeatures(
+			Align.matchFeatures(
 				features1,
 				features2,
 				candidates,
@@ -237,8 +237,10 @@ final public class AlignmentUtils
                 final FloatArray2DSIFT sift = new FloatArray2DSIFT( siftParam );
                 final SIFT ijSIFT = new SIFT( sift );
                 fs = new ArrayList< Feature >();
-                ijSIFT.extractFeatures( new ExportBestFlatImage( patches, finalBox, 0, scale ).makeFlatGrayImage(), fs );
-                Utils.log( fs.size() + " features extracted for " + layerName );
+                if ( FeatureStore.extractFeatures( ijSIFT, siftParam, new ExportBestFlatImage( patches, finalBox, 0, scale ).makeFlatGrayImage(), fs, !clearCache ) )
+                    Utils.log( fs.size() + " features found in the shared store for " + layerName );
+                else
+                    Utils.log( fs.size() + " features extracted for " + layerName );
 
                 if ( !mpicbg.trakem2.align.Util.serializeFeatures( layer.getProject(), siftParam, "layer", layer.getId(), fs ) )
                     Utils.log( "FAILED to store serialized features for " + layerName );
@@ -332,8 +332,10 @@ public class ElasticMontage
 								final SIFT ijSIFT = new SIFT( sift );
 								fs = new ArrayList< Feature >();
 								final ByteProcessor ip = tile.createMaskedByteImage();
-								ijSIFT.extractFeatures( ip, fs );
-								Utils.log( fs.size() + " features extracted for " + patchName );
+								if ( FeatureStore.extractFeatures( ijSIFT, siftParam, ip, fs, !clearCache ) )
+									Utils.log( fs.size() + " features found in the shared store for " + patchName );
+								else
+									Utils.log( fs.size() + " features extracted for " + patchName );
 
 								if ( !mpicbg.trakem2.align.Util.serializeFeatures( tile.getPatch().getProject(), siftParam, null, tile.getPatch().getId(), fs ) )
 									Utils.log( "FAILED to store serialized features for " + patchName );
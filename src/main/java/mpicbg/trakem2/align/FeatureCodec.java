@@ -0,0 +1,410 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Compact binary files for cached {@link Feature Features} and
+ * {@link PointMatch PointMatches}, replacing one Java-serialized
+ * {@link ArrayList} per file.  The files keep the names and folders of the
+ * serialized ones, so that lookup and invalidation are unchanged; files in
+ * the old format are recognized with {@link #isCodecFile(String)} and can
+ * still be read with {@link ini.trakem2.persistence.Loader#deserialize(String)}.
+ *
+ * Layout, all numbers big-endian:
+ * <pre>
+ * header:  4 bytes magic "T2FC", 1 byte version, 1 byte kind (features or
+ *          point matches), 2 bytes reserved,
+ *          4-byte length of the key followed by the Java-serialized key,
+ *          4-byte number of elements n, 4-byte dimension of the points,
+ *          4-byte descriptor length (zero for point matches)
+ * features:      n * dimension doubles locations, n doubles scales,
+ *                n doubles orientations, n * descriptor length floats descriptors
+ * point matches: n * dimension doubles for each of p1 local, p1 world,
+ *                p2 local and p2 world, then n doubles weights
+ * </pre>
+ *
+ * Only the key goes through Java serialization, which is a few hundred bytes
+ * at most; the bulk of the file is read into the heap in one go and then as
+ * arrays of primitives.  Files are not memory-mapped, since a mapped file
+ * can't be deleted on Windows until the mapping is garbage collected.
+ * Files are written to a temporary file in the same folder and then moved
+ * into place, so that readers never see a partially written file.
+ */
+final public class FeatureCodec
+{
+	final static private byte[] MAGIC = new byte[]{ 'T', '2', 'F', 'C' };
+	final static private byte VERSION = 1;
+	final static private byte FEATURES = 1;
+	final static private byte POINT_MATCHES = 2;
+
+	/** Suffix of the temporary files written before being moved into place. */
+	final static public String TMP_SUFFIX = ".tmp";
+
+	private FeatureCodec() {}
+
+	/** Whether the file at path exists and is in this format. */
+	final static public boolean isCodecFile( final String path )
+	{
+		final File f = new File( path );
+		if ( !f.exists() || f.length() < MAGIC.length ) return false;
+		FileInputStream in = null;
+		try
+		{
+			in = new FileInputStream( f );
+			final byte[] m = new byte[ MAGIC.length ];
+			int n = 0;
+			while ( n < m.length )
+			{
+				final int k = in.read( m, n, m.length - n );
+				if ( k < 0 ) return false;
+				n += k;
+			}
+			for ( int i = 0; i < m.length; ++i )
+				if ( m[ i ] != MAGIC[ i ] ) return false;
+			return true;
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+			return false;
+		}
+		finally
+		{
+			if ( null != in ) try { in.close(); } catch ( final Exception e ) { IJError.print( e ); }
+		}
+	}
+
+	/**
+	 * Save features together with the key that describes how they were
+	 * extracted.  All features must have the same location dimension and
+	 * descriptor length, as is the case for those of one SIFT run.
+	 */
+	final static public boolean writeFeatures( final String path, final Object key, final Collection< Feature > features )
+	{
+		final int n = features.size();
+		int dim = 0, d = 0;
+		if ( n > 0 )
+		{
+			final Feature first = features.iterator().next();
+			dim = first.location.length;
+			d = first.descriptor.length;
+		}
+		for ( final Feature f : features )
+		{
+			if ( f.location.length != dim || f.descriptor.length != d )
+			{
+				Utils.log( "Features of different dimensions can't be saved to " + path );
+				return false;
+			}
+		}
+		try
+		{
+			final byte[] k = serializeKey( key );
+			final ByteBuffer buf = ByteBuffer.allocate( headerSize( k ) + n * ( dim + 2 ) * 8 + n * d * 4 );
+			writeHeader( buf, FEATURES, k, n, dim, d );
+
+			final DoubleBuffer db = buf.asDoubleBuffer();
+			for ( final Feature f : features )
+				db.put( f.location );
+			for ( final Feature f : features )
+				db.put( f.scale );
+			for ( final Feature f : features )
+				db.put( f.orientation );
+			buf.position( buf.position() + db.position() * 8 );
+
+			final FloatBuffer fb = buf.asFloatBuffer();
+			for ( final Feature f : features )
+				fb.put( f.descriptor );
+			buf.position( buf.position() + fb.position() * 4 );
+
+			return write( path, buf );
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the features saved at path, or null if there is no such file,
+	 * it is not in this format, or its key does not {@link Object#equals(Object) equal} key.
+	 */
+	final static public ArrayList< Feature > readFeatures( final String path, final Object key )
+	{
+		try
+		{
+			final ByteBuffer buf = read( path );
+			if ( null == buf || !readKey( buf, FEATURES, key ) ) return null;
+			final int n = buf.getInt();
+			final int dim = buf.getInt();
+			final int d = buf.getInt();
+
+			final ArrayList< Feature > features = new ArrayList< Feature >( n );
+			final DoubleBuffer db = buf.asDoubleBuffer();
+			for ( int i = 0; i < n; ++i )
+			{
+				final Feature f = new Feature();
+				f.location = new double[ dim ];
+				db.get( f.location );
+				f.descriptor = new float[ d ];
+				features.add( f );
+			}
+			for ( final Feature f : features )
+				f.scale = db.get();
+			for ( final Feature f : features )
+				f.orientation = db.get();
+			buf.position( buf.position() + db.position() * 8 );
+
+			final FloatBuffer fb = buf.asFloatBuffer();
+			for ( final Feature f : features )
+				fb.get( f.descriptor );
+
+			return features;
+		}
+		catch ( final Exception e )
+		{
+			Utils.log( "Could not read features from " + path );
+			IJError.print( e );
+			return null;
+		}
+	}
+
+	/** Save point matches together with the key that describes how they were found. */
+	final static public boolean writePointMatches( final String path, final Object key, final Collection< PointMatch > matches )
+	{
+		final int n = matches.size();
+		final int dim = 0 == n ? 0 : matches.iterator().next().getP1().getL().length;
+		for ( final PointMatch m : matches )
+		{
+			if ( m.getP1().getL().length != dim || m.getP2().getL().length != dim )
+			{
+				Utils.log( "Point matches of different dimensions can't be saved to " + path );
+				return false;
+			}
+		}
+		try
+		{
+			final byte[] k = serializeKey( key );
+			final ByteBuffer buf = ByteBuffer.allocate( headerSize( k ) + n * ( 4 * dim + 1 ) * 8 );
+			writeHeader( buf, POINT_MATCHES, k, n, dim, 0 );
+
+			final DoubleBuffer db = buf.asDoubleBuffer();
+			for ( final PointMatch m : matches )
+				db.put( m.getP1().getL() );
+			for ( final PointMatch m : matches )
+				db.put( m.getP1().getW() );
+			for ( final PointMatch m : matches )
+				db.put( m.getP2().getL() );
+			for ( final PointMatch m : matches )
+				db.put( m.getP2().getW() );
+			for ( final PointMatch m : matches )
+				db.put( m.getWeight() );
+			buf.position( buf.position() + db.position() * 8 );
+
+			return write( path, buf );
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the point matches saved at path, or null if there is no such file,
+	 * it is not in this format, or its key does not {@link Object#equals(Object) equal} key.
+	 */
+	final static public ArrayList< PointMatch > readPointMatches( final String path, final Object key )
+	{
+		try
+		{
+			final ByteBuffer buf = read( path );
+			if ( null == buf || !readKey( buf, POINT_MATCHES, key ) ) return null;
+			final int n = buf.getInt();
+			final int dim = buf.getInt();
+			buf.getInt(); // no descriptors
+
+			final DoubleBuffer db = buf.asDoubleBuffer();
+			final double[][] l1 = new double[ n ][ dim ], w1 = new double[ n ][ dim ],
+			                 l2 = new double[ n ][ dim ], w2 = new double[ n ][ dim ];
+			for ( int i = 0; i < n; ++i ) db.get( l1[ i ] );
+			for ( int i = 0; i < n; ++i ) db.get( w1[ i ] );
+			for ( int i = 0; i < n; ++i ) db.get( l2[ i ] );
+			for ( int i = 0; i < n; ++i ) db.get( w2[ i ] );
+
+			final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( n );
+			for ( int i = 0; i < n; ++i )
+			{
+				final Point p1 = new Point( l1[ i ] );
+				final Point p2 = new Point( l2[ i ] );
+				System.arraycopy( w1[ i ], 0, p1.getW(), 0, dim );
+				System.arraycopy( w2[ i ], 0, p2.getW(), 0, dim );
+				matches.add( new PointMatch( p1, p2, db.get() ) );
+			}
+			return matches;
+		}
+		catch ( final Exception e )
+		{
+			Utils.log( "Could not read point matches from " + path );
+			IJError.print( e );
+			return null;
+		}
+	}
+
+	final static private byte[] serializeKey( final Object key ) throws Exception
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream( bytes );
+		out.writeObject( key );
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	final static private int headerSize( final byte[] key )
+	{
+		return MAGIC.length + 4 + 4 + key.length + 12;
+	}
+
+	final static private void writeHeader( final ByteBuffer buf, final byte kind, final byte[] key, final int n, final int dim, final int d )
+	{
+		buf.put( MAGIC );
+		buf.put( VERSION );
+		buf.put( kind );
+		buf.putShort( ( short )0 );
+		buf.putInt( key.length );
+		buf.put( key );
+		buf.putInt( n );
+		buf.putInt( dim );
+		buf.putInt( d );
+	}
+
+	/** Checks magic, version and kind, and whether the stored key equals key. Leaves buf after the key. */
+	final static private boolean readKey( final ByteBuffer buf, final byte kind, final Object key ) throws Exception
+	{
+		for ( int i = 0; i < MAGIC.length; ++i )
+			if ( buf.get() != MAGIC[ i ] ) return false;
+		if ( buf.get() != VERSION ) return false;
+		if ( buf.get() != kind ) return false;
+		buf.getShort();
+		final byte[] k = new byte[ buf.getInt() ];
+		buf.get( k );
+		final ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( k ) );
+		final Object stored = in.readObject();
+		in.close();
+		return null != stored && key.equals( stored );
+	}
+
+	final static private boolean write( final String path, final ByteBuffer buf )
+	{
+		final File file = new File( path );
+		final File fdir = file.getParentFile();
+		if ( null == fdir ) return false;
+		fdir.mkdirs();
+		if ( !fdir.exists() )
+		{
+			Utils.log2( "Could not create folder " + fdir.getAbsolutePath() );
+			return false;
+		}
+		buf.flip();
+		File tmp = null;
+		FileOutputStream out = null;
+		try
+		{
+			// In the same folder, so that it can be moved into place atomically
+			tmp = File.createTempFile( "." + file.getName() + "-", TMP_SUFFIX, fdir );
+			out = new FileOutputStream( tmp );
+			final FileChannel ch = out.getChannel();
+			while ( buf.hasRemaining() )
+				ch.write( buf );
+			out.close();
+			out = null;
+			try
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( final AtomicMoveNotSupportedException amnse )
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+			return true;
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+		}
+		finally
+		{
+			if ( null != out ) try { out.close(); } catch ( final Exception e ) { IJError.print( e ); }
+		}
+		// Don't leave a truncated file behind
+		if ( null != tmp ) tmp.delete();
+		return false;
+	}
+
+	/** Returns the whole file, read into the heap, or null if it doesn't exist. */
+	final static private ByteBuffer read( final String path ) throws Exception
+	{
+		final File file = new File( path );
+		if ( !file.exists() ) return null;
+		final FileInputStream in = new FileInputStream( file );
+		try
+		{
+			final FileChannel ch = in.getChannel();
+			final long size = ch.size();
+			if ( size < MAGIC.length ) return null;
+			final ByteBuffer buf = ByteBuffer.allocate( ( int )size );
+			while ( buf.hasRemaining() )
+				if ( ch.read( buf ) < 0 ) break;
+			buf.flip();
+			return buf;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2021 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align;
+
+import ij.process.ImageProcessor;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Metrics;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+
+/**
+ * A store of {@link Feature Features} on local disk shared by all projects
+ * and runs, addressed by a hash of the image from which they were extracted
+ * and of the parameters of the extraction.  Duplicated projects, re-imported
+ * tiles and repeated alignments of the same layers find the features of an
+ * image that was seen before, whatever the id of its {@link ini.trakem2.display.Patch}
+ * or {@link ini.trakem2.display.Layer}.
+ *
+ * The hashed image is the one handed to SIFT, after masking and contrast
+ * adjustment, so that any change that would alter the features also alters
+ * the hash.  Files are in the format of {@link FeatureCodec}, which stores
+ * the parameters too, so that a hash collision is detected rather than
+ * returning the wrong features.
+ *
+ * The store is bounded in size: when it grows beyond its maximum, the files
+ * least recently used are deleted until it occupies 90% of the maximum.
+ * Use is recorded in the modification time of the files, so that several
+ * processes can share the same directory.
+ *
+ * The directory defaults to ~/.trakem2/features/ and can be set with the system
+ * property {@link #DIR_PROPERTY}, where "none" disables the store; the maximum
+ * defaults to 2 GB and can be set in bytes with {@link #MAX_BYTES_PROPERTY}.
+ */
+final public class FeatureStore
+{
+	final static public String DIR_PROPERTY = "trakem2.features.store";
+	final static public String MAX_BYTES_PROPERTY = "trakem2.features.store.max_bytes";
+	final static public long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+	/** Temporary files older than this are left over from a failed write. */
+	final static private long STALE_TMP_MS = 60 * 60 * 1000;
+
+	final static private Object default_lock = new Object();
+	static private FeatureStore default_store = null;
+	static private boolean default_checked = false;
+
+	final private File dir;
+	private long max_bytes;
+	/** Bytes occupied by the files in dir, or -1 when not yet counted. */
+	private long bytes = -1;
+
+	public FeatureStore( final File dir, final long max_bytes )
+	{
+		this.dir = dir;
+		this.max_bytes = max_bytes;
+	}
+
+	/** Returns the store shared by all projects, or null if disabled or if its directory can't be created. */
+	final static public FeatureStore getDefault()
+	{
+		synchronized ( default_lock )
+		{
+			if ( default_checked ) return default_store;
+			default_checked = true;
+			String path = System.getProperty( DIR_PROPERTY );
+			if ( "none".equals( path ) ) return null;
+			if ( null == path ) path = System.getProperty( "user.home" ) + "/.trakem2/features";
+			final File d = new File( path );
+			d.mkdirs();
+			if ( !d.isDirectory() || !d.canWrite() )
+			{
+				Utils.log2( "Can't use directory for the shared feature store: " + path );
+				return null;
+			}
+			long max = DEFAULT_MAX_BYTES;
+			final String smax = System.getProperty( MAX_BYTES_PROPERTY );
+			if ( null != smax )
+			{
+				try
+				{
+					max = Long.parseLong( smax.trim() );
+				}
+				catch ( final NumberFormatException nfe )
+				{
+					Utils.log2( "Ignoring invalid " + MAX_BYTES_PROPERTY + ": " + smax );
+				}
+			}
+			default_store = new FeatureStore( d, max );
+			return default_store;
+		}
+	}
+
+	/**
+	 * Add to features those of ip for the SIFT parameters p, from the default
+	 * store if there and useStored, otherwise extracted with ijSIFT and added
+	 * to the store.  Returns true if the features were found in the store.
+	 */
+	final static public boolean extractFeatures(
+			final SIFT ijSIFT,
+			final Object p,
+			final ImageProcessor ip,
+			final Collection< Feature > features,
+			final boolean useStored )
+	{
+		final FeatureStore store = getDefault();
+		if ( null == store )
+		{
+			Align.extractFeatures( ijSIFT, ip, features );
+			return false;
+		}
+		final String hash = store.hash( ip, p );
+		if ( null != hash && useStored )
+		{
+			final ArrayList< Feature > fs = store.get( hash, p );
+			if ( null != fs )
+			{
+				Metrics.counter( "sift.store.hit" ).increment();
+				features.addAll( fs );
+				return true;
+			}
+			Metrics.counter( "sift.store.miss" ).increment();
+		}
+		Align.extractFeatures( ijSIFT, ip, features );
+		if ( null != hash && !store.put( hash, p, features ) )
+			Utils.log2( "Could not add features to the shared store." );
+		return false;
+	}
+
+	public File getDirectory()
+	{
+		return dir;
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return max_bytes;
+	}
+
+	public synchronized void setMaxBytes( final long max_bytes )
+	{
+		this.max_bytes = max_bytes;
+		evict();
+	}
+
+	/** Hash of the pixels and dimensions of ip and of the Java-serialized key, or null if the key can't be serialized. */
+	public String hash( final ImageProcessor ip, final Object key )
+	{
+		try
+		{
+			final MessageDigest md = MessageDigest.getInstance( "SHA-1" );
+			final ByteBuffer head = ByteBuffer.allocate( 8 );
+			head.putInt( ip.getWidth() ).putInt( ip.getHeight() );
+			md.update( head.array() );
+			md.update( ip.getClass().getName().getBytes( "UTF-8" ) );
+			final Object pixels = ip.getPixels();
+			if ( pixels instanceof byte[] )
+				md.update( ( byte[] )pixels );
+			else
+			{
+				final int n = ip.getPixelCount();
+				final ByteBuffer buf = ByteBuffer.allocate( 4 * Math.min( n, 65536 ) );
+				for ( int i = 0; i < n; )
+				{
+					buf.clear();
+					for ( final int end = Math.min( n, i + 65536 ); i < end; ++i )
+					{
+						if ( pixels instanceof short[] ) buf.putShort( ( ( short[] )pixels )[ i ] );
+						else if ( pixels instanceof float[] ) buf.putFloat( ( ( float[] )pixels )[ i ] );
+						else buf.putInt( ( ( int[] )pixels )[ i ] );
+					}
+					md.update( buf.array(), 0, buf.position() );
+				}
+			}
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream out = new ObjectOutputStream( bytes );
+			out.writeObject( key );
+			out.close();
+			md.update( bytes.toByteArray() );
+
+			final byte[] d = md.digest();
+			final StringBuilder sb = new StringBuilder( d.length * 2 );
+			for ( final byte b : d )
+			{
+				sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) );
+				sb.append( Character.forDigit( b & 0xf, 16 ) );
+			}
+			return sb.toString();
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+			return null;
+		}
+	}
+
+	/** Files are spread over 256 subdirectories by the first two characters of the hash. */
+	private File file( final String hash )
+	{
+		return new File( dir, hash.substring( 0, 2 ) + "/" + hash.substring( 2 ) + ".features" );
+	}
+
+	/** Returns the features stored for hash if they were extracted with key, or null.
+	 *  The file is read into the heap, not mapped, so that it can be evicted meanwhile. */
+	public ArrayList< Feature > get( final String hash, final Object key )
+	{
+		final File f = file( hash );
+		if ( !f.exists() ) return null;
+		final ArrayList< Feature > fs = FeatureCodec.readFeatures( f.getAbsolutePath(), key );
+		// Mark as recently used
+		if ( null != fs ) f.setLastModified( System.currentTimeMillis() );
+		return fs;
+	}
+
+	/** Writes to a temporary file next to the stored one, which is then moved into place
+	 *  atomically: concurrent readers, in this or other processes, never see a partial file. */
+	public boolean put( final String hash, final Object key, final Collection< Feature > features )
+	{
+		final File f = file( hash );
+		final long replaced = f.length(); // zero if none
+		if ( !FeatureCodec.writeFeatures( f.getAbsolutePath(), key, features ) ) return false;
+		synchronized ( this )
+		{
+			if ( bytes >= 0 ) bytes += f.length() - replaced;
+			evict();
+		}
+		return true;
+	}
+
+	private File[] listFiles()
+	{
+		final ArrayList< File > files = new ArrayList< File >();
+		final File[] subdirs = dir.listFiles();
+		if ( null == subdirs ) return new File[ 0 ];
+		for ( final File sub : subdirs )
+		{
+			if ( !sub.isDirectory() ) continue;
+			final File[] fs = sub.listFiles();
+			if ( null == fs ) continue;
+			for ( final File f : fs )
+			{
+				if ( f.getName().endsWith( FeatureCodec.TMP_SUFFIX ) )
+				{
+					// Being written, by this or another process; or left behind by a crash
+					if ( f.lastModified() < System.currentTimeMillis() - STALE_TMP_MS ) f.delete();
+					continue;
+				}
+				files.add( f );
+			}
+		}
+		return files.toArray( new File[ files.size() ] );
+	}
+
+	/** Delete least recently used files, if needed, until the store occupies 90% of max_bytes. */
+	private synchronized void evict()
+	{
+		if ( bytes >= 0 && bytes <= max_bytes ) return;
+		// Count anew: other processes may have added or removed files
+		final File[] files = listFiles();
+		final long[] modified = new long[ files.length ];
+		long total = 0;
+		for ( int i = 0; i < files.length; ++i )
+		{
+			total += files[ i ].length();
+			modified[ i ] = files[ i ].lastModified();
+		}
+		bytes = total;
+		if ( bytes <= max_bytes ) return;
+
+		final Integer[] order = new Integer[ files.length ];
+		for ( int i = 0; i < order.length; ++i ) order[ i ] = i;
+		Arrays.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer a, final Integer b )
+			{
+				return modified[ a ] < modified[ b ] ? -1 : ( modified[ a ] == modified[ b ] ? 0 : 1 );
+			}
+		} );
+		final long target = ( max_bytes / 10 ) * 9;
+		int n_deleted = 0;
+		for ( int i = 0; i < order.length && bytes > target; ++i )
+		{
+			final File f = files[ order[ i ] ];
+			final long len = f.length();
+			if ( f.delete() )
+			{
+				bytes -= len;
+				++n_deleted;
+			}
+		}
+		Utils.log2( "Shared feature store: removed " + n_deleted + " least recently used files, " + bytes + " bytes remain." );
+	}
+}
@@ -117,18 +117,15 @@ public class Util
 			final long id,
 			final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
-		
 		final String name = prefix == null ? "features" : prefix + ".features";
 		
 		final Loader loader = project.getLoader();
-		final Features fe = new Features( key, list );
-		return loader.serialize(
-				fe,
+		return FeatureCodec.writeFeatures(
 				new StringBuilder( loader.getUNUIdFolder() )
 					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString(),
+				key,
+				f );
 	}
 
 	
@@ -155,11 +152,17 @@ public class Util
 		final String name = prefix == null ? "features" : prefix + ".features";
 		
 		final Loader loader = project.getLoader();
-
-		final Object ob = loader.deserialize(
+		
+		final String path =
 				new StringBuilder( loader.getUNUIdFolder() )
 					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString();
+		
+		if ( FeatureCodec.isCodecFile( path ) )
+			return FeatureCodec.readFeatures( path, key );
+
+		/* files saved before the binary format */
+		final Object ob = loader.deserialize( path );
 		
 		if ( ob != null )
 		{
@@ -202,8 +205,6 @@ public class Util
 			final long id2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
 		PointMatch.flip( m, tsil );
 		
@@ -211,16 +212,18 @@ public class Util
 		
 		final Loader loader = project.getLoader();
 		return
-			loader.serialize(
-				new PointMatches( key, list ),
+			FeatureCodec.writePointMatches(
 				new StringBuilder( loader.getUNUIdFolder() )
 					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( key, tsil ),
+					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString(),
+				key,
+				m ) &&
+			FeatureCodec.writePointMatches(
 				new StringBuilder( loader.getUNUIdFolder() )
 					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id2 ) + "_" + Long.toString( id1 ), name, ".ser" ) ).toString() );
+					.append( FSLoader.createIdPath( Long.toString( id2 ) + "_" + Long.toString( id1 ), name, ".ser" ) ).toString(),
+				key,
+				tsil );
 	}
 	
 	
@@ -235,10 +238,16 @@ public class Util
 		
 		final Loader loader = project.getLoader();
 		
-		final Object ob = loader.deserialize(
+		final String path =
 				new StringBuilder( loader.getUNUIdFolder() )
 					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() );
+					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString();
+		
+		if ( FeatureCodec.isCodecFile( path ) )
+			return FeatureCodec.readPointMatches( path, key );
+		
+		/* files saved before the binary format */
+		final Object ob = loader.deserialize( path );
 		
 		if ( null != ob )
 		{